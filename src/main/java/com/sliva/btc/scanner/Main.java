@@ -68,6 +68,12 @@ public class Main {
                 case schema:
                     RunSchema.main(removeCmd(args));
                     return;
+                case archive_segments:
+                    RunArchiveSegments.main(removeCmd(args));
+                    return;
+                case cold_tier:
+                    RunColdTier.main(removeCmd(args));
+                    return;
                 default:
                     throw new IllegalArgumentException();
             }
@@ -89,6 +95,8 @@ public class Main {
         address,
         load_neo4j,
         update_neo_wallets,
-        schema
+        schema,
+        archive_segments,
+        cold_tier
     }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.facade.DbQueryBlock;
+import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.db.segment.Segment;
+import com.sliva.btc.scanner.db.segment.SegmentStore;
+import com.sliva.btc.scanner.db.segment.SegmentTable;
+import com.sliva.btc.scanner.db.segment.SegmentWriter;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdArguments;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOption;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOptions;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildCmdArguments;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
+import com.sliva.btc.scanner.util.ShutdownHook;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.time.StopWatch;
+
+/**
+ * Archive transactions, inputs and outputs of old blocks to columnar segments
+ * of {@link SegmentStore}. Each segment covers "--segment-blocks" blocks and
+ * is written once all its blocks are at least "--seal-depth" blocks deep.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class RunArchiveSegments {
+
+    private static final int DEFAULT_SEGMENT_BLOCKS = 1000;
+    private static final int DEFAULT_SEAL_DEPTH = 100;
+    private static final int DEFAULT_BATCH_SIZE = 50_000;
+    private static final boolean DEFAULT_PRUNE = false;
+
+    private static final CmdOptions CMD_OPTS = new CmdOptions().add(DBConnectionSupplier.class).add(SegmentStore.class);
+    private static final CmdOption segmentBlocksOpt = buildOption(CMD_OPTS, null, "segment-blocks", true, "Number of blocks in a segment. Default: " + DEFAULT_SEGMENT_BLOCKS);
+    private static final CmdOption sealDepthOpt = buildOption(CMD_OPTS, null, "seal-depth", true, "Minimum depth of blocks to be archived. Default: " + DEFAULT_SEAL_DEPTH);
+    private static final CmdOption batchSizeOpt = buildOption(CMD_OPTS, null, "batch-size", true, "Number or transactions to read from DB in a batch. Default: " + DEFAULT_BATCH_SIZE);
+    private static final CmdOption pruneOpt = buildOption(CMD_OPTS, null, "prune", true, "Delete archived rows from transaction, input and output tables, so DB keeps only recent blocks."
+            + " Queries that are not served by the archive (i.e. joins with address tables) do not see pruned rows. Default: " + DEFAULT_PRUNE);
+
+    private static final String SQL_QUERY_TXN_RANGE_BY_BLOCKS = "SELECT MIN(transaction_id),MAX(transaction_id) FROM `transaction` WHERE block_height BETWEEN ? AND ?";
+    private static final String SQL_QUERY_OUTPUTS = "SELECT transaction_id,pos,address_id,amount,spent FROM `output` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_QUERY_INPUTS = "SELECT transaction_id,pos,in_transaction_id,in_pos FROM `input` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_DELETE_OUTPUTS = "DELETE FROM `output` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_DELETE_INPUTS = "DELETE FROM `input` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_DELETE_TRANSACTIONS = "DELETE FROM `transaction` WHERE transaction_id BETWEEN ? AND ?";
+
+    private static ShutdownHook shutdownHook;
+
+    private final int segmentBlocks;
+    private final int sealDepth;
+    private final int batchSize;
+    private final boolean prune;
+    private final SegmentStore segmentStore;
+    private final boolean hasSpentField;
+    private final DbQueryBlock queryBlock;
+    private final DbQueryTransaction queryTransaction;
+    private final DBPreparedStatement psQueryTxnRangeByBlocks;
+    private final DBPreparedStatement psQueryOutputs;
+    private final DBPreparedStatement psQueryInputs;
+    private final DBPreparedStatement psDeleteOutputs;
+    private final DBPreparedStatement psDeleteInputs;
+    private final DBPreparedStatement psDeleteTransactions;
+
+    /**
+     * @param args the command line arguments
+     * @throws java.lang.Exception
+     */
+    public static void main(String[] args) throws Exception {
+        CmdArguments cmd = buildCmdArguments(args, Main.Command.archive_segments.name(), "Archive old blocks to columnar segments", null, CMD_OPTS);
+        shutdownHook = new ShutdownHook();
+        log.info("START");
+        try {
+            new RunArchiveSegments(cmd).runProcess();
+        } finally {
+            log.info("FINISH");
+            shutdownHook.finished();
+        }
+    }
+
+    public RunArchiveSegments(CmdArguments cmd) {
+        segmentBlocks = cmd.getOption(segmentBlocksOpt).map(Integer::parseInt).orElse(DEFAULT_SEGMENT_BLOCKS);
+        checkArgument(segmentBlocks > 0, "Argument '%s' must be a positive integer value", segmentBlocksOpt.getLongOpt());
+        sealDepth = cmd.getOption(sealDepthOpt).map(Integer::parseInt).orElse(DEFAULT_SEAL_DEPTH);
+        checkArgument(sealDepth >= DEFAULT_SEAL_DEPTH, "Argument '%s' must be %s or greater", sealDepthOpt.getLongOpt(), DEFAULT_SEAL_DEPTH);
+        batchSize = cmd.getOption(batchSizeOpt).map(Integer::parseInt).orElse(DEFAULT_BATCH_SIZE);
+        prune = cmd.getOption(pruneOpt).map(Boolean::valueOf).orElse(DEFAULT_PRUNE);
+        DBConnectionSupplier dbCon = new DBConnectionSupplier().checkTablesExist("block", "transaction", "input", "output");
+        DbStores stores = DbStores.open(dbCon);
+        segmentStore = stores.getSegmentStore().orElseThrow(() -> new IllegalArgumentException("Argument '" + SegmentStore.segmentStoreDirOpt.getLongOpt() + "' is not set"));
+        hasSpentField = dbCon.getDBMetaData().hasField("output.spent");
+        queryBlock = new DbQueryBlock(dbCon, stores);
+        queryTransaction = new DbQueryTransaction(dbCon, stores);
+        psQueryTxnRangeByBlocks = dbCon.prepareStatement(SQL_QUERY_TXN_RANGE_BY_BLOCKS, "transaction.block_height");
+        psQueryOutputs = dbCon.prepareStatement(hasSpentField ? SQL_QUERY_OUTPUTS : SQL_QUERY_OUTPUTS.replace(",spent", ""), "output.transaction_id");
+        psQueryInputs = dbCon.prepareStatement(SQL_QUERY_INPUTS, "input.transaction_id");
+        psDeleteOutputs = dbCon.prepareStatement(SQL_DELETE_OUTPUTS, "output.transaction_id");
+        psDeleteInputs = dbCon.prepareStatement(SQL_DELETE_INPUTS, "input.transaction_id");
+        psDeleteTransactions = dbCon.prepareStatement(SQL_DELETE_TRANSACTIONS, "transaction.transaction_id");
+    }
+
+    private void runProcess() throws IOException {
+        int sealedHeight = queryBlock.findLastHeight().orElse(-1) - sealDepth;
+        int fromHeight = segmentStore.getLastBlockHeight() + 1;
+        log.info("Archiving blocks from {} to {}", fromHeight, sealedHeight);
+        while (fromHeight + segmentBlocks - 1 <= sealedHeight && !shutdownHook.isInterrupted()) {
+            archiveSegment(fromHeight, fromHeight + segmentBlocks - 1);
+            fromHeight += segmentBlocks;
+        }
+    }
+
+    private void archiveSegment(int fromHeight, int toHeight) throws IOException {
+        StopWatch sw = StopWatch.createStarted();
+        int[] txnRange = getTransactionRange(fromHeight, toHeight);
+        checkState(txnRange[0] == segmentStore.getLastTransactionId() + 1 || segmentStore.getLastBlockHeight() < 0,
+                "Transactions of blocks %s-%s start from %s, expected %s", fromHeight, toHeight, txnRange[0], segmentStore.getLastTransactionId() + 1);
+        Segment segment;
+        try (SegmentWriter writer = new SegmentWriter(segmentStore.newSegmentFile(fromHeight, toHeight), fromHeight, toHeight)) {
+            for (int start = txnRange[0]; start <= txnRange[1]; start += batchSize) {
+                checkState(!shutdownHook.isInterrupted(), "Archiving of blocks %s-%s interrupted", fromHeight, toHeight);
+                int end = (int) Math.min(start + batchSize - 1L, txnRange[1]);
+                List<BtcTransaction> txns = queryTransaction.getTxnsRangle(start, end);
+                txns.sort(Comparator.comparingInt(BtcTransaction::getTransactionId));
+                for (BtcTransaction t : txns) {
+                    writer.addTransaction(t);
+                }
+                for (TxOutput o : queryOutputs(start, end)) {
+                    writer.addOutput(o);
+                }
+                for (TxInput i : queryInputs(start, end)) {
+                    writer.addInput(i);
+                }
+            }
+            segment = segmentStore.add(writer.finish());
+        }
+        log.info("Archived blocks {}-{} to {}: {} transactions, {} outputs, {} inputs, {} MB. Runtime: {} sec",
+                fromHeight, toHeight, segment, segment.getRowCount(SegmentTable.TRANSACTION), segment.getRowCount(SegmentTable.OUTPUT),
+                segment.getRowCount(SegmentTable.INPUT), segment.size() / 1024 / 1024, TimeUnit.NANOSECONDS.toSeconds(sw.getNanoTime()));
+        if (prune) {
+            pruneTransactions(txnRange[0], txnRange[1]);
+        }
+    }
+
+    private int[] getTransactionRange(int fromHeight, int toHeight) {
+        List<int[]> ranges = psQueryTxnRangeByBlocks.executeQueryToListOnAllShards(ps -> ps.setInt(fromHeight).setInt(toHeight),
+                rs -> rs.getObject(1) == null ? null : new int[]{rs.getInt(1), rs.getInt(2)});
+        int[] result = ranges.stream().filter(r -> r != null)
+                .reduce((a, b) -> new int[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])})
+                .orElseThrow(() -> new IllegalStateException("No transactions found in blocks " + fromHeight + "-" + toHeight));
+        return result;
+    }
+
+    private List<TxOutput> queryOutputs(int start, int end) {
+        List<TxOutput> result = psQueryOutputs.setFetchSize(batchSize).executeQueryToList(start, end,
+                ps -> ps.setInt(start).setInt(end),
+                rs -> TxOutput.builder()
+                        .transactionId(rs.getInt(1))
+                        .pos(rs.getShort(2))
+                        .addressId(rs.getInt(3))
+                        .amount(rs.getLong(4))
+                        .status(hasSpentField ? rs.getByte(5) : 0)
+                        .build());
+        result.sort(Comparator.naturalOrder());
+        return result;
+    }
+
+    private List<TxInput> queryInputs(int start, int end) {
+        List<TxInput> result = psQueryInputs.setFetchSize(batchSize).executeQueryToList(start, end,
+                ps -> ps.setInt(start).setInt(end),
+                rs -> TxInput.builder()
+                        .transactionId(rs.getInt(1))
+                        .pos(rs.getShort(2))
+                        .inTransactionId(rs.getInt(3))
+                        .inPos(rs.getShort(4))
+                        .build());
+        result.sort(Comparator.naturalOrder());
+        return result;
+    }
+
+    private void pruneTransactions(int fromTransactionId, int toTransactionId) {
+        StopWatch sw = StopWatch.createStarted();
+        long deleted = 0;
+        for (int i = fromTransactionId; i <= toTransactionId; i += batchSize) {
+            int start = i;
+            int end = (int) Math.min(start + batchSize - 1L, toTransactionId);
+            deleted += psDeleteInputs.executeUpdateOnAllShards(ps -> ps.setInt(start).setInt(end));
+            deleted += psDeleteOutputs.executeUpdateOnAllShards(ps -> ps.setInt(start).setInt(end));
+            deleted += psDeleteTransactions.executeUpdateOnAllShards(ps -> ps.setInt(start).setInt(end));
+        }
+        log.info("Pruned transactions {}-{}: {} rows deleted. Runtime: {} sec", fromTransactionId, toTransactionId, deleted, TimeUnit.NANOSECONDS.toSeconds(sw.getNanoTime()));
+    }
+}
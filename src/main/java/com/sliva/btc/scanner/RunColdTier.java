@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.facade.DbQueryBlock;
+import com.sliva.btc.scanner.db.facade.DbQueryColdTier;
+import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.utils.DBUtils;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdArguments;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOption;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOptions;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildCmdArguments;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
+import com.sliva.btc.scanner.util.ShutdownHook;
+import com.sliva.btc.scanner.util.Utils;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.time.StopWatch;
+
+/**
+ * Move transactions, inputs and outputs of old blocks from hot tables to
+ * compressed cold tier tables (schema "create-db-structure-cold-tier"). Rows
+ * are copied first, then the cold tier boundary is moved and rows are deleted
+ * from hot tables after readers had time to pick up the new boundary.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class RunColdTier {
+
+    private static final int DEFAULT_KEEP_BLOCKS = 52_560;
+    private static final int DEFAULT_BATCH_SIZE = 100_000;
+    private static final int DEFAULT_GRACE_PERIOD_SEC = DbQueryColdTier.BOUNDARY_REFRESH_SECONDS * 2;
+
+    private static final CmdOptions CMD_OPTS = new CmdOptions().add(DBConnectionSupplier.class);
+    private static final CmdOption keepBlocksOpt = buildOption(CMD_OPTS, null, "keep-blocks", true, "Number of recent blocks to keep in hot tables. Default: " + DEFAULT_KEEP_BLOCKS);
+    private static final CmdOption batchSizeOpt = buildOption(CMD_OPTS, null, "batch-size", true, "Number or transactions to move in a batch. Default: " + DEFAULT_BATCH_SIZE);
+    private static final CmdOption gracePeriodOpt = buildOption(CMD_OPTS, null, "grace-period", true, "Seconds to wait after moving the cold tier boundary before deleting rows from hot tables. Default: " + DEFAULT_GRACE_PERIOD_SEC);
+
+    private static final String SQL_COPY_TRANSACTIONS = "INSERT IGNORE INTO transaction_cold (transaction_id,txid,block_height,nInputs,nOutputs)"
+            + " SELECT transaction_id,txid,block_height,nInputs,nOutputs FROM `transaction` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_COPY_INPUTS = "INSERT IGNORE INTO input_cold (transaction_id,pos,in_transaction_id,in_pos)"
+            + " SELECT transaction_id,pos,in_transaction_id,in_pos FROM `input` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_COPY_OUTPUTS = "INSERT IGNORE INTO output_cold (transaction_id,pos,address_id,amount,spent)"
+            + " SELECT transaction_id,pos,address_id,amount,spent FROM `output` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_UPDATE_BOUNDARY = "UPDATE cold_tier SET last_transaction_id=? WHERE id=1";
+    private static final String SQL_QUERY_BOUNDARY = "SELECT last_transaction_id FROM cold_tier WHERE id=1";
+    private static final String SQL_QUERY_FIRST_HOT_TRANSACTION = "SELECT transaction_id FROM `transaction` ORDER BY transaction_id LIMIT 1";
+    private static final String SQL_DELETE_INPUTS = "DELETE FROM `input` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_DELETE_OUTPUTS = "DELETE FROM `output` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_DELETE_TRANSACTIONS = "DELETE FROM `transaction` WHERE transaction_id BETWEEN ? AND ?";
+
+    private static ShutdownHook shutdownHook;
+
+    private final int keepBlocks;
+    private final int batchSize;
+    private final int gracePeriodSec;
+    private final DbQueryBlock queryBlock;
+    private final DbQueryTransaction queryTransaction;
+    private final DBPreparedStatement psCopyTransactions;
+    private final DBPreparedStatement psCopyInputs;
+    private final DBPreparedStatement psCopyOutputs;
+    private final DBPreparedStatement psUpdateBoundary;
+    private final DBPreparedStatement psQueryBoundary;
+    private final DBPreparedStatement psQueryFirstHotTransaction;
+    private final DBPreparedStatement psDeleteInputs;
+    private final DBPreparedStatement psDeleteOutputs;
+    private final DBPreparedStatement psDeleteTransactions;
+
+    /**
+     * @param args the command line arguments
+     * @throws java.lang.Exception
+     */
+    public static void main(String[] args) throws Exception {
+        CmdArguments cmd = buildCmdArguments(args, Main.Command.cold_tier.name(), "Move old blocks to compressed cold tier tables", null, CMD_OPTS);
+        shutdownHook = new ShutdownHook();
+        log.info("START");
+        try {
+            new RunColdTier(cmd).runProcess();
+        } finally {
+            log.info("FINISH");
+            shutdownHook.finished();
+        }
+    }
+
+    public RunColdTier(CmdArguments cmd) {
+        keepBlocks = cmd.getOption(keepBlocksOpt).map(Integer::parseInt).orElse(DEFAULT_KEEP_BLOCKS);
+        checkArgument(keepBlocks >= 100, "Argument '%s' must be 100 or greater", keepBlocksOpt.getLongOpt());
+        batchSize = cmd.getOption(batchSizeOpt).map(Integer::parseInt).orElse(DEFAULT_BATCH_SIZE);
+        checkArgument(batchSize > 0, "Argument '%s' must be a positive integer value", batchSizeOpt.getLongOpt());
+        gracePeriodSec = cmd.getOption(gracePeriodOpt).map(Integer::parseInt).orElse(DEFAULT_GRACE_PERIOD_SEC);
+        checkArgument(gracePeriodSec > DbQueryColdTier.BOUNDARY_REFRESH_SECONDS, "Argument '%s' must be greater than %s", gracePeriodOpt.getLongOpt(), DbQueryColdTier.BOUNDARY_REFRESH_SECONDS);
+        DBConnectionSupplier dbCon = new DBConnectionSupplier().checkTablesExist("block", "transaction", "input", "output", "cold_tier", "transaction_cold", "input_cold", "output_cold");
+        checkState(!dbCon.isSharded(), "Cold tier is not supported with sharded DB");
+        boolean hasSpentField = dbCon.getDBMetaData().hasField("output.spent");
+        DbStores stores = DbStores.open(dbCon);
+        queryBlock = new DbQueryBlock(dbCon, stores);
+        queryTransaction = new DbQueryTransaction(dbCon, stores);
+        psCopyTransactions = dbCon.prepareStatement(SQL_COPY_TRANSACTIONS, "transaction.transaction_id");
+        psCopyInputs = dbCon.prepareStatement(SQL_COPY_INPUTS, "input.transaction_id");
+        psCopyOutputs = dbCon.prepareStatement(hasSpentField ? SQL_COPY_OUTPUTS : SQL_COPY_OUTPUTS.replace(",spent", ""), "output.transaction_id");
+        psUpdateBoundary = dbCon.prepareStatement(SQL_UPDATE_BOUNDARY);
+        psQueryBoundary = dbCon.prepareStatement(SQL_QUERY_BOUNDARY);
+        psQueryFirstHotTransaction = dbCon.prepareStatement(SQL_QUERY_FIRST_HOT_TRANSACTION, "transaction.transaction_id");
+        psDeleteInputs = dbCon.prepareStatement(SQL_DELETE_INPUTS, "input.transaction_id");
+        psDeleteOutputs = dbCon.prepareStatement(SQL_DELETE_OUTPUTS, "output.transaction_id");
+        psDeleteTransactions = dbCon.prepareStatement(SQL_DELETE_TRANSACTIONS, "transaction.transaction_id");
+    }
+
+    private void runProcess() {
+        int coldHeight = queryBlock.findLastHeight().orElse(-1) - keepBlocks;
+        if (coldHeight < 0) {
+            log.info("Nothing to move: DB has less than {} blocks", keepBlocks);
+            return;
+        }
+        int boundary = DBUtils.readInteger(psQueryBoundary).orElse(0);
+        int lastColdTxId = queryTransaction.getTransactionsInBlock(coldHeight + 1).stream()
+                .mapToInt(BtcTransaction::getTransactionId).min().orElse(boundary + 1) - 1;
+        if (lastColdTxId > boundary) {
+            log.info("Moving transactions {} - {} (blocks up to {}) to the cold tier", boundary + 1, lastColdTxId, coldHeight);
+            boundary = copyTransactions(boundary + 1, lastColdTxId);
+        }
+        int firstHotTxId = DBUtils.readInteger(psQueryFirstHotTransaction).orElse(boundary + 1);
+        if (firstHotTxId <= boundary && !shutdownHook.isInterrupted()) {
+            log.info("Waiting {} sec for readers to pick up the cold tier boundary", gracePeriodSec);
+            Utils.sleep(TimeUnit.SECONDS.toMillis(gracePeriodSec));
+            deleteTransactions(firstHotTxId, boundary);
+        }
+    }
+
+    /**
+     * Copy rows to the cold tier and move the boundary after every batch.
+     *
+     * @return new cold tier boundary
+     */
+    private int copyTransactions(int fromTransactionId, int toTransactionId) {
+        StopWatch sw = StopWatch.createStarted();
+        int boundary = fromTransactionId - 1;
+        for (int i = fromTransactionId; i <= toTransactionId && !shutdownHook.isInterrupted(); i += batchSize) {
+            int start = i;
+            int end = (int) Math.min(start + batchSize - 1L, toTransactionId);
+            int rows = psCopyTransactions.setParameters(ps -> ps.setInt(start).setInt(end)).executeUpdate();
+            rows += psCopyInputs.setParameters(ps -> ps.setInt(start).setInt(end)).executeUpdate();
+            rows += psCopyOutputs.setParameters(ps -> ps.setInt(start).setInt(end)).executeUpdate();
+            psUpdateBoundary.setParameters(ps -> ps.setInt(end)).executeUpdate();
+            boundary = end;
+            log.info("Copied transactions {} - {} to the cold tier: {} rows. Runtime: {} sec", start, end, rows, TimeUnit.NANOSECONDS.toSeconds(sw.getNanoTime()));
+        }
+        return boundary;
+    }
+
+    private void deleteTransactions(int fromTransactionId, int toTransactionId) {
+        StopWatch sw = StopWatch.createStarted();
+        for (int i = fromTransactionId; i <= toTransactionId && !shutdownHook.isInterrupted(); i += batchSize) {
+            int start = i;
+            int end = (int) Math.min(start + batchSize - 1L, toTransactionId);
+            int rows = psDeleteInputs.setParameters(ps -> ps.setInt(start).setInt(end)).executeUpdate();
+            rows += psDeleteOutputs.setParameters(ps -> ps.setInt(start).setInt(end)).executeUpdate();
+            rows += psDeleteTransactions.setParameters(ps -> ps.setInt(start).setInt(end)).executeUpdate();
+            log.info("Deleted transactions {} - {} from hot tables: {} rows. Runtime: {} sec", start, end, rows, TimeUnit.NANOSECONDS.toSeconds(sw.getNanoTime()));
+        }
+    }
+}
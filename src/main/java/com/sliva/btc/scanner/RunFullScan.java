@@ -15,6 +15,7 @@
  */
 package com.sliva.btc.scanner;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -24,30 +25,39 @@ import com.sliva.btc.scanner.db.facade.DbCachedAddress;
 import com.sliva.btc.scanner.db.facade.DbCachedAddressOne;
 import com.sliva.btc.scanner.db.facade.DbCachedOutput;
 import com.sliva.btc.scanner.db.facade.DbCachedTransaction;
+import com.sliva.btc.scanner.db.facade.DbQueryAddressOne;
 import com.sliva.btc.scanner.db.facade.DbQueryBlock;
 import com.sliva.btc.scanner.db.facade.DbQueryInput;
 import com.sliva.btc.scanner.db.facade.DbQueryInputSpecial;
 import com.sliva.btc.scanner.db.facade.DbQueryOutput;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.facade.DbUpdateBlock;
 import com.sliva.btc.scanner.db.facade.DbUpdateInput;
 import com.sliva.btc.scanner.db.facade.DbUpdateInputSpecial;
 import com.sliva.btc.scanner.db.facade.DbUpdateOutput;
+import com.sliva.btc.scanner.db.facade.DbUpdateWallet;
+import com.sliva.btc.scanner.db.kv.LsmKvStore;
+import com.sliva.btc.scanner.db.segment.SegmentStore;
 import com.sliva.btc.scanner.db.model.BtcAddress;
 import com.sliva.btc.scanner.db.model.BtcBlock;
 import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.BtcWallet;
 import com.sliva.btc.scanner.db.model.OutputStatus;
 import com.sliva.btc.scanner.db.model.SighashType;
 import com.sliva.btc.scanner.db.model.TXID;
 import com.sliva.btc.scanner.db.model.TxInput;
 import com.sliva.btc.scanner.db.model.TxInputSpecial;
 import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.db.utils.BatchExecutor;
 import com.sliva.btc.scanner.db.utils.DbValidationUtils;
+import com.sliva.btc.scanner.db.utils.WalletClusters;
 import com.sliva.btc.scanner.rpc.RpcClient;
 import com.sliva.btc.scanner.rpc.RpcClientDirect;
 import com.sliva.btc.scanner.src.BJBlockProvider;
 import com.sliva.btc.scanner.src.BlockProvider;
 import com.sliva.btc.scanner.src.BlockProviderWithBackup;
 import com.sliva.btc.scanner.src.RpcBlockProvider;
+import com.sliva.btc.scanner.src.SrcAddressType;
 import com.sliva.btc.scanner.src.SrcBlock;
 import com.sliva.btc.scanner.src.SrcTransaction;
 import com.sliva.btc.scanner.util.BufferingAheadSupplier;
@@ -60,6 +70,7 @@ import com.sliva.btc.scanner.util.ShutdownHook;
 import com.sliva.btc.scanner.util.Utils;
 import static com.sliva.btc.scanner.util.Utils.getNumberSupplier;
 import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.text.NumberFormat;
 import java.time.Duration;
@@ -75,6 +86,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -96,11 +108,15 @@ public class RunFullScan {
     private static final int DEFAULT_PREFETCH_BUFFER_SIZE = 5;
     private static final int DEFAULT_LOAD_BLOCK_THREADS = 3;
     private static final int DEFAULT_PREPROC_BLOCK_THREADS = 3;
+    private static final boolean DEFAULT_CLUSTER_WALLETS = false;
+    private static final String DEFAULT_CLUSTER_CHECKPOINT_FILE_NAME = "/tmp/btc-wallet-clusters";
+    private static final int DEFAULT_CLUSTER_CHECKPOINT_BLOCKS = 1000;
+    private static final int CLUSTER_LOAD_BATCH_SIZE = 500_000;
 
     private static final CmdOptions CMD_OPTS = new CmdOptions().add(DBConnectionSupplier.class)
-            .add(DbUpdate.class).add(RpcClient.class).add(RpcClientDirect.class)
+            .add(DbUpdate.class).add(DbUpdateOutput.class).add(BatchExecutor.class).add(RpcClient.class).add(RpcClientDirect.class)
             .add(BJBlockProvider.class).add(DbValidationUtils.class)
-            .add(DbCachedAddressOne.class).add(DbCachedOutput.class).add(DbCachedTransaction.class);
+            .add(DbCachedAddressOne.class).add(DbCachedOutput.class).add(DbCachedTransaction.class).add(LsmKvStore.class).add(SegmentStore.class);
     private static final CmdOption safeRunOpt = buildOption(CMD_OPTS, null, "safe-run", true, "Run in safe mode - check DB for existing records before adding new. Default: " + DEFAULT_SAFE_RUN);
     private static final CmdOption updateSpentOpt = buildOption(CMD_OPTS, null, "update-spent", true, "Update spent flag on outpus. For better performance of massive update you might want to disable it and run separate process after this update is done. Default: " + DEFAULT_UPDATE_SPENT);
     private static final CmdOption blocksBackOpt = buildOption(CMD_OPTS, null, "blocks-back", true, "Check last number of blocks. Process will run in safe mode (option --safe-run=true)");
@@ -112,6 +128,9 @@ public class RunFullScan {
     private static final CmdOption prefetchBufferSizeOpt = buildOption(CMD_OPTS, null, "prefetch-buffer-size", true, "Read ahead buffer size. Default: " + DEFAULT_PREFETCH_BUFFER_SIZE);
     private static final CmdOption loadBlockThreadsOpt = buildOption(CMD_OPTS, null, "load-block-threads", true, "Number of threads loading blocks. Default: " + DEFAULT_LOAD_BLOCK_THREADS);
     private static final CmdOption preprocBlockThreadsOpt = buildOption(CMD_OPTS, null, "preproc-block-threads", true, "Number of threads pre-processing blocks. Default: " + DEFAULT_PREPROC_BLOCK_THREADS);
+    private static final CmdOption clusterWalletsOpt = buildOption(CMD_OPTS, null, "cluster-wallets", true, "Assign wallet_id of addresses spent together in a transaction (common-input heuristic) while processing blocks. Requires --update-spent=true. Default: " + DEFAULT_CLUSTER_WALLETS);
+    private static final CmdOption clusterCheckpointBlocksOpt = buildOption(CMD_OPTS, null, "cluster-checkpoint-blocks", true, "Number of processed blocks between saves of wallet clusters to the checkpoint file. Default: " + DEFAULT_CLUSTER_CHECKPOINT_BLOCKS);
+    private static final CmdOption clusterCheckpointOpt = buildOption(CMD_OPTS, null, "cluster-checkpoint", true, "File to save wallet clusters to periodically and at the end of run and load from on the next run. If file is missing or does not match the first block to process, clusters are rebuilt from wallet_id of addresses in DB. Default: " + DEFAULT_CLUSTER_CHECKPOINT_FILE_NAME);
 
     private static final AtomicBoolean terminateLoop = new AtomicBoolean();
 
@@ -119,9 +138,13 @@ public class RunFullScan {
     private final boolean safeRun;
     private final boolean runParallel;
     private final boolean updateSpent;
+    private final boolean clusterWallets;
+    private final File clusterCheckpointFile;
+    private final int clusterCheckpointBlocks;
     private final ExecutorService execTxn;
     private final ExecutorService execInsOuts;
     private final DBConnectionSupplier dbCon;
+    private final DbStores stores;
     private final DbQueryBlock queryBlock;
     private final DbQueryInput queryInput;
     private final DbQueryInputSpecial queryInputSpecial;
@@ -165,6 +188,7 @@ public class RunFullScan {
 
     public RunFullScan(CmdArguments cmd) throws Exception {
         dbCon = new DBConnectionSupplier().checkTablesExist("block", "transaction", "input", "input_special", "output", "address_p2pkh", "address_p2sh", "address_p2wpkh", "address_p2wsh");
+        stores = DbStores.open(dbCon);
         safeRun = cmd.getOption(safeRunOpt).map(Boolean::valueOf)
                 .orElse(cmd.hasOption(startFromBlockOpt) || cmd.hasOption(blocksBackOpt) || DEFAULT_SAFE_RUN);
         startBlock = cmd.getOption(startFromBlockOpt).map(Integer::valueOf);
@@ -172,6 +196,14 @@ public class RunFullScan {
         blocksBack = cmd.getOption(blocksBackOpt).map(Integer::parseInt);
         updateSpent = dbCon.getDBMetaData().hasField("output.spent") && cmd.getOption(updateSpentOpt).map(Boolean::valueOf).orElse(DEFAULT_UPDATE_SPENT);
         stopFile = new File(cmd.getOption(stopFileOpt).orElse(DEFAULT_STOP_FILE_NAME));
+        clusterWallets = cmd.getOption(clusterWalletsOpt).map(Boolean::valueOf).orElse(DEFAULT_CLUSTER_WALLETS);
+        clusterCheckpointFile = new File(cmd.getOption(clusterCheckpointOpt).orElse(DEFAULT_CLUSTER_CHECKPOINT_FILE_NAME));
+        clusterCheckpointBlocks = cmd.getOption(clusterCheckpointBlocksOpt).map(Integer::valueOf).orElse(DEFAULT_CLUSTER_CHECKPOINT_BLOCKS);
+        checkArgument(clusterCheckpointBlocks > 0, "Argument '%s' must be a positive integer value", clusterCheckpointBlocksOpt.getLongOpt());
+        checkArgument(!clusterWallets || updateSpent, "Argument '%s' requires '%s'", clusterWalletsOpt.getLongOpt(), updateSpentOpt.getLongOpt());
+        checkArgument(!clusterWallets || Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal)
+                .allMatch(t -> dbCon.getDBMetaData().hasField(DbQueryAddressOne.getAddressTableName(t) + ".wallet_id")),
+                "Argument '%s' requires field wallet_id in address tables", clusterWalletsOpt.getLongOpt());
         nExecTxnThreads = cmd.getOption(threadsOpt).map(Integer::parseInt).orElse(DEFAULT_TXN_THREADS);
         runParallel = nExecTxnThreads != 0;
         prefetchBufferSize = cmd.getOption(prefetchBufferSizeOpt).map(Integer::parseInt).orElse(DEFAULT_PREFETCH_BUFFER_SIZE);
@@ -183,10 +215,10 @@ public class RunFullScan {
                 new ThreadFactoryBuilder().setDaemon(true).setNameFormat("execInsOuts-%02d").build()) : null;
         DbCachedAddressOne.CACHE_BY_ID_ENABLED = false;
         DbCachedTransaction.CACHE_BY_ID_ENABLED = false;
-        queryBlock = new DbQueryBlock(dbCon);
-        queryInput = new DbQueryInput(dbCon);
+        queryBlock = new DbQueryBlock(dbCon, stores);
+        queryInput = new DbQueryInput(dbCon, stores);
         queryInputSpecial = new DbQueryInputSpecial(dbCon);
-        queryOutput = new DbQueryOutput(dbCon);
+        queryOutput = new DbQueryOutput(dbCon, stores);
         if (cmd.hasOption(BJBlockProvider.fullBlocksPathOpt)) {
             blockProvider = new BlockProviderWithBackup(new BJBlockProvider(), new RpcBlockProvider());
         } else {
@@ -201,20 +233,23 @@ public class RunFullScan {
 
     public void runProcess() throws Exception {
         if (!safeRun) {
-            DbValidationUtils.checkAndFixDataTails(dbCon);
+            DbValidationUtils.checkAndFixDataTails(dbCon, stores);
             Utils.sleep(50);
         }
         boolean cacheOutput = safeRun || updateSpent;
         log.info("Execution STARTED");
-        try (DbUpdateBlock addBlock = new DbUpdateBlock(dbCon);
-                DbUpdateInput updateInput = new DbUpdateInput(dbCon);
+        WalletClusters walletClusters = null;
+        try (DbUpdateBlock addBlock = new DbUpdateBlock(dbCon, stores);
+                DbUpdateInput updateInput = new DbUpdateInput(dbCon, stores);
                 DbUpdateInputSpecial updateInputSpecial = new DbUpdateInputSpecial(dbCon);
-                DbCachedTransaction cachedTxn = new DbCachedTransaction(dbCon);
-                DbCachedAddress cachedAddress = new DbCachedAddress(dbCon);
-                DbCachedOutput cachedOutput = cacheOutput ? new DbCachedOutput(dbCon) : null;
-                DbUpdateOutput updateOutput = cacheOutput ? null : new DbUpdateOutput(dbCon)) {
-            DbAccess db = new DbAccess(addBlock, updateInput, updateInputSpecial, cachedTxn, cachedAddress, cachedOutput, updateOutput, queryOutput);
+                DbCachedTransaction cachedTxn = new DbCachedTransaction(dbCon, stores);
+                DbCachedAddress cachedAddress = new DbCachedAddress(dbCon, stores);
+                DbCachedOutput cachedOutput = cacheOutput ? new DbCachedOutput(dbCon, stores) : null;
+                DbUpdateOutput updateOutput = cacheOutput ? null : new DbUpdateOutput(dbCon, stores);
+                DbUpdateWallet updateWallet = clusterWallets ? new DbUpdateWallet(dbCon, stores) : null) {
             int firstBlockToProcess = startBlock.orElseGet(() -> queryBlock.findLastHeight().orElse(-1) + 1 - blocksBack.orElse(0));
+            walletClusters = clusterWallets ? loadWalletClusters(firstBlockToProcess) : null;
+            DbAccess db = new DbAccess(addBlock, updateInput, updateInputSpecial, cachedTxn, cachedAddress, cachedOutput, updateOutput, queryOutput, updateWallet, walletClusters);
             int lastBlockToProcess = lastBlock.orElseGet(() -> new RpcClient().getBlocksNumber());
             log.info("firstBlockToProcess={}, lastBlockToProcess={}", firstBlockToProcess, lastBlockToProcess);
 
@@ -228,6 +263,7 @@ public class RunFullScan {
                             .thenApplyAsync(block -> preloadBlockCaches(block, db), preprocThreadpool);
             BufferingAheadSupplier<CompletableFuture<SrcBlock<?>>> bufferingSupplier
                     = new BufferingAheadSupplier<>(preProcFeatureSupplier, prefetchBufferSize);
+            int lastCheckpointHeight = walletClusters != null ? walletClusters.getBlockHeight() : 0;
             for (;;) {
                 try {
                     bufferingSupplier.get().thenAccept(block -> processBlock(block, db)).get();
@@ -236,6 +272,12 @@ public class RunFullScan {
                     terminateLoop.set(true);
                     break;
                 }
+                if (walletClusters != null && walletClusters.getBlockHeight() - lastCheckpointHeight >= clusterCheckpointBlocks) {
+                    //wallet_id updates of the processed blocks must be in DB before clusters are saved
+                    DbUpdate.flushAll();
+                    saveWalletClusters(walletClusters);
+                    lastCheckpointHeight = walletClusters.getBlockHeight();
+                }
             }
         } catch (Exception e) {
             log.error(e.getMessage(), e);
@@ -243,15 +285,66 @@ public class RunFullScan {
         } finally {
             log.info("Execution FINISHED");
             DbUpdate.printStats();
+            if (walletClusters != null) {
+                //DB updates are flushed by closing the facades above
+                saveWalletClusters(walletClusters);
+            }
+        }
+    }
+
+    private void saveWalletClusters(WalletClusters walletClusters) {
+        try {
+            walletClusters.save(clusterCheckpointFile);
+            log.info("Wallet clusters saved to {}. Block height: {}, merges: {}", clusterCheckpointFile.getAbsolutePath(), walletClusters.getBlockHeight(), walletClusters.getMergeCount());
+        } catch (IOException e) {
+            log.error("Cannot save wallet clusters to " + clusterCheckpointFile.getAbsolutePath(), e);
         }
     }
 
+    /**
+     * Load wallet clusters from the checkpoint file if it is consistent with
+     * DB, otherwise build them from wallet_id of addresses.
+     */
+    private WalletClusters loadWalletClusters(int firstBlockToProcess) {
+        if (clusterCheckpointFile.exists()) {
+            try {
+                WalletClusters result = WalletClusters.load(clusterCheckpointFile);
+                int lastHeight = queryBlock.findLastHeight().orElse(-1);
+                if (result.getBlockHeight() >= firstBlockToProcess - 1 && result.getBlockHeight() <= lastHeight) {
+                    log.info("Wallet clusters loaded from {}. Block height: {}", clusterCheckpointFile.getAbsolutePath(), result.getBlockHeight());
+                    return result;
+                }
+                log.warn("Wallet clusters checkpoint block height {} does not match first block to process {} and last block in DB {}",
+                        result.getBlockHeight(), firstBlockToProcess, lastHeight);
+            } catch (IOException e) {
+                log.warn("Cannot load wallet clusters from " + clusterCheckpointFile.getAbsolutePath(), e);
+            }
+        }
+        log.info("Building wallet clusters from DB...");
+        long s = System.currentTimeMillis();
+        WalletClusters result = new WalletClusters();
+        Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach(type -> {
+            DbQueryAddressOne queryAddress = new DbQueryAddressOne(dbCon, type);
+            int lastAddressId = queryAddress.getLastAddressId();
+            for (long start = BtcAddress.getMinAddressId(type); start <= lastAddressId; start += CLUSTER_LOAD_BATCH_SIZE) {
+                queryAddress.queryWalletIds((int) start, (int) Math.min(start + CLUSTER_LOAD_BATCH_SIZE - 1, lastAddressId), (addressId, walletId) -> {
+                    if (walletId != 0) {
+                        result.add(addressId, walletId);
+                    }
+                });
+            }
+        });
+        result.setBlockHeight(firstBlockToProcess - 1);
+        log.info("Wallet clusters built. Runtime: {} sec.", (System.currentTimeMillis() - s) / 1000);
+        return result;
+    }
+
     private void processBlock(SrcBlock<?> block, DbAccess db) {
         int blockHeight = block.getHeight();
         String blockHash = block.getHash();
         NumberFormat nf = NumberFormat.getIntegerInstance();
         log.info("Block({}).hash: {}, nTxns={}", nf.format(blockHeight), blockHash, nf.format(block.getTransactions().size()));
-        if (!queryBlock.findBlockByHash(blockHash).isPresent()) {
+        if (!queryBlock.findBlockByHash(blockHash).filter(b -> !db.addBlock.isDeletePending(b.getHeight())).isPresent()) {
             db.addBlock.add(BtcBlock.builder()
                     .height(blockHeight)
                     .hash(Utils.id2bin(blockHash))
@@ -264,6 +357,9 @@ public class RunFullScan {
             log.debug("Found wrong transactions in block: " + listTxn);
             listTxn.forEach(db.cachedTxn::delete);
         }
+        if (db.walletClusters != null) {
+            db.walletClusters.setBlockHeight(blockHeight);
+        }
         log.trace("processBlock({}): FINISHED", blockHeight);
     }
 
@@ -303,6 +399,7 @@ public class RunFullScan {
         } else {
             txInputs = null;
         }
+        List<Integer> inputAddressIds = db.walletClusters != null ? new ArrayList<>() : null;
         t.getInputs().forEach(ti -> {
             String inTxid = ti.getInTxid();
             final short inPos = ti.getInPos();
@@ -383,11 +480,18 @@ public class RunFullScan {
                     if (txOutput.getStatus() != OutputStatus.SPENT) {
                         db.cachedOutput.updateStatus(txOutput.getTransactionId(), txOutput.getPos(), OutputStatus.SPENT);
                     }
+                    if (inputAddressIds != null && BtcAddress.isRealAddress(txOutput.getAddressId())) {
+                        inputAddressIds.add(txOutput.getAddressId());
+                    }
                 }
             } catch (SQLException e) {
                 log.error(e.getMessage(), e);
             }
         });
+        if (inputAddressIds != null && !inputAddressIds.isEmpty()) {
+            db.walletClusters.union(inputAddressIds.stream().mapToInt(Integer::intValue).toArray(),
+                    () -> db.updateWallet.add(BtcWallet.builder().build()).getWalletId(), db.cachedAddress::updateWallet);
+        }
         if (txInputs != null) {
             txInputs.stream().forEach(txIn -> {
                 log.debug("processTransactionInputs: Deleting record: " + txIn);
@@ -551,6 +655,8 @@ public class RunFullScan {
         private final DbCachedOutput cachedOutput;
         private final DbUpdateOutput updateOutput;
         private final DbQueryOutput queryOutput;
+        private final DbUpdateWallet updateWallet;
+        private final WalletClusters walletClusters;
     }
 
     @Getter
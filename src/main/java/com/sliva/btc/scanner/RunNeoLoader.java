@@ -15,44 +15,75 @@
  */
 package com.sliva.btc.scanner;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import com.google.common.base.Optional;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.facade.DbQueryColdTier;
 import com.sliva.btc.scanner.db.facade.DbQueryInput;
 import com.sliva.btc.scanner.db.facade.DbQueryOutput;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.db.segment.SegmentStore;
+import com.sliva.btc.scanner.db.utils.BatchSizeTuner;
 import com.sliva.btc.scanner.neo4j.NeoConnection;
+import com.sliva.btc.scanner.neo4j.NeoCsvWriter;
+import com.sliva.btc.scanner.neo4j.NeoCsvWriter.CsvFile;
 import com.sliva.btc.scanner.neo4j.NeoQueries;
 import com.sliva.btc.scanner.neo4j.NeoQueries.PrepData;
+import com.sliva.btc.scanner.neo4j.NeoQueries.TransactionCounts;
+import com.sliva.btc.scanner.neo4j.NeoUploadBatch;
 import com.sliva.btc.scanner.src.DbAddress;
 import com.sliva.btc.scanner.src.DbBlockProvider;
 import com.sliva.btc.scanner.src.DbWallet;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.util.BJBlockHandler;
+import com.sliva.btc.scanner.util.CommandLineUtils;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdArguments;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOption;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOptions;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
+import com.sliva.btc.scanner.util.IntBitmap;
+import com.sliva.btc.scanner.util.RangeWatermark;
 import com.sliva.btc.scanner.util.Utils;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
-import org.apache.commons.cli.DefaultParser;
-import org.apache.commons.cli.HelpFormatter;
-import org.apache.commons.cli.Options;
 
 /**
  *
@@ -66,7 +97,38 @@ public class RunNeoLoader {
     private static final int DEFAULT_TXN_THREADS = 5;
     private static final int DEFAULT_START_TRANSACTION_ID = 1;
     private static final int DEFAULT_BATCH_SIZE = 5000;
+    private static final int MIN_UPLOAD_BATCH_SIZE = 100;
+    private static final int DEFAULT_TARGET_COMMIT_MSEC = 5000;
     private static final String DEFAULT_STOP_FILE_NAME = "/tmp/btc-neo4j2-stop";
+    private static final int DEFAULT_EXPORT_RANGE_SIZE = 1_000_000;
+    private static final String EXPORT_SUMMARY_FILE_NAME = "export-summary.properties";
+    private static final String SQL_QUERY_OUTPUTS_WITH_ADDRESSES = "SELECT O.transaction_id,O.pos,O.address_id,O.amount"
+            + ",IFNULL(P2PKH.address, IFNULL(P2SH.address, IFNULL(P2WPKH.address, CAST(P2WSH.address AS BINARY))))"
+            + ",IFNULL(P2PKH.wallet_id, IFNULL(P2SH.wallet_id, IFNULL(P2WPKH.wallet_id, P2WSH.wallet_id)))"
+            + " FROM `output` O"
+            + " LEFT JOIN address_p2pkh P2PKH ON P2PKH.address_id=O.address_id"
+            + " LEFT JOIN address_p2sh P2SH ON P2SH.address_id=O.address_id"
+            + " LEFT JOIN address_p2wpkh P2WPKH ON P2WPKH.address_id=O.address_id"
+            + " LEFT JOIN address_p2wsh P2WSH ON P2WSH.address_id=O.address_id"
+            + " WHERE O.transaction_id BETWEEN ? AND ?";
+    private static final String SQL_QUERY_INPUTS = "SELECT transaction_id,pos,in_transaction_id,in_pos FROM `input` WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_QUERY_WALLET_NAMES = "SELECT wallet_id,name FROM wallet WHERE name IS NOT NULL";
+
+    private static final CmdOptions CMD_OPTS = new CmdOptions().add(DBConnectionSupplier.class).add(SegmentStore.class).add(NeoConnection.class);
+    private static final CmdOption safeRunOpt = buildOption(CMD_OPTS, null, "safe-run", false, "Run in safe mode - check DB for existing records before adding new. Default: " + DEFAULT_SAFE_RUN);
+    private static final CmdOption cleanupOpt = buildOption(CMD_OPTS, null, "cleanup", false, "Clean DB on start. Default: " + DEFAULT_CLEANUP);
+    private static final CmdOption batchSizeOpt = buildOption(CMD_OPTS, null, "batch-size", true, "Number or transactions to process in a batch. Default: " + DEFAULT_BATCH_SIZE);
+    private static final CmdOption startFromOpt = buildOption(CMD_OPTS, null, "start-from", true, "Start process from this transaction ID. Beside a number this parameter can be set to a file name that stores the numeric value updated on every batch");
+    private static final CmdOption recordsBackOpt = buildOption(CMD_OPTS, null, "records-back", true, "Check last number of trasnactions. Process will run in safe mode (--safe-run=true)");
+    private static final CmdOption stopFileOpt = buildOption(CMD_OPTS, null, "stop-file", true, "File to be watched on each new block to stop process. If file is present the process stops and file renamed by adding '1' to the end. Default: " + DEFAULT_STOP_FILE_NAME);
+    private static final CmdOption exportCsvOpt = buildOption(CMD_OPTS, null, "export-csv", true, "Export all transactions to gzip compressed CSV files in this directory for offline import with \"neo4j-admin import\" instead of uploading to Neo4j."
+            + " Transaction ranges are exported in parallel by the number of threads");
+    private static final CmdOption exportRangeSizeOpt = buildOption(CMD_OPTS, null, "export-range-size", true, "Number of transactions in a range exported to a separate set of CSV files. Default: " + DEFAULT_EXPORT_RANGE_SIZE);
+    private static final CmdOption verifyImportOpt = buildOption(CMD_OPTS, null, "verify-import", true, "Compare transaction counts in Neo4j with summary of CSV export in this directory");
+    private static final CmdOption uploadSessionsOpt = buildOption(CMD_OPTS, null, "upload-sessions", true, "Upload transaction ranges on this number of concurrent Neo4j sessions with compact batch parameters."
+            + " Batch size is adjusted from commit time starting from --batch-size. By default batches are uploaded on a single session one by one");
+    private static final CmdOption targetCommitMsecOpt = buildOption(CMD_OPTS, null, "target-commit-msec", true, "Target commit time of a batch uploaded with --upload-sessions. Default: " + DEFAULT_TARGET_COMMIT_MSEC);
+    private static final CmdOption threadsOpt = buildOption(CMD_OPTS, null, "threads", true, "Number of threads to run. Default is " + DEFAULT_TXN_THREADS + ". To disable parallel threading set value to 0");
     private final DBConnectionSupplier dbCon;
 //    private final DbQueryAddress queryAddress;
     private final DbQueryTransaction queryTransaction;
@@ -78,12 +140,21 @@ public class RunNeoLoader {
     private final int batchSize;
     private final boolean cleanup;
     private final File stopFile;
+    private final File exportDir;
+    private final File verifyDir;
+    private final int exportRangeSize;
+    private final int uploadSessions;
+    private final int targetCommitMsec;
+    private final DBPreparedStatement psQueryOutputsWithAddresses;
+    private final DBPreparedStatement psQueryInputs;
+    private final DBPreparedStatement psQueryWalletNames;
     private final ExecutorService execPrepareFiles;
     private final ExecutorService execProcessTransactions;
-//    private final ExecutorService execNeo;
+    private final ExecutorService execNeo;
     private final NeoConnection neoConn;
     private final int recordsBack;
     private int startTransaction;
+    private int safeUntilTransaction;
     private int endTransaction;
     private final LoadingCache<Integer, CAddress> addressCache;
     private final LoadingCache<Integer, Optional<String>> walletCache;
@@ -93,35 +164,44 @@ public class RunNeoLoader {
      * @throws java.lang.Exception
      */
     public static void main(String[] args) throws Exception {
-        CommandLineParser parser = new DefaultParser();
-        CommandLine cmd = parser.parse(prepOptions(), args);
-        if (cmd.hasOption('h')) {
-            printHelpAndExit();
-        }
+        CmdArguments cmd = CommandLineUtils.buildCmdArguments(args, Main.Command.load_neo4j.name(), "Load transactions, addresses and wallets from DB to Neo4j", null, CMD_OPTS);
         new RunNeoLoader(cmd).run();
     }
 
-    public RunNeoLoader(CommandLine cmd) {
-        DBConnectionSupplier.applyArguments(cmd);
-        NeoConnection.applyArguments(cmd);
-        startFromFile = cmd.hasOption("start-from") ? new Utils.NumberFile(cmd.getOptionValue("start-from", Integer.toString(DEFAULT_START_TRANSACTION_ID))) : null;
-        batchSize = Integer.parseInt(cmd.getOptionValue("batch-size", Integer.toString(DEFAULT_BATCH_SIZE)));
-        stopFile = new File(cmd.getOptionValue("stop-file", DEFAULT_STOP_FILE_NAME));
-        cleanup = (!cmd.hasOption("cleanup")) ? DEFAULT_CLEANUP : "true".equalsIgnoreCase(cmd.getOptionValue("cleanup"));
-        recordsBack = cmd.hasOption("records-back") ? Integer.parseInt(cmd.getOptionValue("records-back")) : 0;
-        safeRun = cmd.hasOption("start-from") || recordsBack > 0 ? true
-                : (!cmd.hasOption("safe-run") ? DEFAULT_SAFE_RUN : "true".equalsIgnoreCase(cmd.getOptionValue("safe-run")));
-        int nTxnThreads = Integer.parseInt(cmd.getOptionValue("threads", Integer.toString(DEFAULT_TXN_THREADS)));
-        dbCon = new DBConnectionSupplier();
+    public RunNeoLoader(CmdArguments cmd) {
+        startFromFile = cmd.getOption(startFromOpt).map(Utils.NumberFile::new).orElse(null);
+        batchSize = cmd.getOption(batchSizeOpt).map(Integer::valueOf).orElse(DEFAULT_BATCH_SIZE);
+        stopFile = new File(cmd.getOption(stopFileOpt).orElse(DEFAULT_STOP_FILE_NAME));
+        exportDir = cmd.getOption(exportCsvOpt).map(File::new).orElse(null);
+        verifyDir = cmd.getOption(verifyImportOpt).map(File::new).orElse(null);
+        exportRangeSize = cmd.getOption(exportRangeSizeOpt).map(Integer::valueOf).orElse(DEFAULT_EXPORT_RANGE_SIZE);
+        checkArgument(exportRangeSize > 0, "Argument '%s' must be a positive integer value", exportRangeSizeOpt.getLongOpt());
+        uploadSessions = cmd.getOption(uploadSessionsOpt).map(Integer::valueOf).orElse(0);
+        checkArgument(!cmd.hasOption(uploadSessionsOpt) || uploadSessions > 0, "Argument '%s' must be a positive integer value", uploadSessionsOpt.getLongOpt());
+        targetCommitMsec = cmd.getOption(targetCommitMsecOpt).map(Integer::valueOf).orElse(DEFAULT_TARGET_COMMIT_MSEC);
+        checkArgument(targetCommitMsec > 0, "Argument '%s' must be a positive integer value", targetCommitMsecOpt.getLongOpt());
+        cleanup = (!cmd.hasOption(cleanupOpt)) ? DEFAULT_CLEANUP : "true".equalsIgnoreCase(cmd.getOption(cleanupOpt).orElse(null));
+        recordsBack = cmd.getOption(recordsBackOpt).map(Integer::valueOf).orElse(0);
+        safeRun = cmd.hasOption(startFromOpt) || recordsBack > 0 ? true
+                : (!cmd.hasOption(safeRunOpt) ? DEFAULT_SAFE_RUN : "true".equalsIgnoreCase(cmd.getOption(safeRunOpt).orElse(null)));
+        int nTxnThreads = cmd.getOption(threadsOpt).map(Integer::valueOf).orElse(DEFAULT_TXN_THREADS);
+        dbCon = new DBConnectionSupplier().getReadSupplier();
+        DbStores stores = DbStores.open(dbCon);
 //        queryAddress = new DbQueryAddressCombo(dbCon);
-        queryTransaction = new DbQueryTransaction(dbCon);
+        queryTransaction = new DbQueryTransaction(dbCon, stores);
         blockProvider = new DbBlockProvider(dbCon);
-        queryInput = new DbQueryInput(dbCon);
-        queryOutput = new DbQueryOutput(dbCon);
-        execPrepareFiles = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("PrepareFiles-%d").build());
+        queryInput = new DbQueryInput(dbCon, stores);
+        queryOutput = new DbQueryOutput(dbCon, stores);
+        checkArgument(exportDir == null || !dbCon.isSharded() && !stores.getSegmentStore().isPresent() && !DbQueryColdTier.create(dbCon).isPresent(),
+                "Argument '%s' is not supported with sharded DB, segment store or cold tier", "export-csv");
+        psQueryOutputsWithAddresses = dbCon.prepareStatement(SQL_QUERY_OUTPUTS_WITH_ADDRESSES, "output.transaction_id",
+                "address_p2pkh.address_id", "address_p2sh.address_id", "address_p2wpkh.address_id", "address_p2wsh.address_id");
+        psQueryInputs = dbCon.prepareStatement(SQL_QUERY_INPUTS, "input.transaction_id");
+        psQueryWalletNames = dbCon.prepareStatement(SQL_QUERY_WALLET_NAMES, "wallet.name");
+        execPrepareFiles = Executors.newFixedThreadPool(Math.max(1, uploadSessions), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("PrepareFiles-%d").build());
         execProcessTransactions = Executors.newFixedThreadPool(nTxnThreads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ProcessTxn-%d").build());
-//        execNeo = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setDaemon(false).setNameFormat("NeoUpload-%d").build());
-        neoConn = new NeoConnection();
+        execNeo = uploadSessions > 0 ? Executors.newFixedThreadPool(uploadSessions, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("NeoUpload-%d").build()) : null;
+        neoConn = exportDir == null ? new NeoConnection() : null;
         addressCache = CacheBuilder.newBuilder()
                 .concurrencyLevel(nTxnThreads)
                 .maximumSize(1_000_000)
@@ -152,20 +232,157 @@ public class RunNeoLoader {
         log.debug("Initiating shutdown");
         execPrepareFiles.shutdown();
         execProcessTransactions.shutdown();
-//        execNeo.shutdown();
-        neoConn.close();
+        if (execNeo != null) {
+            execNeo.shutdownNow();
+        }
+        if (neoConn != null) {
+            neoConn.close();
+        }
         log.debug("Shutdown complete.");
     }
 
     private void run() throws Exception {
+        if (exportDir != null) {
+            try {
+                exportCsv();
+            } finally {
+                shutdown();
+            }
+            return;
+        }
         try (NeoQueries neoQueries = new NeoQueries(neoConn)) {
+            if (verifyDir != null) {
+                verifyImport(neoQueries);
+                return;
+            }
             init(neoQueries);
-            runLoop(neoQueries);
+            if (execNeo != null) {
+                runPipelined(neoQueries);
+            } else {
+                runLoop(neoQueries);
+            }
         } finally {
             shutdown();
         }
     }
 
+    /**
+     * Export all transactions to CSV files for offline graph build with
+     * "neo4j-admin import". Transaction ranges are read with range queries and
+     * written in parallel, each range to its own set of files. Wallet nodes are
+     * written at the end for all wallets referenced by outputs.
+     */
+    private void exportCsv() throws IOException, InterruptedException, ExecutionException {
+        checkArgument(exportDir.isDirectory() || exportDir.mkdirs(), "Cannot create directory %s", exportDir);
+        long s = System.currentTimeMillis();
+        int end = queryTransaction.getLastTransactionId().orElse(0);
+        log.info("Exporting transactions [1 - {}] to {}", end, exportDir.getAbsolutePath());
+        NeoCsvWriter.writeHeaders(exportDir);
+        IntBitmap walletIds = new IntBitmap();
+        AtomicLong[] totals = {new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong()};
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (long start = 1; start <= end; start += exportRangeSize) {
+            int rangeStart = (int) start;
+            int rangeEnd = (int) Math.min(start + exportRangeSize - 1, end);
+            tasks.add(() -> {
+                exportRange(rangeStart, rangeEnd, walletIds, totals);
+                return null;
+            });
+        }
+        for (Future<Object> f : execProcessTransactions.invokeAll(tasks)) {
+            f.get();
+        }
+        Map<Integer, String> walletNames = new HashMap<>();
+        psQueryWalletNames.executeQuery(rs -> walletNames.put(rs.getInt(1), rs.getString(2)));
+        try (NeoCsvWriter writer = new NeoCsvWriter(exportDir, String.format("%010d", 0), CsvFile.WALLET)) {
+            walletIds.forEach(walletId -> {
+                try {
+                    writer.addWallet(walletId, walletNames.get(walletId));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        TransactionCounts counts = new TransactionCounts(totals[0].get(), totals[1].get(), totals[2].get(), totals[3].get());
+        Properties summary = new Properties();
+        summary.setProperty("transactions", Long.toString(counts.getTransactions()));
+        summary.setProperty("maxTransactionId", Long.toString(counts.getMaxTransactionId()));
+        summary.setProperty("sumInputs", Long.toString(counts.getSumInputs()));
+        summary.setProperty("sumOutputs", Long.toString(counts.getSumOutputs()));
+        try (OutputStream out = new FileOutputStream(new File(exportDir, EXPORT_SUMMARY_FILE_NAME))) {
+            summary.store(out, "Neo4j CSV export summary");
+        }
+        log.info("Exported {}, wallets: {}. Runtime: {} sec. Import with: cd {} && neo4j-admin import --f {}",
+                counts, walletIds.getCardinality(), (System.currentTimeMillis() - s) / 1000, exportDir.getAbsolutePath(), NeoCsvWriter.ARGS_FILE_NAME);
+    }
+
+    private void exportRange(int start, int end, IntBitmap walletIds, AtomicLong[] totals) throws IOException {
+        long s = System.currentTimeMillis();
+        try (NeoCsvWriter writer = new NeoCsvWriter(exportDir, String.format("%010d", start),
+                CsvFile.TRANSACTION, CsvFile.OUTPUT, CsvFile.OUTPUT_REL, CsvFile.INPUT_REL, CsvFile.WALLET_REL)) {
+            for (BtcTransaction t : queryTransaction.getTxnsRangle(start, end)) {
+                writer.addTransaction(t);
+            }
+            IntBitmap rangeWalletIds = new IntBitmap();
+            try {
+                psQueryOutputsWithAddresses.setParameters(p -> p.setInt(start).setInt(end)).setFetchSize(batchSize).executeQuery(rs -> {
+                    int addressId = rs.getInt(3);
+                    byte[] hash = rs.getBytes(5);
+                    SrcAddressType type = BtcAddress.getTypeFromId(addressId);
+                    String address = hash != null && type.isReal() ? BJBlockHandler.getAddress(type, hash).toString() : null;
+                    int walletId = rs.getInt(6);
+                    if (walletId > 0) {
+                        rangeWalletIds.add(walletId);
+                    }
+                    try {
+                        writer.addOutput(rs.getInt(1), rs.getShort(2), address, rs.getLong(4), walletId);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                psQueryInputs.setParameters(p -> p.setInt(start).setInt(end)).setFetchSize(batchSize).executeQuery(rs -> {
+                    try {
+                        writer.addInput(TxInput.builder()
+                                .transactionId(rs.getInt(1))
+                                .pos(rs.getShort(2))
+                                .inTransactionId(rs.getInt(3))
+                                .inPos(rs.getShort(4))
+                                .build());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            synchronized (walletIds) {
+                rangeWalletIds.forEach(walletIds::add);
+            }
+            totals[0].addAndGet(writer.getTransactions());
+            totals[1].accumulateAndGet(writer.getMaxTransactionId(), Math::max);
+            totals[2].addAndGet(writer.getSumInputs());
+            totals[3].addAndGet(writer.getSumOutputs());
+        }
+        log.debug("exportRange [{} - {}] FINISHED. Runtime: {} msec.", start, end, System.currentTimeMillis() - s);
+    }
+
+    /**
+     * Compare transaction counts in the graph with counts written by the CSV
+     * export.
+     */
+    private void verifyImport(NeoQueries neoQueries) throws IOException {
+        Properties summary = new Properties();
+        try (InputStream in = new FileInputStream(new File(verifyDir, EXPORT_SUMMARY_FILE_NAME))) {
+            summary.load(in);
+        }
+        TransactionCounts expected = new TransactionCounts(
+                Long.parseLong(summary.getProperty("transactions")), Long.parseLong(summary.getProperty("maxTransactionId")),
+                Long.parseLong(summary.getProperty("sumInputs")), Long.parseLong(summary.getProperty("sumOutputs")));
+        TransactionCounts actual = neoQueries.getTransactionCounts();
+        checkState(expected.equals(actual), "Imported graph does not match export. Expected: %s, actual: %s", expected, actual);
+        log.info("Imported graph matches export: {}", actual);
+    }
+
     private void init(NeoQueries neoQueries) throws SQLException {
         if (cleanup) {
             log.debug("Cleaning...");
@@ -186,6 +403,11 @@ public class RunNeoLoader {
         } else {
             final int lastTransactionId = neoQueries.getLastTransactionId();
             startTransaction = lastTransactionId + 1 - recordsBack;
+            if (execNeo != null) {
+                //ranges of concurrent sessions are committed out of order, so there may be gaps below the last transaction
+                safeUntilTransaction = lastTransactionId;
+                startTransaction = Math.max(1, startTransaction - 2 * uploadSessions * batchSize);
+            }
         }
         endTransaction = queryTransaction.getLastTransactionId().orElse(0);
         log.debug("startTransaction: {}, endTransaction: {}", startTransaction, endTransaction);
@@ -195,7 +417,7 @@ public class RunNeoLoader {
         Future<PrepData> prepFutureNext = prepareDataFuture(startTransaction);
         int nBatchesProcessed = 0;
         long s = System.currentTimeMillis();
-        for (int i = startTransaction; i < endTransaction; i += batchSize) {
+        for (int i = startTransaction; i < endTransaction; i = getBatchEnd(i) + 1) {
             if (stopFile.exists()) {
                 log.info("Exiting - stop file found: " + stopFile.getAbsolutePath());
                 stopFile.renameTo(new File(stopFile.getAbsoluteFile() + "1"));
@@ -205,7 +427,7 @@ public class RunNeoLoader {
                 startFromFile.updateNumber(i);
             }
             Future<PrepData> prepFuture = prepFutureNext;
-            prepFutureNext = prepareDataFuture(i + batchSize);
+            prepFutureNext = prepareDataFuture(getBatchEnd(i) + 1);
             uploadDataToNeoDB(neoQueries, prepFuture.get());
             nBatchesProcessed++;
             long runtime = System.currentTimeMillis() - s;
@@ -218,12 +440,121 @@ public class RunNeoLoader {
         }
     }
 
+    /**
+     * Upload transactions by non-overlapping ranges on concurrent sessions.
+     * Up to twice the tuned concurrency of ranges is in flight, so the next
+     * ranges are prepared while previous are uploaded. Inputs referring to
+     * transactions before the range are uploaded once the committed watermark
+     * passes them. Range size is tuned from measured commit latency. Ranges
+     * below last transaction found on start are uploaded in safe mode, since
+     * previous run might have left gaps there.
+     */
+    private void runPipelined(NeoQueries neoQueries) throws InterruptedException, ExecutionException {
+        BatchSizeTuner tuner = new BatchSizeTuner(Math.min(MIN_UPLOAD_BATCH_SIZE, batchSize), batchSize, uploadSessions, TimeUnit.MILLISECONDS.toNanos(targetCommitMsec));
+        RangeWatermark committed = new RangeWatermark(startTransaction - 1);
+        Deque<Future<NeoUploadBatch>> inFlight = new ArrayDeque<>();
+        long s = System.currentTimeMillis();
+        for (int i = startTransaction; i <= endTransaction;) {
+            if (stopFile.exists()) {
+                log.info("Exiting - stop file found: " + stopFile.getAbsolutePath());
+                stopFile.renameTo(new File(stopFile.getAbsoluteFile() + "1"));
+                break;
+            }
+            int start = i;
+            int end = Math.min(getBatchEnd(start, tuner.getBatchSize()), endTransaction);
+            Future<NeoUploadBatch> prepFuture = execPrepareFiles.submit(() -> prepareBatch(start, end));
+            inFlight.add(execNeo.submit(() -> uploadBatch(neoQueries, prepFuture, committed, tuner)));
+            while (inFlight.size() >= 2 * tuner.getConcurrency()) {
+                waitForUpload(inFlight, committed, tuner, s);
+            }
+            i = end + 1;
+        }
+        while (!inFlight.isEmpty()) {
+            waitForUpload(inFlight, committed, tuner, s);
+        }
+    }
+
+    private void waitForUpload(Deque<Future<NeoUploadBatch>> inFlight, RangeWatermark committed, BatchSizeTuner tuner, long startTime) throws InterruptedException, ExecutionException {
+        NeoUploadBatch batch = inFlight.poll().get();
+        int watermark = committed.get();
+        if (startFromFile != null) {
+            startFromFile.updateNumber(watermark + 1);
+        }
+        long runtime = Math.max(1, System.currentTimeMillis() - startTime);
+        log.debug("Batch [{} - {}] uploaded. Committed: {}. Speed: {} tx/sec. Tuner: {}\r\n"
+                + "\t\tAddressCache.stats: Hits: {}%  {}\r\n"
+                + "\t\tWalletCache.stats:  Hits: {}%  {}",
+                batch.getStartTransactionId(), batch.getEndTransactionId(), watermark, (watermark - startTransaction + 1) * 1000L / runtime, tuner,
+                Math.round(addressCache.stats().hitRate() * 100), addressCache.stats(),
+                Math.round(walletCache.stats().hitRate() * 100), walletCache.stats());
+    }
+
+    private NeoUploadBatch uploadBatch(NeoQueries neoQueries, Future<NeoUploadBatch> prepFuture, RangeWatermark committed, BatchSizeTuner tuner) throws InterruptedException, ExecutionException {
+        try {
+            NeoUploadBatch batch = prepFuture.get();
+            boolean safe = safeRun || batch.getStartTransactionId() <= safeUntilTransaction;
+            long s = System.nanoTime();
+            neoQueries.uploadBatch(batch, safe);
+            long runtime = System.nanoTime() - s;
+            if (batch.hasCrossRangeInputs()) {
+                committed.await(batch.getMaxCrossRangeInTransactionId());
+                s = System.nanoTime();
+                neoQueries.uploadCrossRangeInputs(batch, safe);
+                runtime += System.nanoTime() - s;
+            }
+            tuner.onBatchExecuted(batch.getTransactions(), runtime);
+            committed.complete(batch.getStartTransactionId(), batch.getEndTransactionId());
+            log.trace("uploadBatch [{} - {}] FINISHED. Commit time: {} msec.", batch.getStartTransactionId(), batch.getEndTransactionId(), runtime / 1_000_000);
+            return batch;
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            committed.fail();
+            throw e;
+        }
+    }
+
+    private NeoUploadBatch prepareBatch(int start, int end) throws InterruptedException, ExecutionException {
+        log.trace("prepareBatch [{} - {}] STARTED", start, end);
+        long s = System.currentTimeMillis();
+        NeoUploadBatch batch = new NeoUploadBatch(start, end);
+        for (Future<Void> f : execProcessTransactions.invokeAll(queryTransaction.getTxnsRangle(start, end).stream().map(t -> {
+            return (Callable<Void>) () -> {
+                batch.addTransaction(t.getTransactionId(), t.getTxid().toString(), t.getBlockHeight(), t.getNInputs(), t.getNOutputs());
+                queryInput.findInputsByTransactionId(t.getTransactionId()).forEach(i
+                        -> batch.addInput(t.getTransactionId(), i.getPos(), i.getInTransactionId(), i.getInPos()));
+                for (TxOutput o : queryOutput.findOutputsByTransactionId(t.getTransactionId())) {
+                    CAddress adr = o.getAddressId() == 0 ? null : addressCache.get(o.getAddressId());
+                    int walletId = adr == null ? 0 : adr.getWalletId();
+                    batch.addOutput(t.getTransactionId(), o.getPos(), adr == null ? "Undefined" : adr.getName(),
+                            new BigDecimal(o.getAmount()).movePointLeft(8).doubleValue(), walletId, walletId > 0 ? walletCache.get(walletId).orNull() : null);
+                }
+                return null;
+            };
+        }).collect(Collectors.toList()))) {
+            f.get();
+        }
+        log.trace("prepareBatch [{} - {}]: FINISHED. Runtime: {} msec.", start, end, (System.currentTimeMillis() - s));
+        return batch;
+    }
+
     private Future<PrepData> prepareDataFuture(int start) {
         return execPrepareFiles.submit(() -> prepareData(start));
     }
 
+    /**
+     * Get last transaction of the batch. Batch is cut at partition boundary of
+     * the transaction table, so each range query is served by a single
+     * partition.
+     */
+    private int getBatchEnd(int start) {
+        return getBatchEnd(start, batchSize);
+    }
+
+    private int getBatchEnd(int start, int size) {
+        return (int) Math.min(start + size - 1L, dbCon.getDBMetaData().getPartitionLastValue("transaction", start));
+    }
+
     private PrepData prepareData(int start) {
-        int end = start + batchSize - 1;
+        int end = getBatchEnd(start);
         log.debug("prepareData [{} - {}] STARTED", start, end);
         long s = System.currentTimeMillis();
         PrepData data = new PrepData(start, end);
@@ -294,29 +625,6 @@ public class RunNeoLoader {
         return transactionId * 100000L + pos;
     }
 
-    private static void printHelpAndExit() {
-        System.out.println("Available options:");
-        HelpFormatter formatter = new HelpFormatter();
-        formatter.printHelp("java <jar> " + Main.Command.load_neo4j + " [options]", prepOptions());
-        System.exit(1);
-    }
-
-    private static Options prepOptions() {
-        Options options = new Options();
-        options.addOption("h", "help", false, "Print help");
-        options.addOption(null, "safe-run", false, "Run in safe mode - check DB for existing records before adding new. Default: " + DEFAULT_SAFE_RUN);
-        options.addOption(null, "cleanup", false, "Clean DB on start. Default: " + DEFAULT_CLEANUP);
-        options.addOption(null, "batch-size", true, "Number or transactions to process in a batch. Default: " + DEFAULT_BATCH_SIZE);
-        options.addOption(null, "start-from", true, "Start process from this transaction ID. Beside a number this parameter can be set to a file name that stores the numeric value updated on every batch");
-        options.addOption(null, "records-back", true, "Check last number of trasnactions. Process will run in safe mode (--safe-run=true)");
-        options.addOption(null, "stop-file", true, "File to be watched on each new block to stop process. If file is present the process stops and file renamed by adding '1' to the end. Default: " + DEFAULT_STOP_FILE_NAME);
-        options.addOption(null, "threads", true, "Number of threads to run. Default is " + DEFAULT_TXN_THREADS + ". To disable parallel threading set value to 0");
-        DBConnectionSupplier.addOptions(options);
-        NeoConnection.addOptions(options);
-        return options;
-
-    }
-
     @Getter
     @AllArgsConstructor
     private static class CAddress {
@@ -15,10 +15,15 @@
  */
 package com.sliva.btc.scanner;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.facade.DbQueryOutput;
 import com.sliva.btc.scanner.db.facade.DbQueryOutput.OutputAddressWallet;
+import com.sliva.btc.scanner.db.facade.DbStores;
+import com.sliva.btc.scanner.db.facade.DbWalletChangelog;
+import com.sliva.btc.scanner.db.facade.DbWalletChangelog.Change;
 import com.sliva.btc.scanner.db.model.InOutKey;
 import com.sliva.btc.scanner.neo4j.NeoConnection;
 import com.sliva.btc.scanner.neo4j.NeoQueries;
@@ -29,12 +34,15 @@ import java.io.File;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -60,6 +68,7 @@ public class RunNeoUpdateWallets {
     private static final int DEFAULT_START_TRANSACTION_ID = 1;
     private static final int DEFAULT_BATCH_SIZE = 5000;
     private static final String DEFAULT_STOP_FILE_NAME = "/tmp/btc-neoUpdateWallets-stop";
+    private static final int DEFAULT_CHANGELOG_POLL_SEC = 0;
     private final DBConnectionSupplier dbCon;
 //    private final DbQueryAddress queryAddress;
     private final DbQueryOutput queryOutput;
@@ -67,6 +76,8 @@ public class RunNeoUpdateWallets {
     private final Utils.NumberFile startFromFile;
     private final int batchSize;
     private final File stopFile;
+    private final DbWalletChangelog walletChangelog;
+    private final int changelogPollSec;
 //    private final ExecutorService execPrepareFiles;
 //    private final ExecutorService execProcessTransactions;
 //    private final ExecutorService execNeo;
@@ -100,10 +111,15 @@ public class RunNeoUpdateWallets {
         stopFile = new File(cmd.getOptionValue("stop-file", DEFAULT_STOP_FILE_NAME));
         recordsBack = cmd.hasOption("records-back") ? Integer.parseInt(cmd.getOptionValue("records-back")) : 0;
 //        int nTxnThreads = Integer.parseInt(cmd.getOptionValue("threads", Integer.toString(DEFAULT_TXN_THREADS)));
-        dbCon = new DBConnectionSupplier();
+        changelogPollSec = Integer.parseInt(cmd.getOptionValue("changelog-poll-sec", Integer.toString(DEFAULT_CHANGELOG_POLL_SEC)));
+        DBConnectionSupplier dbConPrimary = new DBConnectionSupplier();
+        dbCon = dbConPrimary.getReadSupplier();
+        DbStores stores = DbStores.open(dbConPrimary);
+        walletChangelog = cmd.hasOption("changelog") ? stores.getWalletChangelog().orElse(null) : null;
+        checkArgument(!cmd.hasOption("changelog") || walletChangelog != null, "Argument '%s' requires table \"wallet_changelog\" in DB", "changelog");
 //        queryAddress = new DbQueryAddressCombo(dbCon);
 //        blockProvider = new DbBlockProvider(dbCon);
-        queryOutput = new DbQueryOutput(dbCon);
+        queryOutput = new DbQueryOutput(dbCon, stores);
 //        execPrepareFiles = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("PrepareFiles-%d").build());
 //        execProcessTransactions = Executors.newFixedThreadPool(nTxnThreads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ProcessTxn-%d").build());
 //        execNeo = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setDaemon(false).setNameFormat("NeoUpload-%d").build());
@@ -146,6 +162,10 @@ public class RunNeoUpdateWallets {
 
     private void run() throws Exception {
         try (NeoQueries neoQueries = new NeoQueries(neoConn)) {
+            if (walletChangelog != null) {
+                syncChangelog(neoQueries);
+                return;
+            }
             init(neoQueries);
             runLoop(neoQueries);
         } finally {
@@ -197,6 +217,54 @@ public class RunNeoUpdateWallets {
         }
     }
 
+    /**
+     * Replay address wallet changes from the changelog to Neo4j instead of
+     * comparing all outputs. Each round reads a batch of changes, takes the
+     * latest wallet of every changed address, replaces wallet relations of
+     * outputs of these addresses and purges replayed changes. Process exits
+     * when changelog is empty unless polling interval is set.
+     */
+    private void syncChangelog(NeoQueries neoQueries) throws InterruptedException {
+        long lastChangeId = 0;
+        long nChanges = 0;
+        long nOutputs = 0;
+        long s = System.currentTimeMillis();
+        while (true) {
+            if (stopFile.exists()) {
+                log.info("Exiting - stop file found: " + stopFile.getAbsolutePath());
+                stopFile.renameTo(new File(stopFile.getAbsoluteFile() + "1"));
+                break;
+            }
+            List<Change> changes = walletChangelog.read(lastChangeId, batchSize);
+            if (changes.isEmpty()) {
+                if (changelogPollSec <= 0) {
+                    break;
+                }
+                TimeUnit.SECONDS.sleep(changelogPollSec);
+                continue;
+            }
+            Map<Integer, Change> latest = new HashMap<>();
+            changes.forEach(c -> latest.put(c.getAddressId(), c));
+            List<OutputWithWallet> outputs = queryOutput.getOutputsByAddresses(latest.keySet()).stream().map(o -> {
+                Change c = latest.get(o.getAddressId());
+                return OutputWithWallet.builder()
+                        .transactionId(o.getTransactionId())
+                        .pos(o.getPos())
+                        .walletId(c.getWalletId())
+                        .walletName(c.getWalletName())
+                        .build();
+            }).collect(Collectors.toList());
+            Lists.partition(outputs, batchSize).forEach(neoQueries::replaceOutputWalletRelations);
+            lastChangeId = changes.get(changes.size() - 1).getChangeId();
+            walletChangelog.purge(lastChangeId);
+            nChanges += changes.size();
+            nOutputs += outputs.size();
+            log.debug("syncChangelog: Changes replayed: {}, outputs updated: {}, last change id: {}. Runtime: {} sec.",
+                    nChanges, nOutputs, lastChangeId, (System.currentTimeMillis() - s) / 1000);
+        }
+        log.info("syncChangelog: FINISHED. Changes replayed: {}, outputs updated: {}", nChanges, nOutputs);
+    }
+
     private void processResults(Collection<OutputAddressWallet> fromSQL, Collection<OutputWithWallet> fromNeo, NeoQueries neoQueries) {
         long s = System.currentTimeMillis();
         final Map<InOutKey, OutputAddressWallet> dbMap = fromSQL.parallelStream().collect(Collectors
@@ -254,6 +322,9 @@ public class RunNeoUpdateWallets {
         options.addOption(null, "start-from", true, "Start process from this transaction ID. Beside a number this parameter can be set to a file name that stores the numeric value updated on every batch");
         options.addOption(null, "records-back", true, "Check last number of trasnactions. Process will run in safe mode (--safe-run=true)");
         options.addOption(null, "stop-file", true, "File to be watched on each new block to stop process. If file is present the process stops and file renamed by adding '1' to the end. Default: " + DEFAULT_STOP_FILE_NAME);
+        options.addOption(null, "changelog", false, "Replay address wallet changes from table \"wallet_changelog\" instead of comparing all outputs in transaction ranges."
+                + " Replayed changes are removed from the table");
+        options.addOption(null, "changelog-poll-sec", true, "Keep polling wallet changelog with this interval when it is empty. Default: " + DEFAULT_CHANGELOG_POLL_SEC + " - exit when changelog is empty");
         options.addOption(null, "threads", true, "Number of threads to run. Default is " + DEFAULT_TXN_THREADS + ". To disable parallel threading set value to 0");
         DBConnectionSupplier.addOptions(options);
         NeoConnection.addOptions(options);
@@ -16,7 +16,9 @@
 package com.sliva.btc.scanner;
 
 import com.google.common.io.Resources;
+import static com.google.common.base.Preconditions.checkArgument;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.utils.DBMetaData;
 import com.sliva.btc.scanner.util.CommandLineUtils;
 import com.sliva.btc.scanner.util.CommandLineUtils.CmdArguments;
 import static com.sliva.btc.scanner.util.CommandLineUtils.buildCmdArguments;
@@ -24,12 +26,16 @@ import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.StopWatch;
 import org.reflections.Reflections;
 import org.reflections.scanners.ResourcesScanner;
 
@@ -41,11 +47,14 @@ import org.reflections.scanners.ResourcesScanner;
 public class RunSchema {
 
     private static final String SCHEMA_LOCATION = "schema";
+    private static final List<String> PARTITION_OPERATIONS = Arrays.asList("optimize", "repair", "analyze", "check", "rebuild");
 
     private static final CommandLineUtils.CmdOptions CMD_OPTS = new CommandLineUtils.CmdOptions().add(DBConnectionSupplier.class);
     private static final CommandLineUtils.CmdOption createOpt = buildOption(CMD_OPTS, null, "create", true, "Create DB schema");
     private static final CommandLineUtils.CmdOption truncateAllTablesOpt = buildOption(CMD_OPTS, null, "truncate-all-tables", false, "Truncate all tables in schema");
     private static final CommandLineUtils.CmdOption dropAllTablesOpt = buildOption(CMD_OPTS, null, "drop-all-tables", false, "Drop all tables in schema");
+    private static final CommandLineUtils.CmdOption maintainPartitionsOpt = buildOption(CMD_OPTS, null, "maintain-partitions", true,
+            "Run maintenance operation on partitioned tables one partition at a time. Supported operations: " + String.join(", ", PARTITION_OPERATIONS));
 
     private final DBConnectionSupplier con = new DBConnectionSupplier();
 
@@ -62,6 +71,8 @@ public class RunSchema {
             r.truncateAllTables();
         } else if (cmd.hasOption(dropAllTablesOpt)) {
             r.dropAllTables();
+        } else if (cmd.hasOption(maintainPartitionsOpt)) {
+            r.maintainPartitions(cmd.getOption(maintainPartitionsOpt).get());
         }
     }
 
@@ -92,6 +103,17 @@ public class RunSchema {
         con.getDBMetaData().getTables().keySet().stream().peek(t -> log.info("Dropping table {}", t)).map("DROP TABLE "::concat).forEach(this::runQuery);
     }
 
+    private void maintainPartitions(String operation) {
+        checkArgument(PARTITION_OPERATIONS.contains(operation.toLowerCase()), "Unsupported partition operation: %s", operation);
+        DBMetaData metaData = con.getDBMetaData();
+        metaData.getTables().keySet().forEach(t -> metaData.getPartitions(t).forEach(p -> {
+            log.info("Running {} on partition {} of table {}", operation, p.getName(), t);
+            StopWatch sw = StopWatch.createStarted();
+            runQuery("ALTER TABLE `" + t + "` " + operation.toUpperCase() + " PARTITION " + p.getName());
+            log.info("Finished {} on partition {} of table {} in {} sec", operation, p.getName(), t, TimeUnit.NANOSECONDS.toSeconds(sw.getNanoTime()));
+        }));
+    }
+
     @SneakyThrows(SQLException.class)
     private void runQuery(String query) {
         con.getConnection().createStatement().execute(query);
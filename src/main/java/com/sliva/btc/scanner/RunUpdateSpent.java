@@ -15,32 +15,45 @@
  */
 package com.sliva.btc.scanner;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import com.google.common.primitives.ImmutableLongArray;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
 import com.sliva.btc.scanner.db.DbUpdate;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.facade.DbUpdateOutput;
+import com.sliva.btc.scanner.db.kv.LsmKvStore;
 import com.sliva.btc.scanner.db.model.OutputStatus;
+import com.sliva.btc.scanner.db.utils.BatchExecutor;
+import com.sliva.btc.scanner.db.utils.OutputOrdinals;
 import com.sliva.btc.scanner.util.BufferingAheadSupplier;
 import com.sliva.btc.scanner.util.CommandLineUtils.CmdArguments;
 import com.sliva.btc.scanner.util.CommandLineUtils.CmdOption;
 import com.sliva.btc.scanner.util.CommandLineUtils.CmdOptions;
 import static com.sliva.btc.scanner.util.CommandLineUtils.buildCmdArguments;
 import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
+import com.sliva.btc.scanner.util.IntBitmap;
 import com.sliva.btc.scanner.util.ShutdownHook;
 import com.sliva.btc.scanner.util.Utils;
 import com.sliva.btc.scanner.util.Utils.NumberFile;
-import static com.sliva.btc.scanner.util.Utils.getNumberSupplier;
 import java.sql.SQLException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -56,26 +69,49 @@ public class RunUpdateSpent {
     private static final int DEFAULT_START_TRANSACTION_ID = 0;
     private static final int DEFAULT_BATCH_SIZE = 200_000;
     private static final int DEFAULT_THREADS = 3;
+    private static final boolean DEFAULT_MERGE_JOIN = false;
+    private static final boolean DEFAULT_SPENT_BITMAP = false;
+    private static final boolean DEFAULT_AUDIT = false;
 
-    private static final CmdOptions CMD_OPTS = new CmdOptions().add(DBConnectionSupplier.class).add(DbUpdate.class);
+    private static final CmdOptions CMD_OPTS = new CmdOptions().add(DBConnectionSupplier.class).add(DbUpdate.class).add(DbUpdateOutput.class).add(BatchExecutor.class).add(LsmKvStore.class);
     private static final CmdOption batchSizeOpt = buildOption(CMD_OPTS, null, "batch-size", true, "Number or transactions to process in a batch. Default: " + DEFAULT_BATCH_SIZE);
     private static final CmdOption startFromOpt = buildOption(CMD_OPTS, null, "start-from", true, "Start process from this transaction ID. Beside a number this parameter can be set to a file name that stores the numeric value updated on every batch");
     private static final CmdOption threadsOpt = buildOption(CMD_OPTS, null, "threads", true, "Number of threads. Default: " + DEFAULT_THREADS);
+    private static final CmdOption mergeJoinOpt = buildOption(CMD_OPTS, null, "merge-join", true, "Read outputs and spent outpoints of inputs as two sorted range scans and merge them in memory"
+            + " instead of joining input index for every output. Not supported with sharded DB. Default: " + DEFAULT_MERGE_JOIN);
+    private static final CmdOption spentBitmapOpt = buildOption(CMD_OPTS, null, "spent-bitmap", true, "Build in-memory bitmap of spent outputs from one pass over input table,"
+            + " using output ordinals from nOutputs of transactions, and compare it with outputs in a second pass. Not supported with sharded DB. Default: " + DEFAULT_SPENT_BITMAP);
+    private static final CmdOption auditOpt = buildOption(CMD_OPTS, null, "audit", true, "Only report outputs with wrong spent status without updating them. Used with --spent-bitmap. Default: " + DEFAULT_AUDIT);
 
     private static final String SQL_QUERY_OUTPUTS
             = "SELECT O.transaction_id,O.pos,O.address_id,O.spent,I.in_transaction_id FROM output O"
             + " LEFT JOIN input I ON I.in_transaction_id=O.transaction_id AND I.in_pos=O.pos"
             + " WHERE (O.address_id <> 0 OR O.spent <> " + OutputStatus.UNSPENDABLE + ") AND O.transaction_id BETWEEN ? AND ?";
+    private static final String SQL_QUERY_OUTPUTS_SORTED
+            = "SELECT transaction_id,pos,address_id,spent FROM output"
+            + " WHERE (address_id <> 0 OR spent <> " + OutputStatus.UNSPENDABLE + ") AND transaction_id BETWEEN ? AND ?"
+            + " ORDER BY transaction_id,pos";
+    private static final String SQL_QUERY_SPENT_OUTPOINTS_SORTED
+            = "SELECT in_transaction_id,in_pos FROM input WHERE in_transaction_id BETWEEN ? AND ? ORDER BY in_transaction_id,in_pos";
+    private static final String SQL_QUERY_SPENT_OUTPOINTS_BY_TXN
+            = "SELECT in_transaction_id,in_pos FROM input WHERE transaction_id BETWEEN ? AND ?";
 
     private static ShutdownHook shutdownHook;
 
     private final DBConnectionSupplier dbCon;
+    private final DbStores stores;
     private final DBPreparedStatement psQueryOutputs;
+    private final DBPreparedStatement psQueryOutputsSorted;
+    private final DBPreparedStatement psQuerySpentOutpointsSorted;
+    private final DBPreparedStatement psQuerySpentOutpointsByTxn;
     private final DbQueryTransaction dbQueryTransaction;
     private final int startTransactionId;
     private final int batchSize;
     private final NumberFile startFromFile;
     private final int threads;
+    private final boolean mergeJoin;
+    private final boolean spentBitmap;
+    private final boolean audit;
 
     /**
      * @param args the command line arguments
@@ -99,44 +135,50 @@ public class RunUpdateSpent {
         startTransactionId = startFromFile.getNumber().intValue();
         batchSize = cmd.getOption(batchSizeOpt).map(Integer::parseInt).orElse(DEFAULT_BATCH_SIZE);
         threads = cmd.getOption(threadsOpt).map(Integer::parseInt).orElse(DEFAULT_THREADS);
+        mergeJoin = cmd.getOption(mergeJoinOpt).map(Boolean::valueOf).orElse(DEFAULT_MERGE_JOIN);
         dbCon = new DBConnectionSupplier().checkTablesExist("input", "output");
+        stores = DbStores.open(dbCon);
+        spentBitmap = cmd.getOption(spentBitmapOpt).map(Boolean::valueOf).orElse(DEFAULT_SPENT_BITMAP);
+        audit = cmd.getOption(auditOpt).map(Boolean::valueOf).orElse(DEFAULT_AUDIT);
+        checkArgument(!mergeJoin || !dbCon.isSharded(), "Argument '%s' is not supported with sharded DB", mergeJoinOpt.getLongOpt());
+        checkArgument(!spentBitmap || !dbCon.isSharded(), "Argument '%s' is not supported with sharded DB", spentBitmapOpt.getLongOpt());
+        checkArgument(!audit || spentBitmap, "Argument '%s' requires '%s'", auditOpt.getLongOpt(), spentBitmapOpt.getLongOpt());
         psQueryOutputs = dbCon.prepareStatement(SQL_QUERY_OUTPUTS, "output.transaction_id", "input.in_transaction_id");
-        dbQueryTransaction = new DbQueryTransaction(dbCon);
+        psQueryOutputsSorted = dbCon.prepareStatement(SQL_QUERY_OUTPUTS_SORTED, "output.transaction_id");
+        psQuerySpentOutpointsSorted = dbCon.prepareStatement(SQL_QUERY_SPENT_OUTPOINTS_SORTED, "input.in_transaction_id");
+        psQuerySpentOutpointsByTxn = dbCon.prepareStatement(SQL_QUERY_SPENT_OUTPOINTS_BY_TXN, "input.transaction_id");
+        dbQueryTransaction = new DbQueryTransaction(dbCon, stores);
     }
 
     private void runProcess() throws SQLException {
+        if (spentBitmap) {
+            runBitmapProcess();
+            return;
+        }
         NumberFormat nf = NumberFormat.getIntegerInstance();
         int lastTxnId = dbQueryTransaction.getLastTransactionId().orElse(0);
         log.info("Run transactions from {} to {}", nf.format(startTransactionId), nf.format(lastTxnId));
-        Supplier<Integer> batchNumberSupplier = getNumberSupplier(startTransactionId, batchSize, n -> n <= lastTxnId && !shutdownHook.isInterrupted());
+        Supplier<int[]> batchRangeSupplier = getRangeSupplier(lastTxnId);
         ExecutorService loadThreadpool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("loadThread-%02d").build());
         StopWatch startTime = StopWatch.createStarted();
-        try (DbUpdateOutput updateOutput = new DbUpdateOutput(dbCon)) {
+        try (DbUpdateOutput updateOutput = new DbUpdateOutput(dbCon, stores)) {
             Supplier<CompletableFuture<DataSet>> preProcFeatureSupplier
                     = () -> CompletableFuture
-                            .completedFuture(batchNumberSupplier.get())
-                            .thenApplyAsync(n -> new DataSet(n,
-                            psQueryOutputs
-                                    .setParameters(p -> p.setInt(n).setInt(n + batchSize)).setFetchSize(batchSize * 5)
-                                    .executeQueryToList(rs -> new Data(rs.getInt(1), rs.getShort(2), rs.getInt(3), rs.getByte(4), rs.getObject(5) != null))), loadThreadpool);
+                            .completedFuture(batchRangeSupplier.get())
+                            .thenApplyAsync(r -> new DataSet(r[0], r[1], mergeJoin ? mergeOutputs(r[0], r[1]) : joinOutputs(r[0], r[1])), loadThreadpool);
             BufferingAheadSupplier<CompletableFuture<DataSet>> bufferingSupplier = new BufferingAheadSupplier<>(preProcFeatureSupplier, threads * 2);
             while (!shutdownHook.isInterrupted()) {
                 try {
                     DataSet dataSet = bufferingSupplier.get().get();
                     int numTxProcessed = dataSet.startTransactionId - startTransactionId;
                     log.info("Processing batch of outputs for transaction IDs between {} and {}. Size: {}, Speed: {} tx/sec",
-                            nf.format(dataSet.startTransactionId), nf.format(dataSet.startTransactionId + batchSize), nf.format(dataSet.data.size()),
+                            nf.format(dataSet.startTransactionId), nf.format(dataSet.endTransactionId), nf.format(dataSet.data.size()),
                             nf.format(numTxProcessed / Math.max(1, TimeUnit.NANOSECONDS.toSeconds(startTime.getNanoTime()))));
                     startFromFile.updateNumber(dataSet.startTransactionId);
                     dataSet.data.forEach(d -> {
-                        if (!d.hasSpendingTransaction) {
-                            if (d.addressId != 0 && d.spent != OutputStatus.UNSPENT) {
-                                updateOutput.updateSpent(d.transactionId, d.pos, OutputStatus.UNSPENT);
-                            } else if (d.addressId == 0 && d.spent < OutputStatus.UNSPENDABLE) {
-                                updateOutput.updateSpent(d.transactionId, d.pos, OutputStatus.UNSPENDABLE);
-                            }
-                        } else if (d.spent != OutputStatus.SPENT) {
-                            updateOutput.updateSpent(d.transactionId, d.pos, OutputStatus.SPENT);
+                        byte status = getUpdatedStatus(d.addressId, d.spent, d.hasSpendingTransaction);
+                        if (status != d.spent) {
+                            updateOutput.updateSpent(d.transactionId, d.pos, status);
                         }
                     });
                 } catch (InterruptedException | ExecutionException | NoSuchElementException ex) {
@@ -147,10 +189,167 @@ public class RunUpdateSpent {
         }
     }
 
+    /**
+     * Update spent status with in-memory bitmap of spent outputs. First pass
+     * reads nOutputs of transactions to assign dense output ordinals, second
+     * pass reads spent outpoints of inputs to the bitmap and third pass
+     * compares outputs with the bitmap. All passes are range scans by primary
+     * key.
+     */
+    private void runBitmapProcess() {
+        NumberFormat nf = NumberFormat.getIntegerInstance();
+        int lastTxnId = dbQueryTransaction.getLastTransactionId().orElse(0);
+        log.info("Run transactions from {} to {} with spent bitmap{}", nf.format(startTransactionId), nf.format(lastTxnId), audit ? " (audit only)" : "");
+        StopWatch startTime = StopWatch.createStarted();
+        OutputOrdinals ordinals = new OutputOrdinals(startTransactionId);
+        for (int i = startTransactionId; i <= lastTxnId && !shutdownHook.isInterrupted(); i += batchSize) {
+            int end = (int) Math.min(i + batchSize - 1L, lastTxnId);
+            dbQueryTransaction.getTxnsRangle(i, end).forEach(t -> ordinals.add(t.getTransactionId(), t.getNOutputs()));
+        }
+        checkState(ordinals.getOutputCount() <= 0xFFFFFFFFL, "Number of outputs %s exceeds bitmap capacity", ordinals.getOutputCount());
+        log.info("Output ordinals: {} transactions, {} outputs. Runtime: {} sec", nf.format(ordinals.getTransactionCount()), nf.format(ordinals.getOutputCount()),
+                TimeUnit.NANOSECONDS.toSeconds(startTime.getNanoTime()));
+        IntBitmap spent = new IntBitmap();
+        AtomicLong unknownOutpoints = new AtomicLong();
+        for (int i = startTransactionId; i <= lastTxnId && !shutdownHook.isInterrupted(); i += batchSize) {
+            int start = i;
+            int end = (int) Math.min(start + batchSize - 1L, lastTxnId);
+            psQuerySpentOutpointsByTxn.setParameters(p -> p.setInt(start).setInt(end)).setFetchSize(batchSize * 5).executeQuery(rs -> {
+                int inTransactionId = rs.getInt(1);
+                long ordinal = ordinals.getOrdinal(inTransactionId, rs.getShort(2));
+                if (ordinal >= 0) {
+                    spent.add((int) ordinal);
+                } else if (inTransactionId >= startTransactionId) {
+                    unknownOutpoints.incrementAndGet();
+                }
+            });
+        }
+        log.info("Spent bitmap: {} spent outputs, {} MB, {} inputs spending unknown outputs. Runtime: {} sec", nf.format(spent.getCardinality()),
+                nf.format(spent.getSizeInBytes() / 1024 / 1024), nf.format(unknownOutpoints.get()), TimeUnit.NANOSECONDS.toSeconds(startTime.getNanoTime()));
+        Map<Byte, AtomicLong> updates = new TreeMap<>();
+        try (DbUpdateOutput updateOutput = new DbUpdateOutput(dbCon, stores)) {
+            for (int i = startTransactionId; i <= lastTxnId && !shutdownHook.isInterrupted(); i += batchSize) {
+                int start = i;
+                int end = (int) Math.min(start + batchSize - 1L, lastTxnId);
+                psQueryOutputsSorted.setParameters(p -> p.setInt(start).setInt(end)).setFetchSize(batchSize * 5).executeQuery(rs -> {
+                    int transactionId = rs.getInt(1);
+                    short pos = rs.getShort(2);
+                    byte status = rs.getByte(4);
+                    long ordinal = ordinals.getOrdinal(transactionId, pos);
+                    byte newStatus = getUpdatedStatus(rs.getInt(3), status, ordinal >= 0 && spent.contains((int) ordinal));
+                    if (newStatus != status) {
+                        updates.computeIfAbsent(newStatus, s -> new AtomicLong()).incrementAndGet();
+                        if (!audit) {
+                            updateOutput.updateSpent(transactionId, pos, newStatus);
+                        }
+                    }
+                });
+                if (!audit) {
+                    startFromFile.updateNumber(start);
+                }
+                log.info("Processed outputs for transaction IDs between {} and {}. Status changes: {}", nf.format(start), nf.format(end), updates);
+            }
+        }
+        log.info("Outputs with wrong spent status by new status: {}. Runtime: {} sec", updates, TimeUnit.NANOSECONDS.toSeconds(startTime.getNanoTime()));
+    }
+
+    /**
+     * Load outputs of the range with a flag of spending input present by
+     * joining input table.
+     */
+    private Collection<Data> joinOutputs(int startTransactionId, int endTransactionId) {
+        return psQueryOutputs
+                .setParameters(p -> p.setInt(startTransactionId).setInt(endTransactionId)).setFetchSize(batchSize * 5)
+                .executeQueryToList(rs -> new Data(rs.getInt(1), rs.getShort(2), rs.getInt(3), rs.getByte(4), rs.getObject(5) != null));
+    }
+
+    /**
+     * Load outputs of the range that need spent status update by merging two
+     * range scans sorted by the same key: outputs by primary key and spent
+     * outpoints of inputs by (in_transaction_id,in_pos) index. Spent
+     * outpoints are packed to longs, so the whole range fits in memory.
+     */
+    private Collection<Data> mergeOutputs(int startTransactionId, int endTransactionId) {
+        ImmutableLongArray.Builder spentBuilder = ImmutableLongArray.builder(batchSize * 2);
+        psQuerySpentOutpointsSorted
+                .setParameters(p -> p.setInt(startTransactionId).setInt(endTransactionId)).setFetchSize(batchSize * 5)
+                .executeQuery(rs -> spentBuilder.add(packOutPoint(rs.getInt(1), rs.getShort(2))));
+        ImmutableLongArray spent = spentBuilder.build();
+        List<Data> result = new ArrayList<>();
+        AtomicInteger spentIndex = new AtomicInteger();
+        psQueryOutputsSorted
+                .setParameters(p -> p.setInt(startTransactionId).setInt(endTransactionId)).setFetchSize(batchSize * 5)
+                .executeQuery(rs -> {
+                    int transactionId = rs.getInt(1);
+                    short pos = rs.getShort(2);
+                    long key = packOutPoint(transactionId, pos);
+                    int i = spentIndex.get();
+                    while (i < spent.length() && spent.get(i) < key) {
+                        i++;
+                    }
+                    spentIndex.set(i);
+                    int addressId = rs.getInt(3);
+                    byte status = rs.getByte(4);
+                    boolean hasSpendingTransaction = i < spent.length() && spent.get(i) == key;
+                    if (getUpdatedStatus(addressId, status, hasSpendingTransaction) != status) {
+                        result.add(new Data(transactionId, pos, addressId, status, hasSpendingTransaction));
+                    }
+                });
+        return result;
+    }
+
+    private static long packOutPoint(int transactionId, short pos) {
+        return ((long) transactionId << 16) | (pos & 0xFFFF);
+    }
+
+    /**
+     * Get spent status the output should have.
+     *
+     * @param addressId output address id
+     * @param spent current status
+     * @param hasSpendingTransaction true if there is an input spending the
+     * output
+     * @return new status or current status if no update needed
+     */
+    private static byte getUpdatedStatus(int addressId, byte spent, boolean hasSpendingTransaction) {
+        if (hasSpendingTransaction) {
+            return OutputStatus.SPENT;
+        } else if (addressId != 0) {
+            return OutputStatus.UNSPENT;
+        } else if (spent < OutputStatus.UNSPENDABLE) {
+            return OutputStatus.UNSPENDABLE;
+        }
+        return spent;
+    }
+
+    /**
+     * Build supplier of transaction ID ranges to process. Ranges are cut at
+     * partition boundaries of the output table, so each range query is served
+     * by a single partition.
+     *
+     * @param lastTxnId last transaction ID to process
+     * @return supplier of [start, end] ranges (inclusive)
+     */
+    private Supplier<int[]> getRangeSupplier(int lastTxnId) {
+        AtomicInteger nextTransactionId = new AtomicInteger(startTransactionId);
+        return () -> {
+            synchronized (nextTransactionId) {
+                int start = nextTransactionId.get();
+                if (start > lastTxnId || shutdownHook.isInterrupted()) {
+                    throw new NoSuchElementException("No More Elements");
+                }
+                int end = (int) Math.min(start + batchSize - 1L, dbCon.getDBMetaData().getPartitionLastValue("output", start));
+                nextTransactionId.set(end + 1);
+                return new int[]{start, end};
+            }
+        };
+    }
+
     @AllArgsConstructor
     private static class DataSet {
 
         private final int startTransactionId;
+        private final int endTransactionId;
         private final Collection<Data> data;
     }
 
@@ -15,38 +15,51 @@
  */
 package com.sliva.btc.scanner;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.facade.DbUpdateWallet;
 import com.sliva.btc.scanner.db.DbQueries;
+import com.sliva.btc.scanner.db.facade.DbQueryAddressOne;
+import com.sliva.btc.scanner.db.facade.DbQueryColdTier;
 import com.sliva.btc.scanner.db.facade.DbQueryInput;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
 import com.sliva.btc.scanner.db.facade.DbQueryWallet;
 import com.sliva.btc.scanner.db.facade.DbUpdateAddress;
+import com.sliva.btc.scanner.db.facade.DbWalletRemap;
 import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.utils.AddressDisjointSet;
+import com.sliva.btc.scanner.db.utils.WalletIntegrity;
 import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.util.CommandLineUtils;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdArguments;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOption;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOptions;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
 import com.sliva.btc.scanner.util.Utils;
 import java.io.File;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
-import org.apache.commons.cli.DefaultParser;
-import org.apache.commons.cli.HelpFormatter;
-import org.apache.commons.cli.Options;
 
 /**
  *
@@ -58,58 +71,104 @@ public class RunUpdateWallets2 {
     private static final int DEFAULT_TXN_THREADS = 20;
     private static final int DEFAULT_FIRST_TRANSACTION = 1;
     private static final int DEFAULT_BATCH_SIZE = 20000;
+    private static final int DEFAULT_COMPACT_BATCHES = 100;
+    private static final int ADDRESS_RANGE_MAX_GAP = 1000;
+    private static final int ADDRESS_RANGE_MAX_SPAN = 100_000;
     private static final String DEFAULT_STOP_FILE_NAME = "/tmp/btc-update-wallet-stop";
     private static final String SQL_UPDATE_ADDRESS_WALLET
             = "UPDATE address_table_name SET wallet_id=? WHERE wallet_id=?";
+    private static final String SQL_LOG_ADDRESS_WALLET
+            = "INSERT INTO wallet_changelog(address_id,wallet_id) SELECT address_id,? FROM address_table_name WHERE wallet_id=?";
+    private static final String SQL_QUERY_INPUT_ADDRESSES
+            = "SELECT I.transaction_id,O.address_id FROM input I"
+            + " INNER JOIN output O ON O.transaction_id=I.in_transaction_id AND O.pos=I.in_pos"
+            + " WHERE I.transaction_id BETWEEN ? AND ? ORDER BY I.transaction_id";
+
+    private static final CmdOptions CMD_OPTS = new CmdOptions().add(DBConnectionSupplier.class).add(DbQueries.class);
+    private static final CmdOption startFromOpt = buildOption(CMD_OPTS, null, "start-from", true, "First transaction Id to process. Beside a number this parameter can be set to a file name thats stores the numeric value updated on every batch");
+    private static final CmdOption batchSizeOpt = buildOption(CMD_OPTS, null, "batch-size", true, "Number or transactions to read in a batch. Default: " + DEFAULT_BATCH_SIZE);
+    private static final CmdOption stopFileOpt = buildOption(CMD_OPTS, null, "stop-file", true, "File to be watched on each new block to stop process. If file is present the process stops and file renamed by adding '1' to the end. Default: " + DEFAULT_STOP_FILE_NAME);
+    private static final CmdOption threadsOpt = buildOption(CMD_OPTS, "t", "threads", true, "Number of threads to run. Default is " + DEFAULT_TXN_THREADS);
+    private static final CmdOption remapLogOpt = buildOption(CMD_OPTS, null, "remap-log", false, "Log wallet merges to table wallet_remap instead of rewriting address tables on every merge. Logged merges are applied periodically with one update per address table");
+    private static final CmdOption compactBatchesOpt = buildOption(CMD_OPTS, null, "compact-batches", true, "Number of batches between applying logged wallet merges in remap-log mode. Default: " + DEFAULT_COMPACT_BATCHES);
+    private static final CmdOption unionFindOpt = buildOption(CMD_OPTS, null, "union-find", false, "Re-cluster addresses starting from the first transaction in memory with a disjoint-set and write final wallet_id per address in one pass");
+    private static final CmdOption relatedAddressesOpt = buildOption(CMD_OPTS, null, "related-addresses", false, "Merge wallets of all addresses related to transaction inputs through other transactions spending the same addresses, within limits set by --related-max-* options");
 
     private final File stopFile;
     private final DBConnectionSupplier conn;
+    private final DbStores stores;
     private final DbQueryTransaction queryTransaction;
     private final DbQueryInput queryInput;
     private final DbQueryWallet queryWallet;
     private final DbQueries dbQueries;
-    private final Collection<DBPreparedStatement> psUpdateAddressWalletPerTable;
+    private final Map<SrcAddressType, DBPreparedStatement> psUpdateAddressWalletPerTable = new EnumMap<>(SrcAddressType.class);
+    private final Map<SrcAddressType, DBPreparedStatement> psLogAddressWalletPerTable = new EnumMap<>(SrcAddressType.class);
+    private final DBPreparedStatement psQueryInputAddresses;
+    private final Map<SrcAddressType, DbQueryAddressOne> queryAddressPerTable = new EnumMap<>(SrcAddressType.class);
     private final int firstTransaction;
     private final int batchSize;
     private final int txnThreads;
+    private final boolean unionFind;
+    private final boolean relatedAddresses;
+    private final boolean rangeJoin;
+    private final Optional<DbWalletRemap> walletRemap;
+    private final int compactBatches;
     private final Set<Integer> unusedWallets = new HashSet<>();
     private final ExecutorService execAddressQueries = Executors.newFixedThreadPool((int) Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).count());
     private final ExecutorService execTransactionThreads;
     private final Utils.NumberFile startFromFile;
 
     public static void main(String[] args) throws Exception {
-        CommandLineParser parser = new DefaultParser();
-        CommandLine cmd = parser.parse(prepOptions(), args);
-        if (cmd.hasOption('h')) {
-            printHelpAndExit();
-        }
+        CmdArguments cmd = CommandLineUtils.buildCmdArguments(args, Main.Command.update_wallets.name(), "Assign wallet_id of addresses spent together in a transaction", null, CMD_OPTS);
         new RunUpdateWallets2(cmd).runProcess();
     }
 
-    public RunUpdateWallets2(CommandLine cmd) throws SQLException {
-        stopFile = new File(cmd.getOptionValue("stop-file", DEFAULT_STOP_FILE_NAME));
-        startFromFile = new Utils.NumberFile(cmd.getOptionValue("start-from", Integer.toString(DEFAULT_FIRST_TRANSACTION)));
+    public RunUpdateWallets2(CmdArguments cmd) throws SQLException {
+        stopFile = new File(cmd.getOption(stopFileOpt).orElse(DEFAULT_STOP_FILE_NAME));
+        startFromFile = new Utils.NumberFile(cmd.getOption(startFromOpt).orElse(Integer.toString(DEFAULT_FIRST_TRANSACTION)));
         firstTransaction = startFromFile.getNumber().intValue();
-        batchSize = Integer.parseInt(cmd.getOptionValue("batch-size", Integer.toString(DEFAULT_BATCH_SIZE)));
-        txnThreads = Integer.parseInt(cmd.getOptionValue("threads", Integer.toString(DEFAULT_TXN_THREADS)));
-        DBConnectionSupplier.applyArguments(cmd);
+        batchSize = cmd.getOption(batchSizeOpt).map(Integer::valueOf).orElse(DEFAULT_BATCH_SIZE);
+        txnThreads = cmd.getOption(threadsOpt).map(Integer::valueOf).orElse(DEFAULT_TXN_THREADS);
+        unionFind = cmd.hasOption(unionFindOpt);
+        relatedAddresses = cmd.hasOption(relatedAddressesOpt);
+        compactBatches = cmd.getOption(compactBatchesOpt).map(Integer::valueOf).orElse(DEFAULT_COMPACT_BATCHES);
 
         conn = new DBConnectionSupplier();
-        psUpdateAddressWalletPerTable = Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal)
-                .map(type -> conn.prepareStatement(fixAddressTableName(SQL_UPDATE_ADDRESS_WALLET, type))).collect(Collectors.toList());
-        queryTransaction = new DbQueryTransaction(conn);
-        queryInput = new DbQueryInput(conn);
-        queryWallet = new DbQueryWallet(conn);
-        dbQueries = new DbQueries(conn);
+        stores = DbStores.open(conn);
+        walletRemap = cmd.hasOption(remapLogOpt) ? stores.getWalletRemap() : Optional.empty();
+        checkArgument(!cmd.hasOption(remapLogOpt) || walletRemap.isPresent(), "Argument '%s' requires table wallet_remap in DB", remapLogOpt.getLongOpt());
+        checkArgument(!unionFind || !conn.isSharded(), "Argument '%s' is not supported with sharded DB", "union-find");
+        checkArgument(!unionFind || !DbQueryColdTier.create(conn).isPresent(), "Argument '%s' is not supported with cold tier", "union-find");
+        rangeJoin = !conn.isSharded() && !stores.getSegmentStore().isPresent() && !DbQueryColdTier.create(conn).isPresent();
+        boolean hasChangelog = stores.getWalletChangelog().isPresent();
+        Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach(type -> {
+            psUpdateAddressWalletPerTable.put(type, conn.prepareStatement(fixAddressTableName(SQL_UPDATE_ADDRESS_WALLET, type)));
+            if (hasChangelog) {
+                psLogAddressWalletPerTable.put(type, conn.prepareStatement(fixAddressTableName(SQL_LOG_ADDRESS_WALLET, type)));
+            }
+        });
+        psQueryInputAddresses = conn.prepareStatement(SQL_QUERY_INPUT_ADDRESSES, "input.in_transaction_id");
+        Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach(type -> queryAddressPerTable.put(type, new DbQueryAddressOne(conn, type)));
+        queryTransaction = new DbQueryTransaction(conn.getReadSupplier(), stores);
+        queryInput = new DbQueryInput(conn, stores);
+        queryWallet = new DbQueryWallet(conn, stores);
+        dbQueries = new DbQueries(conn, stores);
         execTransactionThreads = Executors.newFixedThreadPool(txnThreads);
     }
 
-    private void runProcess() throws SQLException, InterruptedException {
+    private void runProcess() throws SQLException, InterruptedException, ExecutionException {
         log.info("START");
         try {
-            try (DbUpdateAddress updateAddress = new DbUpdateAddress(conn);
-                    DbUpdateWallet addWallet = new DbUpdateWallet(conn)) {
+            try (DbUpdateAddress updateAddress = new DbUpdateAddress(conn, stores);
+                    DbUpdateWallet addWallet = new DbUpdateWallet(conn, stores)) {
                 initProcess(addWallet);
+                if (stores.getWalletRemap().map(DbWalletRemap::size).orElse(0) != 0) {
+                    compactWalletRemap(stores.getWalletRemap().get());
+                }
+                if (unionFind) {
+                    runUnionFindProcess(updateAddress, addWallet);
+                    return;
+                }
                 int endTransaction = queryTransaction.getLastTransactionId().orElse(0);
                 int batchFirstTransaction = firstTransaction;
                 for (int loop = 0; batchFirstTransaction <= endTransaction; loop++, batchFirstTransaction += batchSize) {
@@ -123,6 +182,12 @@ public class RunUpdateWallets2 {
                     log.debug("Batch loop #{}. Process transactions [{} - {}]", loop, batchFirstTransaction, batchLastTransaction);
                     processBatch(batchFirstTransaction, batchLastTransaction, updateAddress, addWallet);
                     addWallet.flushCache();
+                    if (walletRemap.isPresent() && (loop + 1) % compactBatches == 0) {
+                        compactWalletRemap(walletRemap.get());
+                    }
+                }
+                if (walletRemap.isPresent()) {
+                    compactWalletRemap(walletRemap.get());
                 }
             }
         } finally {
@@ -132,41 +197,231 @@ public class RunUpdateWallets2 {
         }
     }
 
-    private void initProcess(DbUpdateWallet addWallet) throws SQLException, InterruptedException {
-        log.debug("Checking for missing wallet records...");
+    private void initProcess(DbUpdateWallet addWallet) throws SQLException, InterruptedException, ExecutionException {
+        log.debug("Checking for missing and unused wallet records...");
         long s = System.currentTimeMillis();
-        Collection<Integer> missing = queryWallet.getMissingWalletsParallel();
-        log.debug("Missing records: {}. Runtime: {} sec.", missing.size(), (System.currentTimeMillis() - s) / 1000);
-        missing.stream().forEach(w -> addWallet.add(w));
+        WalletIntegrity integrity = queryWallet.checkIntegrity();
+        log.debug("Missing records: {}, unused wallets: {}. Runtime: {} sec.", integrity.getMissing().size(), integrity.getUnused().size(), (System.currentTimeMillis() - s) / 1000);
+        integrity.getMissing().forEach(w -> addWallet.add(w));
         addWallet.flushCache();
-        log.debug("Checking for unused wallet records...");
-        s = System.currentTimeMillis();
-        unusedWallets.addAll(queryWallet.getUnusedWalletRecordsParallel());
-        log.debug("Unused wallets: {}. Runtime {} sec.", unusedWallets.size(), (System.currentTimeMillis() - s) / 1000);
+        unusedWallets.addAll(integrity.getUnused());
         if (!unusedWallets.isEmpty()) {
             log.warn("Found {} unused wallet records: {}", unusedWallets.size(), unusedWallets);
         }
     }
 
-    private void processBatch(int minTxn, int maxTxn, DbUpdateAddress updateAddress, DbUpdateWallet addWallet) throws SQLException, InterruptedException {
+    /**
+     * Apply logged wallet merges to address tables. Merged wallets are no
+     * longer referenced and are reused for new wallets.
+     */
+    private void compactWalletRemap(DbWalletRemap remap) {
+        Collection<Integer> merged = remap.compact();
+        synchronized (unusedWallets) {
+            unusedWallets.addAll(merged);
+        }
+    }
+
+    /**
+     * Re-cluster addresses in memory. Addresses spent together in a
+     * transaction, read by multiple threads, and addresses already sharing a
+     * wallet are merged in a disjoint-set, then each cluster gets the smallest of its existing wallet
+     * ids or a new wallet id and only addresses with changed wallet id are
+     * written.
+     */
+    private void runUnionFindProcess(DbUpdateAddress updateAddress, DbUpdateWallet addWallet) throws SQLException, InterruptedException, ExecutionException {
+        Map<SrcAddressType, Integer> lastAddressIds = new EnumMap<>(SrcAddressType.class);
+        queryAddressPerTable.forEach((type, queryAddress) -> lastAddressIds.put(type, queryAddress.getLastAddressId()));
+        AddressDisjointSet clusters = new AddressDisjointSet(lastAddressIds);
+        log.info("Addresses: {}", clusters.size());
+        int endTransaction = queryTransaction.getLastTransactionId().orElse(0);
+        long s = System.currentTimeMillis();
+        AtomicLong nUnions = new AtomicLong();
+        Collection<Callable<Object>> tasks = new ArrayList<>();
+        for (int batchFirstTransaction = firstTransaction; batchFirstTransaction <= endTransaction; batchFirstTransaction += batchSize) {
+            int start = batchFirstTransaction;
+            int end = Math.min(batchFirstTransaction + batchSize - 1, endTransaction);
+            tasks.add(() -> {
+                log.debug("Process transactions [{} - {}]", start, end);
+                nUnions.addAndGet(unionInputAddresses(start, end, clusters));
+                return null;
+            });
+        }
+        for (Future<Object> f : execTransactionThreads.invokeAll(tasks)) {
+            f.get();
+        }
+        log.info("Input addresses clustered. Unions: {}. Runtime: {} sec.", nUnions, (System.currentTimeMillis() - s) / 1000);
+        s = System.currentTimeMillis();
+        int[][] walletAddress = {new int[queryWallet.getMaxId().orElse(0) + 1]};
+        scanAddressWallets(lastAddressIds, (addressId, walletId) -> {
+            if (walletId != 0) {
+                if (walletId >= walletAddress[0].length) {
+                    walletAddress[0] = Arrays.copyOf(walletAddress[0], walletId + 1);
+                }
+                if (walletAddress[0][walletId] == 0) {
+                    walletAddress[0][walletId] = addressId;
+                    clusters.add(addressId);
+                } else {
+                    clusters.union(walletAddress[0][walletId], addressId);
+                }
+            }
+        });
+        int[] clusterWallet = new int[clusters.size()];
+        int walletsMerged = 0;
+        for (int walletId = 1; walletId < walletAddress[0].length; walletId++) {
+            if (walletAddress[0][walletId] != 0) {
+                int root = clusters.find(walletAddress[0][walletId]);
+                if (clusterWallet[root] == 0) {
+                    clusterWallet[root] = walletId;
+                } else {
+                    unusedWallets.add(walletId);
+                    walletsMerged++;
+                }
+            }
+        }
+        walletAddress[0] = null;
+        log.info("Existing wallets clustered. Wallets merged: {}. Runtime: {} sec.", walletsMerged, (System.currentTimeMillis() - s) / 1000);
+        s = System.currentTimeMillis();
+        AtomicInteger newWalletsAssigned = new AtomicInteger();
+        AtomicLong nUpdated = new AtomicLong();
+        scanAddressWallets(lastAddressIds, (addressId, walletId) -> {
+            if (clusters.isMember(addressId)) {
+                int root = clusters.find(addressId);
+                if (clusterWallet[root] == 0) {
+                    clusterWallet[root] = getNextWalletId(addWallet);
+                    newWalletsAssigned.incrementAndGet();
+                }
+                if (clusterWallet[root] != walletId) {
+                    updateAddress.updateWallet(addressId, clusterWallet[root]);
+                    nUpdated.incrementAndGet();
+                }
+            }
+        });
+        updateAddress.flushCache();
+        addWallet.flushCache();
+        startFromFile.updateNumber(endTransaction + 1);
+        log.info("newWalletsAssigned: {}, walletsMerged={}, addressesUpdated={}. Runtime: {} sec.",
+                newWalletsAssigned, walletsMerged, nUpdated, (System.currentTimeMillis() - s) / 1000);
+    }
+
+    /**
+     * Union addresses spent together in transactions of the range.
+     *
+     * @return number of unions that merged clusters
+     */
+    private int unionInputAddresses(int minTxn, int maxTxn, AddressDisjointSet clusters) {
+        int[] last = new int[2];
+        int[] nUnions = new int[1];
+        psQueryInputAddresses.setParameters(p -> p.setInt(minTxn).setInt(maxTxn)).setFetchSize(batchSize * 5).executeQuery(rs -> {
+            int transactionId = rs.getInt(1);
+            int addressId = rs.getInt(2);
+            if (clusters.getIndex(addressId) != -1) {
+                if (transactionId == last[0]) {
+                    if (clusters.union(last[1], addressId)) {
+                        nUnions[0]++;
+                    }
+                } else {
+                    clusters.add(addressId);
+                }
+                last[0] = transactionId;
+                last[1] = addressId;
+            }
+        });
+        return nUnions[0];
+    }
+
+    private void scanAddressWallets(Map<SrcAddressType, Integer> lastAddressIds, DbQueryAddressOne.AddressWalletConsumer consumer) {
+        lastAddressIds.forEach((type, lastAddressId) -> {
+            for (long start = BtcAddress.getMinAddressId(type); start <= lastAddressId; start += batchSize) {
+                queryAddressPerTable.get(type).queryWalletIds((int) start, (int) Math.min(start + batchSize - 1, lastAddressId), consumer);
+            }
+        });
+    }
+
+    private void processBatch(int minTxn, int maxTxn, DbUpdateAddress updateAddress, DbUpdateWallet addWallet) throws SQLException, InterruptedException, ExecutionException {
         final Map<Integer, Map<Integer, Integer>> needToProcess = getNeedToProccessTxnList(minTxn, maxTxn);
         proccessTxnList(needToProcess, updateAddress, addWallet);
     }
 
-    private Map<Integer, Map<Integer, Integer>> getNeedToProccessTxnList(int minTxn, int maxTxn) throws SQLException, InterruptedException {
+    private Map<Integer, Map<Integer, Integer>> getNeedToProccessTxnList(int minTxn, int maxTxn) throws SQLException, InterruptedException, ExecutionException {
+        if (!rangeJoin) {
+            return getNeedToProccessTxnListPerTransaction(minTxn, maxTxn);
+        }
+        Map<Integer, List<Integer>> txnAddresses = new HashMap<>();
+        psQueryInputAddresses.setParameters(p -> p.setInt(minTxn).setInt(maxTxn)).setFetchSize(batchSize * 5).executeQuery(rs -> {
+            int addressId = rs.getInt(2);
+            if (addressId > 0) {
+                txnAddresses.computeIfAbsent(rs.getInt(1), t -> new ArrayList<>()).add(addressId);
+            }
+        });
+        Map<Integer, Integer> addressWallets = queryAddressWallets(txnAddresses.values().stream().flatMap(List::stream).collect(Collectors.toSet()));
+        final Map<Integer, Map<Integer, Integer>> result = new HashMap<>();
+        txnAddresses.forEach((transactionId, addressIds) -> {
+            Map<Integer, Integer> addresses = new HashMap<>();
+            addressIds.forEach(a -> addresses.put(a, resolveWallet(addressWallets.getOrDefault(a, 0))));
+            List<Integer> wallets = addresses.values().stream().distinct().sorted().collect(Collectors.toList());
+            if (wallets.get(0) == 0 || wallets.size() > 1) {
+                result.put(transactionId, addresses);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Query wallet ids of the addresses. Address ids of each type are sorted
+     * and grouped into ranges that are read with a single range query each,
+     * address types are queried in parallel.
+     *
+     * @return map of address id to wallet id, addresses with no wallet table
+     * are not included
+     */
+    private Map<Integer, Integer> queryAddressWallets(Collection<Integer> addressIds) throws InterruptedException, ExecutionException {
+        Map<SrcAddressType, List<Integer>> perType = addressIds.stream()
+                .filter(BtcAddress::isRealAddress)
+                .collect(Collectors.groupingBy(BtcAddress::getTypeFromId));
+        Map<Integer, Integer> result = new HashMap<>();
+        List<Future<Object>> futures = execAddressQueries.invokeAll(perType.entrySet().stream().map(entry -> (Callable<Object>) () -> {
+            List<Integer> ids = entry.getValue();
+            Set<Integer> needed = new HashSet<>(ids);
+            Map<Integer, Integer> found = new HashMap<>();
+            ids.sort(null);
+            for (int i = 0; i < ids.size();) {
+                int from = ids.get(i);
+                int to = from;
+                for (i++; i < ids.size() && ids.get(i) - to <= ADDRESS_RANGE_MAX_GAP && ids.get(i) - from < ADDRESS_RANGE_MAX_SPAN; i++) {
+                    to = ids.get(i);
+                }
+                queryAddressPerTable.get(entry.getKey()).queryWalletIds(from, to, (addressId, walletId) -> {
+                    if (needed.contains(addressId)) {
+                        found.put(addressId, walletId);
+                    }
+                });
+            }
+            synchronized (result) {
+                result.putAll(found);
+            }
+            return null;
+        }).collect(Collectors.toList()));
+        for (Future<Object> f : futures) {
+            f.get();
+        }
+        return result;
+    }
+
+    private Map<Integer, Map<Integer, Integer>> getNeedToProccessTxnListPerTransaction(int minTxn, int maxTxn) throws SQLException, InterruptedException {
         final Map<Integer, Map<Integer, Integer>> result = new HashMap<>();
         execTransactionThreads.invokeAll(queryTransaction.getTxnsRangle(minTxn, maxTxn).stream().filter(tx -> tx.getNInputs() != 0).map(tx -> (Callable<Object>) () -> {
-            Collection<BtcAddress> addresses = queryInput.getInputAddresses(tx.getTransactionId());
-            //Collection<BtcAddress> addresses = dbQueries.getRelatedAddresses(tx.getTransactionId());
+            Collection<BtcAddress> addresses = relatedAddresses
+                    ? dbQueries.getRelatedAddresses(tx.getTransactionId())
+                    : queryInput.getInputAddresses(tx.getTransactionId());
             if (addresses == null || addresses.isEmpty()) {
                 log.warn("Unexpected: Addresses list is empty for transactionId " + tx.getTransactionId());
             } else {
-                List<Integer> wallets = addresses.stream().map(BtcAddress::getWalletId).distinct().sorted().collect(Collectors.toList());
+                List<Integer> wallets = addresses.stream().map(a -> resolveWallet(a.getWalletId())).distinct().sorted().collect(Collectors.toList());
                 if (wallets.isEmpty()) {
                     log.warn("Unexpected: Wallets list is empty for transactionId " + tx.getTransactionId());
                 } else if (wallets.get(0) == 0 || wallets.size() > 1) {
                     synchronized (result) {
-                        result.put(tx.getTransactionId(), addresses.stream().collect(Collectors.toMap(BtcAddress::getAddressId, BtcAddress::getWalletId)));
+                        result.put(tx.getTransactionId(), addresses.stream().collect(Collectors.toMap(BtcAddress::getAddressId, a -> resolveWallet(a.getWalletId()))));
                     }
                 }
             }
@@ -209,13 +464,29 @@ public class RunUpdateWallets2 {
         updateCacheByAddress(addressId, newWalletId, needToProcess);
     }
 
+    private int resolveWallet(int walletId) {
+        return walletRemap.map(r -> r.resolve(walletId)).orElse(walletId);
+    }
+
     private int replaceWallet(int walletToUse, int walletToReplace, Map<Integer, Map<Integer, Integer>> needToProcess) {
         if (walletToUse == 0 || walletToReplace == 0 || walletToUse == walletToReplace) {
             throw new IllegalArgumentException("walletToUse=" + walletToUse + ", walletToReplace=" + walletToReplace);
         }
+        if (walletRemap.isPresent()) {
+            walletRemap.get().merge(walletToReplace, walletToUse);
+            log.debug("Merging wallets: ({},{})=>{}. Logged to remap", walletToUse, walletToReplace, walletToUse);
+            updateCacheByWallet(walletToUse, walletToReplace, needToProcess);
+            return 0;
+        }
         try {
             final AtomicInteger nUpdated = new AtomicInteger();
-            execAddressQueries.invokeAll(psUpdateAddressWalletPerTable.stream().map(ps -> (Callable<Object>) () -> {
+            execAddressQueries.invokeAll(psUpdateAddressWalletPerTable.entrySet().stream().map(e -> (Callable<Object>) () -> {
+                //log addresses of the merged wallet before they are moved, so changelog consumers see the merge
+                DBPreparedStatement psLog = psLogAddressWalletPerTable.get(e.getKey());
+                if (psLog != null) {
+                    psLog.setParameters(p -> p.setInt(walletToUse).setInt(walletToReplace)).executeUpdate();
+                }
+                DBPreparedStatement ps = e.getValue();
                 ps.getParamSetter().setInt(walletToUse).setInt(walletToReplace).checkStateReady();
                 nUpdated.addAndGet(ps.executeUpdate());
                 return null;
@@ -265,22 +536,4 @@ public class RunUpdateWallets2 {
     private String fixAddressTableName(String sql, SrcAddressType addressType) {
         return sql.replaceAll("address_table_name", "address_" + addressType.name().toLowerCase());
     }
-
-    private static void printHelpAndExit() {
-        System.out.println("Available options:");
-        HelpFormatter formatter = new HelpFormatter();
-        formatter.printHelp("java <jar> " + Main.Command.update_wallets + " [options]", prepOptions());
-        System.exit(1);
-    }
-
-    private static Options prepOptions() {
-        Options options = new Options();
-        options.addOption("h", "help", false, "Print help");
-        options.addOption(null, "start-from", true, "First transaction Id to process. Beside a number this parameter can be set to a file name thats stores the numeric value updated on every batch");
-        options.addOption(null, "batch-size", true, "Number or transactions to read in a batch. Default: " + DEFAULT_BATCH_SIZE);
-        options.addOption(null, "stop-file", true, "File to be watched on each new block to stop process. If file is present the process stops and file renamed by adding '1' to the end. Default: " + DEFAULT_STOP_FILE_NAME);
-        options.addOption("t", "threads", true, "Number of threads to run. Default is " + DEFAULT_TXN_THREADS);
-        DBConnectionSupplier.addOptions(options);
-        return options;
-    }
 }
@@ -15,6 +15,7 @@
  */
 package com.sliva.btc.scanner.db;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sliva.btc.scanner.db.utils.DBMetaData;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -23,17 +24,41 @@ import com.sliva.btc.scanner.util.CommandLineUtils.CmdOption;
 import com.sliva.btc.scanner.util.CommandLineUtils.CmdOptions;
 import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
 import com.sliva.btc.scanner.util.LazyInitializer;
+import com.sliva.btc.scanner.util.TimerTaskWrapper;
 import com.sliva.btc.scanner.util.Utils;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import javax.sql.DataSource;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -41,8 +66,26 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 
 /**
- * Database connection supplier. The class creates and keeps open connections
- * one per each thread.
+ * Database connection supplier. By default the class creates and keeps open
+ * connections one per each thread. With "--db-max-connections" set, physical
+ * connections are kept in a bounded pool and leased to threads with
+ * {@link #lease()} for the duration of a unit of work, while connections
+ * bound to threads by {@link #get()} are opened outside of the pool. Each
+ * connection keeps cache of its prepared statements.
+ * <p>
+ * With "--db-read-urls" set, {@link #getReadSupplier()} returns supplier of
+ * connections to the read replicas. New replica connection is opened to the
+ * endpoint chosen by round-robin or by the lowest observed lease latency.
+ * Writes and reads that must see own writes should stay on this (primary)
+ * supplier.
+ * <p>
+ * With "--db-shard-urls" set, rows of tables keyed by transaction_id
+ * (transaction, input, input_special and output) are distributed between this
+ * (shard 0) database and the listed shard databases by transaction_id range or
+ * hash. Other tables are kept in shard 0 only. Statements are routed to shards
+ * with {@link DBPreparedStatement#onShard(int)} and executed on several shards
+ * in parallel with
+ * {@link DBPreparedStatement#onShards(java.util.stream.IntStream, java.util.function.Function)}.
  *
  * #Thread-safe
  *
@@ -59,16 +102,50 @@ public class DBConnectionSupplier implements Supplier<Connection>, DataSource, A
             + "&defaultRowPrefetch=10000";
     private static String DEFAULT_DB_USER = "root";
     private static String DEFAULT_DB_PASSWORD = "password";
+    private static int DEFAULT_MAX_CONNECTIONS = 0;
+    private static int DEFAULT_STATEMENT_CACHE_SIZE = 256;
+    private static List<String> DEFAULT_READ_URLS = Collections.emptyList();
+    private static ReadRouting DEFAULT_READ_ROUTING = ReadRouting.ROUND_ROBIN;
+    private static List<String> DEFAULT_SHARD_URLS = Collections.emptyList();
+    private static ShardRouting DEFAULT_SHARD_ROUTING = ShardRouting.RANGE;
+    private static int[] DEFAULT_SHARD_BOUNDARIES = new int[0];
+    private static final double LATENCY_SMOOTHING_FACTOR = 0.2;
+    private static final Duration PRINT_STATS_PERIOD = Duration.ofSeconds(30);
+    private static final Duration LEASE_WAIT_WARN_PERIOD = Duration.ofSeconds(60);
 
     public static final CmdOptions CMD_OPTS = new CmdOptions();
     public static final CmdOption dbUrlOpt = buildOption(CMD_OPTS, null, "db-url", true, "DB URL, i.e. 'jdbc:mysql://localhost:3306/'.");
     public static final CmdOption dbUserOpt = buildOption(CMD_OPTS, null, "db-user", true, "DB user name.");
     public static final CmdOption dbPasswordOpt = buildOption(CMD_OPTS, null, "db-password", true, "DB password.");
     public static final CmdOption dbConfigOpt = buildOption(CMD_OPTS, null, "db-config", true, "Configuration file name with db url, user and password values.");
+    public static final CmdOption dbMaxConnectionsOpt = buildOption(CMD_OPTS, null, "db-max-connections", true, "Maximum number of pooled DB connections shared by all threads. 0 - one connection per thread. Default: " + DEFAULT_MAX_CONNECTIONS);
+    public static final CmdOption dbStatementCacheSizeOpt = buildOption(CMD_OPTS, null, "db-statement-cache-size", true, "Maximum number of prepared statements cached per DB connection. Default: " + DEFAULT_STATEMENT_CACHE_SIZE);
+    public static final CmdOption dbReadUrlsOpt = buildOption(CMD_OPTS, null, "db-read-urls", true, "Comma separated list of read replica DB URLs used by read-only workloads. Default: none");
+    public static final CmdOption dbReadRoutingOpt = buildOption(CMD_OPTS, null, "db-read-routing", true, "Read replica choice for new connections: round-robin or least-latency. Default: " + DEFAULT_READ_ROUTING.getName());
+    public static final CmdOption dbShardUrlsOpt = buildOption(CMD_OPTS, null, "db-shard-urls", true, "Comma separated list of DB URLs of additional shards for transaction, input and output tables. Default: none");
+    public static final CmdOption dbShardRoutingOpt = buildOption(CMD_OPTS, null, "db-shard-routing", true, "Distribution of rows between shards by transaction_id: range or hash. Default: " + DEFAULT_SHARD_ROUTING.getName());
+    public static final CmdOption dbShardBoundariesOpt = buildOption(CMD_OPTS, null, "db-shard-boundaries", true, "Comma separated first transaction_id of each additional shard for range routing.");
 
-    private final ThreadLocal<Connection> conn;
+    private final List<Endpoint> endpoints;
+    @Getter
+    @NonNull
+    private final SqlDialect dialect;
+    private final ReadRouting readRouting;
+    private final AtomicInteger nextEndpoint = new AtomicInteger();
+    private final List<DBConnectionSupplier> shards;
+    private final ShardRouting shardRouting;
+    private final int[] shardBoundaries;
+    private final LazyInitializer<ExecutorService> shardExecutor;
+    private final int maxConnections;
+    private final int statementCacheSize;
+    private final ThreadLocal<Lease> currentLease = new ThreadLocal<>();
+    private final ThreadLocal<PooledConnection> threadConnection = new ThreadLocal<>();
+    private final BlockingQueue<PooledConnection> idleConnections = new LinkedBlockingQueue<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final PoolStats poolStats = new PoolStats();
     private final LazyInitializer<String> dbname;
     private final LazyInitializer<DBMetaData> dbMetaData;
+    private final LazyInitializer<DBConnectionSupplier> readSupplier;
 
     public static void applyArguments(CmdArguments cmdArguments) {
         checkArgument(cmdArguments != null, "Argument 'cmdArguments' is null");
@@ -76,20 +153,162 @@ public class DBConnectionSupplier implements Supplier<Connection>, DataSource, A
         DEFAULT_CONN_URL = cmdArguments.getOption(dbUrlOpt).orElseGet(() -> prop.getProperty(dbUrlOpt.getLongOpt(), DEFAULT_CONN_URL));
         DEFAULT_DB_USER = cmdArguments.getOption(dbUserOpt).orElseGet(() -> prop.getProperty(dbUserOpt.getLongOpt(), DEFAULT_DB_USER));
         DEFAULT_DB_PASSWORD = cmdArguments.getOption(dbPasswordOpt).orElseGet(() -> prop.getProperty(dbPasswordOpt.getLongOpt(), DEFAULT_DB_PASSWORD));
+        DEFAULT_MAX_CONNECTIONS = cmdArguments.getOption(dbMaxConnectionsOpt).map(Integer::valueOf).orElse(DEFAULT_MAX_CONNECTIONS);
+        checkArgument(DEFAULT_MAX_CONNECTIONS >= 0, "Argument '%s' must be a non-negative integer value", dbMaxConnectionsOpt.getLongOpt());
+        DEFAULT_STATEMENT_CACHE_SIZE = cmdArguments.getOption(dbStatementCacheSizeOpt).map(Integer::valueOf).orElse(DEFAULT_STATEMENT_CACHE_SIZE);
+        checkArgument(DEFAULT_STATEMENT_CACHE_SIZE > 0, "Argument '%s' must be a positive integer value", dbStatementCacheSizeOpt.getLongOpt());
+        DEFAULT_READ_URLS = cmdArguments.getOption(dbReadUrlsOpt).map(Optional::of).orElseGet(() -> Optional.ofNullable(prop.getProperty(dbReadUrlsOpt.getLongOpt())))
+                .map(DBConnectionSupplier::splitList).orElse(DEFAULT_READ_URLS);
+        DEFAULT_READ_ROUTING = cmdArguments.getOption(dbReadRoutingOpt).map(ReadRouting::fromName).orElse(DEFAULT_READ_ROUTING);
+        DEFAULT_SHARD_URLS = cmdArguments.getOption(dbShardUrlsOpt).map(Optional::of).orElseGet(() -> Optional.ofNullable(prop.getProperty(dbShardUrlsOpt.getLongOpt())))
+                .map(DBConnectionSupplier::splitList).orElse(DEFAULT_SHARD_URLS);
+        DEFAULT_SHARD_ROUTING = cmdArguments.getOption(dbShardRoutingOpt).map(ShardRouting::fromName).orElse(DEFAULT_SHARD_ROUTING);
+        DEFAULT_SHARD_BOUNDARIES = cmdArguments.getOption(dbShardBoundariesOpt).map(Optional::of).orElseGet(() -> Optional.ofNullable(prop.getProperty(dbShardBoundariesOpt.getLongOpt())))
+                .map(DBConnectionSupplier::parseBoundaries).orElse(DEFAULT_SHARD_BOUNDARIES);
+        checkShardArguments();
+    }
+
+    private static void checkShardArguments() {
+        if (DEFAULT_SHARD_ROUTING == ShardRouting.RANGE && !DEFAULT_SHARD_URLS.isEmpty()) {
+            checkArgument(DEFAULT_SHARD_BOUNDARIES.length == DEFAULT_SHARD_URLS.size(), "Argument '%s' must have one value per each of '%s'", dbShardBoundariesOpt.getLongOpt(), dbShardUrlsOpt.getLongOpt());
+            for (int i = 0; i < DEFAULT_SHARD_BOUNDARIES.length; i++) {
+                checkArgument(DEFAULT_SHARD_BOUNDARIES[i] > (i == 0 ? 0 : DEFAULT_SHARD_BOUNDARIES[i - 1]), "Argument '%s' must be a list of ascending positive values", dbShardBoundariesOpt.getLongOpt());
+            }
+        }
     }
 
     public DBConnectionSupplier() {
-        this(DEFAULT_CONN_URL, DEFAULT_DB_USER, DEFAULT_DB_PASSWORD);
+        this(Collections.singletonList(DEFAULT_CONN_URL), DEFAULT_DB_USER, DEFAULT_DB_PASSWORD, DEFAULT_READ_URLS, DEFAULT_READ_ROUTING, DEFAULT_SHARD_URLS);
     }
 
     public DBConnectionSupplier(String dbName) {
-        this(DEFAULT_CONN_URL.replaceAll("btc_default_db", dbName), DEFAULT_DB_USER, DEFAULT_DB_PASSWORD);
+        this(Collections.singletonList(DEFAULT_CONN_URL.replaceAll("btc_default_db", dbName)), DEFAULT_DB_USER, DEFAULT_DB_PASSWORD,
+                DEFAULT_READ_URLS.stream().map(url -> url.replaceAll("btc_default_db", dbName)).collect(Collectors.toList()), DEFAULT_READ_ROUTING,
+                DEFAULT_SHARD_URLS.stream().map(url -> url.replaceAll("btc_default_db", dbName)).collect(Collectors.toList()));
     }
 
     public DBConnectionSupplier(String url, String user, String password) {
-        this.conn = ThreadLocal.withInitial(() -> makeJDBCConnection(url, user, password));
+        this(Collections.singletonList(url), user, password, Collections.emptyList(), DEFAULT_READ_ROUTING, Collections.emptyList());
+    }
+
+    private DBConnectionSupplier(List<String> urls, String user, String password, List<String> readUrls, ReadRouting readRouting, List<String> shardUrls) {
+        this.endpoints = urls.stream().map(url -> new Endpoint(url, user, password)).collect(Collectors.toList());
+        this.dialect = SqlDialect.fromUrl(urls.get(0));
+        this.readRouting = readRouting;
+        this.shards = new ArrayList<>();
+        this.shards.add(this);
+        shardUrls.forEach(url -> shards.add(new DBConnectionSupplier(Collections.singletonList(url), user, password, Collections.emptyList(), readRouting, Collections.emptyList())));
+        this.shardRouting = DEFAULT_SHARD_ROUTING;
+        this.shardBoundaries = shardUrls.isEmpty() ? new int[0] : DEFAULT_SHARD_BOUNDARIES.clone();
+        this.shardExecutor = new LazyInitializer<>(() -> Executors.newFixedThreadPool(shards.size(), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("DBShard-%d").build()));
+        this.maxConnections = DEFAULT_MAX_CONNECTIONS;
+        this.statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
         this.dbname = new LazyInitializer<>(this::_getCatalog);
         this.dbMetaData = new LazyInitializer<>(this::_getDBMetaData);
+        this.readSupplier = new LazyInitializer<>(() -> readUrls.isEmpty() || isSharded() ? this : new DBConnectionSupplier(readUrls, user, password, Collections.emptyList(), readRouting, Collections.emptyList()));
+        if (isPooled() && log.isDebugEnabled()) {
+            long msec = PRINT_STATS_PERIOD.toMillis();
+            new Timer("DBConnectionSupplier-stats", true).scheduleAtFixedRate(new TimerTaskWrapper(() -> log.debug("DB connection pool: {}. Endpoints: {}", poolStats, endpoints)), msec, msec);
+        }
+    }
+
+    /**
+     * Get connection supplier for read-only queries that tolerate replication
+     * lag, i.e. reads of blocks, transactions, inputs and outputs below the
+     * currently processed range.
+     *
+     * @return supplier of read replica connections or this instance if no
+     * read replicas configured or DB is sharded
+     */
+    @NonNull
+    public DBConnectionSupplier getReadSupplier() {
+        return readSupplier.get();
+    }
+
+    /**
+     * Check if transaction, input and output tables are distributed between
+     * several databases.
+     *
+     * @return true if there is more than one shard
+     */
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Get connection supplier of a shard.
+     *
+     * @param shardIndex shard index, 0 - this supplier
+     * @return shard connection supplier
+     */
+    @NonNull
+    public DBConnectionSupplier getShard(int shardIndex) {
+        return shards.get(shardIndex);
+    }
+
+    /**
+     * Get index of the shard owning rows of the transaction.
+     *
+     * @param transactionId transaction id
+     * @return shard index
+     */
+    public int getShardIndex(int transactionId) {
+        if (!isSharded()) {
+            return 0;
+        }
+        if (shardRouting == ShardRouting.HASH) {
+            return Math.floorMod(Integer.hashCode(transactionId) * 0x9E3779B1, shards.size());
+        }
+        int pos = Arrays.binarySearch(shardBoundaries, transactionId);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    /**
+     * Get indexes of shards that might own rows of the transaction range.
+     *
+     * @param fromTransactionId first transaction id of the range
+     * @param toTransactionId last transaction id of the range (inclusive)
+     * @return stream of shard indexes in ascending order
+     */
+    @NonNull
+    public IntStream getShardIndexes(int fromTransactionId, int toTransactionId) {
+        if (shardRouting == ShardRouting.HASH) {
+            return IntStream.range(0, shards.size());
+        }
+        return IntStream.rangeClosed(getShardIndex(fromTransactionId), getShardIndex(Math.max(fromTransactionId, toTransactionId)));
+    }
+
+    /**
+     * Get executor to run statements on several shards in parallel.
+     *
+     * @return executor with one thread per shard
+     */
+    @NonNull
+    ExecutorService getShardExecutor() {
+        return shardExecutor.get();
+    }
+
+    /**
+     * Check if connections are pooled or opened one per thread.
+     *
+     * @return true if connections are pooled
+     */
+    public boolean isPooled() {
+        return maxConnections > 0;
+    }
+
+    /**
+     * Get pool statistics.
+     *
+     * @return pool statistics
+     */
+    @NonNull
+    public PoolStats getPoolStats() {
+        return poolStats;
     }
 
     /**
@@ -126,24 +345,76 @@ public class DBConnectionSupplier implements Supplier<Connection>, DataSource, A
     }
 
     /**
-     * Get open database connection local to current thread.
+     * Get open database connection of the current thread lease. If current
+     * thread does not hold a lease, then connection is bound to the thread
+     * until {@link #close()} is called by the thread. With pooling such
+     * connection is opened outside of the pool, so threads calling this
+     * method only (i.e. to read meta data) do not hold pool connections and
+     * the pool is left to {@link #lease()} callers.
      *
      * @return
      */
     @NonNull
     @Override
     public Connection get() {
-        return conn.get();
+        Lease lease = currentLease.get();
+        if (lease != null) {
+            return lease.getConnection();
+        }
+        if (isPooled()) {
+            PooledConnection pc = threadConnection.get();
+            if (pc == null || pc.isClosed()) {
+                pc = openConnection();
+                threadConnection.set(pc);
+            }
+            return pc.connection;
+        }
+        lease = new Lease(acquire(), true);
+        currentLease.set(lease);
+        return lease.getConnection();
     }
 
     /**
-     * Close current thread's connection.
+     * Lease connection to current thread. Nested leases by the same thread
+     * share the same connection, which is returned to the pool when the
+     * outermost lease is closed. Without pooling connection stays bound to the
+     * thread.
+     *
+     * @return connection lease to be closed after the unit of work
+     */
+    @NonNull
+    public Lease lease() {
+        Lease lease = currentLease.get();
+        if (lease == null) {
+            lease = new Lease(acquire(), !isPooled());
+            currentLease.set(lease);
+        }
+        if (lease.depth++ == 0) {
+            lease.startNanos = System.nanoTime();
+        }
+        return lease;
+    }
+
+    /**
+     * Close or release to the pool current thread's connection.
      */
-    @SneakyThrows(SQLException.class)
     @Override
     public void close() {
-        get().close();
-        conn.remove();
+        shards.stream().skip(1).forEach(DBConnectionSupplier::close);
+        PooledConnection pc = threadConnection.get();
+        if (pc != null) {
+            threadConnection.remove();
+            pc.close();
+        }
+        Lease lease = currentLease.get();
+        if (lease != null) {
+            currentLease.remove();
+            if (isPooled()) {
+                release(lease.connection);
+            } else {
+                lease.connection.close();
+            }
+        }
     }
 
     /**
@@ -159,7 +430,7 @@ public class DBConnectionSupplier implements Supplier<Connection>, DataSource, A
     public DBPreparedStatement prepareStatement(String query, String... requiredIndexes) {
         checkArgument(query != null, "Argument 'query' is null");
         String reason = Stream.of(requiredIndexes).filter(idxField -> !getDBMetaData().isIndexed(idxField)).map(r -> "Missing index on field \"" + r + '"').findFirst().orElse(null);
-        return new DBPreparedStatement(query, this, reason);
+        return new DBPreparedStatement(dialect.translate(query), this, reason);
     }
 
     /**
@@ -173,7 +444,7 @@ public class DBConnectionSupplier implements Supplier<Connection>, DataSource, A
     public DBPreparedStatement prepareNonExecutableStatement(String query, String reason) {
         checkArgument(query != null, "Argument 'query' is null");
         checkArgument(reason != null, "Argument 'reason' is null");
-        return new DBPreparedStatement(query, this, reason);
+        return new DBPreparedStatement(dialect.translate(query), this, reason);
     }
 
     @Deprecated
@@ -182,6 +453,12 @@ public class DBConnectionSupplier implements Supplier<Connection>, DataSource, A
         DEFAULT_CONN_URL = cmd.getOptionValue(dbUrlOpt.getLongOpt(), prop.getProperty(dbUrlOpt.getLongOpt(), DEFAULT_CONN_URL));
         DEFAULT_DB_USER = cmd.getOptionValue(dbUserOpt.getLongOpt(), prop.getProperty(dbUserOpt.getLongOpt(), DEFAULT_DB_USER));
         DEFAULT_DB_PASSWORD = cmd.getOptionValue(dbPasswordOpt.getLongOpt(), prop.getProperty(dbPasswordOpt.getLongOpt(), DEFAULT_DB_PASSWORD));
+        Optional.ofNullable(cmd.getOptionValue(dbReadUrlsOpt.getLongOpt(), prop.getProperty(dbReadUrlsOpt.getLongOpt()))).map(DBConnectionSupplier::splitList).ifPresent(urls -> DEFAULT_READ_URLS = urls);
+        Optional.ofNullable(cmd.getOptionValue(dbReadRoutingOpt.getLongOpt())).map(ReadRouting::fromName).ifPresent(r -> DEFAULT_READ_ROUTING = r);
+        Optional.ofNullable(cmd.getOptionValue(dbShardUrlsOpt.getLongOpt(), prop.getProperty(dbShardUrlsOpt.getLongOpt()))).map(DBConnectionSupplier::splitList).ifPresent(urls -> DEFAULT_SHARD_URLS = urls);
+        Optional.ofNullable(cmd.getOptionValue(dbShardRoutingOpt.getLongOpt())).map(ShardRouting::fromName).ifPresent(r -> DEFAULT_SHARD_ROUTING = r);
+        Optional.ofNullable(cmd.getOptionValue(dbShardBoundariesOpt.getLongOpt(), prop.getProperty(dbShardBoundariesOpt.getLongOpt()))).map(DBConnectionSupplier::parseBoundaries).ifPresent(b -> DEFAULT_SHARD_BOUNDARIES = b);
+        checkShardArguments();
     }
 
     @Deprecated
@@ -246,14 +523,268 @@ public class DBConnectionSupplier implements Supplier<Connection>, DataSource, A
         return new DBMetaData(this);
     }
 
-    private Connection makeJDBCConnection(String url, String user, String password) {
+    @SneakyThrows(InterruptedException.class)
+    private PooledConnection acquire() {
+        poolStats.leases.incrementAndGet();
+        if (!isPooled()) {
+            return openConnection();
+        }
+        PooledConnection pc = idleConnections.poll();
+        if (pc == null && openConnections.incrementAndGet() <= maxConnections) {
+            try {
+                return openConnection();
+            } catch (RuntimeException e) {
+                openConnections.decrementAndGet();
+                throw e;
+            }
+        } else if (pc == null) {
+            openConnections.decrementAndGet();
+            long start = System.nanoTime();
+            while ((pc = idleConnections.poll(LEASE_WAIT_WARN_PERIOD.toMillis(), TimeUnit.MILLISECONDS)) == null) {
+                log.warn("Waiting for DB connection for {} sec. Pool size: {}. {}", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), maxConnections, poolStats);
+            }
+            poolStats.onWait(System.nanoTime() - start);
+        }
+        return pc;
+    }
+
+    private void release(PooledConnection pc) {
+        if (pc.isClosed()) {
+            openConnections.decrementAndGet();
+        } else {
+            idleConnections.add(pc);
+        }
+    }
+
+    private PooledConnection openConnection() {
+        Endpoint endpoint = chooseEndpoint();
+        return new PooledConnection(makeJDBCConnection(endpoint), endpoint);
+    }
+
+    private Endpoint chooseEndpoint() {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+        if (readRouting == ReadRouting.LEAST_LATENCY) {
+            return endpoints.stream().min(Comparator.comparingDouble(Endpoint::getLatencyNanos)).get();
+        }
+        return endpoints.get(Math.floorMod(nextEndpoint.getAndIncrement(), endpoints.size()));
+    }
+
+    private Connection makeJDBCConnection(Endpoint endpoint) {
         try {
-            Connection con = DriverManager.getConnection(url, user, password);
-            con.createStatement().execute("SET sql_log_bin=OFF");
+            Connection con = DriverManager.getConnection(endpoint.url, endpoint.user, endpoint.password);
+            try (Statement st = con.createStatement()) {
+                for (String sql : SqlDialect.fromUrl(endpoint.url).getConnectionInitStatements()) {
+                    st.execute(sql);
+                }
+            }
+            poolStats.connectionsOpened.incrementAndGet();
             return con;
         } catch (SQLException e) {
             //log.error("url=" + url, e);
             throw new IllegalStateException(e);
         }
     }
+
+    /**
+     * Connection lease. Must be closed by the same thread it was obtained by.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final PooledConnection connection;
+        private final boolean threadBound;
+        private int depth;
+        private long startNanos;
+
+        private Lease(PooledConnection connection, boolean threadBound) {
+            this.connection = connection;
+            this.threadBound = threadBound;
+        }
+
+        @NonNull
+        public Connection getConnection() {
+            return connection.connection;
+        }
+
+        /**
+         * Get prepared statement from the connection statement cache or
+         * prepare a new one.
+         *
+         * @param query SQL query
+         * @return prepared statement
+         */
+        @NonNull
+        public PreparedStatement prepareStatement(String query) {
+            return connection.prepareStatement(query);
+        }
+
+        @Override
+        public void close() {
+            if (--depth <= 0) {
+                connection.endpoint.onLease(System.nanoTime() - startNanos);
+                if (!threadBound) {
+                    currentLease.remove();
+                    release(connection);
+                }
+            }
+        }
+    }
+
+    private final class PooledConnection {
+
+        private final Connection connection;
+        private final Endpoint endpoint;
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeIgnoreExceptions(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private PooledConnection(Connection connection, Endpoint endpoint) {
+            this.connection = connection;
+            this.endpoint = endpoint;
+        }
+
+        @SneakyThrows(SQLException.class)
+        private PreparedStatement prepareStatement(String query) {
+            PreparedStatement ps = statements.get(query);
+            if (ps == null) {
+                ps = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statements.put(query, ps);
+                poolStats.statementsPrepared.incrementAndGet();
+            }
+            return ps;
+        }
+
+        @SneakyThrows(SQLException.class)
+        private boolean isClosed() {
+            return connection.isClosed();
+        }
+
+        @SneakyThrows(SQLException.class)
+        private void close() {
+            statements.values().forEach(this::closeIgnoreExceptions);
+            statements.clear();
+            connection.close();
+        }
+
+        private void closeIgnoreExceptions(PreparedStatement ps) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                log.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static List<String> splitList(String values) {
+        return Arrays.stream(values.split(",")).map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+    }
+
+    private static int[] parseBoundaries(String boundaries) {
+        return splitList(boundaries).stream().mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * Distribution of rows between shards by transaction_id.
+     */
+    public enum ShardRouting {
+        RANGE, HASH;
+
+        @NonNull
+        public String getName() {
+            return name().toLowerCase();
+        }
+
+        @NonNull
+        public static ShardRouting fromName(String name) {
+            return Stream.of(values()).filter(r -> r.getName().equalsIgnoreCase(name)).findAny()
+                    .orElseThrow(() -> new IllegalArgumentException("Unsupported shard routing: " + name));
+        }
+    }
+
+    /**
+     * Choice of read replica endpoint for a new connection.
+     */
+    public enum ReadRouting {
+        ROUND_ROBIN, LEAST_LATENCY;
+
+        @NonNull
+        public String getName() {
+            return name().toLowerCase().replace('_', '-');
+        }
+
+        @NonNull
+        public static ReadRouting fromName(String name) {
+            return Stream.of(values()).filter(r -> r.getName().equalsIgnoreCase(name)).findAny()
+                    .orElseThrow(() -> new IllegalArgumentException("Unsupported read routing: " + name));
+        }
+    }
+
+    /**
+     * DB server endpoint with smoothed latency of connection leases.
+     */
+    private static final class Endpoint {
+
+        private final String url;
+        private final String user;
+        private final String password;
+        private volatile double latencyNanos;
+
+        private Endpoint(String url, String user, String password) {
+            this.url = url;
+            this.user = user;
+            this.password = password;
+        }
+
+        private double getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        private synchronized void onLease(long nanos) {
+            latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + LATENCY_SMOOTHING_FACTOR * (nanos - latencyNanos);
+        }
+
+        @Override
+        public String toString() {
+            return url.replaceAll("\\?.*", "") + " (" + TimeUnit.NANOSECONDS.toMicros((long) latencyNanos) + " us)";
+        }
+    }
+
+    /**
+     * Connection pool statistics.
+     */
+    @Getter
+    public static final class PoolStats {
+
+        private final AtomicLong leases = new AtomicLong();
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong connectionsOpened = new AtomicLong();
+        private final AtomicLong statementsPrepared = new AtomicLong();
+
+        private void onWait(long nanos) {
+            waits.incrementAndGet();
+            totalWaitNanos.addAndGet(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        @Override
+        public String toString() {
+            long w = waits.get();
+            return "leases: " + leases.get()
+                    + ", waits: " + w
+                    + ", avg wait: " + (w == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / w)) + " ms"
+                    + ", max wait: " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()) + " ms"
+                    + ", connections opened: " + connectionsOpened.get()
+                    + ", statements prepared: " + statementsPrepared.get();
+        }
+    }
 }
@@ -20,22 +20,37 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import com.sliva.btc.scanner.db.utils.DbResultSetUtils.QueryConsumer;
 import com.sliva.btc.scanner.db.utils.DbResultSetUtils.QueryResultProcessor;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
-import java.util.function.Supplier;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import org.apache.commons.lang3.StringUtils;
 
 /**
+ * Prepared statement wrapper. Parameters, batch and execution settings are kept
+ * per thread and applied to JDBC statement from the statement cache of leased
+ * connection at execution time.
+ * <p>
+ * If DB is sharded, then statement is executed on shard 0 unless another shard
+ * is chosen with {@link #onShard(int)} or {@link #onShards}.
+ * <p>
+ * With PostgreSQL, batch of a plain insert statement is executed with COPY
+ * command instead of batched inserts. See {@link SqlDialect#getCopyCommand}.
  *
  * @author Sliva Co
  */
@@ -45,9 +60,15 @@ public class DBPreparedStatement {
     private final String query;
     @Getter
     private final int paramsCount;
-    private final ThreadLocal<PreparedStatement> psPool;
+    private final DBConnectionSupplier conn;
+    private final ThreadLocal<StatementData> data;
     @Getter
     private final String cannotExecuteReason;
+    @Getter
+    private final int shardIndex;
+    private final DBPreparedStatement[] shardStatements;
+    private final Optional<String> copyCommand;
+    private Optional<DBPreparedStatement> skippingDuplicates;
 
     /**
      * Create new instance of DBPreparedStatement.
@@ -58,12 +79,20 @@ public class DBPreparedStatement {
      * or null if query can be executed.
      */
     public DBPreparedStatement(String query, DBConnectionSupplier conn, String cannotExecuteReason) {
+        this(query, conn, cannotExecuteReason, 0);
+    }
+
+    private DBPreparedStatement(String query, DBConnectionSupplier conn, String cannotExecuteReason, int shardIndex) {
         checkArgument(query != null, "Argument 'query' is null");
         checkArgument(conn != null, "Argument 'conn' is null");
         this.query = query;
         this.cannotExecuteReason = cannotExecuteReason;
         this.paramsCount = StringUtils.countMatches(query, '?');
-        this.psPool = cannotExecuteReason != null ? null : ThreadLocal.withInitial(() -> buildPreparedStatement(conn));
+        this.conn = conn;
+        this.data = ThreadLocal.withInitial(StatementData::new);
+        this.shardIndex = shardIndex;
+        this.shardStatements = shardIndex == 0 ? new DBPreparedStatement[conn.getShardCount()] : null;
+        this.copyCommand = conn.getDialect().getCopyCommand(query);
     }
 
     /**
@@ -83,6 +112,135 @@ public class DBPreparedStatement {
         checkState(cannotExecuteReason == null, "Cannot execute query. %s. Query: %s", cannotExecuteReason, query);
     }
 
+    public int getShardCount() {
+        return conn.getShardCount();
+    }
+
+    /**
+     * Get this statement bound to the shard owning rows of the transaction.
+     *
+     * @param transactionId transaction id
+     * @return statement executed on the owning shard
+     */
+    @NonNull
+    public DBPreparedStatement onShard(int transactionId) {
+        return getShardStatement(conn.getShardIndex(transactionId));
+    }
+
+    /**
+     * Get this statement bound to a shard.
+     *
+     * @param shardIndex shard index
+     * @return statement executed on the shard
+     */
+    @NonNull
+    public synchronized DBPreparedStatement getShardStatement(int shardIndex) {
+        checkState(shardStatements != null, "Statement is already bound to shard %s", this.shardIndex);
+        if (shardIndex == 0) {
+            return this;
+        }
+        DBPreparedStatement ps = shardStatements[shardIndex];
+        if (ps == null) {
+            ps = new DBPreparedStatement(query, conn.getShard(shardIndex), cannotExecuteReason, shardIndex);
+            shardStatements[shardIndex] = ps;
+        }
+        return ps;
+    }
+
+    /**
+     * Get this insert statement changed to skip rows that already exist in
+     * the table instead of failing with duplicate key error.
+     *
+     * @return statement skipping duplicates or empty if this statement is not
+     * a plain insert
+     */
+    @NonNull
+    public synchronized Optional<DBPreparedStatement> skippingDuplicates() {
+        if (skippingDuplicates == null) {
+            skippingDuplicates = conn.getDialect().getInsertSkippingDuplicates(query).map(q -> new DBPreparedStatement(q, conn, cannotExecuteReason, shardIndex));
+        }
+        return skippingDuplicates;
+    }
+
+    /**
+     * Execute action with this statement bound to each of the shards. Actions
+     * are executed in parallel if there is more than one shard, so parameters
+     * must be set inside the action.
+     *
+     * @param <R> action result type
+     * @param shardIndexes shard indexes
+     * @param action action to execute on the shard statement
+     * @return action results in order of shard indexes
+     */
+    @NonNull
+    public <R> List<R> onShards(IntStream shardIndexes, Function<DBPreparedStatement, R> action) {
+        int[] indexes = shardIndexes.toArray();
+        if (indexes.length == 1) {
+            return Collections.singletonList(action.apply(getShardStatement(indexes[0])));
+        }
+        List<CompletableFuture<R>> futures = IntStream.of(indexes).mapToObj(this::getShardStatement)
+                .map(ps -> CompletableFuture.supplyAsync(() -> action.apply(ps), conn.getShardExecutor()))
+                .collect(Collectors.toList());
+        return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+    }
+
+    /**
+     * Execute query on all shards that might own rows of the transaction
+     * range and concatenate results in order of shards.
+     *
+     * @param <T> result element type
+     * @param fromTransactionId first transaction id of the range
+     * @param toTransactionId last transaction id of the range (inclusive)
+     * @param fillCallback parameters setter
+     * @param processor result set row processor
+     * @return results of all shards
+     */
+    @NonNull
+    public <T> List<T> executeQueryToList(int fromTransactionId, int toTransactionId, Consumer<ParamSetter> fillCallback, QueryResultProcessor<T> processor) {
+        return onShards(conn.getShardIndexes(fromTransactionId, toTransactionId), ps -> ps.setParameters(fillCallback).executeQueryToList(processor))
+                .stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    /**
+     * Execute query on all shards and concatenate results in order of shards.
+     *
+     * @param <T> result element type
+     * @param fillCallback parameters setter
+     * @param processor result set row processor
+     * @return results of all shards
+     */
+    @NonNull
+    public <T> List<T> executeQueryToListOnAllShards(Consumer<ParamSetter> fillCallback, QueryResultProcessor<T> processor) {
+        return onShards(IntStream.range(0, conn.getShardCount()), ps -> ps.setParameters(fillCallback).executeQueryToList(processor))
+                .stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    /**
+     * Query a single row on all shards and return the first found in order of
+     * shards.
+     *
+     * @param <T> Value type returned by processor
+     * @param fillCallback parameters setter
+     * @param processor Record processor to be called
+     * @return Value returned by processor or empty if no record found
+     */
+    @NonNull
+    public <T> Optional<T> querySingleRowOnAllShards(Consumer<ParamSetter> fillCallback, QueryResultProcessor<T> processor) {
+        return onShards(IntStream.range(0, conn.getShardCount()), ps -> ps.setParameters(fillCallback).querySingleRow(processor))
+                .stream().filter(Optional::isPresent).map(Optional::get).findFirst();
+    }
+
+    /**
+     * Execute update statement on all shards.
+     *
+     * @param fillCallback parameters setter
+     * @return total number of updated rows
+     */
+    public int executeUpdateOnAllShards(Consumer<ParamSetter> fillCallback) {
+        return onShards(IntStream.range(0, conn.getShardCount()), ps -> ps.setParameters(fillCallback).executeUpdate())
+                .stream().mapToInt(Integer::intValue).sum();
+    }
+
     /**
      * Get parameters setter instance to be used to pass parameters to the
      * statement.
@@ -135,9 +293,9 @@ public class DBPreparedStatement {
      * @return this
      */
     @NonNull
-    @SneakyThrows(SQLException.class)
     public DBPreparedStatement setMaxRows(int maxRowsLimit) {
-        getPreparedStatement().setMaxRows(maxRowsLimit);
+        checkCanExecute();
+        data.get().maxRows = maxRowsLimit;
         return this;
     }
 
@@ -148,55 +306,77 @@ public class DBPreparedStatement {
      * @return this
      */
     @NonNull
-    @SneakyThrows(SQLException.class)
     public DBPreparedStatement setFetchSize(int rows) {
-        getPreparedStatement().setFetchSize(rows);
+        checkCanExecute();
+        data.get().fetchSize = rows;
         return this;
     }
 
-    @SneakyThrows(SQLException.class)
     public void addBatch() {
-        getPreparedStatement().addBatch();
+        checkCanExecute();
+        StatementData d = data.get();
+        d.batch.add(d.params);
     }
 
     @SneakyThrows(SQLException.class)
     public void executeBatch() {
-        getPreparedStatement().executeBatch();
+        checkCanExecute();
+        StatementData d = data.get();
+        try (DBConnectionSupplier.Lease lease = conn.lease()) {
+            if (copyCommand.isPresent()) {
+                conn.getDialect().copyIn(lease.getConnection(), copyCommand.get(), d.batch);
+                return;
+            }
+            PreparedStatement ps = lease.prepareStatement(query);
+            try {
+                for (Object[] params : d.batch) {
+                    applyParameters(ps, params);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            } finally {
+                ps.clearBatch();
+            }
+        } finally {
+            d.batch.clear();
+        }
     }
 
-    @SneakyThrows(SQLException.class)
     public void clearBatch() {
-        getPreparedStatement().clearBatch();
+        checkCanExecute();
+        data.get().batch.clear();
     }
 
-    @SneakyThrows(SQLException.class)
     public void clearParameters() {
-        getPreparedStatement().clearParameters();
+        checkCanExecute();
+        data.get().params = null;
     }
 
     @SneakyThrows(SQLException.class)
     public void execute() {
-        getPreparedStatement().execute();
+        try (DBConnectionSupplier.Lease lease = conn.lease()) {
+            prepare(lease).execute();
+        }
     }
 
     @SneakyThrows(SQLException.class)
     public int executeUpdate() {
-        return getPreparedStatement().executeUpdate();
-    }
-
-    @NonNull
-    @SneakyThrows(SQLException.class)
-    public ResultSet executeQuery() {
-        return getPreparedStatement().executeQuery();
+        try (DBConnectionSupplier.Lease lease = conn.lease()) {
+            return prepare(lease).executeUpdate();
+        }
     }
 
     public int executeQuery(QueryConsumer consumer) {
-        return DbResultSetUtils.executeQuery(executeQuery(), consumer);
+        try (DBConnectionSupplier.Lease lease = conn.lease()) {
+            return DbResultSetUtils.executeQuery(executeQuery(lease), consumer);
+        }
     }
 
     @NonNull
     public <T> List<T> executeQueryToList(QueryResultProcessor<T> processor) {
-        return DbResultSetUtils.executeQueryToList(executeQuery(), processor);
+        try (DBConnectionSupplier.Lease lease = conn.lease()) {
+            return DbResultSetUtils.executeQueryToList(executeQuery(lease), processor);
+        }
     }
 
     /**
@@ -208,28 +388,79 @@ public class DBPreparedStatement {
      */
     @NonNull
     public <T> Optional<T> querySingleRow(QueryResultProcessor<T> processor) {
-        return DbResultSetUtils.querySingleRow(setMaxRows(1).executeQuery(), processor);
+        try (DBConnectionSupplier.Lease lease = conn.lease()) {
+            return DbResultSetUtils.querySingleRow(setMaxRows(1).executeQuery(lease), processor);
+        }
     }
 
     @NonNull
-    private PreparedStatement getPreparedStatement() {
-        checkCanExecute();
-        return psPool.get();
+    @SneakyThrows(SQLException.class)
+    private ResultSet executeQuery(DBConnectionSupplier.Lease lease) {
+        return prepare(lease).executeQuery();
     }
 
+    /**
+     * Get JDBC statement from leased connection and apply current thread's
+     * parameters and settings to it.
+     */
     @NonNull
-    @SneakyThrows(SQLException.class)
-    private PreparedStatement buildPreparedStatement(Supplier<Connection> conn) {
-        return conn.get().prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    private PreparedStatement prepare(DBConnectionSupplier.Lease lease) throws SQLException {
+        checkCanExecute();
+        StatementData d = data.get();
+        PreparedStatement ps = lease.prepareStatement(query);
+        ps.setMaxRows(d.maxRows);
+        ps.setFetchSize(d.fetchSize);
+        applyParameters(ps, d.params);
+        return ps;
+    }
+
+    private static void applyParameters(PreparedStatement ps, Object[] params) throws SQLException {
+        ps.clearParameters();
+        if (params == null) {
+            return;
+        }
+        for (int i = 0; i < params.length; i++) {
+            Object value = params[i];
+            int index = i + 1;
+            if (value == UNSET) {
+                //leave unset for JDBC driver to report
+            } else if (value instanceof Integer) {
+                ps.setInt(index, (Integer) value);
+            } else if (value instanceof Long) {
+                ps.setLong(index, (Long) value);
+            } else if (value instanceof Short) {
+                ps.setShort(index, (Short) value);
+            } else if (value instanceof byte[]) {
+                ps.setBytes(index, (byte[]) value);
+            } else if (value instanceof Boolean) {
+                ps.setBoolean(index, (Boolean) value);
+            } else if (value == null) {
+                ps.setNull(index, Types.NULL);
+            } else {
+                ps.setString(index, value.toString());
+            }
+        }
+    }
+
+    private static final Object UNSET = new Object();
+
+    private static class StatementData {
+
+        private Object[] params;
+        private final List<Object[]> batch = new ArrayList<>();
+        private int maxRows;
+        private int fetchSize;
     }
 
     public class ParamSetter {
 
-        private final PreparedStatement ps = getPreparedStatement();
+        private final Object[] params = new Object[paramsCount];
         private final AtomicInteger paramCounter = new AtomicInteger();
         private boolean ignoreExtraParam;
 
         private ParamSetter() {
+            Arrays.fill(params, UNSET);
+            data.get().params = params;
         }
 
         public boolean isReady() {
@@ -256,50 +487,44 @@ public class DBPreparedStatement {
             return this;
         }
 
-        @SneakyThrows(SQLException.class)
         public ParamSetter setString(String value) {
             if (checkStateNotReady()) {
-                ps.setString(paramCounter.incrementAndGet(), value);
+                params[paramCounter.getAndIncrement()] = value;
             }
             return this;
         }
 
-        @SneakyThrows(SQLException.class)
         public ParamSetter setShort(short value) {
             if (checkStateNotReady()) {
-                ps.setShort(paramCounter.incrementAndGet(), value);
+                params[paramCounter.getAndIncrement()] = value;
             }
             return this;
         }
 
-        @SneakyThrows(SQLException.class)
         public ParamSetter setInt(int value) {
             if (checkStateNotReady()) {
-                ps.setInt(paramCounter.incrementAndGet(), value);
+                params[paramCounter.getAndIncrement()] = value;
             }
             return this;
         }
 
-        @SneakyThrows(SQLException.class)
         public ParamSetter setLong(long value) {
             if (checkStateNotReady()) {
-                ps.setLong(paramCounter.incrementAndGet(), value);
+                params[paramCounter.getAndIncrement()] = value;
             }
             return this;
         }
 
-        @SneakyThrows(SQLException.class)
         public ParamSetter setBytes(byte[] value) {
             if (checkStateNotReady()) {
-                ps.setBytes(paramCounter.incrementAndGet(), value);
+                params[paramCounter.getAndIncrement()] = value;
             }
             return this;
         }
 
-        @SneakyThrows(SQLException.class)
         public ParamSetter setBoolean(boolean value) {
             if (checkStateNotReady()) {
-                ps.setBoolean(paramCounter.incrementAndGet(), value);
+                params[paramCounter.getAndIncrement()] = value;
             }
             return this;
         }
@@ -15,51 +15,143 @@
  */
 package com.sliva.btc.scanner.db;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import com.sliva.btc.scanner.db.facade.DbQueryInput;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdArguments;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOption;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOptions;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  *
  * @author whost
  */
+@Slf4j
 public class DbQueries {
 
+    private static final int QUERY_CHUNK_SIZE = 1000;
+    public static final CmdOptions CMD_OPTS = new CmdOptions();
+    public static final CmdOption relatedMaxDepthOpt = buildOption(CMD_OPTS, null, "related-max-depth", true, "Maximum number of transaction levels to expand when searching related addresses. Default: 0 - no limit");
+    public static final CmdOption relatedMaxAddressesOpt = buildOption(CMD_OPTS, null, "related-max-addresses", true, "Maximum number of related addresses to find for a transaction. Default: 0 - no limit");
+    public static final CmdOption relatedMaxMsecOpt = buildOption(CMD_OPTS, null, "related-max-msec", true, "Maximum runtime of related addresses search for a transaction in milliseconds. Default: 0 - no limit");
+    private static int maxDepth = Integer.MAX_VALUE;
+    private static int maxAddresses = Integer.MAX_VALUE;
+    private static long maxMillis = Long.MAX_VALUE;
+
     private final DbQueryInput queryInput;
     private final DbQueryTransaction queryTransaction;
 
-    public DbQueries(DBConnectionSupplier con) {
-        this.queryInput = new DbQueryInput(con);
-        this.queryTransaction = new DbQueryTransaction(con);
+    public static void applyArguments(CmdArguments cmdArguments) {
+        maxDepth = cmdArguments.getOption(relatedMaxDepthOpt).map(Integer::valueOf).filter(n -> n != 0).orElse(Integer.MAX_VALUE);
+        checkArgument(maxDepth > 0, "Argument '%s' must be a non-negative integer value", relatedMaxDepthOpt.getLongOpt());
+        maxAddresses = cmdArguments.getOption(relatedMaxAddressesOpt).map(Integer::valueOf).filter(n -> n != 0).orElse(Integer.MAX_VALUE);
+        checkArgument(maxAddresses > 0, "Argument '%s' must be a non-negative integer value", relatedMaxAddressesOpt.getLongOpt());
+        maxMillis = cmdArguments.getOption(relatedMaxMsecOpt).map(Long::valueOf).filter(n -> n != 0).orElse(Long.MAX_VALUE);
+        checkArgument(maxMillis > 0, "Argument '%s' must be a non-negative integer value", relatedMaxMsecOpt.getLongOpt());
     }
 
-    @NonNull
-    public Set<BtcAddress> getRelatedAddresses(int transactionId) {
-        return new RelatedAddressesProc().processTransaction(transactionId).result;
+    public DbQueries(DBConnectionSupplier con, DbStores stores) {
+        this(new DbQueryInput(con, stores), new DbQueryTransaction(con, stores));
     }
 
-    private class RelatedAddressesProc {
+    @VisibleForTesting
+    DbQueries(DbQueryInput queryInput, DbQueryTransaction queryTransaction) {
+        this.queryInput = queryInput;
+        this.queryTransaction = queryTransaction;
+    }
 
-        final Set<BtcAddress> result = new HashSet<>();
-        final Set<Integer> processedTxn = new HashSet<>();
+    /**
+     * Find related addresses with limits set by "--related-max-depth",
+     * "--related-max-addresses" and "--related-max-msec".
+     *
+     * @param transactionId transaction id to start from
+     * @return related addresses
+     */
+    @NonNull
+    public Set<BtcAddress> getRelatedAddresses(int transactionId) {
+        return getRelatedAddresses(transactionId, maxDepth, maxAddresses, maxMillis);
+    }
 
-        @NonNull
-        private RelatedAddressesProc processTransaction(int transactionId) {
-            if (processedTxn.add(transactionId)) {
-                queryInput.getInputAddresses(transactionId).forEach(this::processAddress);
+    /**
+     * Find addresses spent together with inputs of the transaction directly or
+     * through other transactions spending the same addresses. Expansion is
+     * breadth-first: all transactions of a level are resolved to addresses and
+     * all new addresses to spending transactions with a query per chunk of
+     * ids. Limits are checked before each chunk query, so a wide level does
+     * not overrun them. If a limit is reached, then addresses found so far are
+     * returned.
+     *
+     * @param transactionId transaction id to start from
+     * @param maxDepth maximum number of transaction levels to expand
+     * @param maxAddresses maximum number of addresses to return
+     * @param maxMillis maximum runtime in milliseconds
+     * @return related addresses
+     */
+    @NonNull
+    public Set<BtcAddress> getRelatedAddresses(int transactionId, int maxDepth, int maxAddresses, long maxMillis) {
+        checkArgument(maxDepth > 0, "Argument 'maxDepth' (%s) must be a positive number", maxDepth);
+        checkArgument(maxAddresses > 0, "Argument 'maxAddresses' (%s) must be a positive number", maxAddresses);
+        long s = System.currentTimeMillis();
+        Set<BtcAddress> result = new HashSet<>();
+        Set<Integer> processedTxn = new HashSet<>();
+        Set<Integer> processedAddress = new HashSet<>();
+        processedTxn.add(transactionId);
+        Collection<Integer> txnFrontier = Lists.newArrayList(transactionId);
+        int depth = 0;
+        boolean limitReached = false;
+        expand:
+        while (!txnFrontier.isEmpty()) {
+            if (depth == maxDepth) {
+                limitReached = true;
+                break;
             }
-            return this;
-        }
-
-        @NonNull
-        private RelatedAddressesProc processAddress(BtcAddress address) {
-            if (result.add(address)) {
-                queryTransaction.getSpendingTransactionsByAddress(address.getAddressId()).forEach(this::processTransaction);
+            List<Integer> addressFrontier = new ArrayList<>();
+            for (List<Integer> chunk : Lists.partition(new ArrayList<>(txnFrontier), QUERY_CHUNK_SIZE)) {
+                if (result.size() >= maxAddresses || System.currentTimeMillis() - s > maxMillis) {
+                    limitReached = true;
+                    break expand;
+                }
+                for (BtcAddress address : queryInput.getInputAddresses(chunk)) {
+                    if (result.size() >= maxAddresses) {
+                        limitReached = true;
+                        break expand;
+                    }
+                    if (processedAddress.add(address.getAddressId())) {
+                        result.add(address);
+                        addressFrontier.add(address.getAddressId());
+                    }
+                }
+            }
+            depth++;
+            txnFrontier = new ArrayList<>();
+            for (List<Integer> chunk : Lists.partition(addressFrontier, QUERY_CHUNK_SIZE)) {
+                if (System.currentTimeMillis() - s > maxMillis) {
+                    limitReached = true;
+                    break expand;
+                }
+                for (Integer txn : queryTransaction.getSpendingTransactionsByAddresses(chunk)) {
+                    if (processedTxn.add(txn)) {
+                        txnFrontier.add(txn);
+                    }
+                }
             }
-            return this;
         }
+        if (limitReached) {
+            log.warn("getRelatedAddresses({}): Limit reached. Depth: {}, addresses: {}, runtime: {} ms. Transactions left in frontier: {}",
+                    transactionId, depth, result.size(), System.currentTimeMillis() - s, txnFrontier.size());
+        }
+        return result;
     }
 }
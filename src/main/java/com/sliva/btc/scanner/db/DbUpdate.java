@@ -16,9 +16,14 @@
 package com.sliva.btc.scanner.db;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sliva.btc.scanner.db.DBPreparedStatement.ParamSetter;
+import com.sliva.btc.scanner.db.kv.KvStore;
 import com.sliva.btc.scanner.db.utils.BatchExecutor;
+import com.sliva.btc.scanner.db.utils.BatchSizeTuner;
+import com.sliva.btc.scanner.db.utils.DBUtils;
+import com.sliva.btc.scanner.db.utils.SpillQueue;
 import com.sliva.btc.scanner.util.BatchUtils;
 import com.sliva.btc.scanner.util.CommandLineUtils;
 import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
@@ -27,6 +32,7 @@ import com.sliva.btc.scanner.util.TimerTaskWrapper;
 import com.sliva.btc.scanner.util.Utils;
 import static com.sliva.btc.scanner.util.Utils.getPercentage;
 import static com.sliva.btc.scanner.util.Utils.synchronize;
+import java.io.File;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.sql.SQLException;
@@ -34,13 +40,17 @@ import java.text.NumberFormat;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Timer;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -49,7 +59,13 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -67,13 +83,22 @@ import org.apache.commons.lang3.time.StopWatch;
 public abstract class DbUpdate implements AutoCloseable {
 
     private static final Duration PRINT_STATS_PERIOD = Duration.ofSeconds(30);
-    private static final int MYSQL_BULK_INSERT_BUFFER_SIZE = 256 * 1024 * 1024;
     private static final int DEFAULT_DB_WRITE_THREADS = 4;
     private static final int DEFAULT_MIN_BATCH_SIZE = 10000;
     private static final int DEFAULT_MAX_BATCH_SIZE = 60000;
     private static final int DEFAULT_MAX_INSERT_QUEUE_LENGTH = 240000;
     private static final int DEFAULT_MAX_UPDATE_QUEUE_LENGTH = 60000;
     private static final boolean DEFAULT_ALLOW_PARALLEL_WRITES = false;
+    private static final boolean DEFAULT_ADAPTIVE_BATCH_SIZE = false;
+    private static final int DEFAULT_TARGET_BATCH_LATENCY_MSEC = 3000;
+    private static final String DEFAULT_SPILL_DIR = null;
+
+    /**
+     * Number of keys in multi-key DELETE statement. Statements built with
+     * {@link #buildKeysPlaceholder(java.lang.String, int)} for use in
+     * {@link #executeDeleteBatch} must contain this number of keys.
+     */
+    protected static final int DELETE_KEYS_PER_STATEMENT = 100;
 
     public static final CommandLineUtils.CmdOptions CMD_OPTS = new CommandLineUtils.CmdOptions();
     public static final CommandLineUtils.CmdOption dbWriteThreadsOpt = buildOption(CMD_OPTS, null, "db-write-threads", true, "Number of DB write threads. Default: " + DEFAULT_DB_WRITE_THREADS);
@@ -82,6 +107,9 @@ public abstract class DbUpdate implements AutoCloseable {
     public static final CommandLineUtils.CmdOption dbMaxInsertsQueueSizeOpt = buildOption(CMD_OPTS, null, "db-max-inserts-queue-size", true, "Maximum inserts queue size. Default: " + DEFAULT_MAX_INSERT_QUEUE_LENGTH);
     public static final CommandLineUtils.CmdOption dbMaxUpdatesQueueSizeOpt = buildOption(CMD_OPTS, null, "db-max-updates-queue-size", true, "Maximum updates queue size. Default: " + DEFAULT_MAX_UPDATE_QUEUE_LENGTH);
     public static final CommandLineUtils.CmdOption allowParallelWritesOpt = buildOption(CMD_OPTS, null, "allow-parallel-writes", true, "Allow parallel writes to the same table. Default: " + DEFAULT_ALLOW_PARALLEL_WRITES);
+    public static final CommandLineUtils.CmdOption dbAdaptiveBatchSizeOpt = buildOption(CMD_OPTS, null, "db-adaptive-batch-size", true, "Tune batch size (between min and max batch size) and number of parallel writes per table based on measured latency. Default: " + DEFAULT_ADAPTIVE_BATCH_SIZE);
+    public static final CommandLineUtils.CmdOption dbTargetBatchLatencyOpt = buildOption(CMD_OPTS, null, "db-target-batch-latency", true, "Target batch execution time in milliseconds for adaptive batch size. Default: " + DEFAULT_TARGET_BATCH_LATENCY_MSEC);
+    public static final CommandLineUtils.CmdOption dbSpillDirOpt = buildOption(CMD_OPTS, null, "db-spill-dir", true, "Directory to spill inserts over maximum inserts queue size to instead of blocking until queue is executed. Default: " + DEFAULT_SPILL_DIR);
 
     private static volatile ExecuteDbUpdate executeDbUpdateThread;
     private static final Collection<DbUpdate> dbUpdateInstances = new ArrayList<>();
@@ -90,6 +118,9 @@ public abstract class DbUpdate implements AutoCloseable {
     private static final StopWatch startTime = StopWatch.createStarted();
     private static int dbWriteThreads = DEFAULT_DB_WRITE_THREADS;
     private static boolean allowParallelWrites = DEFAULT_ALLOW_PARALLEL_WRITES;
+    private static boolean adaptiveBatchSize = DEFAULT_ADAPTIVE_BATCH_SIZE;
+    private static int targetBatchLatencyMsec = DEFAULT_TARGET_BATCH_LATENCY_MSEC;
+    private static File spillDir;
     private static LazyInitializer<ExecutorService> executor;
     @Getter
     private static int minBatchSize;
@@ -105,6 +136,11 @@ public abstract class DbUpdate implements AutoCloseable {
     private final String tableName;
     @Getter
     private boolean isActive = true;
+    private final ExecStats tableStats;
+    private final Map<Collection<?>, BatchSizeTuner> queueTuners = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Collection<SpillQueue<?, ?>> spillQueues = new ArrayList<>();
+    private final DBConnectionSupplier conn;
+    private final Optional<KvStore> kvStore;
 
     public static void applyArguments(CommandLineUtils.CmdArguments cmdArguments) {
         dbWriteThreads = cmdArguments.getOption(dbWriteThreadsOpt).map(Integer::valueOf).orElse(DEFAULT_DB_WRITE_THREADS);
@@ -115,15 +151,38 @@ public abstract class DbUpdate implements AutoCloseable {
         maxInsertsQueueSize = Math.max(minBatchSize, cmdArguments.getOption(dbMaxInsertsQueueSizeOpt).map(Integer::valueOf).orElse(DEFAULT_MAX_INSERT_QUEUE_LENGTH));
         maxUpdatesQueueSize = Math.max(minBatchSize, cmdArguments.getOption(dbMaxUpdatesQueueSizeOpt).map(Integer::valueOf).orElse(DEFAULT_MAX_UPDATE_QUEUE_LENGTH));
         allowParallelWrites = cmdArguments.getOption(allowParallelWritesOpt).map(Boolean::valueOf).orElse(DEFAULT_ALLOW_PARALLEL_WRITES);
+        adaptiveBatchSize = cmdArguments.getOption(dbAdaptiveBatchSizeOpt).map(Boolean::valueOf).orElse(DEFAULT_ADAPTIVE_BATCH_SIZE);
+        targetBatchLatencyMsec = cmdArguments.getOption(dbTargetBatchLatencyOpt).map(Integer::valueOf).orElse(DEFAULT_TARGET_BATCH_LATENCY_MSEC);
+        checkArgument(targetBatchLatencyMsec > 0, "Argument '%s' must be a positive integer value", dbTargetBatchLatencyOpt.getLongOpt());
+        spillDir = cmdArguments.getOption(dbSpillDirOpt).map(File::new).orElse(null);
+        checkArgument(spillDir == null || spillDir.isDirectory() || spillDir.mkdirs(), "Argument '%s' must be a writable directory: %s", dbSpillDirOpt.getLongOpt(), spillDir);
     }
 
-    @SuppressWarnings({"LeakingThisInConstructor", "CallToThreadStartDuringObjectConstruction"})
     public DbUpdate(String tableName, DBConnectionSupplier conn) {
+        this(tableName, conn, Optional.empty());
+    }
+
+    /**
+     * Create updater of the table keeping key-value store in sync with its
+     * writes.
+     *
+     * @param tableName table name
+     * @param conn DB connection supplier
+     * @param kvStore key-value store of the database or empty
+     */
+    @SuppressWarnings({"LeakingThisInConstructor", "CallToThreadStartDuringObjectConstruction"})
+    public DbUpdate(String tableName, DBConnectionSupplier conn, Optional<KvStore> kvStore) {
         checkArgument(tableName != null, "Argument 'tableName' is null");
         checkArgument(conn != null, "Argument 'conn' is null");
+        checkArgument(kvStore != null, "Argument 'kvStore' is null");
         this.tableName = tableName;
+        this.conn = conn;
+        this.kvStore = kvStore;
+        this.tableStats = getExecStats(tableName);
         try {
-            conn.get().createStatement().execute("SET bulk_insert_buffer_size=" + MYSQL_BULK_INSERT_BUFFER_SIZE);
+            for (String sql : conn.getDialect().getBulkWriteStatements()) {
+                conn.get().createStatement().execute(sql);
+            }
         } catch (SQLException e) {
             log.error(e.getMessage(), e);
         }
@@ -135,7 +194,7 @@ public abstract class DbUpdate implements AutoCloseable {
 
     public void flushCache() {
         log.trace("flushCache() Called");
-        while (executingInstances.contains(getTableName())) {
+        while (getExecutingCount() != 0) {
             Utils.sleep(10);
         }
         while (executeSync(getTableName()) != 0) {
@@ -147,6 +206,7 @@ public abstract class DbUpdate implements AutoCloseable {
         log.debug("{}.close()", tableName);
         isActive = false;
         flushCache();
+        spillQueues.forEach(SpillQueue::close);
         synchronized (dbUpdateInstances) {
             dbUpdateInstances.remove(this);
         }
@@ -161,6 +221,83 @@ public abstract class DbUpdate implements AutoCloseable {
 
     public abstract int executeUpdates();
 
+    /**
+     * Execute queued deletes. All queued deletes are executed before inserts
+     * and updates of the same execution cycle.
+     *
+     * @return number of records executed
+     */
+    public int executeDeletes() {
+        return 0;
+    }
+
+    /**
+     * Execute queued deletes until the record is no longer pending deletion.
+     * Called before re-adding a deleted record, so its insert cannot be
+     * executed ahead of the delete by a parallel or later execution cycle.
+     * Deletes are rare (chain reorganizations), so the caller executes them
+     * itself rather than waiting for the next cycle.
+     *
+     * @param deletePending returns true while the record delete is queued or
+     * in progress
+     */
+    protected void waitDeleteExecuted(BooleanSupplier deletePending) {
+        while (deletePending.getAsBoolean()) {
+            if (executeDeletes() == 0) {
+                Utils.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Get number of records to execute in a single batch. If adaptive batch
+     * size is enabled, then the value is tuned per table, otherwise maximum
+     * batch size is returned.
+     *
+     * @return batch size
+     */
+    public int getBatchSize() {
+        return tableStats.getTuner().map(BatchSizeTuner::getBatchSize).orElse(maxBatchSize);
+    }
+
+    /**
+     * Get number of records to execute in a single batch pulled from the
+     * queue. Queues registered with {@link #tuneQueueSeparately} have their
+     * own batch size, other queues use the batch size of the table.
+     *
+     * @param queue queue to pull batch from
+     * @return batch size
+     */
+    public int getBatchSize(Collection<?> queue) {
+        BatchSizeTuner tuner = queueTuners.get(queue);
+        return tuner != null ? tuner.getBatchSize() : getBatchSize();
+    }
+
+    /**
+     * Tune batch size of the queue separately from other queues of the
+     * table. Statements of different queues (i.e. inserts and updates) can
+     * reach the target latency at very different batch sizes. Write
+     * concurrency is still tuned per table. Does nothing if adaptive batch
+     * size is disabled.
+     *
+     * @param queueName queue name to show in stats
+     * @param queue queue to pull batches from
+     */
+    protected void tuneQueueSeparately(String queueName, Collection<?> queue) {
+        checkArgument(queueName != null, "Argument 'queueName' is null");
+        checkArgument(queue != null, "Argument 'queue' is null");
+        getQueueTuner(tableStats, queueName).ifPresent(t -> queueTuners.put(queue, t));
+    }
+
+    /**
+     * Get maximum number of parallel executions allowed for this table.
+     *
+     * @return number of parallel executions
+     */
+    public int getWriteConcurrency() {
+        return !allowParallelWrites ? 1 : tableStats.getTuner().map(BatchSizeTuner::getConcurrency).orElse(dbWriteThreads);
+    }
+
     /**
      * Execute batch of statements.
      *
@@ -175,6 +312,54 @@ public abstract class DbUpdate implements AutoCloseable {
      * @return number of records executed
      */
     public <T> int executeBatch(Object syncObject, Collection<T> source, DBPreparedStatement ps, int batchMaxSize, BiConsumer<T, ParamSetter> fillCallback, Consumer<Collection<T>> postExecutor) {
+        return executeBatch(syncObject, source, ps, batchMaxSize, null, fillCallback, postExecutor);
+    }
+
+    /**
+     * Execute batch of statements on a table sharded by transaction_id.
+     * Elements of the batch are grouped by owning shard and groups are
+     * executed on their shards in parallel.
+     *
+     * @param <T> Element type
+     * @param syncObject Object to synchronize on when pulling data from source
+     * Collection
+     * @param source Source Collection
+     * @param ps DB Statement to execute in batch
+     * @param batchMaxSize Batch maximum size
+     * @param transactionIdFunction function returning transaction_id of an
+     * element, or null if table is not sharded
+     * @param fillCallback callback to fill each DB statement in batch
+     * @param postExecutor post-execution process, can be null
+     * @return number of records executed
+     */
+    public <T> int executeBatch(Object syncObject, Collection<T> source, DBPreparedStatement ps, int batchMaxSize, ToIntFunction<T> transactionIdFunction, BiConsumer<T, ParamSetter> fillCallback, Consumer<Collection<T>> postExecutor) {
+        return executeBatch(syncObject, source, ps, batchMaxSize, transactionIdFunction, fillCallback, null, postExecutor);
+    }
+
+    /**
+     * Execute batch of statements on a table sharded by transaction_id and
+     * pass elements that were applied to DB to committedExecutor. Elements
+     * failed in execution (i.e. written to the dead-letter file) are excluded,
+     * so committedExecutor is the place to update secondary stores that must
+     * never refer to records missing in DB.
+     *
+     * @param <T> Element type
+     * @param syncObject Object to synchronize on when pulling data from source
+     * Collection
+     * @param source Source Collection
+     * @param ps DB Statement to execute in batch
+     * @param batchMaxSize Batch maximum size
+     * @param transactionIdFunction function returning transaction_id of an
+     * element, or null if table is not sharded
+     * @param fillCallback callback to fill each DB statement in batch
+     * @param committedExecutor process for elements applied to DB, called
+     * before postExecutor, can be null
+     * @param postExecutor post-execution process for the whole batch, can be
+     * null
+     * @return number of records executed
+     */
+    public <T> int executeBatch(Object syncObject, Collection<T> source, DBPreparedStatement ps, int batchMaxSize, ToIntFunction<T> transactionIdFunction,
+            BiConsumer<T, ParamSetter> fillCallback, Consumer<Collection<T>> committedExecutor, Consumer<Collection<T>> postExecutor) {
         checkArgument(syncObject != null, "Argument 'syncObject' is null");
         checkArgument(source != null, "Argument 'source' is null");
         checkArgument(ps != null, "Argument 'ps' is null");
@@ -183,16 +368,154 @@ public abstract class DbUpdate implements AutoCloseable {
             return 0;
         }
         checkArgument(batchMaxSize > 0, "Argument 'batchMaxSize' (%s) must be a positive number", batchMaxSize);
+        return pullAndExecute(syncObject, source, batchMaxSize, batch -> {
+            Collection<T> failed = Collections.synchronizedList(new ArrayList<>());
+            executeOnShards(batch, ps, transactionIdFunction, (b, shard) -> {
+                Collection<T> shardFailed = new ArrayList<>();
+                BatchExecutor.executeBatch(b, ps.getShardStatement(shard), fillCallback, shardFailed);
+                failed.addAll(shardFailed);
+            });
+            if (committedExecutor != null) {
+                Set<T> failedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+                failedSet.addAll(failed);
+                List<T> committed = batch.stream().filter(t -> !failedSet.contains(t)).collect(Collectors.toList());
+                if (!committed.isEmpty()) {
+                    committedExecutor.accept(committed);
+                }
+            }
+        }, postExecutor);
+    }
+
+    /**
+     * Execute batch of deletes. Keys are grouped into multi-key statements of
+     * {@link #DELETE_KEYS_PER_STATEMENT} keys each, the remainder is executed
+     * with single key statement.
+     *
+     * @param <T> Element type
+     * @param syncObject Object to synchronize on when pulling data from source
+     * Collection
+     * @param source Source Collection
+     * @param psMultiDelete DB Statement deleting DELETE_KEYS_PER_STATEMENT
+     * keys
+     * @param psDelete DB Statement deleting single key
+     * @param fillCallback callback to set parameters of a single key
+     * @param postExecutor post-execution process, can be null
+     * @return number of records executed
+     */
+    public <T> int executeDeleteBatch(Object syncObject, Collection<T> source, DBPreparedStatement psMultiDelete, DBPreparedStatement psDelete, BiConsumer<T, ParamSetter> fillCallback, Consumer<Collection<T>> postExecutor) {
+        return executeDeleteBatch(syncObject, source, psMultiDelete, psDelete, null, fillCallback, postExecutor);
+    }
+
+    /**
+     * Execute batch of deletes on a table sharded by transaction_id. Keys are
+     * grouped by owning shard first and then into multi-key statements.
+     *
+     * @param <T> Element type
+     * @param syncObject Object to synchronize on when pulling data from source
+     * Collection
+     * @param source Source Collection
+     * @param psMultiDelete DB Statement deleting DELETE_KEYS_PER_STATEMENT
+     * keys
+     * @param psDelete DB Statement deleting single key
+     * @param transactionIdFunction function returning transaction_id of a
+     * key, or null if table is not sharded
+     * @param fillCallback callback to set parameters of a single key
+     * @param postExecutor post-execution process, can be null
+     * @return number of records executed
+     */
+    public <T> int executeDeleteBatch(Object syncObject, Collection<T> source, DBPreparedStatement psMultiDelete, DBPreparedStatement psDelete, ToIntFunction<T> transactionIdFunction, BiConsumer<T, ParamSetter> fillCallback, Consumer<Collection<T>> postExecutor) {
+        checkArgument(syncObject != null, "Argument 'syncObject' is null");
+        checkArgument(source != null, "Argument 'source' is null");
+        checkArgument(psMultiDelete != null, "Argument 'psMultiDelete' is null");
+        checkArgument(psDelete != null, "Argument 'psDelete' is null");
+        checkArgument(fillCallback != null, "Argument 'fillCallback' is null");
+        if (source.isEmpty()) {
+            return 0;
+        }
+        return pullAndExecute(syncObject, source, getBatchSize(source), batch -> executeOnShards(batch, psDelete, transactionIdFunction, (shardBatch, shard) -> {
+            List<List<T>> chunks = Lists.partition(new ArrayList<>(shardBatch), DELETE_KEYS_PER_STATEMENT);
+            List<List<T>> fullChunks = chunks.stream().filter(c -> c.size() == DELETE_KEYS_PER_STATEMENT).collect(Collectors.toList());
+            if (!fullChunks.isEmpty()) {
+                BatchExecutor.executeBatch(fullChunks, psMultiDelete.getShardStatement(shard), (chunk, p) -> chunk.forEach(k -> fillCallback.accept(k, p)));
+            }
+            chunks.stream().filter(c -> c.size() < DELETE_KEYS_PER_STATEMENT).findAny()
+                    .ifPresent(rest -> BatchExecutor.executeBatch(rest, psDelete.getShardStatement(shard), fillCallback));
+        }), postExecutor);
+    }
+
+    /**
+     * Delete all records with transaction_id above the value. If table is
+     * partitioned by transaction_id range, then partitions lying entirely
+     * above the value are truncated and the delete statement is left to
+     * the partition containing the value.
+     *
+     * @param psDeleteAllAbove DB statement deleting records with
+     * transaction_id above the parameter
+     * @param transactionId last transaction id to keep
+     * @return number of records deleted
+     */
+    protected int executeDeleteAllAbove(DBPreparedStatement psDeleteAllAbove, int transactionId) {
+        int truncated = IntStream.range(0, conn.getShardCount()).map(i -> truncatePartitionsAbove(conn.getShard(i), transactionId)).sum();
+        return truncated + psDeleteAllAbove.executeUpdateOnAllShards(p -> p.setInt(transactionId));
+    }
+
+    private int truncatePartitionsAbove(DBConnectionSupplier shard, int transactionId) {
+        return shard.getDBMetaData().getPartitions(tableName).stream().filter(p -> p.getFromValue() > transactionId).mapToInt(p -> {
+            int rows = DBUtils.readInteger(shard.prepareStatement("SELECT count(*) FROM `" + tableName + "` PARTITION (" + p.getName() + ")")).orElse(0);
+            if (rows != 0) {
+                log.info("Truncating partition {} of table {} with {} records", p.getName(), tableName, rows);
+                shard.prepareStatement("ALTER TABLE `" + tableName + "` TRUNCATE PARTITION " + p.getName()).execute();
+            }
+            return rows;
+        }).sum();
+    }
+
+    /**
+     * Group batch elements by owning shard and execute groups on their shards
+     * in parallel. Whole batch is executed on shard 0 if table is not sharded.
+     */
+    private static <T> void executeOnShards(Collection<T> batch, DBPreparedStatement ps, ToIntFunction<T> transactionIdFunction, ObjIntConsumer<Collection<T>> shardExecutor) {
+        if (transactionIdFunction == null || ps.getShardCount() <= 1) {
+            shardExecutor.accept(batch, 0);
+            return;
+        }
+        Map<Integer, List<T>> byShard = batch.stream().collect(Collectors.groupingBy(t -> ps.onShard(transactionIdFunction.applyAsInt(t)).getShardIndex()));
+        ps.onShards(byShard.keySet().stream().mapToInt(Integer::intValue).sorted(), s -> {
+            shardExecutor.accept(byShard.get(s.getShardIndex()), s.getShardIndex());
+            return null;
+        });
+    }
+
+    private <T> int pullAndExecute(Object syncObject, Collection<T> source, int batchMaxSize, Consumer<Collection<T>> batchExecutor, Consumer<Collection<T>> postExecutor) {
         Optional<Collection<T>> batchToRun = synchronize(syncObject, () -> BatchUtils.pullData(source, batchMaxSize));
         batchToRun.ifPresent(batch -> {
-            BatchExecutor.executeBatch(batch, ps, fillCallback);
+            StopWatch sw = StopWatch.createStarted();
+            batchExecutor.accept(batch);
             if (postExecutor != null) {
                 postExecutor.accept(batch);
             }
+            long runtimeNanos = sw.getNanoTime();
+            tableStats.getTuner().ifPresent(t -> t.onBatchExecuted(batch.size(), runtimeNanos));
+            BatchSizeTuner queueTuner = queueTuners.get(source);
+            if (queueTuner != null) {
+                queueTuner.onBatchExecuted(batch.size(), runtimeNanos);
+            }
         });
         return batchToRun.map(Collection::size).orElse(0);
     }
 
+    /**
+     * Flush queues of all open instances to DB. Used before saving state
+     * derived from processed records, so the state never gets ahead of DB.
+     */
+    public static void flushAll() {
+        List<DbUpdate> instances;
+        synchronized (dbUpdateInstances) {
+            instances = new ArrayList<>(dbUpdateInstances);
+        }
+        instances.forEach(DbUpdate::flushCache);
+    }
+
     public static void printStats() {
         if (log.isDebugEnabled()) {
             NumberFormat nf = NumberFormat.getIntegerInstance();
@@ -200,19 +523,112 @@ public abstract class DbUpdate implements AutoCloseable {
             synchronized (execStats) {
                 execStats.entrySet().forEach((e) -> {
                     ExecStats s = e.getValue();
-                    log.debug("{} Executions: {} Records:{}, speed:{} rec/sec, runtime: {} ({}%)",
+                    log.debug("{} Executions: {} Records:{}, speed:{} rec/sec, runtime: {} ({}%){}",
                             rightPad(e.getKey(), 15),
                             StringUtils.leftPad(nf.format(s.getExecutions()), 13),
                             StringUtils.leftPad(nf.format(s.getTotalRecords()), 13),
                             StringUtils.leftPad(nf.format(s.getTotalRecords() / runtimeInSec), 9),
                             Duration.ofSeconds(TimeUnit.NANOSECONDS.toSeconds(s.getTotalRuntimeNanos())),
-                            getPercentage(TimeUnit.NANOSECONDS.toSeconds(s.getTotalRuntimeNanos()), runtimeInSec)
+                            getPercentage(TimeUnit.NANOSECONDS.toSeconds(s.getTotalRuntimeNanos()), runtimeInSec),
+                            s.getTuner().map(t -> ", batch: " + nf.format(t.getBatchSize()) + ", threads: " + t.getConcurrency()
+                            + ", batch speed: " + nf.format(t.getRecordsPerSec()) + " rec/sec").orElse("")
                     );
+                    s.getQueueTuners().forEach((q, t) -> log.debug("{} batch: {}, batch speed: {} rec/sec",
+                            rightPad("  " + q, 15), nf.format(t.getBatchSize()), nf.format(t.getRecordsPerSec())));
                 });
             }
         }
     }
 
+    /**
+     * Get key-value store of the database. Facades write records to the store
+     * only after they were applied to DB, so an entry in the store always has
+     * its DB record. Deletes are applied to the store before DB.
+     *
+     * @return key-value store or empty if not configured
+     */
+    @NonNull
+    protected Optional<KvStore> getKvStore() {
+        return kvStore;
+    }
+
+    /**
+     * Build list of keys placeholders for multi-key statement, i.e. for
+     * keyPlaceholder "(?,?)" and keysCount 3 the result is
+     * "(?,?),(?,?),(?,?)".
+     *
+     * @param keyPlaceholder single key placeholder
+     * @param keysCount number of keys
+     * @return placeholders list
+     */
+    @NonNull
+    protected static String buildKeysPlaceholder(String keyPlaceholder, int keysCount) {
+        checkArgument(keyPlaceholder != null, "Argument 'keyPlaceholder' is null");
+        checkArgument(keysCount > 0, "Argument 'keysCount' (%s) must be a positive number", keysCount);
+        return StringUtils.repeat(keyPlaceholder, ",", keysCount);
+    }
+
+    /**
+     * Build spill queue to hold inserts over maximum inserts queue size. Spill
+     * file is created in the directory set by "--db-spill-dir" on first use.
+     *
+     * @param <K> Record key type
+     * @param <T> Record type
+     * @param keyFunction function to get record key
+     * @param serializer record serializer
+     * @return spill queue, closed when this instance is closed
+     */
+    @NonNull
+    protected <K, T> SpillQueue<K, T> buildSpillQueue(Function<T, K> keyFunction, SpillQueue.Serializer<T> serializer) {
+        File file = new File(spillDir != null ? spillDir : new File(System.getProperty("java.io.tmpdir")), "db-" + tableName + "-spill-" + UUID.randomUUID() + ".data");
+        SpillQueue<K, T> spillQueue = new SpillQueue<>(file, keyFunction, serializer);
+        spillQueues.add(spillQueue);
+        return spillQueue;
+    }
+
+    /**
+     * Wait while inserts queue is full unless spilling is enabled. With
+     * spilling enabled inserts over maximum queue size go to the spill queue,
+     * so producers are not blocked while DB is stalled.
+     *
+     * @param queue inserts queue
+     */
+    protected void waitFullInsertsQueue(Collection<?> queue) {
+        if (spillDir == null) {
+            waitFullQueue(queue, getMaxInsertsQueueSize());
+        }
+    }
+
+    /**
+     * Check if new insert should go to the spill queue. Once spilling started,
+     * all new inserts are spilled until spill queue is drained in order to
+     * keep insertion order.
+     *
+     * @param queue inserts queue
+     * @param spillQueue spill queue
+     * @return true if spilling is enabled and inserts queue is full or spill
+     * queue is not empty
+     */
+    protected static boolean isSpillNeeded(Collection<?> queue, SpillQueue<?, ?> spillQueue) {
+        return spillDir != null && (queue.size() >= maxInsertsQueueSize || !spillQueue.isEmpty());
+    }
+
+    /**
+     * Move spilled records back to the inserts queue up to maximum inserts
+     * queue size. Must be called while holding the queue owner lock.
+     *
+     * @param <T> Record type
+     * @param queue inserts queue
+     * @param spillQueue spill queue
+     * @param addCallback callback adding record to the inserts queue
+     */
+    protected static <T> void drainSpillQueue(Collection<T> queue, SpillQueue<?, T> spillQueue, Consumer<T> addCallback) {
+        int freeSpace = maxInsertsQueueSize - queue.size();
+        if (freeSpace > 0 && !spillQueue.isEmpty()) {
+            spillQueue.poll(freeSpace).forEach(addCallback);
+        }
+    }
+
     @SneakyThrows(InterruptedException.class)
     protected static void waitFullQueue(Collection<?> queue, int maxQueueLength) {
         while (queue.size() >= maxQueueLength) {
@@ -242,7 +658,10 @@ public abstract class DbUpdate implements AutoCloseable {
             StopWatch start = StopWatch.createStarted();
             log.trace("{}.executeSync(): STARTED.", execId);
             try {
-                nRecs = executeInserts();
+                for (int deleted = executeDeletes(); deleted != 0; deleted = executeDeletes()) {
+                    nRecs += deleted;
+                }
+                nRecs += executeInserts();
                 nRecs += executeUpdates();
             } catch (Exception e) {
                 log.error(e.getMessage(), e);
@@ -263,6 +682,12 @@ public abstract class DbUpdate implements AutoCloseable {
         return nRecs;
     }
 
+    private int getExecutingCount() {
+        synchronized (executingInstances) {
+            return (int) executingInstances.stream().filter(id -> id.equals(tableName) || id.startsWith(tableName + '.')).count();
+        }
+    }
+
     private void executeAsync() {
         String execId = getTableName() + (allowParallelWrites ? "." + UUID.randomUUID().toString() : "");
         for (;;) {
@@ -282,12 +707,31 @@ public abstract class DbUpdate implements AutoCloseable {
     }
 
     private static void updateRuntimeMap(String tableName, long records, long runtimeNanos) {
+        ExecStats s = getExecStats(tableName);
         synchronized (execStats) {
-            execStats.computeIfAbsent(tableName, ExecStats::new)
-                    .addExecution(records, runtimeNanos);
+            s.addExecution(records, runtimeNanos);
         }
     }
 
+    private static ExecStats getExecStats(String tableName) {
+        synchronized (execStats) {
+            return execStats.computeIfAbsent(tableName, t -> new ExecStats(t, adaptiveBatchSize ? Optional.of(newTuner()) : Optional.empty()));
+        }
+    }
+
+    private static Optional<BatchSizeTuner> getQueueTuner(ExecStats s, String queueName) {
+        if (!adaptiveBatchSize) {
+            return Optional.empty();
+        }
+        synchronized (execStats) {
+            return Optional.of(s.getQueueTuners().computeIfAbsent(queueName, q -> newTuner()));
+        }
+    }
+
+    private static BatchSizeTuner newTuner() {
+        return new BatchSizeTuner(minBatchSize, maxBatchSize, dbWriteThreads, TimeUnit.MILLISECONDS.toNanos(targetBatchLatencyMsec));
+    }
+
     private static class ExecuteDbUpdate extends Thread {
 
         private final LazyInitializer<ExecutorService> executor;
@@ -314,7 +758,7 @@ public abstract class DbUpdate implements AutoCloseable {
                             dbUpdateMaxFilled = dbUpdateInstances.stream()
                                     .filter(DbUpdate::isActive)
                                     .peek(d -> liveUpdatersCount.incrementAndGet())
-                                    .filter(d -> (allowParallelWrites || !executingInstances.contains(d.getTableName())) && d.isExecuteNeeded())
+                                    .filter(d -> (allowParallelWrites ? d.getExecutingCount() < d.getWriteConcurrency() : !executingInstances.contains(d.getTableName())) && d.isExecuteNeeded())
                                     .max(Comparator.comparingInt(DbUpdate::getCacheFillPercent));
                         }
                         if (liveUpdatersCount.get() == 0 && executingInstances.isEmpty()) {
@@ -347,6 +791,8 @@ public abstract class DbUpdate implements AutoCloseable {
     private static class ExecStats {
 
         private final String tableName;
+        private final Optional<BatchSizeTuner> tuner;
+        private final Map<String, BatchSizeTuner> queueTuners = new TreeMap<>();
         private long executions;
         private long totalRecords;
         private long totalRuntimeNanos;
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.NonNull;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * SQL dialect of the database server. Queries of DB facades are written in
+ * MySQL syntax and translated to the dialect by
+ * {@link DBConnectionSupplier#prepareStatement}. Statements that cannot be
+ * translated mechanically (upserts with conflict target, multi-table updates)
+ * are chosen by facades with {@link DBConnectionSupplier#getDialect()}.
+ * <p>
+ * With PostgreSQL, batches of plain "INSERT INTO table(columns)VALUES(...)"
+ * statements are streamed to the server with "COPY table(columns) FROM STDIN".
+ * PostgreSQL JDBC driver is accessed by reflection and must be present on the
+ * class path at runtime.
+ *
+ * @author Sliva Co
+ */
+public enum SqlDialect {
+    MYSQL, POSTGRESQL;
+
+    private static final int MYSQL_BULK_INSERT_BUFFER_SIZE = 256 * 1024 * 1024;
+    private static final Pattern BACKTICK = Pattern.compile("`");
+    private static final Pattern IFNULL = Pattern.compile("(?i)\\bIFNULL\\(");
+    private static final Pattern CAST_AS_BINARY = Pattern.compile("(?i)CAST\\(([\\w.]+) AS BINARY\\)");
+    private static final Pattern COUNT_ALL = Pattern.compile("(?i)\\bcount\\(\\*\\)");
+    private static final Pattern PLAIN_INSERT = Pattern.compile("(?is)\\s*INSERT\\s+INTO\\s+([\"`\\w.]+)\\s*\\(([^)]+)\\)\\s*VALUES\\s*\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)\\s*");
+
+    /**
+     * Get dialect of the JDBC URL.
+     *
+     * @param url JDBC URL
+     * @return dialect of the server
+     */
+    @NonNull
+    public static SqlDialect fromUrl(String url) {
+        checkArgument(url != null, "Argument 'url' is null");
+        return url.startsWith("jdbc:postgresql:") ? POSTGRESQL : MYSQL;
+    }
+
+    /**
+     * Translate query written in MySQL syntax to this dialect.
+     *
+     * @param query SQL query in MySQL syntax
+     * @return query in this dialect
+     */
+    @NonNull
+    public String translate(String query) {
+        checkArgument(query != null, "Argument 'query' is null");
+        if (this == MYSQL) {
+            return query;
+        }
+        String result = BACKTICK.matcher(query).replaceAll("\"");
+        result = IFNULL.matcher(result).replaceAll("COALESCE(");
+        result = CAST_AS_BINARY.matcher(result).replaceAll("$1");
+        return COUNT_ALL.matcher(result).replaceAll("CAST(count(*) AS INTEGER)");
+    }
+
+    /**
+     * Get statements executed on every new connection.
+     *
+     * @return list of SQL statements
+     */
+    @NonNull
+    public List<String> getConnectionInitStatements() {
+        return this == MYSQL
+                ? Collections.singletonList("SET sql_log_bin=OFF")
+                : Collections.singletonList("SET synchronous_commit=OFF");
+    }
+
+    /**
+     * Get statements that tune session for bulk writes.
+     *
+     * @return list of SQL statements
+     */
+    @NonNull
+    public List<String> getBulkWriteStatements() {
+        return this == MYSQL
+                ? Collections.singletonList("SET bulk_insert_buffer_size=" + MYSQL_BULK_INSERT_BUFFER_SIZE)
+                : Collections.emptyList();
+    }
+
+    /**
+     * Get COPY command for batch execution of the insert query if supported.
+     *
+     * @param query translated SQL query
+     * @return "COPY table(columns) FROM STDIN" command or empty if batch of
+     * the query cannot be executed with COPY
+     */
+    @NonNull
+    public Optional<String> getCopyCommand(String query) {
+        checkArgument(query != null, "Argument 'query' is null");
+        if (this != POSTGRESQL) {
+            return Optional.empty();
+        }
+        Matcher m = PLAIN_INSERT.matcher(query);
+        if (!m.matches()) {
+            return Optional.empty();
+        }
+        return Optional.of("COPY " + m.group(1) + "(" + m.group(2).replaceAll("\\s", "") + ") FROM STDIN");
+    }
+
+    /**
+     * Get insert query that skips rows conflicting with existing rows on a
+     * unique key instead of failing. MySQL "INSERT IGNORE" is not used as it
+     * also turns other errors into warnings, so with MySQL the conflicting row
+     * is "updated" with its own value of the first column.
+     *
+     * @param query translated SQL query
+     * @return insert query skipping duplicates or empty if the query is not a
+     * plain "INSERT INTO table(columns)VALUES(...)" statement
+     */
+    @NonNull
+    public Optional<String> getInsertSkippingDuplicates(String query) {
+        checkArgument(query != null, "Argument 'query' is null");
+        Matcher m = PLAIN_INSERT.matcher(query);
+        if (!m.matches()) {
+            return Optional.empty();
+        }
+        String firstColumn = m.group(2).split(",")[0].trim();
+        return Optional.of(query.trim() + (this == MYSQL ? " ON DUPLICATE KEY UPDATE " + firstColumn + "=" + firstColumn : " ON CONFLICT DO NOTHING"));
+    }
+
+    /**
+     * Stream rows to the server with COPY command in text format.
+     *
+     * @param connection PostgreSQL JDBC connection
+     * @param copyCommand command returned by {@link #getCopyCommand}
+     * @param rows rows of parameter values
+     * @return number of rows copied
+     * @throws SQLException on DB error or if PostgreSQL driver is not
+     * available
+     */
+    public long copyIn(Connection connection, String copyCommand, List<Object[]> rows) throws SQLException {
+        checkArgument(connection != null, "Argument 'connection' is null");
+        checkArgument(copyCommand != null, "Argument 'copyCommand' is null");
+        checkArgument(rows != null, "Argument 'rows' is null");
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        StringBuilder sb = new StringBuilder(rows.size() * rows.get(0).length * 16);
+        rows.forEach(row -> appendCopyRow(sb, row));
+        try {
+            Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+            Object copyManager = pgConnectionClass.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnectionClass));
+            return (Long) copyManager.getClass().getMethod("copyIn", String.class, Reader.class).invoke(copyManager, copyCommand, new StringReader(sb.toString()));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new SQLException("PostgreSQL JDBC driver is not available", e);
+        }
+    }
+
+    static void appendCopyRow(StringBuilder sb, Object[] row) {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            Object value = row[i];
+            if (value == null) {
+                sb.append("\\N");
+            } else if (value instanceof byte[]) {
+                sb.append("\\\\x").append(Hex.encodeHex((byte[]) value));
+            } else if (value instanceof Boolean) {
+                sb.append((Boolean) value ? 't' : 'f');
+            } else if (value instanceof Number) {
+                sb.append(value);
+            } else {
+                appendEscaped(sb, value.toString());
+            }
+        }
+        sb.append('\n');
+    }
+
+    private static void appendEscaped(StringBuilder sb, String s) {
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+}
@@ -37,11 +37,14 @@ import org.bitcoinj.core.Address;
 public class DbCachedAddress implements AutoCloseable {
 
     private final Map<SrcAddressType, DbCachedAddressOne> updaters = new HashMap<>();
+    private final Optional<DbWalletRemap> walletRemap;
 
-    public DbCachedAddress(DBConnectionSupplier conn) {
+    public DbCachedAddress(DBConnectionSupplier conn, DbStores stores) {
         checkArgument(conn != null, "Argument 'conn' is null");
+        checkArgument(stores != null, "Argument 'stores' is null");
         Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal)
-                .forEach(t -> updaters.put(t, new DbCachedAddressOne(conn, t)));
+                .forEach(t -> updaters.put(t, new DbCachedAddressOne(conn, stores, t)));
+        walletRemap = stores.getWalletRemap();
     }
 
     @SuppressWarnings("DoubleCheckedLocking")
@@ -55,14 +58,31 @@ public class DbCachedAddress implements AutoCloseable {
         return getOne(btcAddress.getType()).add(btcAddress);
     }
 
+    public void updateWallet(int addressId, int walletId) {
+        getOne(BtcAddress.getTypeFromId(addressId)).updateWallet(addressId, walletId);
+    }
+
     @NonNull
     public Optional<BtcAddress> getAddress(int addressId) {
-        return getOne(BtcAddress.getTypeFromId(addressId)).getAddress(addressId);
+        return getOne(BtcAddress.getTypeFromId(addressId)).getAddress(addressId).map(this::resolveWallet);
     }
 
     @NonNull
     public Optional<BtcAddress> getAddress(Address address) {
-        return getOne(Utils.getBtcAddressType(address.getOutputScriptType())).getAddress(address.getHash());
+        return getOne(Utils.getBtcAddressType(address.getOutputScriptType())).getAddress(address.getHash()).map(this::resolveWallet);
+    }
+
+    /**
+     * Replace wallet id of the address with the canonical one if the wallet
+     * has been merged and the merge is not compacted yet.
+     */
+    @NonNull
+    private BtcAddress resolveWallet(BtcAddress btcAddress) {
+        if (!walletRemap.isPresent()) {
+            return btcAddress;
+        }
+        int walletId = walletRemap.get().resolve(btcAddress.getWalletId());
+        return walletId == btcAddress.getWalletId() ? btcAddress : btcAddress.toBuilder().walletId(walletId).build();
     }
 
     @NonNull
@@ -17,6 +17,9 @@ package com.sliva.btc.scanner.db.facade;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvStore;
 import static com.sliva.btc.scanner.db.facade.DbQueryAddressOne.getAddressTableName;
 import com.sliva.btc.scanner.db.model.BinaryAddress;
 import com.sliva.btc.scanner.db.model.BtcAddress;
@@ -56,6 +59,7 @@ public class DbCachedAddressOne implements AutoCloseable {
     private final SrcAddressType addressType;
     private final DbUpdateAddressOne updateAddress;
     private final DbQueryAddressOne queryAddress;
+    private final Optional<KvStore> kvStore;
     private final LazyInitializer<AtomicInteger> lastAddressId;
     private final Object syncAdd = new Object();
     private final CacheDualKeyNullable<Integer, BinaryAddress, BtcAddress> cache = new CacheDualKeyNullable<>(
@@ -69,13 +73,15 @@ public class DbCachedAddressOne implements AutoCloseable {
         printCacheStatsPeriodSec = cmdArguments.getOption(printCacheStatsOpt).map(Integer::valueOf).orElse(0);
     }
 
-    public DbCachedAddressOne(DBConnectionSupplier conn, SrcAddressType addressType) {
+    public DbCachedAddressOne(DBConnectionSupplier conn, DbStores stores, SrcAddressType addressType) {
         checkArgument(conn != null, "Argument 'conn' is null");
+        checkArgument(stores != null, "Argument 'stores' is null");
         checkArgument(addressType != null, "Argument 'addressType' is null");
         checkArgument(addressType.isReal(), "Argument 'addressType' is not a real type: %s", addressType);
         this.addressType = addressType;
-        updateAddress = new DbUpdateAddressOne(conn, addressType);
+        updateAddress = new DbUpdateAddressOne(conn, stores, addressType);
         queryAddress = new DbQueryAddressOne(conn, addressType);
+        kvStore = stores.getKvStore();
         lastAddressId = new LazyInitializer<>(() -> new AtomicInteger(queryAddress.getLastAddressId()));
         if (printCacheStatsPeriodSec > 0) {
             long msec = TimeUnit.SECONDS.toMillis(printCacheStatsPeriodSec);
@@ -114,6 +120,19 @@ public class DbCachedAddressOne implements AutoCloseable {
         return result;
     }
 
+    /**
+     * Update wallet id of the address. Address still queued for insertion is
+     * updated in the queue.
+     *
+     * @param addressId address id
+     * @param walletId new wallet id
+     */
+    public void updateWallet(int addressId, int walletId) {
+        BtcAddress btcAddress = BtcAddress.builder().type(addressType).addressId(addressId).walletId(walletId).build();
+        getIfPresentInCache(addressId).ifPresent(a -> cache.put(a.toBuilder().walletId(walletId).build()));
+        updateAddress.updateWallet(btcAddress);
+    }
+
     @NonNull
     @SneakyThrows(ExecutionException.class)
     public Optional<BtcAddress> getAddress(int addressId) {
@@ -163,10 +182,17 @@ public class DbCachedAddressOne implements AutoCloseable {
     }
 
     private Optional<BtcAddress> _getAddressNoCache(int id) {
-        return optionalBuilder2o(updateAddress.getCacheData().getAddMapId().get(id), id, queryAddress::findByAddressId);
+        return optionalBuilder2o(updateAddress.getFromCache(id), id, queryAddress::findByAddressId);
     }
 
     private Optional<BtcAddress> _getAddressNoCache(BinaryAddress a) {
-        return optionalBuilder2o(updateAddress.getCacheData().getAddMap().get(a), a, queryAddress::findByAddress);
+        return optionalBuilder2o(updateAddress.getFromCache(a), a, this::_findAddress);
+    }
+
+    @NonNull
+    private Optional<BtcAddress> _findAddress(BinaryAddress a) {
+        Optional<BtcAddress> result = kvStore.flatMap(kv -> kv.get(KvColumnFamily.ADDRESS_ID, KvCodec.encodeAddress(addressType, a.getData())))
+                .map(data -> BtcAddress.builder().type(addressType).address(a.getData()).addressId(KvCodec.decodeInt(data)).build());
+        return result.isPresent() ? result : queryAddress.findByAddress(a);
     }
 }
@@ -19,6 +19,9 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import com.google.common.cache.CacheBuilder;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvStore;
 import com.sliva.btc.scanner.db.model.InOutKey;
 import com.sliva.btc.scanner.db.model.TxOutput;
 import com.sliva.btc.scanner.db.model.TxOutput.TxOutputBuilder;
@@ -53,6 +56,7 @@ public class DbCachedOutput implements AutoCloseable {
 
     private final DbQueryOutput queryOutput;
     private final DbUpdateOutput updateOutput;
+    private final Optional<KvStore> kvStore;
     private final CacheNullableWrapper<InOutKey, TxOutput> cache = new CacheNullableWrapper<>(CacheBuilder.newBuilder()
             .concurrencyLevel(Runtime.getRuntime().availableProcessors())
             .maximumSize(outputCacheSize).recordStats().build());
@@ -63,10 +67,12 @@ public class DbCachedOutput implements AutoCloseable {
         printCacheStatsPeriodSec = cmdArguments.getOption(printCacheStatsOpt).map(Integer::valueOf).orElse(0);
     }
 
-    public DbCachedOutput(DBConnectionSupplier conn) {
+    public DbCachedOutput(DBConnectionSupplier conn, DbStores stores) {
         checkArgument(conn != null, "Argument 'conn' is null");
-        this.queryOutput = new DbQueryOutput(conn);
-        this.updateOutput = new DbUpdateOutput(conn);
+        checkArgument(stores != null, "Argument 'stores' is null");
+        this.queryOutput = new DbQueryOutput(conn, stores);
+        this.updateOutput = new DbUpdateOutput(conn, stores);
+        this.kvStore = stores.getKvStore();
         if (printCacheStatsPeriodSec > 0) {
             long msec = TimeUnit.SECONDS.toMillis(printCacheStatsPeriodSec);
             timer.scheduleAtFixedRate(new TimerTaskWrapper(() -> printCacheStats("output", cache.stats())), msec, msec);
@@ -111,7 +117,7 @@ public class DbCachedOutput implements AutoCloseable {
     @SneakyThrows(ExecutionException.class)
     public Optional<TxOutput> getOutput(InOutKey key) {
         checkArgument(key != null, "Argument 'key' is null");
-        return cache.get(key, () -> optionalBuilder2o(updateOutput.getCacheData().getQueueMap().get(key), key, queryOutput::getOutput));
+        return cache.get(key, () -> optionalBuilder2o(updateOutput.getFromCache(key), key, this::_loadOutput));
     }
 
     @NonNull
@@ -133,6 +139,16 @@ public class DbCachedOutput implements AutoCloseable {
         timer.cancel();
     }
 
+    @NonNull
+    private Optional<TxOutput> _loadOutput(InOutKey key) {
+        if (updateOutput.isDeletePending(key)) {
+            return Optional.empty();
+        }
+        Optional<TxOutput> txOutput = kvStore.flatMap(kv -> kv.get(KvColumnFamily.OUTPUT, KvCodec.encodeOutPoint(key.getTransactionId(), key.getPos())))
+                .map(data -> KvCodec.decodeOutput(key, data));
+        return txOutput.isPresent() ? txOutput : queryOutput.getOutput(key);
+    }
+
     private void updateCacheValue(InOutKey key, Function<TxOutputBuilder<?, ?>, TxOutputBuilder<?, ?>> updater) {
         getIfPresentInCache(key).ifPresent(txOutput -> cache.put(txOutput, Optional.of(updater.apply(txOutput.toBuilder()).build())));
     }
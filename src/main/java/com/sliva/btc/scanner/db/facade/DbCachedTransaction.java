@@ -18,6 +18,10 @@ package com.sliva.btc.scanner.db.facade;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvStore;
+import com.sliva.btc.scanner.db.kv.KvWriteBatch;
 import com.sliva.btc.scanner.db.model.BtcTransaction;
 import com.sliva.btc.scanner.db.model.TXID;
 import com.sliva.btc.scanner.util.CacheDualKeyNullable;
@@ -55,6 +59,7 @@ public class DbCachedTransaction implements AutoCloseable {
 
     private final DbUpdateTransaction updateTransaction;
     private final DbQueryTransaction queryTransaction;
+    private final Optional<KvStore> kvStore;
     private final LazyInitializer<AtomicInteger> lastTransactionId;
     private final Object syncAdd = new Object();
     private final CacheDualKeyNullable<Integer, TXID, BtcTransaction> cache = new CacheDualKeyNullable<>(
@@ -68,11 +73,21 @@ public class DbCachedTransaction implements AutoCloseable {
         printCacheStatsPeriodSec = cmdArguments.getOption(printCacheStatsOpt).map(Integer::valueOf).orElse(0);
     }
 
-    public DbCachedTransaction(DBConnectionSupplier conn) {
+    public DbCachedTransaction(DBConnectionSupplier conn, DbStores stores) {
         checkArgument(conn != null, "Argument 'conn' is null");
-        updateTransaction = new DbUpdateTransaction(conn);
-        queryTransaction = new DbQueryTransaction(conn);
-        lastTransactionId = new LazyInitializer<>(() -> new AtomicInteger(queryTransaction.getLastTransactionId().orElse(0)));
+        checkArgument(stores != null, "Argument 'stores' is null");
+        updateTransaction = new DbUpdateTransaction(conn, stores);
+        queryTransaction = new DbQueryTransaction(conn, stores);
+        kvStore = stores.getKvStore();
+        lastTransactionId = new LazyInitializer<>(() -> {
+            int lastId = queryTransaction.getLastTransactionId().orElse(0);
+            kvStore.ifPresent(kv -> purgeKvAbove(kv, lastId));
+            return new AtomicInteger(lastId);
+        });
+        if (kvStore.isPresent()) {
+            //reconcile key-value store with DB before it is used for lookups
+            lastTransactionId.get();
+        }
         if (printCacheStatsPeriodSec > 0) {
             long msec = TimeUnit.SECONDS.toMillis(printCacheStatsPeriodSec);
             if (CACHE_BY_ID_ENABLED) {
@@ -193,14 +208,14 @@ public class DbCachedTransaction implements AutoCloseable {
     private Optional<BtcTransaction> _getTransactionNoCache(int transactionId) {
         return optionalBuilder2o(
                 updateTransaction.getFromCache(transactionId),
-                transactionId, queryTransaction::findTransaction);
+                transactionId, this::_findTransaction);
     }
 
     @NonNull
     private Optional<BtcTransaction> _getTransactionNoCache(TXID txid) {
         return optionalBuilder2o(
                 updateTransaction.getFromCache(txid),
-                txid, queryTransaction::findTransaction);
+                txid, this::_findTransaction);
     }
 
     @NonNull
@@ -212,6 +227,40 @@ public class DbCachedTransaction implements AutoCloseable {
 
     @NonNull
     private Optional<BtcTransaction> _loadTransactionSimple(TXID txid) {
-        return queryTransaction.findTransactionId(txid).map(id -> BtcTransaction.builder().transactionId(id).txid(txid.getData()).build());
+        Optional<Integer> transactionId = kvStore.flatMap(kv -> kv.get(KvColumnFamily.TRANSACTION_ID, txid.getData())).map(KvCodec::decodeInt);
+        return (transactionId.isPresent() ? transactionId : queryTransaction.findTransactionId(txid)).filter(id -> !updateTransaction.isDeletePending(id))
+                .map(id -> BtcTransaction.builder().transactionId(id).txid(txid.getData()).build());
+    }
+
+    /**
+     * Remove transaction ids above the last one in DB from key-value store.
+     * The store is written right after the SQL batch of the same flush, but
+     * the two writes are not atomic: on crash the database server may lose the
+     * last batches (i.e. with asynchronous commit) while the key-value write
+     * survives, leaving the store ahead of DB. Such entries would map txids to
+     * ids that are about to be assigned to other transactions.
+     */
+    private static void purgeKvAbove(KvStore kv, int lastTransactionId) {
+        KvWriteBatch kvBatch = new KvWriteBatch();
+        AtomicInteger count = new AtomicInteger();
+        kv.scan(KvColumnFamily.TRANSACTION_TXID, KvCodec.encodeInt(lastTransactionId + 1), (k, v) -> {
+            kvBatch.delete(KvColumnFamily.TRANSACTION_TXID, k).delete(KvColumnFamily.TRANSACTION_ID, v);
+            count.incrementAndGet();
+            return true;
+        });
+        if (count.get() > 0) {
+            log.warn("Removing {} transactions above transaction_id {} from key-value store", count.get(), lastTransactionId);
+            kv.write(kvBatch);
+        }
+    }
+
+    @NonNull
+    private Optional<BtcTransaction> _findTransaction(int transactionId) {
+        return updateTransaction.isDeletePending(transactionId) ? Optional.empty() : queryTransaction.findTransaction(transactionId);
+    }
+
+    @NonNull
+    private Optional<BtcTransaction> _findTransaction(TXID txid) {
+        return queryTransaction.findTransaction(txid).filter(tx -> !updateTransaction.isDeletePending(tx.getTransactionId()));
     }
 }
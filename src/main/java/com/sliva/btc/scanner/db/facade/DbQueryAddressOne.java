@@ -23,6 +23,7 @@ import com.sliva.btc.scanner.db.model.BinaryAddress;
 import com.sliva.btc.scanner.db.model.BtcAddress;
 import com.sliva.btc.scanner.db.utils.DBUtils;
 import com.sliva.btc.scanner.src.SrcAddressType;
+import java.sql.SQLException;
 import java.util.Optional;
 import lombok.Getter;
 import lombok.NonNull;
@@ -38,11 +39,13 @@ public class DbQueryAddressOne {
     private static final String SQL_FIND_BY_ADDRESS_ID_NO_WALLET_ID = "SELECT `address` FROM `address_table_name` WHERE address_id=? LIMIT 1";
     private static final String SQL_FIND_BY_ADDRESS = "SELECT address_id FROM `address_table_name` WHERE `address`=? LIMIT 1";
     private static final String SQL_QUERY_WALLET_ID = "SELECT wallet_id FROM `address_table_name` WHERE address_id=? LIMIT 1";
+    private static final String SQL_QUERY_WALLET_IDS = "SELECT address_id,wallet_id FROM `address_table_name` WHERE address_id BETWEEN ? AND ?";
     private static final String SQL_QUERY_LAST_ADDRESS_ID = "SELECT address_id FROM `address_table_name` ORDER BY address_id DESC LIMIT 1";
     private final SrcAddressType addressType;
     private final DBPreparedStatement psFindByAddressId;
     private final DBPreparedStatement psFindByAddress;
     private final DBPreparedStatement psQueryWalletId;
+    private final DBPreparedStatement psQueryWalletIds;
     private final DBPreparedStatement psQueryLastAddressId;
     @Getter
     private final String tableName;
@@ -53,6 +56,7 @@ public class DbQueryAddressOne {
         this.psFindByAddressId = null;
         this.psFindByAddress = null;
         this.psQueryWalletId = null;
+        this.psQueryWalletIds = null;
         this.psQueryLastAddressId = null;
         this.tableName = null;
         this.hasWalletIdField = false;
@@ -69,6 +73,9 @@ public class DbQueryAddressOne {
         this.psQueryWalletId = hasWalletIdField
                 ? conn.prepareStatement(fixTableName(SQL_QUERY_WALLET_ID), tableName + ".address_id")
                 : conn.prepareNonExecutableStatement(fixTableName(SQL_QUERY_WALLET_ID), "Table " + tableName + " does not have field \"wallet_id\"");
+        this.psQueryWalletIds = hasWalletIdField
+                ? conn.prepareStatement(fixTableName(SQL_QUERY_WALLET_IDS), tableName + ".address_id")
+                : conn.prepareNonExecutableStatement(fixTableName(SQL_QUERY_WALLET_IDS), "Table " + tableName + " does not have field \"wallet_id\"");
         this.psQueryLastAddressId = conn.prepareStatement(fixTableName(SQL_QUERY_LAST_ADDRESS_ID), tableName + ".address_id");
     }
 
@@ -107,14 +114,24 @@ public class DbQueryAddressOne {
         return DBUtils.readInteger(psQueryWalletId.setParameters(p -> p.setInt(addressId)));
     }
 
+    /**
+     * Read wallet ids of all addresses in the range.
+     *
+     * @param fromAddressId first address id (inclusive)
+     * @param toAddressId last address id (inclusive)
+     * @param consumer consumer of address id and wallet id
+     * @return number of addresses read
+     */
+    public int queryWalletIds(int fromAddressId, int toAddressId, AddressWalletConsumer consumer) {
+        checkState(addressType != null, "Method not supported due to instance created with no-arguments constructor");
+        checkArgument(consumer != null, "Argument 'consumer' is null");
+        return psQueryWalletIds.setParameters(p -> p.setInt(fromAddressId).setInt(toAddressId)).setFetchSize(toAddressId - fromAddressId + 1)
+                .executeQuery(rs -> consumer.accept(rs.getInt(1), rs.getInt(2)));
+    }
+
     public int getLastAddressId() {
         checkState(addressType != null, "Method not supported due to instance created with no-arguments constructor");
-        return DBUtils.readInteger(psQueryLastAddressId).orElseGet(()
-                -> addressType == SrcAddressType.P2PKH ? BtcAddress.ADDR_P2PKH_MIN
-                        : addressType == SrcAddressType.P2SH ? BtcAddress.ADDR_P2SH_MIN
-                                : addressType == SrcAddressType.P2WPKH ? BtcAddress.ADDR_P2WPKH_MIN
-                                        : addressType == SrcAddressType.P2WSH ? BtcAddress.ADDR_P2WSH_MIN
-                                                : BtcAddress.ADDR_OTHER_MIN);
+        return DBUtils.readInteger(psQueryLastAddressId).orElseGet(() -> BtcAddress.getMinAddressId(addressType));
     }
 
     @NonNull
@@ -135,4 +152,9 @@ public class DbQueryAddressOne {
         checkArgument(addressType != null, "Argument 'addressType' is null");
         return query.replaceAll(ADDRESS_TABLE_NAME, getAddressTableName(addressType));
     }
+
+    public interface AddressWalletConsumer {
+
+        void accept(int addressId, int walletId) throws SQLException;
+    }
 }
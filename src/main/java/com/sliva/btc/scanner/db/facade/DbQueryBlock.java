@@ -17,6 +17,9 @@ package com.sliva.btc.scanner.db.facade;
 
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvStore;
 import com.sliva.btc.scanner.db.utils.DBUtils;
 import com.sliva.btc.scanner.db.model.BtcBlock;
 import com.sliva.btc.scanner.util.Utils;
@@ -35,20 +38,27 @@ public class DbQueryBlock {
     private final DBPreparedStatement psQueryBlockHash;
     private final DBPreparedStatement psFindBlockByHash;
     private final DBPreparedStatement psFindLastHeight;
+    private final Optional<KvStore> kvStore;
 
-    public DbQueryBlock(DBConnectionSupplier conn) {
+    public DbQueryBlock(DBConnectionSupplier conn, DbStores stores) {
         this.psQueryBlockHash = conn.prepareStatement(SQL_QUERY_BLOCK_HASH, "block.height");
         this.psFindBlockByHash = conn.prepareStatement(SQL_FIND_BLOCK_BY_HASH, "block.hash");
         this.psFindLastHeight = conn.prepareStatement(SQL_FIND_LAST_HEIGHT, "block.height");
+        this.kvStore = stores.getKvStore();
     }
 
     @NonNull
     public Optional<byte[]> getBlockHash(int blockHeight) {
-        return psQueryBlockHash.setParameters(ps -> ps.setInt(blockHeight)).querySingleRow(rs -> rs.getBytes(1));
+        return getBlock(blockHeight).map(b -> b.getHash().getData());
     }
 
     @NonNull
     public Optional<BtcBlock> getBlock(int blockHeight) {
+        Optional<BtcBlock> result = kvStore.flatMap(kv -> kv.get(KvColumnFamily.BLOCK, KvCodec.encodeInt(blockHeight)))
+                .map(data -> KvCodec.decodeBlock(blockHeight, data));
+        if (result.isPresent()) {
+            return result;
+        }
         return psQueryBlockHash.setParameters(ps -> ps.setInt(blockHeight)).querySingleRow(rs -> BtcBlock.builder()
                 .height(blockHeight)
                 .hash(rs.getBytes(1))
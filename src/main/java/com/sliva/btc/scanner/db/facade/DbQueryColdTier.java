@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.facade;
+
+import com.google.common.base.Suppliers;
+import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.db.utils.DBUtils;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import lombok.NonNull;
+
+/**
+ * Queries of the cold tier - compressed read-only copies of transaction,
+ * input and output tables with rows of old blocks moved there by
+ * {@link com.sliva.btc.scanner.RunColdTier}. Table "cold_tier" keeps the last
+ * transaction id moved to the cold tier. DB facades query hot tables first
+ * and the cold tier only for transaction ids below that boundary.
+ *
+ * @author Sliva Co
+ */
+public class DbQueryColdTier {
+
+    /**
+     * Period of re-reading the cold tier boundary. Rows are deleted from hot
+     * tables only after the boundary covering them is visible to all readers.
+     */
+    public static final int BOUNDARY_REFRESH_SECONDS = 30;
+    private static final int MAX_ROWS_IN_TXN = 999999;
+    private static final String SQL_QUERY_LAST_TRANSACTION_ID = "SELECT last_transaction_id FROM cold_tier WHERE id=1";
+    private static final String SQL_FIND_TRANSACTION_BY_ID = "SELECT txid,block_height,nInputs,nOutputs FROM transaction_cold WHERE transaction_id=? LIMIT 1";
+    private static final String SQL_FIND_TRANSACTION_BY_TXID = "SELECT transaction_id,block_height,nInputs,nOutputs FROM transaction_cold WHERE txid=? LIMIT 1";
+    private static final String SQL_QUERY_TXNS_RANGE = "SELECT transaction_id,txid,block_height,nInputs,nOutputs FROM transaction_cold WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_QUERY_TRANSACTIONS_IN_BLOCK = "SELECT transaction_id,txid,nInputs,nOutputs FROM transaction_cold WHERE block_height=?";
+    private static final String SQL_QUERY_OUTPUTS = "SELECT pos,address_id,amount,spent FROM output_cold WHERE transaction_id=? LIMIT " + MAX_ROWS_IN_TXN;
+    private static final String SQL_QUERY_INPUTS = "SELECT pos,in_transaction_id,in_pos FROM input_cold WHERE transaction_id=? ORDER BY pos LIMIT " + MAX_ROWS_IN_TXN;
+    private static final String SQL_FIND_INPUT_BY_OUT_TX = "SELECT transaction_id,pos FROM input_cold WHERE in_transaction_id=? AND in_pos=? LIMIT 1";
+
+    private final DBPreparedStatement psQueryLastTransactionId;
+    private final DBPreparedStatement psFindTransactionById;
+    private final DBPreparedStatement psFindTransactionByTxid;
+    private final DBPreparedStatement psQueryTxnsRange;
+    private final DBPreparedStatement psQueryTransactionsInBlock;
+    private final DBPreparedStatement psQueryOutputs;
+    private final DBPreparedStatement psQueryInputs;
+    private final DBPreparedStatement psFindInputByOutTx;
+    private final Supplier<Integer> lastTransactionId;
+
+    private DbQueryColdTier(DBConnectionSupplier conn) {
+        this.psQueryLastTransactionId = conn.prepareStatement(SQL_QUERY_LAST_TRANSACTION_ID);
+        this.psFindTransactionById = conn.prepareStatement(SQL_FIND_TRANSACTION_BY_ID, "transaction_cold.transaction_id");
+        this.psFindTransactionByTxid = conn.prepareStatement(SQL_FIND_TRANSACTION_BY_TXID, "transaction_cold.txid");
+        this.psQueryTxnsRange = conn.prepareStatement(SQL_QUERY_TXNS_RANGE, "transaction_cold.transaction_id");
+        this.psQueryTransactionsInBlock = conn.prepareStatement(SQL_QUERY_TRANSACTIONS_IN_BLOCK, "transaction_cold.block_height");
+        this.psQueryOutputs = conn.prepareStatement(SQL_QUERY_OUTPUTS, "output_cold.transaction_id");
+        this.psQueryInputs = conn.prepareStatement(SQL_QUERY_INPUTS, "input_cold.transaction_id");
+        this.psFindInputByOutTx = conn.prepareStatement(SQL_FIND_INPUT_BY_OUT_TX, "input_cold.in_transaction_id");
+        this.lastTransactionId = Suppliers.memoizeWithExpiration(() -> DBUtils.readInteger(psQueryLastTransactionId).orElse(0), BOUNDARY_REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create cold tier queries if cold tier tables exist in DB.
+     *
+     * @param conn DB connection supplier
+     * @return cold tier queries or empty if DB has no cold tier
+     */
+    @NonNull
+    public static Optional<DbQueryColdTier> create(DBConnectionSupplier conn) {
+        return conn.getDBMetaData().hasTable("cold_tier") ? Optional.of(new DbQueryColdTier(conn)) : Optional.empty();
+    }
+
+    /**
+     * Get last transaction id moved to the cold tier. Value is cached for
+     * {@link #BOUNDARY_REFRESH_SECONDS}.
+     *
+     * @return last transaction id or 0 if cold tier is empty
+     */
+    public int getLastTransactionId() {
+        return lastTransactionId.get();
+    }
+
+    public boolean contains(int transactionId) {
+        return transactionId <= getLastTransactionId();
+    }
+
+    @NonNull
+    public Optional<BtcTransaction> findTransaction(int transactionId) {
+        return psFindTransactionById.setParameters(ps -> ps.setInt(transactionId)).querySingleRow(
+                rs -> BtcTransaction.builder()
+                        .transactionId(transactionId)
+                        .txid(rs.getBytes(1))
+                        .blockHeight(rs.getInt(2))
+                        .nInputs(rs.getInt(3))
+                        .nOutputs(rs.getInt(4))
+                        .build());
+    }
+
+    @NonNull
+    public Optional<BtcTransaction> findTransaction(byte[] txid) {
+        return psFindTransactionByTxid.setParameters(ps -> ps.setBytes(txid)).querySingleRow(
+                rs -> BtcTransaction.builder()
+                        .transactionId(rs.getInt(1))
+                        .txid(txid)
+                        .blockHeight(rs.getInt(2))
+                        .nInputs(rs.getInt(3))
+                        .nOutputs(rs.getInt(4))
+                        .build());
+    }
+
+    @NonNull
+    public List<BtcTransaction> getTransactions(int startTransactionId, int endTransactionId) {
+        return psQueryTxnsRange.setParameters(ps -> ps.setInt(startTransactionId).setInt(endTransactionId)).executeQueryToList(
+                rs -> BtcTransaction.builder()
+                        .transactionId(rs.getInt(1))
+                        .txid(rs.getBytes(2))
+                        .blockHeight(rs.getInt(3))
+                        .nInputs(rs.getInt(4))
+                        .nOutputs(rs.getInt(5))
+                        .build());
+    }
+
+    @NonNull
+    public List<BtcTransaction> getTransactionsInBlock(int blockHeight) {
+        return psQueryTransactionsInBlock.setParameters(ps -> ps.setInt(blockHeight)).executeQueryToList(
+                rs -> BtcTransaction.builder()
+                        .transactionId(rs.getInt(1))
+                        .txid(rs.getBytes(2))
+                        .blockHeight(blockHeight)
+                        .nInputs(rs.getInt(3))
+                        .nOutputs(rs.getInt(4))
+                        .build());
+    }
+
+    @NonNull
+    public List<TxOutput> findOutputs(int transactionId) {
+        return psQueryOutputs.setParameters(ps -> ps.setInt(transactionId)).executeQueryToList(
+                rs -> TxOutput.builder()
+                        .transactionId(transactionId)
+                        .pos(rs.getShort(1))
+                        .addressId(rs.getInt(2))
+                        .amount(rs.getLong(3))
+                        .status(rs.getByte(4))
+                        .build());
+    }
+
+    @NonNull
+    public Optional<TxOutput> findOutput(int transactionId, short pos) {
+        return findOutputs(transactionId).stream().filter(o -> o.getPos() == pos).findAny();
+    }
+
+    @NonNull
+    public List<TxInput> findInputs(int transactionId) {
+        return psQueryInputs.setParameters(ps -> ps.setInt(transactionId)).executeQueryToList(
+                rs -> TxInput.builder()
+                        .transactionId(transactionId)
+                        .pos(rs.getShort(1))
+                        .inTransactionId(rs.getInt(2))
+                        .inPos(rs.getShort(3))
+                        .build());
+    }
+
+    @NonNull
+    public Optional<TxInput> findInputByOutTx(int inTransactionId, short inPos) {
+        return psFindInputByOutTx.setParameters(ps -> ps.setInt(inTransactionId).setShort(inPos)).querySingleRow(
+                rs -> TxInput.builder()
+                        .transactionId(rs.getInt(1))
+                        .pos(rs.getShort(2))
+                        .inTransactionId(inTransactionId)
+                        .inPos(inPos)
+                        .build());
+    }
+}
@@ -17,14 +17,21 @@ package com.sliva.btc.scanner.db.facade;
 
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvStore;
 import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.model.OutputStatus;
 import com.sliva.btc.scanner.db.model.TxInput;
 import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.db.segment.SegmentStore;
 import com.sliva.btc.scanner.db.utils.DBUtils;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NonNull;
@@ -39,6 +46,7 @@ import lombok.extern.slf4j.Slf4j;
 public class DbQueryInput {
 
     private static final int MAX_INS_IN_TXN = 99999;
+    private static final int IN_LIST_SIZE = 100;
     private static final String SQL_QUERY_INPUTS = "SELECT pos,in_transaction_id,in_pos FROM input WHERE transaction_id=? ORDER BY pos LIMIT " + MAX_INS_IN_TXN;
     private static final String SQL_COUNT_INPUTS_IN_TX = "SELECT count(*) FROM input WHERE transaction_id=? LIMIT 1";
     private static final String SQL_FIND_INPUT_BY_OUT_TX = "SELECT transaction_id,pos FROM input WHERE in_transaction_id=? AND in_pos=? LIMIT 1";
@@ -57,17 +65,42 @@ public class DbQueryInput {
             + " LEFT JOIN address_p2wpkh P2WPKH ON P2WPKH.address_id=O.address_id"
             + " LEFT JOIN address_p2wsh P2WSH ON P2WSH.address_id=O.address_id"
             + " WHERE O.address_id>0 AND I.transaction_id=? LIMIT " + MAX_INS_IN_TXN;
+    private static final String SQL_QUERY_INPUT_ADDRESSES_IN_LIST
+            = SQL_QUERY_INPUT_ADDRESSES.replace("I.transaction_id=? LIMIT " + MAX_INS_IN_TXN, "I.transaction_id IN (" + DBUtils.inListPlaceholders(IN_LIST_SIZE) + ")");
+    private static final String SQL_QUERY_OUTPUT = "SELECT address_id,amount,spent FROM output WHERE transaction_id=? AND pos=? LIMIT 1";
+    private static final String SQL_QUERY_OUTPUT_ADDRESS
+            = "SELECT O.address_id,IFNULL(P2PKH.wallet_id, IFNULL(P2SH.wallet_id, IFNULL(P2WPKH.wallet_id, P2WSH.wallet_id)))"
+            + " FROM output O"
+            + " LEFT JOIN address_p2pkh P2PKH ON P2PKH.address_id=O.address_id"
+            + " LEFT JOIN address_p2sh P2SH ON P2SH.address_id=O.address_id"
+            + " LEFT JOIN address_p2wpkh P2WPKH ON P2WPKH.address_id=O.address_id"
+            + " LEFT JOIN address_p2wsh P2WSH ON P2WSH.address_id=O.address_id"
+            + " WHERE O.address_id>0 AND O.transaction_id=? AND O.pos=? LIMIT 1";
 //    private static final String SQL_QUERY_TRANSACTION_IDS_ABOVE = "SELECT DISTINCT transaction_id FROM input WHERE transaction_id>? LIMIT " + MAX_INS_IN_TXN;
     private final DBPreparedStatement psQueryInputs;
     private final DBPreparedStatement psCountInputsInTx;
     private final DBPreparedStatement psFindInputByOutTx;
     private final DBPreparedStatement psQueryInputsWithOutput;
     private final DBPreparedStatement psQueryInputAddresses;
+    private final DBPreparedStatement psQueryInputAddressesInList;
+    private final DBPreparedStatement psQueryOutput;
+    private final DBPreparedStatement psQueryOutputAddress;
 //    private final DBPreparedStatement psQueryTransactionIdsAbove;
     private final boolean hasSpentField;
+    private final boolean sharded;
+    private final Optional<KvStore> kvStore;
+    private final Optional<SegmentStore> segmentStore;
+    private final Optional<DbQueryColdTier> coldTier;
+    private final boolean splitJoins;
+    private final DbQueryAddress queryAddress;
 
-    public DbQueryInput(DBConnectionSupplier conn) {
+    public DbQueryInput(DBConnectionSupplier conn, DbStores stores) {
         this.hasSpentField = conn.getDBMetaData().hasField("output.spent");
+        this.sharded = conn.isSharded();
+        this.kvStore = stores.getKvStore();
+        this.segmentStore = stores.getSegmentStore();
+        this.coldTier = DbQueryColdTier.create(conn);
+        this.splitJoins = sharded || segmentStore.isPresent() || coldTier.isPresent();
         this.psQueryInputs = conn.prepareStatement(SQL_QUERY_INPUTS, "input.transaction_id");
         this.psCountInputsInTx = conn.prepareStatement(SQL_COUNT_INPUTS_IN_TX, "input.transaction_id");
         this.psFindInputByOutTx = conn.prepareStatement(SQL_FIND_INPUT_BY_OUT_TX, "input.in_transaction_id");
@@ -76,12 +109,24 @@ public class DbQueryInput {
         this.psQueryInputAddresses = conn.prepareStatement(SQL_QUERY_INPUT_ADDRESSES,
                 "input.transaction_id", "output.transaction_id",
                 "address_p2pkh.address_id", "address_p2sh.address_id", "address_p2wpkh.address_id", "address_p2wsh.address_id");
+        this.psQueryInputAddressesInList = splitJoins ? null : conn.prepareStatement(SQL_QUERY_INPUT_ADDRESSES_IN_LIST,
+                "input.transaction_id", "output.transaction_id",
+                "address_p2pkh.address_id", "address_p2sh.address_id", "address_p2wpkh.address_id", "address_p2wsh.address_id");
+        this.psQueryOutput = splitJoins ? conn.prepareStatement(hasSpentField ? SQL_QUERY_OUTPUT : SQL_QUERY_OUTPUT.replace(",spent", ""), "output.transaction_id") : null;
+        this.psQueryOutputAddress = splitJoins ? conn.prepareStatement(SQL_QUERY_OUTPUT_ADDRESS,
+                "output.transaction_id", "address_p2pkh.address_id", "address_p2sh.address_id", "address_p2wpkh.address_id", "address_p2wsh.address_id") : null;
 //        this.psQueryTransactionIdsAbove = conn.prepareStatement(SQL_QUERY_TRANSACTION_IDS_ABOVE);
+        this.queryAddress = segmentStore.isPresent() || coldTier.isPresent() ? new DbQueryAddress(conn) : null;
     }
 
     @NonNull
     public List<TxInput> findInputsByTransactionId(int transactionId) {
-        return psQueryInputs
+        Optional<SegmentStore> archive = getArchive(transactionId);
+        if (archive.isPresent()) {
+            return archive.get().findInputs(transactionId);
+        }
+        List<TxInput> result = psQueryInputs
+                .onShard(transactionId)
                 .setParameters(ps -> ps.setInt(transactionId))
                 .executeQueryToList(
                         rs -> TxInput.builder()
@@ -90,27 +135,64 @@ public class DbQueryInput {
                                 .inTransactionId(rs.getInt(2))
                                 .inPos(rs.getShort(3))
                                 .build());
+        if (result.isEmpty() && isCold(transactionId)) {
+            return coldTier.get().findInputs(transactionId);
+        }
+        return result;
     }
 
     public int countInputsByTransactionId(int transactionId) {
-        return DBUtils.readInteger(psCountInputsInTx.setParameters(ps -> ps.setInt(transactionId))).orElse(0);
+        return DBUtils.readInteger(psCountInputsInTx.onShard(transactionId).setParameters(ps -> ps.setInt(transactionId))).orElse(0);
     }
 
     @NonNull
     public Optional<TxInput> findInputByOutTx(int inTransactionId, short inPos) {
-        return psFindInputByOutTx
-                .setParameters(ps -> ps.setInt(inTransactionId).setInt(inPos))
-                .querySingleRow(
+        Optional<TxInput> result = kvStore.flatMap(kv -> kv.get(KvColumnFamily.SPENT_BY, KvCodec.encodeOutPoint(inTransactionId, inPos)))
+                .map(KvCodec::decodeOutPoint)
+                .map(key -> TxInput.builder()
+                .transactionId(key.getTransactionId())
+                .pos(key.getPos())
+                .inTransactionId(inTransactionId)
+                .inPos(inPos)
+                .build());
+        if (!result.isPresent() && segmentStore.isPresent()) {
+            result = segmentStore.get().findInputByOutTx(inTransactionId, inPos);
+        }
+        if (result.isPresent()) {
+            return result;
+        }
+        result = psFindInputByOutTx
+                .querySingleRowOnAllShards(ps -> ps.setInt(inTransactionId).setInt(inPos),
                         rs -> TxInput.builder()
                                 .transactionId(rs.getInt(1))
                                 .pos(rs.getShort(2))
                                 .inTransactionId(inTransactionId)
                                 .inPos(inPos)
                                 .build());
+        if (!result.isPresent() && isCold(inTransactionId)) {
+            return coldTier.get().findInputByOutTx(inTransactionId, inPos);
+        }
+        return result;
     }
 
+    /**
+     * Get inputs of the transaction with outputs they spend. If DB is sharded
+     * or segment archive or cold tier is configured, then spent outputs are
+     * looked up separately on their owning shards, segments or tiers.
+     *
+     * @param transactionId transaction id
+     * @return inputs with spent outputs
+     */
     @NonNull
     public List<TxInputOutput> getInputsWithOutput(int transactionId) {
+        if (splitJoins) {
+            return findInputsByTransactionId(transactionId).stream()
+                    .map(input -> TxInputOutput.builder()
+                    .input(input)
+                    .output(findSpentOutput(input).orElse(null))
+                    .build())
+                    .collect(Collectors.toList());
+        }
         return psQueryInputsWithOutput
                 .setParameters(ps -> ps.setInt(transactionId))
                 .executeQueryToList(
@@ -137,6 +219,12 @@ public class DbQueryInput {
 
     @NonNull
     public Collection<BtcAddress> getInputAddresses(int transactionId) {
+        if (splitJoins) {
+            return findInputsByTransactionId(transactionId).stream()
+                    .map(this::findSpentOutputAddress)
+                    .filter(Optional::isPresent).map(Optional::get)
+                    .collect(Collectors.toList());
+        }
         return psQueryInputAddresses
                 .setParameters(ps -> ps.setInt(transactionId))
                 .executeQueryToList(
@@ -146,9 +234,88 @@ public class DbQueryInput {
                                 .build());
     }
 
+    /**
+     * Get addresses spent by inputs of the transactions. Transactions are
+     * queried in chunks with IN list instead of a query per transaction.
+     *
+     * @param transactionIds transaction ids
+     * @return addresses, the same address may be returned multiple times
+     */
+    @NonNull
+    public Collection<BtcAddress> getInputAddresses(Collection<Integer> transactionIds) {
+        if (splitJoins) {
+            return transactionIds.stream().flatMap(t -> getInputAddresses(t).stream()).collect(Collectors.toList());
+        }
+        List<BtcAddress> result = new ArrayList<>();
+        DBUtils.executeQueryInChunks(psQueryInputAddressesInList, IN_LIST_SIZE, transactionIds,
+                rs -> result.add(BtcAddress.builder()
+                        .addressId(rs.getInt(1))
+                        .walletId(rs.getInt(2))
+                        .build()));
+        return result;
+    }
+
     @NonNull
     public Set<Integer> getTransactionIdsAbove(int transactionId) {
-        return DBUtils.readIntegersToSet(psQueryInputs.setParameters(ps -> ps.setInt(transactionId)));
+        return DBUtils.readIntegersToSet(psQueryInputs.onShard(transactionId).setParameters(ps -> ps.setInt(transactionId)));
+    }
+
+    @NonNull
+    private Optional<SegmentStore> getArchive(int transactionId) {
+        return segmentStore.filter(s -> s.contains(transactionId));
+    }
+
+    private boolean isCold(int transactionId) {
+        return coldTier.isPresent() && coldTier.get().contains(transactionId);
+    }
+
+    @NonNull
+    private Optional<TxOutput> findSpentOutput(TxInput input) {
+        Optional<SegmentStore> archive = getArchive(input.getInTransactionId());
+        if (archive.isPresent()) {
+            return archive.get().findOutput(input.getInTransactionId(), input.getInPos()).map(o -> o.toBuilder().status(OutputStatus.SPENT).build());
+        }
+        Optional<TxOutput> result = psQueryOutput.onShard(input.getInTransactionId())
+                .setParameters(ps -> ps.setInt(input.getInTransactionId()).setShort(input.getInPos()))
+                .querySingleRow(rs -> TxOutput.builder()
+                        .transactionId(input.getInTransactionId())
+                        .pos(input.getInPos())
+                        .addressId(rs.getInt(1))
+                        .amount(rs.getLong(2))
+                        .status(hasSpentField ? rs.getByte(3) : 0)
+                        .build());
+        if (!result.isPresent() && isCold(input.getInTransactionId())) {
+            return coldTier.get().findOutput(input.getInTransactionId(), input.getInPos()).map(o -> o.toBuilder().status(OutputStatus.SPENT).build());
+        }
+        return result;
+    }
+
+    @NonNull
+    private Optional<BtcAddress> findSpentOutputAddress(TxInput input) {
+        Optional<SegmentStore> archive = getArchive(input.getInTransactionId());
+        if (archive.isPresent()) {
+            return archive.get().findOutput(input.getInTransactionId(), input.getInPos())
+                    .filter(o -> o.getAddressId() > 0)
+                    .map(o -> BtcAddress.builder()
+                    .addressId(o.getAddressId())
+                    .walletId(queryAddress.getWalletId(o.getAddressId()).orElse(0))
+                    .build());
+        }
+        Optional<BtcAddress> result = psQueryOutputAddress.onShard(input.getInTransactionId())
+                .setParameters(ps -> ps.setInt(input.getInTransactionId()).setShort(input.getInPos()))
+                .querySingleRow(rs -> BtcAddress.builder()
+                        .addressId(rs.getInt(1))
+                        .walletId(rs.getInt(2))
+                        .build());
+        if (!result.isPresent() && isCold(input.getInTransactionId())) {
+            return coldTier.get().findOutput(input.getInTransactionId(), input.getInPos())
+                    .filter(o -> o.getAddressId() > 0)
+                    .map(o -> BtcAddress.builder()
+                    .addressId(o.getAddressId())
+                    .walletId(queryAddress.getWalletId(o.getAddressId()).orElse(0))
+                    .build());
+        }
+        return result;
     }
 
     @Getter
@@ -45,6 +45,7 @@ public class DbQueryInputSpecial {
     @NonNull
     public Optional<TxInputSpecial> getInput(int transactionId, short pos) throws SQLException {
         return psQueryInput
+                .onShard(transactionId)
                 .setParameters(ps -> ps.setInt(transactionId).setShort(pos))
                 .querySingleRow(
                         rs -> TxInputSpecial.builder()
@@ -58,6 +59,7 @@ public class DbQueryInputSpecial {
 
     public List<TxInputSpecial> getInputs(int transactionId) throws SQLException {
         return psQueryInputs
+                .onShard(transactionId)
                 .setParameters(ps -> ps.setInt(transactionId))
                 .executeQueryToList(
                         rs -> TxInputSpecial.builder()
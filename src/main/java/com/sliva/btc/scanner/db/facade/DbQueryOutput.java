@@ -21,15 +21,21 @@ import com.sliva.btc.scanner.db.DBPreparedStatement;
 import static com.sliva.btc.scanner.db.facade.DbQueryAddressOne.getAddressTableName;
 import static com.sliva.btc.scanner.db.facade.DbQueryAddressOne.updateQueryTableName;
 import com.sliva.btc.scanner.db.model.InOutKey;
+import com.sliva.btc.scanner.db.model.OutputStatus;
 import com.sliva.btc.scanner.db.model.TxInput;
 import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.db.segment.SegmentStore;
 import com.sliva.btc.scanner.db.utils.DBUtils;
+import com.sliva.btc.scanner.db.utils.DbResultSetUtils.QueryResultProcessor;
 import com.sliva.btc.scanner.src.SrcAddressType;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import lombok.Builder;
 import lombok.Getter;
@@ -44,6 +50,7 @@ import lombok.experimental.SuperBuilder;
 public class DbQueryOutput {
 
     private static final int MAX_OUTS_IN_TXN = 999999;
+    private static final int IN_LIST_SIZE = 100;
     private static final String SQL_QUERY_OUTPUTS = "SELECT pos,address_id,amount,spent"
             + " FROM `output` WHERE transaction_id=? LIMIT " + MAX_OUTS_IN_TXN;
     private static final String SQL_COUNT_OUTPUTS_IN_TX = "SELECT count(*) FROM `output` WHERE transaction_id=? LIMIT 1";
@@ -60,28 +67,54 @@ public class DbQueryOutput {
             + " INNER JOIN address_table_name A ON A.address_id=O.address_id"
             + " INNER JOIN wallet W ON W.wallet_id=A.wallet_id"
             + " WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_QUERY_OUTPUTS_BY_ADDRESS = "SELECT transaction_id,pos,address_id,amount FROM `output` WHERE address_id=?";
+    private static final String SQL_QUERY_OUTPUTS_BY_ADDRESS_IN_LIST
+            = SQL_QUERY_OUTPUTS_BY_ADDRESS.replace("address_id=?", "address_id IN (" + DBUtils.inListPlaceholders(IN_LIST_SIZE) + ")");
+    private static final String SQL_QUERY_SPENDING_INPUT = "SELECT transaction_id,pos FROM `input` WHERE in_transaction_id=? AND in_pos=? LIMIT 1";
     private final String tableName = "output";
     private final DBPreparedStatement psQueryOutputs;
     private final DBPreparedStatement psCountOutputsInTx;
     private final DBPreparedStatement psQueryOutput;
     private final DBPreparedStatement psQueryOutputsWithInput;
     private final Map<SrcAddressType, DBPreparedStatement> psQueryOutputsInTxnRange = new HashMap<>();
+    private final Map<SrcAddressType, DBPreparedStatement> psQueryColdOutputsInTxnRange = new HashMap<>();
+    private final DBPreparedStatement psQuerySpendingInput;
+    private final DBPreparedStatement psQueryOutputsByAddress;
+    private final DBPreparedStatement psQueryOutputsByAddressInList;
     private final boolean hasSpentField;
+    private final boolean sharded;
+    private final Optional<SegmentStore> segmentStore;
+    private final Optional<DbQueryColdTier> coldTier;
 
-    public DbQueryOutput(DBConnectionSupplier conn) {
+    public DbQueryOutput(DBConnectionSupplier conn, DbStores stores) {
         checkArgument(conn != null, "Argument 'conn' is null");
+        checkArgument(stores != null, "Argument 'stores' is null");
         this.hasSpentField = conn.getDBMetaData().hasField(tableName + ".spent");
+        this.sharded = conn.isSharded();
+        this.segmentStore = stores.getSegmentStore();
+        this.coldTier = DbQueryColdTier.create(conn);
         this.psQueryOutputs = conn.prepareStatement(hasSpentField ? SQL_QUERY_OUTPUTS : SQL_QUERY_OUTPUTS.replace(",spent", ""), "output.transaction_id");
         this.psCountOutputsInTx = conn.prepareStatement(SQL_COUNT_OUTPUTS_IN_TX, "output.transaction_id");
         this.psQueryOutput = conn.prepareStatement(hasSpentField ? SQL_QUERY_OUTPUT : SQL_QUERY_OUTPUT.replace(",spent", ""), "output.transaction_id");
         this.psQueryOutputsWithInput = conn.prepareStatement(hasSpentField ? SQL_QUERY_OUTPUTS_WITH_INPUT : SQL_QUERY_OUTPUTS_WITH_INPUT.replace(",slent", ""), "output.transaction_id", "input.transaction_id");
         Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach(t -> psQueryOutputsInTxnRange.put(t,
                 conn.prepareStatement(updateQueryTableName(hasSpentField ? SQL_QUERY_OUTPUTS_IN_TXN_RANGE : SQL_QUERY_OUTPUTS_IN_TXN_RANGE.replace(",spent", ""), t), "output.transaction_id", getAddressTableName(t) + ".address_id", "wallet.wallet_id")));
+        if (coldTier.isPresent()) {
+            Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach(t -> psQueryColdOutputsInTxnRange.put(t,
+                    conn.prepareStatement(updateQueryTableName(SQL_QUERY_OUTPUTS_IN_TXN_RANGE.replace("FROM `output` O", "FROM output_cold O"), t), "output_cold.transaction_id", getAddressTableName(t) + ".address_id", "wallet.wallet_id")));
+        }
+        this.psQueryOutputsByAddress = sharded ? conn.prepareStatement(SQL_QUERY_OUTPUTS_BY_ADDRESS, "output.address_id") : null;
+        this.psQueryOutputsByAddressInList = sharded ? null : conn.prepareStatement(SQL_QUERY_OUTPUTS_BY_ADDRESS_IN_LIST, "output.address_id");
+        this.psQuerySpendingInput = sharded || segmentStore.isPresent() || coldTier.isPresent() ? conn.prepareStatement(SQL_QUERY_SPENDING_INPUT, "input.in_transaction_id") : null;
     }
 
     @NonNull
     public List<TxOutput> findOutputsByTransactionId(int transactionId) {
-        return psQueryOutputs.setParameters(ps -> ps.setInt(transactionId)).executeQueryToList(rs
+        Optional<SegmentStore> archive = getArchive(transactionId);
+        if (archive.isPresent()) {
+            return archive.get().findOutputs(transactionId).stream().map(this::updateArchivedStatus).collect(Collectors.toList());
+        }
+        List<TxOutput> result = psQueryOutputs.onShard(transactionId).setParameters(ps -> ps.setInt(transactionId)).executeQueryToList(rs
                 -> TxOutput.builder()
                         .transactionId(transactionId)
                         .pos(rs.getShort(1))
@@ -89,10 +122,14 @@ public class DbQueryOutput {
                         .amount(rs.getLong(3))
                         .status(hasSpentField ? rs.getByte(4) : 0)
                         .build());
+        if (result.isEmpty() && isCold(transactionId)) {
+            return coldTier.get().findOutputs(transactionId).stream().map(this::updateArchivedStatus).collect(Collectors.toList());
+        }
+        return result;
     }
 
     public int countOutputsByTransactionId(int transactionId) {
-        return DBUtils.readInteger(psCountOutputsInTx.setParameters(ps -> ps.setInt(transactionId))).orElse(0);
+        return DBUtils.readInteger(psCountOutputsInTx.onShard(transactionId).setParameters(ps -> ps.setInt(transactionId))).orElse(0);
     }
 
     @NonNull
@@ -102,17 +139,41 @@ public class DbQueryOutput {
 
     @NonNull
     public Optional<TxOutput> getOutput(int transactionId, short pos) {
-        return psQueryOutput.setParameters(ps -> ps.setInt(transactionId).setShort(pos)).querySingleRow(rs -> TxOutput.builder()
+        Optional<SegmentStore> archive = getArchive(transactionId);
+        if (archive.isPresent()) {
+            return archive.get().findOutput(transactionId, pos).map(this::updateArchivedStatus);
+        }
+        Optional<TxOutput> result = psQueryOutput.onShard(transactionId).setParameters(ps -> ps.setInt(transactionId).setShort(pos)).querySingleRow(rs -> TxOutput.builder()
                 .transactionId(transactionId)
                 .pos(pos)
                 .addressId(rs.getInt(1))
                 .amount(rs.getLong(2))
                 .status(hasSpentField ? rs.getByte(3) : 0)
                 .build());
+        if (!result.isPresent() && isCold(transactionId)) {
+            return coldTier.get().findOutput(transactionId, pos).map(this::updateArchivedStatus);
+        }
+        return result;
     }
 
+    /**
+     * Get outputs of the transaction with inputs spending them. If DB is
+     * sharded or transaction is archived or in the cold tier, then spending
+     * inputs are looked up separately.
+     *
+     * @param transactionId transaction id
+     * @return outputs with spending inputs
+     */
     @NonNull
     public List<TxOutputInput> getOutputsWithInput(int transactionId) {
+        if (sharded || getArchive(transactionId).isPresent() || isCold(transactionId)) {
+            return findOutputsByTransactionId(transactionId).stream()
+                    .map(output -> TxOutputInput.builder()
+                    .output(output)
+                    .input(findSpendingInput(transactionId, output.getPos()).orElse(null))
+                    .build())
+                    .collect(Collectors.toList());
+        }
         return psQueryOutputsWithInput.setParameters(ps -> ps.setInt(transactionId)).executeQueryToList(rs -> {
             TxOutputInput.TxOutputInputBuilder builder = TxOutputInput.builder();
             builder.output(TxOutput.builder()
@@ -134,12 +195,93 @@ public class DbQueryOutput {
         });
     }
 
+    /**
+     * Get outputs of the addresses from the output table. Addresses are
+     * queried in chunks with IN list, or one by one on all shards if DB is
+     * sharded. Outputs archived to segments or moved to the cold tier are not
+     * included.
+     *
+     * @param addressIds address ids
+     * @return outputs without status
+     */
+    @NonNull
+    public List<TxOutput> getOutputsByAddresses(Collection<Integer> addressIds) {
+        checkArgument(addressIds != null, "Argument 'addressIds' is null");
+        List<TxOutput> result = new ArrayList<>();
+        QueryResultProcessor<TxOutput> processor = rs -> TxOutput.builder()
+                .transactionId(rs.getInt(1))
+                .pos(rs.getShort(2))
+                .addressId(rs.getInt(3))
+                .amount(rs.getLong(4))
+                .build();
+        if (sharded) {
+            addressIds.forEach(addressId -> result.addAll(psQueryOutputsByAddress.executeQueryToListOnAllShards(ps -> ps.setInt(addressId), processor)));
+        } else {
+            DBUtils.executeQueryInChunks(psQueryOutputsByAddressInList, IN_LIST_SIZE, addressIds, rs -> result.add(processor.apply(rs)));
+        }
+        return result;
+    }
+
+    @NonNull
+    private Optional<SegmentStore> getArchive(int transactionId) {
+        return segmentStore.filter(s -> s.contains(transactionId));
+    }
+
+    private boolean isCold(int transactionId) {
+        return coldTier.isPresent() && coldTier.get().contains(transactionId);
+    }
+
+    /**
+     * Find input spending the output in segments, then in DB and then in the
+     * cold tier.
+     */
+    @NonNull
+    private Optional<TxInput> findSpendingInput(int transactionId, short pos) {
+        Optional<TxInput> result = segmentStore.flatMap(s -> s.findInputByOutTx(transactionId, pos));
+        if (result.isPresent()) {
+            return result;
+        }
+        result = psQuerySpendingInput.querySingleRowOnAllShards(ps -> ps.setInt(transactionId).setShort(pos),
+                rs -> TxInput.builder()
+                        .transactionId(rs.getInt(1))
+                        .pos(rs.getShort(2))
+                        .inTransactionId(transactionId)
+                        .inPos(pos)
+                        .build());
+        if (!result.isPresent() && isCold(transactionId)) {
+            return coldTier.get().findInputByOutTx(transactionId, pos);
+        }
+        return result;
+    }
+
+    /**
+     * Archived and cold outputs keep spent status at the time of moving out of
+     * hot tables. Outputs moved as unspent might be spent later, so their
+     * status is resolved by looking up the spending input.
+     */
+    @NonNull
+    private TxOutput updateArchivedStatus(TxOutput txOutput) {
+        if (txOutput.getStatus() != OutputStatus.UNSPENT || !findSpendingInput(txOutput.getTransactionId(), txOutput.getPos()).isPresent()) {
+            return txOutput;
+        }
+        return txOutput.toBuilder().status(OutputStatus.SPENT).build();
+    }
+
+    /**
+     * Query outputs of the address type with their wallets in the transaction
+     * range. Part of the range in the cold tier is read from both hot and cold
+     * tables as rows might be in the middle of moving between them.
+     *
+     * @param startTxId first transaction id (inclusive)
+     * @param endTxId last transaction id (inclusive)
+     * @param addressType address type
+     * @return outputs with addresses and wallets
+     */
     @NonNull
     public Collection<OutputAddressWallet> queryOutputsInTxnRange(int startTxId, int endTxId, SrcAddressType addressType) {
         checkArgument(addressType.isReal(), "Argument addressType=%s, allowed only real types.", addressType);
-        return psQueryOutputsInTxnRange.get(addressType).setParameters(p -> p.setInt(startTxId).setInt(endTxId))
-                .executeQueryToList(rs
-                        -> OutputAddressWallet.builder()
+        List<OutputAddressWallet> result = psQueryOutputsInTxnRange.get(addressType).executeQueryToList(startTxId, endTxId, p -> p.setInt(startTxId).setInt(endTxId),
+                rs -> OutputAddressWallet.builder()
                         .transactionId(rs.getInt(1))
                         .pos(rs.getShort(2))
                         .addressId(rs.getInt(3))
@@ -148,6 +290,23 @@ public class DbQueryOutput {
                         .walletName(rs.getString(6))
                         .status(hasSpentField ? rs.getByte(7) : 0)
                         .build());
+        if (isCold(startTxId)) {
+            int endColdTxId = Math.min(endTxId, coldTier.get().getLastTransactionId());
+            Set<InOutKey> hotKeys = result.stream().map(o -> new InOutKey(o.getTransactionId(), o.getPos())).collect(Collectors.toSet());
+            psQueryColdOutputsInTxnRange.get(addressType).setParameters(p -> p.setInt(startTxId).setInt(endColdTxId)).executeQueryToList(
+                    rs -> OutputAddressWallet.builder()
+                            .transactionId(rs.getInt(1))
+                            .pos(rs.getShort(2))
+                            .addressId(rs.getInt(3))
+                            .amount(rs.getLong(4))
+                            .walletId(rs.getInt(5))
+                            .walletName(rs.getString(6))
+                            .status(rs.getByte(7))
+                            .build()).stream()
+                    .filter(o -> !hotKeys.contains(new InOutKey(o.getTransactionId(), o.getPos())))
+                    .forEach(result::add);
+        }
+        return result;
     }
 
     @Getter
@@ -18,12 +18,20 @@ package com.sliva.btc.scanner.db.facade;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
 import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.InOutKey;
 import com.sliva.btc.scanner.db.model.TXID;
+import com.sliva.btc.scanner.db.segment.SegmentStore;
 import com.sliva.btc.scanner.db.utils.DBUtils;
 import com.sliva.btc.scanner.util.Utils;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import lombok.NonNull;
 
 /**
@@ -45,6 +53,11 @@ public class DbQueryTransaction {
             = "SELECT I.transaction_id FROM `input` I"
             + " INNER JOIN `output` O ON O.transaction_id=I.in_transaction_id AND O.pos=I.in_pos"
             + " WHERE O.address_id=?";
+    private static final int IN_LIST_SIZE = 100;
+    private static final String SQL_QUERY_SPENDING_TRANSACTIONS_BY_ADDRESS_IN_LIST
+            = SQL_QUERY_SPENDING_TRANSACTIONS_BY_ADDRESS.replace("O.address_id=?", "O.address_id IN (" + DBUtils.inListPlaceholders(IN_LIST_SIZE) + ")");
+    private static final String SQL_QUERY_OUTPUTS_BY_ADDRESS = "SELECT transaction_id,pos FROM `output` WHERE address_id=?";
+    private static final String SQL_QUERY_SPENDING_TRANSACTION = "SELECT transaction_id FROM `input` WHERE in_transaction_id=? AND in_pos=? LIMIT 1";
     private static final String SQL_QUERY_TXNS_NO_OUTPUTS = "SELECT transaction_id,txid,block_height,nInputs,nOutputs"
             + " FROM `transaction` WHERE transaction_id NOT IN (SELECT transaction_id FROM `output`) ORDER BY transaction_id";
 
@@ -57,9 +70,18 @@ public class DbQueryTransaction {
     private final DBPreparedStatement psQueryTransactionsInBlock;
     private final DBPreparedStatement psFindLastTransaction;
     private final DBPreparedStatement psQuerySpeningTransactionsByAddress;
+    private final DBPreparedStatement psQuerySpeningTransactionsByAddressInList;
     private final DBPreparedStatement psQueryTxnsNoOutputs;
+    private final DBPreparedStatement psQueryOutputsByAddress;
+    private final DBPreparedStatement psQuerySpendingTransaction;
+    private final boolean sharded;
+    private final Optional<SegmentStore> segmentStore;
+    private final Optional<DbQueryColdTier> coldTier;
 
-    public DbQueryTransaction(DBConnectionSupplier conn) {
+    public DbQueryTransaction(DBConnectionSupplier conn, DbStores stores) {
+        this.sharded = conn.isSharded();
+        this.segmentStore = stores.getSegmentStore();
+        this.coldTier = DbQueryColdTier.create(conn);
         this.psQueryTxnsRange = conn.prepareStatement(SQL_QUERY_TXNS_RANGE, "transaction.transaction_id");
         this.psQueryTxnsInBlock = conn.prepareStatement(SQL_QUERY_TXNS_IN_BLOCK, "transaction.block_height");
         this.psCountTxnsInBlock = conn.prepareStatement(SQL_COUNT_TXNS_IN_BLOCK, "transaction.block_height");
@@ -69,7 +91,10 @@ public class DbQueryTransaction {
         this.psQueryTransactionsInBlock = conn.prepareStatement(SQL_QUERY_TRANSACTIONS_IN_BLOCK, "transaction.block_height");
         this.psFindLastTransaction = conn.prepareStatement(SQL_FIND_LAST_TRANSACTION, "transaction.transaction_id");
         this.psQuerySpeningTransactionsByAddress = conn.prepareStatement(SQL_QUERY_SPENDING_TRANSACTIONS_BY_ADDRESS, "output.address_id", "input.in_transaction_id");
+        this.psQuerySpeningTransactionsByAddressInList = sharded ? null : conn.prepareStatement(SQL_QUERY_SPENDING_TRANSACTIONS_BY_ADDRESS_IN_LIST, "output.address_id", "input.in_transaction_id");
         this.psQueryTxnsNoOutputs = conn.prepareStatement(SQL_QUERY_TXNS_NO_OUTPUTS, "transaction.transaction_id", "output.transaction_id");
+        this.psQueryOutputsByAddress = sharded ? conn.prepareStatement(SQL_QUERY_OUTPUTS_BY_ADDRESS, "output.address_id") : null;
+        this.psQuerySpendingTransaction = sharded ? conn.prepareStatement(SQL_QUERY_SPENDING_TRANSACTION, "input.in_transaction_id") : null;
     }
 
     @NonNull
@@ -79,9 +104,8 @@ public class DbQueryTransaction {
 
     @NonNull
     public Optional<BtcTransaction> findTransaction(TXID binTxid) {
-        return psFindTransactionByTxid
-                .setParameters(ps -> ps.setBytes(binTxid.getData()))
-                .querySingleRow(
+        Optional<BtcTransaction> result = psFindTransactionByTxid
+                .querySingleRowOnAllShards(ps -> ps.setBytes(binTxid.getData()),
                         rs -> BtcTransaction.builder()
                                 .transactionId(rs.getInt(1))
                                 .txid(binTxid.getData())
@@ -89,21 +113,47 @@ public class DbQueryTransaction {
                                 .nInputs(rs.getInt(3))
                                 .nOutputs(rs.getInt(4))
                                 .build());
+        if (!result.isPresent() && coldTier.isPresent()) {
+            result = coldTier.get().findTransaction(binTxid.getData());
+        }
+        if (result.isPresent() || !segmentStore.isPresent()) {
+            return result;
+        }
+        return segmentStore.get().findTransactionId(binTxid.getData()).flatMap(segmentStore.get()::findTransaction);
     }
 
     @NonNull
     public Optional<Integer> findTransactionId(String txid) {
-        return DBUtils.readInteger(psFindTransactionIdByTxid.setParameters(ps -> ps.setBytes(Utils.id2binNonNull(txid))));
+        return findTransactionId(TXID.build(txid));
     }
 
+    /**
+     * Find transaction id by txid. Transactions not found in DB are looked up
+     * in the cold tier and then in archived segments.
+     *
+     * @param ttxid transaction hash
+     * @return transaction id
+     */
     @NonNull
     public Optional<Integer> findTransactionId(TXID ttxid) {
-        return DBUtils.readInteger(psFindTransactionIdByTxid.setParameters(ps -> ps.setBytes(ttxid.getData())));
+        Optional<Integer> result = psFindTransactionIdByTxid.querySingleRowOnAllShards(ps -> ps.setBytes(ttxid.getData()), rs -> rs.getInt(1));
+        if (!result.isPresent() && coldTier.isPresent()) {
+            result = coldTier.get().findTransaction(ttxid.getData()).map(BtcTransaction::getTransactionId);
+        }
+        if (result.isPresent() || !segmentStore.isPresent()) {
+            return result;
+        }
+        return segmentStore.get().findTransactionId(ttxid.getData());
     }
 
     @NonNull
     public Optional<BtcTransaction> findTransaction(int transactionId) {
-        return psFindTransactionById
+        Optional<SegmentStore> archive = segmentStore.filter(s -> s.contains(transactionId));
+        if (archive.isPresent()) {
+            return archive.get().findTransaction(transactionId);
+        }
+        Optional<BtcTransaction> result = psFindTransactionById
+                .onShard(transactionId)
                 .setParameters(ps -> ps.setInt(transactionId))
                 .querySingleRow(
                         rs -> BtcTransaction.builder()
@@ -113,78 +163,161 @@ public class DbQueryTransaction {
                                 .nInputs(rs.getInt(3))
                                 .nOutputs(rs.getInt(4))
                                 .build());
+        if (!result.isPresent() && isCold(transactionId)) {
+            result = coldTier.get().findTransaction(transactionId);
+        }
+        return result;
     }
 
     @NonNull
     public List<BtcTransaction> getTxnsNoOutputs(int limit) {
-        return psQueryTxnsNoOutputs.setMaxRows(limit).executeQueryToList(
+        return psQueryTxnsNoOutputs.onShards(IntStream.range(0, psQueryTxnsNoOutputs.getShardCount()), ps -> ps.setMaxRows(limit).executeQueryToList(
                 rs -> BtcTransaction.builder()
                         .transactionId(rs.getInt(1))
                         .txid(rs.getBytes(2))
                         .blockHeight(rs.getInt(3))
                         .nInputs(rs.getInt(4))
                         .nOutputs(rs.getInt(5))
-                        .build());
+                        .build()))
+                .stream().flatMap(List::stream).sorted(Comparator.comparingInt(BtcTransaction::getTransactionId)).limit(limit).collect(Collectors.toList());
     }
 
+    /**
+     * Get transactions in the range. Archived part of the range is read from
+     * segments, part of the range in the cold tier is read from both hot and
+     * cold tables as rows might be in the middle of moving between them.
+     *
+     * @param startTransactionId first transaction id (inclusive)
+     * @param endTransactionId last transaction id (inclusive)
+     * @return transactions ordered by transaction id
+     */
     @NonNull
     public List<BtcTransaction> getTxnsRangle(int startTransactionId, int endTransactionId) {
-        return psQueryTxnsRange.
-                setParameters(ps -> ps.setInt(startTransactionId).setInt(endTransactionId))
-                .executeQueryToList(
-                        rs -> BtcTransaction.builder()
-                                .transactionId(rs.getInt(1))
-                                .txid(rs.getBytes(2))
-                                .blockHeight(rs.getInt(3))
-                                .nInputs(rs.getInt(4))
-                                .nOutputs(rs.getInt(5))
-                                .build());
+        int lastArchived = segmentStore.map(SegmentStore::getLastTransactionId).orElse(0);
+        if (startTransactionId > lastArchived) {
+            return queryTxnsRange(startTransactionId, endTransactionId);
+        }
+        List<BtcTransaction> result = new ArrayList<>(segmentStore.get().getTransactions(startTransactionId, Math.min(endTransactionId, lastArchived)));
+        if (endTransactionId > lastArchived) {
+            result.addAll(queryTxnsRange(lastArchived + 1, endTransactionId));
+        }
+        return result;
+    }
+
+    @NonNull
+    private List<BtcTransaction> queryTxnsRange(int startTransactionId, int endTransactionId) {
+        List<BtcTransaction> result = psQueryTxnsRange.executeQueryToList(startTransactionId, endTransactionId,
+                ps -> ps.setInt(startTransactionId).setInt(endTransactionId),
+                rs -> BtcTransaction.builder()
+                        .transactionId(rs.getInt(1))
+                        .txid(rs.getBytes(2))
+                        .blockHeight(rs.getInt(3))
+                        .nInputs(rs.getInt(4))
+                        .nOutputs(rs.getInt(5))
+                        .build());
+        if (isCold(startTransactionId)) {
+            Set<Integer> hotIds = result.stream().map(BtcTransaction::getTransactionId).collect(Collectors.toSet());
+            coldTier.get().getTransactions(startTransactionId, Math.min(endTransactionId, coldTier.get().getLastTransactionId())).stream()
+                    .filter(t -> !hotIds.contains(t.getTransactionId()))
+                    .forEach(result::add);
+            result.sort(Comparator.comparingInt(BtcTransaction::getTransactionId));
+        } else if (sharded) {
+            result.sort(Comparator.comparingInt(BtcTransaction::getTransactionId));
+        }
+        return result;
     }
 
     @NonNull
     public List<String> getTxnsInBlock(int blockHeight) {
-        return psQueryTxnsInBlock
-                .setParameters(ps -> ps.setInt(blockHeight))
-                .executeQueryToList(rs -> Utils.id2hex(rs.getBytes(1)));
+        List<String> result = psQueryTxnsInBlock.executeQueryToListOnAllShards(ps -> ps.setInt(blockHeight), rs -> Utils.id2hex(rs.getBytes(1)));
+        if (result.isEmpty() && coldTier.isPresent()) {
+            return coldTier.get().getTransactionsInBlock(blockHeight).stream().map(t -> Utils.id2hex(t.getTxid().getData())).collect(Collectors.toList());
+        }
+        return result;
     }
 
     public int countTxnsInBlock(int blockHeight) {
-        return DBUtils.readInteger(psCountTxnsInBlock.setParameters(ps -> ps.setInt(blockHeight))).orElse(0);
+        int result = psCountTxnsInBlock.executeQueryToListOnAllShards(ps -> ps.setInt(blockHeight), rs -> rs.getInt(1)).stream().mapToInt(Integer::intValue).sum();
+        if (result == 0 && coldTier.isPresent()) {
+            return coldTier.get().getTransactionsInBlock(blockHeight).size();
+        }
+        return result;
     }
 
     @NonNull
     public List<BtcTransaction> getTransactionsInBlock(int blockHeight) {
-        return psQueryTransactionsInBlock
-                .setParameters(ps -> ps.setInt(blockHeight))
-                .executeQueryToList(
-                        rs -> BtcTransaction.builder()
-                                .transactionId(rs.getInt(1))
-                                .txid(rs.getBytes(2))
-                                .blockHeight(blockHeight)
-                                .nInputs(rs.getInt(3))
-                                .nOutputs(rs.getInt(4))
-                                .build());
+        List<BtcTransaction> result = psQueryTransactionsInBlock.executeQueryToListOnAllShards(ps -> ps.setInt(blockHeight),
+                rs -> BtcTransaction.builder()
+                        .transactionId(rs.getInt(1))
+                        .txid(rs.getBytes(2))
+                        .blockHeight(blockHeight)
+                        .nInputs(rs.getInt(3))
+                        .nOutputs(rs.getInt(4))
+                        .build());
+        if (result.isEmpty() && coldTier.isPresent()) {
+            return coldTier.get().getTransactionsInBlock(blockHeight);
+        }
+        if (sharded) {
+            result.sort(Comparator.comparingInt(BtcTransaction::getTransactionId));
+        }
+        return result;
     }
 
     @NonNull
     public Optional<BtcTransaction> getLastTransaction() {
-        return psFindLastTransaction.querySingleRow(
+        return psFindLastTransaction.executeQueryToListOnAllShards(ps -> {},
                 rs -> BtcTransaction.builder()
                         .transactionId(rs.getInt(1))
                         .txid(rs.getBytes(2))
                         .blockHeight(rs.getInt(3))
                         .nInputs(rs.getInt(4))
                         .nOutputs(rs.getInt(5))
-                        .build());
+                        .build())
+                .stream().max(Comparator.comparingInt(BtcTransaction::getTransactionId));
     }
 
     @NonNull
     public Optional<Integer> getLastTransactionId() {
-        return DBUtils.readInteger(psFindLastTransaction);
+        return getLastTransaction().map(BtcTransaction::getTransactionId);
     }
 
+    /**
+     * Get transactions spending outputs of the address. If DB is sharded, then
+     * outputs and spending inputs are looked up separately as they might be
+     * stored in different shards.
+     *
+     * @param addressId address id
+     * @return spending transaction ids
+     */
     @NonNull
     public Collection<Integer> getSpendingTransactionsByAddress(int addressId) {
-        return DBUtils.readIntegersToSet(psQuerySpeningTransactionsByAddress.setParameters(ps -> ps.setInt(addressId)));
+        if (!sharded) {
+            return DBUtils.readIntegersToSet(psQuerySpeningTransactionsByAddress.setParameters(ps -> ps.setInt(addressId)));
+        }
+        return psQueryOutputsByAddress.executeQueryToListOnAllShards(ps -> ps.setInt(addressId), rs -> new InOutKey(rs.getInt(1), rs.getShort(2))).stream()
+                .map(key -> psQuerySpendingTransaction.querySingleRowOnAllShards(ps -> ps.setInt(key.getTransactionId()).setShort(key.getPos()), rs -> rs.getInt(1)))
+                .filter(Optional::isPresent).map(Optional::get)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Get transactions spending outputs of the addresses. Addresses are
+     * queried in chunks with IN list instead of a query per address.
+     *
+     * @param addressIds address ids
+     * @return spending transaction ids
+     */
+    @NonNull
+    public Set<Integer> getSpendingTransactionsByAddresses(Collection<Integer> addressIds) {
+        if (sharded) {
+            return addressIds.stream().flatMap(a -> getSpendingTransactionsByAddress(a).stream()).collect(Collectors.toSet());
+        }
+        Set<Integer> result = new HashSet<>();
+        DBUtils.executeQueryInChunks(psQuerySpeningTransactionsByAddressInList, IN_LIST_SIZE, addressIds, rs -> result.add(rs.getInt(1)));
+        return result;
+    }
+
+    private boolean isCold(int transactionId) {
+        return coldTier.isPresent() && coldTier.get().contains(transactionId);
     }
 }
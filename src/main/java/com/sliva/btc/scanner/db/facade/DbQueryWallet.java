@@ -21,13 +21,22 @@ import com.sliva.btc.scanner.db.DBPreparedStatement.ParamSetter;
 import com.sliva.btc.scanner.db.utils.DBUtils;
 import com.sliva.btc.scanner.db.model.BtcAddress;
 import com.sliva.btc.scanner.db.model.BtcWallet;
+import com.sliva.btc.scanner.db.utils.WalletIntegrity;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.util.IntBitmap;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import lombok.NonNull;
 
 /**
@@ -40,6 +49,9 @@ public class DbQueryWallet {
             = "SELECT name,details FROM wallet WHERE wallet_id=? LIMIT 1";
     private static final String SQL_MAX_ID
             = "SELECT wallet_id FROM wallet ORDER BY wallet_id DESC LIMIT 1";
+    private static final String SQL_QUERY_WALLET_IDS_IN_RANGE
+            = "SELECT wallet_id FROM wallet WHERE wallet_id BETWEEN ? AND ?";
+    private static final int INTEGRITY_SCAN_BATCH_SIZE = 1_000_000;
     private static final String SQL_QUERY_WALLET_ADDRESSES
             = "SELECT address_id,address FROM address_p2pkh WHERE wallet_id=?"
             + " UNION SELECT address_id,address FROM address_p2sh WHERE wallet_id=?"
@@ -75,8 +87,11 @@ public class DbQueryWallet {
     private final DBPreparedStatement psQueryMissingWalletsInRange;
     private final DBPreparedStatement psQueryUnusedWallets;
     private final DBPreparedStatement psQueryUnusedWalletsInRange;
+    private final DBPreparedStatement psQueryWalletIdsInRange;
+    private final Map<SrcAddressType, DbQueryAddressOne> queryAddressPerTable = new EnumMap<>(SrcAddressType.class);
+    private final Optional<DbWalletRemap> walletRemap;
 
-    public DbQueryWallet(DBConnectionSupplier conn) {
+    public DbQueryWallet(DBConnectionSupplier conn, DbStores stores) {
         this.psQueryWallet = conn.prepareStatement(SQL_QUERY_WALLET, "wallet.wallet_id");
         this.psMaxId = conn.prepareStatement(SQL_MAX_ID, "wallet.wallet_id");
         this.psQueryWalletAddresses = conn.prepareStatement(SQL_QUERY_WALLET_ADDRESSES, "address_p2pkh.wallet_id", "address_p2sh.wallet_id", "address_p2wpkh.wallet_id", "address_p2wsh.wallet_id");
@@ -84,6 +99,9 @@ public class DbQueryWallet {
         this.psQueryMissingWalletsInRange = conn.prepareStatement(SQL_QUERY_MISSING_WALLETS_IN_RANGE, "address_p2pkh.wallet_id", "address_p2sh.wallet_id", "address_p2wpkh.wallet_id", "address_p2wsh.wallet_id");
         this.psQueryUnusedWallets = conn.prepareStatement(SQL_QUERY_UNUSED_WALLETS);
         this.psQueryUnusedWalletsInRange = conn.prepareStatement(SQL_QUERY_UNUSED_WALLETS_IN_RANGE, "address_p2pkh.wallet_id", "address_p2sh.wallet_id", "address_p2wpkh.wallet_id", "address_p2wsh.wallet_id");
+        this.psQueryWalletIdsInRange = conn.prepareStatement(SQL_QUERY_WALLET_IDS_IN_RANGE, "wallet.wallet_id");
+        Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach(type -> queryAddressPerTable.put(type, new DbQueryAddressOne(conn, type)));
+        this.walletRemap = stores.getWalletRemap();
     }
 
     @NonNull
@@ -103,15 +121,34 @@ public class DbQueryWallet {
         return DBUtils.readInteger(psMaxId);
     }
 
+    /**
+     * Get addresses of the wallet. If wallet merges are logged in
+     * "wallet_remap" table, then the wallet id is resolved to the canonical
+     * wallet id and addresses of all wallets merged into it are included.
+     *
+     * @param walletId wallet id
+     * @return addresses with canonical wallet id
+     */
     @NonNull
     public Collection<BtcAddress> getWalletAddresses(int walletId) {
+        if (!walletRemap.isPresent()) {
+            return getWalletAddresses(walletId, walletId);
+        }
+        int canonical = walletRemap.get().resolve(walletId);
+        List<BtcAddress> result = new ArrayList<>(getWalletAddresses(canonical, canonical));
+        walletRemap.get().getMergedWallets(canonical).forEach(w -> result.addAll(getWalletAddresses(w, canonical)));
+        return result;
+    }
+
+    @NonNull
+    private Collection<BtcAddress> getWalletAddresses(int walletId, int resultWalletId) {
         return psQueryWalletAddresses
                 .setParameters(p -> p.setInt(walletId).setInt(walletId).setInt(walletId).setInt(walletId))
                 .executeQueryToList(
                         rs -> BtcAddress.builder()
                                 .addressId(rs.getInt(1))
                                 .address(rs.getBytes(2))
-                                .walletId(walletId)
+                                .walletId(resultWalletId)
                                 .build());
     }
 
@@ -127,27 +164,6 @@ public class DbQueryWallet {
         return DBUtils.readIntegersToSet(psQueryMissingWalletsInRange);
     }
 
-    @NonNull
-    public Collection<Integer> getMissingWalletsParallel() throws InterruptedException {
-        final Collection<Integer> result = new HashSet<>();
-        final int maxId = getMaxId().orElse(0);
-        final int numThreads = 10;
-        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
-        final int step = maxId / numThreads + 1;
-        for (int i = 1; i <= maxId; i += step) {
-            final int minWalletId = i, maxWalletId = i + step - 1;
-            exec.submit(() -> {
-                Collection<Integer> t = getMissingWalletsInRange(minWalletId, maxWalletId);
-                synchronized (result) {
-                    result.addAll(t);
-                }
-            });
-        }
-        exec.shutdown();
-        exec.awaitTermination(2, TimeUnit.HOURS);
-        return result;
-    }
-
     @NonNull
     public Collection<Integer> getUnusedWalletRecords() {
         return DBUtils.readIntegersToSet(psQueryUnusedWallets);
@@ -155,29 +171,59 @@ public class DbQueryWallet {
 
     @NonNull
     public Collection<Integer> getUnusedWalletRecordsInRange(int minWalletId, int maxWalletId) {
-        ParamSetter p = psQueryMissingWalletsInRange.getParamSetter();
+        ParamSetter p = psQueryUnusedWalletsInRange.getParamSetter();
         IntStream.range(0, 5).forEach(i -> p.setInt(minWalletId).setInt(maxWalletId));
         return DBUtils.readIntegersToSet(psQueryUnusedWalletsInRange);
     }
 
+    /**
+     * Find wallet ids missing in wallet table and wallet records not used by
+     * any address. Wallet table and wallet_id column of each address table are
+     * scanned once by ranges in parallel into bitmaps that are compared in
+     * memory, which is much faster than NOT IN subqueries on large tables.
+     *
+     * @return missing and unused wallet ids
+     * @throws InterruptedException if interrupted
+     * @throws ExecutionException if a scan failed
+     */
     @NonNull
-    public Collection<Integer> getUnusedWalletRecordsParallel() throws InterruptedException {
-        final Collection<Integer> result = new HashSet<>();
-        final int maxId = getMaxId().orElse(0);
-        final int numThreads = 10;
-        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
-        final int step = maxId / numThreads + 1;
-        for (int i = 1; i <= maxId; i += step) {
-            final int minWalletId = i, maxWalletId = i + step - 1;
-            exec.submit(() -> {
-                Collection<Integer> t = getUnusedWalletRecordsInRange(minWalletId, maxWalletId);
-                synchronized (result) {
-                    result.addAll(t);
+    public WalletIntegrity checkIntegrity() throws InterruptedException, ExecutionException {
+        IntBitmap existing = new IntBitmap();
+        Map<SrcAddressType, IntBitmap> referenced = new EnumMap<>(SrcAddressType.class);
+        Collection<Callable<Object>> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            int maxId = getMaxId().orElse(0);
+            for (long start = 1; start <= maxId; start += INTEGRITY_SCAN_BATCH_SIZE) {
+                int from = (int) start;
+                int to = (int) Math.min(start + INTEGRITY_SCAN_BATCH_SIZE - 1, maxId);
+                psQueryWalletIdsInRange.setParameters(p -> p.setInt(from).setInt(to)).setFetchSize(INTEGRITY_SCAN_BATCH_SIZE)
+                        .executeQuery(rs -> existing.add(rs.getInt(1)));
+            }
+            return null;
+        });
+        queryAddressPerTable.forEach((type, queryAddress) -> {
+            IntBitmap walletIds = new IntBitmap();
+            referenced.put(type, walletIds);
+            tasks.add(() -> {
+                int lastAddressId = queryAddress.getLastAddressId();
+                for (long start = BtcAddress.getMinAddressId(type); start <= lastAddressId; start += INTEGRITY_SCAN_BATCH_SIZE) {
+                    queryAddress.queryWalletIds((int) start, (int) Math.min(start + INTEGRITY_SCAN_BATCH_SIZE - 1, lastAddressId), (addressId, walletId) -> {
+                        if (walletId > 0) {
+                            walletIds.add(walletId);
+                        }
+                    });
                 }
+                return null;
             });
+        });
+        ExecutorService exec = Executors.newFixedThreadPool(tasks.size());
+        try {
+            for (Future<Object> f : exec.invokeAll(tasks)) {
+                f.get();
+            }
+        } finally {
+            exec.shutdown();
         }
-        exec.shutdown();
-        exec.awaitTermination(2, TimeUnit.HOURS);
-        return result;
+        return new WalletIntegrity(existing, referenced.values());
     }
 }
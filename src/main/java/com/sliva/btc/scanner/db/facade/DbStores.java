@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.facade;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.kv.KvStore;
+import com.sliva.btc.scanner.db.kv.LsmKvStore;
+import com.sliva.btc.scanner.db.segment.SegmentStore;
+import java.util.Optional;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Optional stores used by DB facades next to the database tables: embedded
+ * key-value store, archive of sealed segments, wallet remap log and wallet
+ * changelog. Runners open the stores once and pass the same instance to all
+ * facades they create, so facades of a process share the stores and see each
+ * other's changes.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+@Getter
+@AllArgsConstructor
+public class DbStores {
+
+    /**
+     * No stores, facades read and write the database tables only.
+     */
+    public static final DbStores NONE = new DbStores(Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+
+    /**
+     * Key-value store for point lookups before querying the database.
+     * Facades write records to the store only after they were applied to DB
+     * and remove entries the database lost on crash when opened.
+     * "--kv-store-dir" must be set for all processes updating the database
+     * once the store is populated.
+     */
+    @NonNull
+    private final Optional<KvStore> kvStore;
+    /**
+     * Archive of sealed segments. Facades read archived transactions, inputs
+     * and outputs from segments instead of the database tables.
+     */
+    @NonNull
+    private final Optional<SegmentStore> segmentStore;
+    /**
+     * Log of wallet merges not applied to address tables yet. Facades reading
+     * wallet ids of addresses resolve them through the log.
+     */
+    @NonNull
+    private final Optional<DbWalletRemap> walletRemap;
+    /**
+     * Log of address wallet assignment changes. Updaters of address wallet
+     * ids append to the log.
+     */
+    @NonNull
+    private final Optional<DbWalletChangelog> walletChangelog;
+
+    /**
+     * Open stores of the database. Key-value store and segment archive are
+     * opened if "--kv-store-dir" and "--segment-store-dir" are set, wallet
+     * remap log and changelog if their tables exist in DB.
+     *
+     * @param conn DB connection supplier
+     * @return stores of the database
+     */
+    @NonNull
+    public static DbStores open(DBConnectionSupplier conn) {
+        checkArgument(conn != null, "Argument 'conn' is null");
+        Optional<DbWalletChangelog> walletChangelog = DbWalletChangelog.open(conn);
+        return new DbStores(LsmKvStore.open(conn.getDBName()), SegmentStore.open(conn.getDBName()), DbWalletRemap.open(conn, walletChangelog), walletChangelog);
+    }
+}
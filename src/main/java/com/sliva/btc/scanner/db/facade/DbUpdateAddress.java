@@ -35,12 +35,12 @@ public class DbUpdateAddress implements AutoCloseable {
 
     private final Map<SrcAddressType, DbUpdateAddressOne> updaters = new HashMap<>();
 
-    public DbUpdateAddress(DBConnectionSupplier conn) {
-        this(conn, new CacheData());
+    public DbUpdateAddress(DBConnectionSupplier conn, DbStores stores) {
+        this(conn, stores, new CacheData());
     }
 
-    public DbUpdateAddress(DBConnectionSupplier conn, CacheData cacheData) {
-        Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach((t) -> updaters.put(t, new DbUpdateAddressOne(conn, t, cacheData.dataOneMap.get(t))));
+    public DbUpdateAddress(DBConnectionSupplier conn, DbStores stores, CacheData cacheData) {
+        Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach((t) -> updaters.put(t, new DbUpdateAddressOne(conn, stores, t, cacheData.dataOneMap.get(t))));
     }
 
     public void add(BtcAddress addr) throws SQLException {
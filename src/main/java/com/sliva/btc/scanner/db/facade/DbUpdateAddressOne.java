@@ -20,17 +20,25 @@ import static com.google.common.base.Preconditions.checkState;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
 import com.sliva.btc.scanner.db.DbUpdate;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvWriteBatch;
 import static com.sliva.btc.scanner.db.facade.DbQueryAddressOne.getAddressTableName;
 import static com.sliva.btc.scanner.db.facade.DbQueryAddressOne.updateQueryTableName;
 import com.sliva.btc.scanner.db.model.BinaryAddress;
 import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.utils.SpillQueue;
 import com.sliva.btc.scanner.src.SrcAddressType;
 import static com.sliva.btc.scanner.util.Utils.getPercentage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Optional;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -51,14 +59,17 @@ public class DbUpdateAddressOne extends DbUpdate {
     @Getter
     @NonNull
     private final CacheData cacheData;
+    private final SpillQueue<Integer, BtcAddress> spillQueue;
+    private final Map<BinaryAddress, Integer> spillMap = new HashMap<>();
     private final boolean hasWalletIdField;
+    private final Optional<DbWalletChangelog> walletChangelog;
 
-    public DbUpdateAddressOne(DBConnectionSupplier conn, SrcAddressType addressType) {
-        this(conn, addressType, new CacheData());
+    public DbUpdateAddressOne(DBConnectionSupplier conn, DbStores stores, SrcAddressType addressType) {
+        this(conn, stores, addressType, new CacheData());
     }
 
-    public DbUpdateAddressOne(DBConnectionSupplier conn, SrcAddressType addressType, CacheData cacheData) {
-        super(getAddressTableName(addressType), conn);
+    public DbUpdateAddressOne(DBConnectionSupplier conn, DbStores stores, SrcAddressType addressType, CacheData cacheData) {
+        super(getAddressTableName(addressType), conn, stores.getKvStore());
         checkArgument(addressType.isReal(), "Argument 'addressType' is not a real type: %s", addressType);
         checkArgument(cacheData != null, "Argument 'cacheData' is null");
         this.hasWalletIdField = conn.getDBMetaData().hasField(getTableName() + ".wallet_id");
@@ -67,6 +78,8 @@ public class DbUpdateAddressOne extends DbUpdate {
                 ? conn.prepareStatement(updateQueryTableName(SQL_UPDATE_WALLET, addressType), getTableName() + ".address_id")
                 : conn.prepareNonExecutableStatement(updateQueryTableName(SQL_UPDATE_WALLET, addressType), "Table " + getTableName() + " does not have field \"wallet_id\"");
         this.cacheData = cacheData;
+        this.walletChangelog = hasWalletIdField ? stores.getWalletChangelog() : Optional.empty();
+        this.spillQueue = buildSpillQueue(BtcAddress::getAddressId, buildSpillSerializer(addressType));
     }
 
     @Override
@@ -76,23 +89,27 @@ public class DbUpdateAddressOne extends DbUpdate {
 
     @Override
     public boolean isExecuteNeeded() {
-        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.updateWalletQueue.size() >= getMinBatchSize();
+        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.updateWalletQueue.size() >= getMinBatchSize() || !spillQueue.isEmpty();
     }
 
     public void add(BtcAddress addr) {
         log.trace("add(): addr={}", addr);
         checkState(isActive(), "Instance has been closed");
         synchronized (cacheData) {
-            if (!cacheData.addMap.containsKey(addr.getAddress()) && !cacheData.addMapId.containsKey(addr.getAddressId())) {
-                cacheData.addMap.put(addr.getAddress(), addr);
-                cacheData.addMapId.put(addr.getAddressId(), addr);
-                cacheData.addQueue.add(addr);
+            if (!cacheData.addMap.containsKey(addr.getAddress()) && !cacheData.addMapId.containsKey(addr.getAddressId())
+                    && !spillMap.containsKey(addr.getAddress()) && !spillQueue.containsKey(addr.getAddressId())) {
+                if (isSpillNeeded(cacheData.addQueue, spillQueue)) {
+                    spillQueue.put(addr);
+                    spillMap.put(addr.getAddress(), addr.getAddressId());
+                } else {
+                    _add(addr);
+                }
             } else {
                 log.debug("add(): Address already in the queue: addr={} addMap={}, addMapId={}",
                         addr, cacheData.addMap.get(addr.getAddress()), cacheData.addMapId.get(addr.getAddressId()));
             }
         }
-        waitFullQueue(cacheData.addQueue, getMaxInsertsQueueSize());
+        waitFullInsertsQueue(cacheData.addQueue);
     }
 
     public void updateWallet(BtcAddress btcAddress) {
@@ -110,6 +127,13 @@ public class DbUpdateAddressOne extends DbUpdate {
                     //values not changed
                     updatedInQueue = true;
                 }
+            } else {
+                updatedInQueue = spillQueue.get(btcAddress.getAddressId()).map(spilled -> {
+                    if (spilled.getWalletId() != btcAddress.getWalletId()) {
+                        spillQueue.put(spilled.toBuilder().walletId(btcAddress.getWalletId()).build());
+                    }
+                    return true;
+                }).orElse(false);
             }
             if (!updatedInQueue) {
                 cacheData.updateWalletQueue.add(btcAddress);
@@ -120,8 +144,19 @@ public class DbUpdateAddressOne extends DbUpdate {
 
     @Override
     public int executeInserts() {
-        return executeBatch(cacheData, cacheData.addQueue, psAdd, getMaxBatchSize(),
+        synchronized (cacheData) {
+            drainSpillQueue(cacheData.addQueue, spillQueue, a -> {
+                spillMap.remove(a.getAddress());
+                _add(a);
+            });
+        }
+        return executeBatch(cacheData, cacheData.addQueue, psAdd, getBatchSize(), null,
                 (t, p) -> p.setInt(t.getAddressId()).setBytes(t.getAddress().getData()).ignoreExtraParam().setInt(t.getWalletId()),
+                inserted -> getKvStore().ifPresent(kv -> {
+                    KvWriteBatch kvBatch = new KvWriteBatch();
+                    inserted.forEach(a -> kvBatch.put(KvColumnFamily.ADDRESS_ID, KvCodec.encodeAddress(a.getType(), a.getAddress().getData()), KvCodec.encodeInt(a.getAddressId())));
+                    kv.write(kvBatch);
+                }),
                 executed -> {
                     synchronized (cacheData) {
                         executed.stream()
@@ -136,9 +171,69 @@ public class DbUpdateAddressOne extends DbUpdate {
         return _executeUpdateWallet();
     }
 
+    /**
+     * Get address queued for insertion including spilled ones.
+     *
+     * @param addressId address ID
+     * @return queued address or null if not found
+     */
+    public BtcAddress getFromCache(int addressId) {
+        synchronized (cacheData) {
+            BtcAddress a = cacheData.addMapId.get(addressId);
+            return a != null ? a : spillQueue.get(addressId).orElse(null);
+        }
+    }
+
+    /**
+     * Get address queued for insertion including spilled ones.
+     *
+     * @param address address
+     * @return queued address or null if not found
+     */
+    public BtcAddress getFromCache(BinaryAddress address) {
+        synchronized (cacheData) {
+            BtcAddress a = cacheData.addMap.get(address);
+            if (a == null) {
+                Integer addressId = spillMap.get(address);
+                if (addressId != null) {
+                    a = spillQueue.get(addressId).orElse(null);
+                }
+            }
+            return a;
+        }
+    }
+
+    private void _add(BtcAddress addr) {
+        cacheData.addMap.put(addr.getAddress(), addr);
+        cacheData.addMapId.put(addr.getAddressId(), addr);
+        cacheData.addQueue.add(addr);
+    }
+
     private int _executeUpdateWallet() {
-        return executeBatch(cacheData, cacheData.updateWalletQueue, psUpdateWallet, getMaxBatchSize(),
-                (t, p) -> p.setInt(t.getWalletId()).setInt(t.getAddressId()), null);
+        return executeBatch(cacheData, cacheData.updateWalletQueue, psUpdateWallet, getBatchSize(), null,
+                (t, p) -> p.setInt(t.getWalletId()).setInt(t.getAddressId()),
+                updated -> walletChangelog.ifPresent(c -> c.add(updated)), null);
+    }
+
+    private static SpillQueue.Serializer<BtcAddress> buildSpillSerializer(SrcAddressType addressType) {
+        return new SpillQueue.Serializer<BtcAddress>() {
+            @Override
+            public void write(BtcAddress a, DataOutput out) throws IOException {
+                byte[] address = a.getAddress().getData();
+                out.writeInt(a.getAddressId());
+                out.writeByte(address.length);
+                out.write(address);
+                out.writeInt(a.getWalletId());
+            }
+
+            @Override
+            public BtcAddress read(DataInput in) throws IOException {
+                int addressId = in.readInt();
+                byte[] address = new byte[in.readUnsignedByte()];
+                in.readFully(address);
+                return BtcAddress.builder().type(addressType).addressId(addressId).address(address).walletId(in.readInt()).build();
+            }
+        };
     }
 
     @Getter
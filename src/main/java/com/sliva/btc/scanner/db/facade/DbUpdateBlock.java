@@ -20,10 +20,15 @@ import static com.google.common.base.Preconditions.checkState;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
 import com.sliva.btc.scanner.db.DbUpdate;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvWriteBatch;
 import com.sliva.btc.scanner.db.model.BtcBlock;
 import static com.sliva.btc.scanner.util.Utils.getPercentage;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.Set;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -38,60 +43,101 @@ public class DbUpdateBlock extends DbUpdate {
     private static final String TABLE_NAME = "block";
     private static final String SQL_ADD = "INSERT INTO `block`(`height`,`hash`,txn_count)VALUES(?,?,?)";
     private static final String SQL_DELETE = "DELETE FROM `block` WHERE height=?";
+    private static final String SQL_DELETE_MULTI = "DELETE FROM `block` WHERE height IN (" + buildKeysPlaceholder("?", DELETE_KEYS_PER_STATEMENT) + ")";
     private final DBPreparedStatement psAdd;
     private final DBPreparedStatement psDelete;
+    private final DBPreparedStatement psDeleteMulti;
     @Getter
     @NonNull
     private final CacheData cacheData;
 
-    public DbUpdateBlock(DBConnectionSupplier conn) {
-        this(conn, new CacheData());
+    public DbUpdateBlock(DBConnectionSupplier conn, DbStores stores) {
+        this(conn, stores, new CacheData());
     }
 
-    public DbUpdateBlock(DBConnectionSupplier conn, CacheData cacheData) {
-        super(TABLE_NAME, conn);
+    public DbUpdateBlock(DBConnectionSupplier conn, DbStores stores, CacheData cacheData) {
+        super(TABLE_NAME, conn, stores.getKvStore());
         checkArgument(cacheData != null, "Argument 'cacheData' is null");
         this.psAdd = conn.prepareStatement(SQL_ADD);
         this.psDelete = conn.prepareStatement(SQL_DELETE, "block.height");
+        this.psDeleteMulti = conn.prepareStatement(SQL_DELETE_MULTI, "block.height");
         this.cacheData = cacheData;
     }
 
     @Override
     public int getCacheFillPercent() {
-        return getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize());
+        return Math.max(getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize()), getPercentage(cacheData.deleteQueue.size(), getMaxUpdatesQueueSize()));
     }
 
     @Override
     public boolean isExecuteNeeded() {
-        return cacheData.addQueue.size() >= getMinBatchSize();
+        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.deleteQueue.size() >= getMinBatchSize();
     }
 
     public void add(BtcBlock btcBlock) {
         log.trace("add(btcBlock:{})", btcBlock);
         checkState(isActive(), "Instance has been closed");
+        waitDeleteExecuted(() -> isDeletePending(btcBlock.getHeight()));
         waitFullQueue(cacheData.addQueue, getMaxInsertsQueueSize());
         synchronized (cacheData) {
             cacheData.addQueue.add(btcBlock);
         }
     }
 
-    public boolean delete(BtcBlock btcBlock) {
+    /**
+     * Queue block for deletion. Pending insert of the same block is
+     * discarded. Queued deletes are executed in batches before inserts.
+     *
+     * @param btcBlock block to delete
+     */
+    public void delete(BtcBlock btcBlock) {
         log.trace("delete(btcBlock:{})", btcBlock);
         checkState(isActive(), "Instance has been closed");
         synchronized (cacheData) {
             cacheData.addQueue.remove(btcBlock);
+            cacheData.deleteQueue.add(btcBlock.getHeight());
+            cacheData.deleteSet.add(btcBlock.getHeight());
         }
-        return psDelete.setParameters(p -> p.setInt(btcBlock.getHeight())).executeUpdate() == 1;
+        getKvStore().ifPresent(kv -> kv.write(new KvWriteBatch()
+                .delete(KvColumnFamily.BLOCK, KvCodec.encodeInt(btcBlock.getHeight()))));
+        waitFullQueue(cacheData.deleteQueue, getMaxUpdatesQueueSize());
     }
 
-    public boolean delete(int blockHeight) {
-        return delete(BtcBlock.builder().height(blockHeight).build());
+    public void delete(int blockHeight) {
+        delete(BtcBlock.builder().height(blockHeight).build());
+    }
+
+    /**
+     * Check if block is queued for deletion or deletion is in progress.
+     *
+     * @param blockHeight block height
+     * @return true if block delete is pending
+     */
+    public boolean isDeletePending(int blockHeight) {
+        synchronized (cacheData) {
+            return cacheData.deleteSet.contains(blockHeight);
+        }
     }
 
     @Override
     public int executeInserts() {
-        return executeBatch(cacheData, cacheData.addQueue, psAdd, getMaxBatchSize(),
-                (t, ps) -> ps.setInt(t.getHeight()).setBytes(t.getHash().getData()).setInt(t.getTxnCount()), null);
+        return executeBatch(cacheData, cacheData.addQueue, psAdd, getBatchSize(), null,
+                (t, ps) -> ps.setInt(t.getHeight()).setBytes(t.getHash().getData()).setInt(t.getTxnCount()),
+                inserted -> getKvStore().ifPresent(kv -> {
+                    KvWriteBatch kvBatch = new KvWriteBatch();
+                    inserted.forEach(b -> kvBatch.put(KvColumnFamily.BLOCK, KvCodec.encodeInt(b.getHeight()), KvCodec.encodeBlock(b)));
+                    kv.write(kvBatch);
+                }), null);
+    }
+
+    @Override
+    public int executeDeletes() {
+        return executeDeleteBatch(cacheData, cacheData.deleteQueue, psDeleteMulti, psDelete, (t, p) -> p.setInt(t),
+                executed -> {
+                    synchronized (cacheData) {
+                        cacheData.deleteSet.removeAll(executed);
+                    }
+                });
     }
 
     @Override
@@ -103,5 +149,7 @@ public class DbUpdateBlock extends DbUpdate {
     public static class CacheData {
 
         private final Collection<BtcBlock> addQueue = new LinkedHashSet<>();
+        private final Collection<Integer> deleteQueue = new LinkedHashSet<>();
+        private final Set<Integer> deleteSet = new HashSet<>();
     }
 }
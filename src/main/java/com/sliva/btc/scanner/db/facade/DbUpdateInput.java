@@ -20,16 +20,25 @@ import static com.google.common.base.Preconditions.checkState;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
 import com.sliva.btc.scanner.db.DbUpdate;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvWriteBatch;
 import com.sliva.btc.scanner.db.model.InOutKey;
 import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.utils.SpillQueue;
 import static com.sliva.btc.scanner.util.Utils.getPercentage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -45,49 +54,61 @@ public class DbUpdateInput extends DbUpdate {
     private static final String SQL_ADD = "INSERT INTO `input`(transaction_id,pos,in_transaction_id,in_pos)VALUES(?,?,?,?)";
     private static final String SQL_UPDATE = "UPDATE `input` SET in_transaction_id=?,in_pos=? WHERE transaction_id=? AND pos=?";
     private static final String SQL_DELETE = "DELETE FROM `input` WHERE transaction_id=? AND pos=?";
+    private static final String SQL_DELETE_MULTI = "DELETE FROM `input` WHERE (transaction_id,pos) IN (" + buildKeysPlaceholder("(?,?)", DELETE_KEYS_PER_STATEMENT) + ")";
     private static final String SQL_DELETE_ALL_ABOVE_TRANSACTION_ID = "DELETE FROM `input` WHERE transaction_id>?";
+    private static final String SQL_QUERY_SPENT_ABOVE_TRANSACTION_ID = "SELECT in_transaction_id,in_pos FROM `input` WHERE transaction_id>?";
     private final DBPreparedStatement psAdd;
     private final DBPreparedStatement psUpdate;
     private final DBPreparedStatement psDelete;
+    private final DBPreparedStatement psDeleteMulti;
     private final DBPreparedStatement psDeleteAllAboveTransactionId;
+    private final DBPreparedStatement psQuerySpentAboveTransactionId;
     @Getter
     @NonNull
     private final CacheData cacheData;
+    private final SpillQueue<InOutKey, TxInput> spillQueue;
 
-    public DbUpdateInput(DBConnectionSupplier conn) {
-        this(conn, new CacheData());
+    public DbUpdateInput(DBConnectionSupplier conn, DbStores stores) {
+        this(conn, stores, new CacheData());
     }
 
-    public DbUpdateInput(DBConnectionSupplier conn, CacheData cacheData) {
-        super(TABLE_NAME, conn);
+    public DbUpdateInput(DBConnectionSupplier conn, DbStores stores, CacheData cacheData) {
+        super(TABLE_NAME, conn, stores.getKvStore());
         checkArgument(cacheData != null, "Argument 'cacheData' is null");
         this.psAdd = conn.prepareStatement(SQL_ADD);
         this.psUpdate = conn.prepareStatement(SQL_UPDATE, "input.transaction_id");
         this.psDelete = conn.prepareStatement(SQL_DELETE, "input.transaction_id");
+        this.psDeleteMulti = conn.prepareStatement(SQL_DELETE_MULTI, "input.transaction_id");
         this.psDeleteAllAboveTransactionId = conn.prepareStatement(SQL_DELETE_ALL_ABOVE_TRANSACTION_ID, "input.transaction_id");
+        this.psQuerySpentAboveTransactionId = conn.prepareStatement(SQL_QUERY_SPENT_ABOVE_TRANSACTION_ID, "input.transaction_id");
         this.cacheData = cacheData;
+        this.spillQueue = buildSpillQueue(t -> new InOutKey(t.getTransactionId(), t.getPos()), SPILL_SERIALIZER);
     }
 
     @Override
     public int getCacheFillPercent() {
-        return Math.max(getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize()), getPercentage(cacheData.queueUpdate.size(), getMaxUpdatesQueueSize()));
+        return Math.max(getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize()),
+                Math.max(getPercentage(cacheData.queueUpdate.size(), getMaxUpdatesQueueSize()), getPercentage(cacheData.deleteQueue.size(), getMaxUpdatesQueueSize())));
     }
 
     @Override
     public boolean isExecuteNeeded() {
-        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.queueUpdate.size() >= getMinBatchSize();
+        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.queueUpdate.size() >= getMinBatchSize()
+                || cacheData.deleteQueue.size() >= getMinBatchSize() || !spillQueue.isEmpty();
     }
 
     public void add(TxInput txInput) throws SQLException {
         log.trace("add(txInput:{})", txInput);
         checkState(isActive(), "Instance has been closed");
+        waitDeleteExecuted(() -> isDeletePending(txInput));
         synchronized (cacheData) {
-            cacheData.addQueue.add(txInput);
-            cacheData.queueMap.put(txInput, txInput);
-            List<TxInput> list = cacheData.queueMapTx.computeIfAbsent(txInput.getTransactionId(), id -> new ArrayList<>(1));
-            list.add(txInput);
+            if (isSpillNeeded(cacheData.addQueue, spillQueue)) {
+                spillQueue.put(txInput);
+            } else {
+                _add(txInput);
+            }
         }
-        waitFullQueue(cacheData.addQueue, getMaxInsertsQueueSize());
+        waitFullInsertsQueue(cacheData.addQueue);
     }
 
     public void update(TxInput txInput) throws SQLException {
@@ -103,6 +124,9 @@ public class DbUpdateInput extends DbUpdate {
                 }
                 cacheData.queueMap.put(txInput, txInput);
                 //cacheData.queueMapTx.put(key, txInput);
+            } else if (spillQueue.containsKey(txInput)) {
+                spillQueue.put(txInput);
+                updatedInQueue = true;
             }
             if (!updatedInQueue) {
                 cacheData.queueUpdate.add(txInput);
@@ -111,21 +135,51 @@ public class DbUpdateInput extends DbUpdate {
         waitFullQueue(cacheData.queueUpdate, getMaxUpdatesQueueSize());
     }
 
-    public boolean delete(TxInput txInput) {
+    /**
+     * Queue input for deletion. Pending insert and update of the same input
+     * are discarded. Queued deletes are executed in batches before inserts and
+     * updates.
+     *
+     * @param txInput input to delete
+     */
+    public void delete(TxInput txInput) {
         log.trace("delete(txInput:{})", txInput);
         checkState(isActive(), "Instance has been closed");
+        InOutKey key = new InOutKey(txInput.getTransactionId(), txInput.getPos());
         synchronized (cacheData) {
-            boolean result = psDelete.setParameters(p -> p.setInt(txInput.getTransactionId()).setInt(txInput.getPos())).executeUpdate() == 1;
-            cacheData.addQueue.remove(txInput);
-            cacheData.queueMap.remove(txInput);
-            List<TxInput> l = cacheData.queueMapTx.get(txInput.getTransactionId());
+            cacheData.addQueue.remove(key);
+            cacheData.queueMap.remove(key);
+            spillQueue.remove(key);
+            List<TxInput> l = cacheData.queueMapTx.get(key.getTransactionId());
             if (l != null) {
-                l.remove(txInput);
+                l.remove(key);
                 if (l.isEmpty()) {
-                    cacheData.queueMapTx.remove(txInput.getTransactionId());
+                    cacheData.queueMapTx.remove(key.getTransactionId());
                 }
             }
-            return result;
+            cacheData.queueUpdate.removeIf(key::equals);
+            cacheData.deleteQueue.add(key);
+            cacheData.deleteSet.add(key);
+        }
+        if (txInput.getInTransactionId() != 0) {
+            getKvStore().ifPresent(kv -> {
+                byte[] kvKey = KvCodec.encodeOutPoint(txInput.getInTransactionId(), txInput.getInPos());
+                kv.get(KvColumnFamily.SPENT_BY, kvKey).map(KvCodec::decodeOutPoint).filter(key::equals)
+                        .ifPresent(k -> kv.write(new KvWriteBatch().delete(KvColumnFamily.SPENT_BY, kvKey)));
+            });
+        }
+        waitFullQueue(cacheData.deleteQueue, getMaxUpdatesQueueSize());
+    }
+
+    /**
+     * Check if input is queued for deletion or deletion is in progress.
+     *
+     * @param key input key
+     * @return true if input delete is pending
+     */
+    public boolean isDeletePending(InOutKey key) {
+        synchronized (cacheData) {
+            return cacheData.deleteSet.contains(key);
         }
     }
 
@@ -133,19 +187,44 @@ public class DbUpdateInput extends DbUpdate {
         log.trace("deleteAllAboveTransactionId(transactionId:{})", transactionId);
         checkState(isActive(), "Instance has been closed");
         synchronized (cacheData) {
-            int result = psDeleteAllAboveTransactionId.setParameters(p -> p.setInt(transactionId)).executeUpdate();
-            cacheData.addQueue.removeIf(txInput -> txInput.getTransactionId() == transactionId);
-            cacheData.queueMap.entrySet().removeIf(e -> e.getKey().getTransactionId() == transactionId);
-            cacheData.queueMapTx.entrySet().removeIf(e -> e.getKey() == transactionId);
-            return result;
+            cacheData.addQueue.removeIf(txInput -> txInput.getTransactionId() > transactionId);
+            cacheData.queueMap.entrySet().removeIf(e -> e.getKey().getTransactionId() > transactionId);
+            cacheData.queueMapTx.entrySet().removeIf(e -> e.getKey() > transactionId);
+            spillQueue.removeIf(key -> key.getTransactionId() > transactionId);
+            cacheData.deleteQueue.removeIf(key -> key.getTransactionId() > transactionId);
+            cacheData.deleteSet.removeIf(key -> key.getTransactionId() > transactionId);
         }
+        getKvStore().ifPresent(kv -> {
+            KvWriteBatch kvBatch = new KvWriteBatch();
+            psQuerySpentAboveTransactionId.executeQueryToListOnAllShards(ps -> ps.setInt(transactionId), rs -> KvCodec.encodeOutPoint(rs.getInt(1), rs.getShort(2)))
+                    .forEach(key -> kvBatch.delete(KvColumnFamily.SPENT_BY, key));
+            kv.write(kvBatch);
+        });
+        return executeDeleteAllAbove(psDeleteAllAboveTransactionId, transactionId);
+    }
+
+    /**
+     * Write spending inputs applied to DB to key-value store.
+     */
+    private void putSpentBy(Collection<TxInput> executed) {
+        getKvStore().ifPresent(kv -> {
+            KvWriteBatch kvBatch = new KvWriteBatch();
+            executed.stream().filter(txInput -> txInput.getInTransactionId() != 0).forEach(txInput -> kvBatch.put(KvColumnFamily.SPENT_BY,
+                    KvCodec.encodeOutPoint(txInput.getInTransactionId(), txInput.getInPos()),
+                    KvCodec.encodeOutPoint(txInput.getTransactionId(), txInput.getPos())));
+            kv.write(kvBatch);
+        });
     }
 
     @SuppressWarnings({"UseSpecificCatch"})
     @Override
     public int executeInserts() {
-        return executeBatch(cacheData, cacheData.addQueue, psAdd, getMaxBatchSize(),
+        synchronized (cacheData) {
+            drainSpillQueue(cacheData.addQueue, spillQueue, this::_add);
+        }
+        return executeBatch(cacheData, cacheData.addQueue, psAdd, getBatchSize(), InOutKey::getTransactionId,
                 (t, p) -> p.setInt(t.getTransactionId()).setInt(t.getPos()).setInt(t.getInTransactionId()).setInt(t.getInPos()),
+                this::putSpentBy,
                 executed -> {
                     synchronized (cacheData) {
                         executed.stream().peek(cacheData.queueMap::remove).map(InOutKey::getTransactionId).forEach(cacheData.queueMapTx::remove);
@@ -153,12 +232,46 @@ public class DbUpdateInput extends DbUpdate {
                 });
     }
 
+    @Override
+    public int executeDeletes() {
+        return executeDeleteBatch(cacheData, cacheData.deleteQueue, psDeleteMulti, psDelete, InOutKey::getTransactionId,
+                (t, p) -> p.setInt(t.getTransactionId()).setInt(t.getPos()),
+                executed -> {
+                    synchronized (cacheData) {
+                        cacheData.deleteSet.removeAll(executed);
+                    }
+                });
+    }
+
     @Override
     public int executeUpdates() {
-        return executeBatch(cacheData, cacheData.queueUpdate, psUpdate, getMaxBatchSize(),
-                (t, p) -> p.setInt(t.getInTransactionId()).setInt(t.getInPos()).setInt(t.getTransactionId()).setInt(t.getPos()), null);
+        return executeBatch(cacheData, cacheData.queueUpdate, psUpdate, getBatchSize(), InOutKey::getTransactionId,
+                (t, p) -> p.setInt(t.getInTransactionId()).setInt(t.getInPos()).setInt(t.getTransactionId()).setInt(t.getPos()),
+                this::putSpentBy, null);
     }
 
+    private void _add(TxInput txInput) {
+        cacheData.addQueue.add(txInput);
+        cacheData.queueMap.put(txInput, txInput);
+        List<TxInput> list = cacheData.queueMapTx.computeIfAbsent(txInput.getTransactionId(), id -> new ArrayList<>(1));
+        list.add(txInput);
+    }
+
+    private static final SpillQueue.Serializer<TxInput> SPILL_SERIALIZER = new SpillQueue.Serializer<TxInput>() {
+        @Override
+        public void write(TxInput t, DataOutput out) throws IOException {
+            out.writeInt(t.getTransactionId());
+            out.writeShort(t.getPos());
+            out.writeInt(t.getInTransactionId());
+            out.writeShort(t.getInPos());
+        }
+
+        @Override
+        public TxInput read(DataInput in) throws IOException {
+            return TxInput.builder().transactionId(in.readInt()).pos(in.readShort()).inTransactionId(in.readInt()).inPos(in.readShort()).build();
+        }
+    };
+
     @Getter
     public static class CacheData {
 
@@ -166,5 +279,7 @@ public class DbUpdateInput extends DbUpdate {
         private final Map<InOutKey, TxInput> queueMap = new HashMap<>();
         private final Map<Integer, List<TxInput>> queueMapTx = new HashMap<>();
         private final Collection<TxInput> queueUpdate = new ArrayList<>();
+        private final Collection<InOutKey> deleteQueue = new LinkedHashSet<>();
+        private final Set<InOutKey> deleteSet = new HashSet<>();
     }
 }
@@ -26,9 +26,11 @@ import static com.sliva.btc.scanner.util.Utils.getPercentage;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -44,10 +46,12 @@ public class DbUpdateInputSpecial extends DbUpdate {
     private static final String SQL_ADD = "INSERT INTO input_special(transaction_id,pos,sighash_type,segwit,multisig)VALUES(?,?,?,?,?)";
     private static final String SQL_UPDATE = "UPDATE input_special SET sighash_type=?,segwit=?,multisig=? WHERE transaction_id=? AND pos=?";
     private static final String SQL_DELETE = "DELETE FROM input_special WHERE transaction_id=? AND pos=?";
+    private static final String SQL_DELETE_MULTI = "DELETE FROM input_special WHERE (transaction_id,pos) IN (" + buildKeysPlaceholder("(?,?)", DELETE_KEYS_PER_STATEMENT) + ")";
     private static final String SQL_DELETE_ALL_ABOVE_TRANSACTION_ID = "DELETE FROM input_special WHERE transaction_id>?";
     private final DBPreparedStatement psAdd;
     private final DBPreparedStatement psUpdate;
     private final DBPreparedStatement psDelete;
+    private final DBPreparedStatement psDeleteMulti;
     private final DBPreparedStatement psDeleteAllAboveTransactionId;
     @Getter
     @NonNull
@@ -62,6 +66,7 @@ public class DbUpdateInputSpecial extends DbUpdate {
         checkArgument(cacheData != null, "Argument 'cacheData' is null");
         this.psAdd = conn.prepareStatement(SQL_ADD);
         this.psDelete = conn.prepareStatement(SQL_DELETE, "input_special.transaction_id");
+        this.psDeleteMulti = conn.prepareStatement(SQL_DELETE_MULTI, "input_special.transaction_id");
         this.psUpdate = conn.prepareStatement(SQL_UPDATE, "input_special.transaction_id");
         this.psDeleteAllAboveTransactionId = conn.prepareStatement(SQL_DELETE_ALL_ABOVE_TRANSACTION_ID, "input_special.transaction_id");
         this.cacheData = cacheData;
@@ -69,17 +74,20 @@ public class DbUpdateInputSpecial extends DbUpdate {
 
     @Override
     public int getCacheFillPercent() {
-        return Math.max(getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize()), getPercentage(cacheData.queueUpdate.size(), getMaxUpdatesQueueSize()));
+        return Math.max(getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize()),
+                Math.max(getPercentage(cacheData.queueUpdate.size(), getMaxUpdatesQueueSize()), getPercentage(cacheData.deleteQueue.size(), getMaxUpdatesQueueSize())));
     }
 
     @Override
     public boolean isExecuteNeeded() {
-        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.queueUpdate.size() >= getMinBatchSize();
+        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.queueUpdate.size() >= getMinBatchSize()
+                || cacheData.deleteQueue.size() >= getMinBatchSize();
     }
 
     public void add(TxInputSpecial txInput) {
         log.trace("add(txInput:{})", txInput);
         checkState(isActive(), "Instance has been closed");
+        waitDeleteExecuted(() -> isDeletePending(txInput));
         synchronized (cacheData) {
             cacheData.addQueue.add(txInput);
             cacheData.queueMap.put(txInput, txInput);
@@ -110,21 +118,43 @@ public class DbUpdateInputSpecial extends DbUpdate {
         waitFullQueue(cacheData.queueUpdate, getMaxUpdatesQueueSize());
     }
 
-    public boolean delete(TxInputSpecial txInput) {
+    /**
+     * Queue input for deletion. Pending insert and update of the same input
+     * are discarded. Queued deletes are executed in batches before inserts and
+     * updates.
+     *
+     * @param txInput input to delete
+     */
+    public void delete(TxInputSpecial txInput) {
         log.trace("delete(txInput:{})", txInput);
         checkState(isActive(), "Instance has been closed");
+        InOutKey key = new InOutKey(txInput.getTransactionId(), txInput.getPos());
         synchronized (cacheData) {
-            boolean result = psDelete.setParameters(p -> p.setInt(txInput.getTransactionId()).setInt(txInput.getPos())).executeUpdate() == 1;
-            cacheData.addQueue.remove(txInput);
-            cacheData.queueMap.remove(txInput);
-            List<TxInputSpecial> l = cacheData.queueMapTx.get(txInput.getTransactionId());
+            cacheData.addQueue.remove(key);
+            cacheData.queueMap.remove(key);
+            List<TxInputSpecial> l = cacheData.queueMapTx.get(key.getTransactionId());
             if (l != null) {
-                l.remove(txInput);
+                l.remove(key);
                 if (l.isEmpty()) {
-                    cacheData.queueMapTx.remove(txInput.getTransactionId());
+                    cacheData.queueMapTx.remove(key.getTransactionId());
                 }
             }
-            return result;
+            cacheData.queueUpdate.removeIf(key::equals);
+            cacheData.deleteQueue.add(key);
+            cacheData.deleteSet.add(key);
+        }
+        waitFullQueue(cacheData.deleteQueue, getMaxUpdatesQueueSize());
+    }
+
+    /**
+     * Check if input is queued for deletion or deletion is in progress.
+     *
+     * @param key input key
+     * @return true if input delete is pending
+     */
+    public boolean isDeletePending(InOutKey key) {
+        synchronized (cacheData) {
+            return cacheData.deleteSet.contains(key);
         }
     }
 
@@ -132,18 +162,19 @@ public class DbUpdateInputSpecial extends DbUpdate {
         log.trace("deleteAllAboveTransactionId(transactionId:{})", transactionId);
         checkState(isActive(), "Instance has been closed");
         synchronized (cacheData) {
-            int result = psDeleteAllAboveTransactionId.setParameters(p -> p.setInt(transactionId)).executeUpdate();
-            cacheData.addQueue.removeIf(txInput -> txInput.getTransactionId() == transactionId);
-            cacheData.queueMap.entrySet().removeIf(e -> e.getKey().getTransactionId() == transactionId);
-            cacheData.queueMapTx.entrySet().removeIf(e -> e.getKey() == transactionId);
-            return result;
+            cacheData.addQueue.removeIf(txInput -> txInput.getTransactionId() > transactionId);
+            cacheData.queueMap.entrySet().removeIf(e -> e.getKey().getTransactionId() > transactionId);
+            cacheData.queueMapTx.entrySet().removeIf(e -> e.getKey() > transactionId);
+            cacheData.deleteQueue.removeIf(key -> key.getTransactionId() > transactionId);
+            cacheData.deleteSet.removeIf(key -> key.getTransactionId() > transactionId);
         }
+        return executeDeleteAllAbove(psDeleteAllAboveTransactionId, transactionId);
     }
 
     @SuppressWarnings({"UseSpecificCatch"})
     @Override
     public int executeInserts() {
-        return executeBatch(cacheData, cacheData.addQueue, psAdd, getMaxBatchSize(),
+        return executeBatch(cacheData, cacheData.addQueue, psAdd, getBatchSize(), InOutKey::getTransactionId,
                 (t, p) -> p.setInt(t.getTransactionId()).setInt(t.getPos()).setInt(Byte.toUnsignedInt(t.getSighashType())).setBoolean(t.isSegwit()).setBoolean(t.isMultisig()),
                 executed -> {
                     synchronized (cacheData) {
@@ -152,9 +183,20 @@ public class DbUpdateInputSpecial extends DbUpdate {
                 });
     }
 
+    @Override
+    public int executeDeletes() {
+        return executeDeleteBatch(cacheData, cacheData.deleteQueue, psDeleteMulti, psDelete, InOutKey::getTransactionId,
+                (t, p) -> p.setInt(t.getTransactionId()).setInt(t.getPos()),
+                executed -> {
+                    synchronized (cacheData) {
+                        cacheData.deleteSet.removeAll(executed);
+                    }
+                });
+    }
+
     @Override
     public int executeUpdates() {
-        return executeBatch(cacheData, cacheData.queueUpdate, psUpdate, getMaxBatchSize(),
+        return executeBatch(cacheData, cacheData.queueUpdate, psUpdate, getBatchSize(), InOutKey::getTransactionId,
                 (t, p) -> p.setInt(Byte.toUnsignedInt(t.getSighashType())).setBoolean(t.isSegwit()).setBoolean(t.isMultisig()).setInt(t.getTransactionId()).setInt(t.getPos()), null);
     }
 
@@ -165,5 +207,7 @@ public class DbUpdateInputSpecial extends DbUpdate {
         private final Map<InOutKey, TxInputSpecial> queueMap = new HashMap<>();
         private final Map<Integer, List<TxInputSpecial>> queueMapTx = new HashMap<>();
         private final Collection<TxInputSpecial> queueUpdate = new ArrayList<>();
+        private final Collection<InOutKey> deleteQueue = new LinkedHashSet<>();
+        private final Set<InOutKey> deleteSet = new HashSet<>();
     }
 }
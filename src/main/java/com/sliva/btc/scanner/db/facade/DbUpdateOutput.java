@@ -18,16 +18,32 @@ package com.sliva.btc.scanner.db.facade;
 import static com.google.common.base.Preconditions.checkState;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.DBPreparedStatement.ParamSetter;
 import com.sliva.btc.scanner.db.DbUpdate;
+import com.sliva.btc.scanner.db.SqlDialect;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvWriteBatch;
 import com.sliva.btc.scanner.db.model.InOutKey;
 import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.db.utils.SpillQueue;
+import com.sliva.btc.scanner.util.CommandLineUtils;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
 import static com.sliva.btc.scanner.util.Utils.getPercentage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -39,36 +55,90 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DbUpdateOutput extends DbUpdate {
 
+    private static final boolean DEFAULT_STAGING_UPDATES = false;
+    public static final CommandLineUtils.CmdOptions CMD_OPTS = new CommandLineUtils.CmdOptions();
+    public static final CommandLineUtils.CmdOption stagingUpdatesOpt = buildOption(CMD_OPTS, null, "output-staging-updates", true,
+            "Apply spent/address/amount updates on outputs by loading each batch into a temporary staging table and running a single join update."
+            + " Requires CREATE TEMPORARY TABLES privilege. Not used if DB is sharded. Default: " + DEFAULT_STAGING_UPDATES);
+    private static boolean stagingUpdates = DEFAULT_STAGING_UPDATES;
+
     private static final String TABLE_NAME = "output";
     private static final String SQL_ADD = "INSERT INTO `output`(transaction_id,pos,address_id,amount,spent)VALUES(?,?,?,?,?)";
     private static final String SQL_DELETE = "DELETE FROM `output` WHERE transaction_id=? AND pos=?";
+    private static final String SQL_DELETE_MULTI = "DELETE FROM `output` WHERE (transaction_id,pos) IN (" + buildKeysPlaceholder("(?,?)", DELETE_KEYS_PER_STATEMENT) + ")";
     private static final String SQL_DELETE_ALL_ABOVE_TRANSACTION_ID = "DELETE FROM `output` WHERE transaction_id>?";
 //    private static final String SQL_UPDATE_SPENT = "UPDATE `output` SET spent=? WHERE transaction_id=? AND pos=?";
     private static final String SQL_UPDATE_SPENT = "INSERT into `output`(spent,transaction_id,pos,address_id,amount)VALUES(?,?,?,0,0) ON DUPLICATE KEY UPDATE spent=VALUES(spent)";
+    private static final String SQL_UPDATE_SPENT_PG = "INSERT INTO `output`(spent,transaction_id,pos,address_id,amount)VALUES(?,?,?,0,0) ON CONFLICT(transaction_id,pos) DO UPDATE SET spent=EXCLUDED.spent";
     private static final String SQL_UPDATE_ADDRESS = "UPDATE `output` SET address_id=? WHERE transaction_id=? AND pos=?";
     private static final String SQL_UPDATE_AMOUNT = "UPDATE `output` SET amount=? WHERE transaction_id=? AND pos=?";
+    private static final String SQL_STAGE_CREATE = "CREATE TEMPORARY TABLE IF NOT EXISTS tmp_output_update("
+            + "transaction_id INT UNSIGNED NOT NULL,pos SMALLINT UNSIGNED NOT NULL,`value` BIGINT NOT NULL,"
+            + "PRIMARY KEY(transaction_id,pos))ENGINE=MEMORY";
+    private static final String SQL_STAGE_CLEAR = "DELETE FROM tmp_output_update";
+    private static final String SQL_STAGE_ADD = "INSERT INTO tmp_output_update(transaction_id,pos,`value`)VALUES(?,?,?) ON DUPLICATE KEY UPDATE `value`=VALUES(`value`)";
+    private static final String SQL_STAGE_MERGE = "UPDATE `output` O JOIN tmp_output_update S ON S.transaction_id=O.transaction_id AND S.pos=O.pos SET O.field_name=S.`value`";
+    private static final String SQL_STAGE_CREATE_PG = "CREATE TEMPORARY TABLE IF NOT EXISTS tmp_output_update("
+            + "transaction_id INTEGER NOT NULL,pos SMALLINT NOT NULL,`value` BIGINT NOT NULL,"
+            + "PRIMARY KEY(transaction_id,pos))";
+    private static final String SQL_STAGE_ADD_PG = "INSERT INTO tmp_output_update(transaction_id,pos,`value`)VALUES(?,?,?) ON CONFLICT(transaction_id,pos) DO UPDATE SET `value`=EXCLUDED.`value`";
+    private static final String SQL_STAGE_MERGE_PG = "UPDATE `output` O SET field_name=S.`value` FROM tmp_output_update S WHERE S.transaction_id=O.transaction_id AND S.pos=O.pos";
+    private static final BinaryOperator<TxOutput> UPDATE_SPENT = (o, u) -> o.toBuilder().status(u.getStatus()).build();
+    private static final BinaryOperator<TxOutput> UPDATE_ADDRESS = (o, u) -> o.toBuilder().addressId(u.getAddressId()).build();
+    private static final BinaryOperator<TxOutput> UPDATE_AMOUNT = (o, u) -> o.toBuilder().amount(u.getAmount()).build();
     private final DBPreparedStatement psAdd;
     private final DBPreparedStatement psDelete;
+    private final DBPreparedStatement psDeleteMulti;
     private final DBPreparedStatement psDeleteAllAboveTransactionId;
     private final DBPreparedStatement psUpdateSpent;
     private final DBPreparedStatement psUpdateAddress;
     private final DBPreparedStatement psUpdateAmount;
+    private final DBPreparedStatement psStageCreate;
+    private final DBPreparedStatement psStageClear;
+    private final DBPreparedStatement psStageAdd;
+    private final DBPreparedStatement psStageMergeSpent;
+    private final DBPreparedStatement psStageMergeAddress;
+    private final DBPreparedStatement psStageMergeAmount;
     @Getter
     @NonNull
     private final CacheData cacheData = new CacheData();
+    private final SpillQueue<InOutKey, TxOutput> spillQueue;
     private final boolean hasSpentField;
+    private final DBConnectionSupplier conn;
+
+    public static void applyArguments(CommandLineUtils.CmdArguments cmdArguments) {
+        stagingUpdates = cmdArguments.getOption(stagingUpdatesOpt).map(Boolean::valueOf).orElse(DEFAULT_STAGING_UPDATES);
+    }
 
-    public DbUpdateOutput(DBConnectionSupplier conn) {
-        super(TABLE_NAME, conn);
+    public DbUpdateOutput(DBConnectionSupplier conn, DbStores stores) {
+        super(TABLE_NAME, conn, stores.getKvStore());
+        this.conn = conn;
         this.hasSpentField = conn.getDBMetaData().hasField(TABLE_NAME + ".spent");
+        boolean postgres = conn.getDialect() == SqlDialect.POSTGRESQL;
+        String sqlUpdateSpent = postgres ? SQL_UPDATE_SPENT_PG : SQL_UPDATE_SPENT;
+        String sqlStageMerge = postgres ? SQL_STAGE_MERGE_PG : SQL_STAGE_MERGE;
         this.psAdd = conn.prepareStatement(hasSpentField ? SQL_ADD : SQL_ADD.replace(",spent", "").replace(",?)", ")"));
         this.psDelete = conn.prepareStatement(SQL_DELETE, "output.transaction_id");
+        this.psDeleteMulti = conn.prepareStatement(SQL_DELETE_MULTI, "output.transaction_id");
         this.psDeleteAllAboveTransactionId = conn.prepareStatement(SQL_DELETE_ALL_ABOVE_TRANSACTION_ID, "output.transaction_id");
         this.psUpdateSpent = hasSpentField
-                ? conn.prepareStatement(SQL_UPDATE_SPENT, "output.transaction_id")
-                : conn.prepareNonExecutableStatement(SQL_UPDATE_SPENT, "No 'spent' field in table 'output'");
+                ? conn.prepareStatement(sqlUpdateSpent, "output.transaction_id")
+                : conn.prepareNonExecutableStatement(sqlUpdateSpent, "No 'spent' field in table 'output'");
         this.psUpdateAddress = conn.prepareStatement(SQL_UPDATE_ADDRESS, "output.transaction_id");
         this.psUpdateAmount = conn.prepareStatement(SQL_UPDATE_AMOUNT, "output.transaction_id");
+        this.psStageCreate = conn.prepareStatement(postgres ? SQL_STAGE_CREATE_PG : SQL_STAGE_CREATE);
+        this.psStageClear = conn.prepareStatement(SQL_STAGE_CLEAR);
+        this.psStageAdd = conn.prepareStatement(postgres ? SQL_STAGE_ADD_PG : SQL_STAGE_ADD);
+        this.psStageMergeSpent = hasSpentField
+                ? conn.prepareStatement(sqlStageMerge.replace("field_name", "spent"), "output.transaction_id")
+                : conn.prepareNonExecutableStatement(sqlStageMerge.replace("field_name", "spent"), "No 'spent' field in table 'output'");
+        this.psStageMergeAddress = conn.prepareStatement(sqlStageMerge.replace("field_name", "address_id"), "output.transaction_id");
+        this.psStageMergeAmount = conn.prepareStatement(sqlStageMerge.replace("field_name", "amount"), "output.transaction_id");
+        this.spillQueue = buildSpillQueue(t -> new InOutKey(t.getTransactionId(), t.getPos()), SPILL_SERIALIZER);
+        tuneQueueSeparately("add", cacheData.addQueue);
+        tuneQueueSeparately("update_spent", cacheData.queueUpdateSpent);
+        tuneQueueSeparately("update_address", cacheData.queueUpdateAddress);
+        tuneQueueSeparately("update_amount", cacheData.queueUpdateAmount);
     }
 
     @Override
@@ -76,41 +146,73 @@ public class DbUpdateOutput extends DbUpdate {
         return Math.max(getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize()),
                 Math.max(getPercentage(cacheData.queueUpdateAddress.size(), getMaxUpdatesQueueSize()),
                         Math.max(getPercentage(cacheData.queueUpdateAmount.size(), getMaxUpdatesQueueSize()),
-                                getPercentage(cacheData.queueUpdateSpent.size(), getMaxUpdatesQueueSize()))));
+                                Math.max(getPercentage(cacheData.queueUpdateSpent.size(), getMaxUpdatesQueueSize()),
+                                        getPercentage(cacheData.deleteQueue.size(), getMaxUpdatesQueueSize())))));
     }
 
     @Override
     public boolean isExecuteNeeded() {
         return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.queueUpdateAddress.size() >= getMinBatchSize()
-                || cacheData.queueUpdateAmount.size() >= getMinBatchSize() || cacheData.queueUpdateSpent.size() >= getMinBatchSize();
+                || cacheData.queueUpdateAmount.size() >= getMinBatchSize() || cacheData.queueUpdateSpent.size() >= getMinBatchSize()
+                || cacheData.deleteQueue.size() >= getMinBatchSize() || !spillQueue.isEmpty();
     }
 
     public void add(TxOutput txOutput) {
         log.trace("add(txOutput:{})", txOutput);
         checkState(isActive(), "Instance has been closed");
+        waitDeleteExecuted(() -> isDeletePending(txOutput));
         synchronized (cacheData) {
-            cacheData.addQueue.add(txOutput);
-            cacheData.queueMap.put(txOutput, txOutput);
-            cacheData.queueMapTx.computeIfAbsent(txOutput.getTransactionId(), id -> new ArrayList<>(2)).add(txOutput);
+            if (isSpillNeeded(cacheData.addQueue, spillQueue)) {
+                spillQueue.put(txOutput);
+            } else {
+                _add(txOutput);
+            }
         }
-        waitFullQueue(cacheData.addQueue, getMaxInsertsQueueSize());
+        waitFullInsertsQueue(cacheData.addQueue);
     }
 
-    public boolean delete(TxOutput txOutput) {
+    /**
+     * Queue output for deletion. Pending insert and updates of the same output
+     * are discarded. Queued deletes are executed in batches before inserts and
+     * updates.
+     *
+     * @param txOutput output to delete
+     */
+    public void delete(TxOutput txOutput) {
         log.trace("delete(txOutput:{})", txOutput);
         checkState(isActive(), "Instance has been closed");
+        InOutKey key = new InOutKey(txOutput.getTransactionId(), txOutput.getPos());
         synchronized (cacheData) {
-            boolean result = psDelete.setParameters(p -> p.setInt(txOutput.getTransactionId()).setInt(txOutput.getPos())).executeUpdate() == 1;
-            cacheData.addQueue.remove(txOutput);
-            cacheData.queueMap.remove(txOutput);
-            List<TxOutput> l = cacheData.queueMapTx.get(txOutput.getTransactionId());
+            cacheData.addQueue.remove(key);
+            cacheData.queueMap.remove(key);
+            List<TxOutput> l = cacheData.queueMapTx.get(key.getTransactionId());
             if (l != null) {
-                l.remove(txOutput);
+                l.remove(key);
                 if (l.isEmpty()) {
-                    cacheData.queueMapTx.remove(txOutput.getTransactionId());
+                    cacheData.queueMapTx.remove(key.getTransactionId());
                 }
             }
-            return result;
+            spillQueue.remove(key);
+            cacheData.queueUpdateSpent.remove(key);
+            cacheData.queueUpdateAddress.remove(key);
+            cacheData.queueUpdateAmount.remove(key);
+            cacheData.deleteQueue.add(key);
+            cacheData.deleteSet.add(key);
+        }
+        getKvStore().ifPresent(kv -> kv.write(new KvWriteBatch()
+                .delete(KvColumnFamily.OUTPUT, KvCodec.encodeOutPoint(key.getTransactionId(), key.getPos()))));
+        waitFullQueue(cacheData.deleteQueue, getMaxUpdatesQueueSize());
+    }
+
+    /**
+     * Check if output is queued for deletion or deletion is in progress.
+     *
+     * @param key output key
+     * @return true if output delete is pending
+     */
+    public boolean isDeletePending(InOutKey key) {
+        synchronized (cacheData) {
+            return cacheData.deleteSet.contains(key);
         }
     }
 
@@ -118,12 +220,22 @@ public class DbUpdateOutput extends DbUpdate {
         log.trace("deleteAllAboveTransactionId(transactionId:{})", transactionId);
         checkState(isActive(), "Instance has been closed");
         synchronized (cacheData) {
-            int result = psDeleteAllAboveTransactionId.setParameters(p -> p.setInt(transactionId)).executeUpdate();
-            cacheData.addQueue.removeIf(txInput -> txInput.getTransactionId() == transactionId);
-            cacheData.queueMap.entrySet().removeIf(e -> e.getKey().getTransactionId() == transactionId);
-            cacheData.queueMapTx.entrySet().removeIf(e -> e.getKey() == transactionId);
-            return result;
+            cacheData.addQueue.removeIf(txOutput -> txOutput.getTransactionId() > transactionId);
+            cacheData.queueMap.entrySet().removeIf(e -> e.getKey().getTransactionId() > transactionId);
+            cacheData.queueMapTx.entrySet().removeIf(e -> e.getKey() > transactionId);
+            spillQueue.removeIf(key -> key.getTransactionId() > transactionId);
+            cacheData.deleteQueue.removeIf(key -> key.getTransactionId() > transactionId);
+            cacheData.deleteSet.removeIf(key -> key.getTransactionId() > transactionId);
         }
+        getKvStore().ifPresent(kv -> {
+            KvWriteBatch kvBatch = new KvWriteBatch();
+            kv.scan(KvColumnFamily.OUTPUT, KvCodec.encodeOutPoint(transactionId + 1, (short) 0), (k, v) -> {
+                kvBatch.delete(KvColumnFamily.OUTPUT, k);
+                return true;
+            });
+            kv.write(kvBatch);
+        });
+        return executeDeleteAllAbove(psDeleteAllAboveTransactionId, transactionId);
     }
 
     public void updateSpent(int transactionId, short pos, byte status) {
@@ -145,6 +257,8 @@ public class DbUpdateOutput extends DbUpdate {
                     updatedInQueue = true;
                 }
                 cacheData.queueMap.put(pk, txOutput);
+            } else {
+                updatedInQueue = updateSpilled(pk, o -> o.getStatus() == status ? o : o.toBuilder().status(status).build());
             }
             if (!updatedInQueue) {
                 cacheData.queueUpdateSpent.add(TxOutput.builder().transactionId(transactionId).pos(pos).status(status).build());
@@ -172,6 +286,8 @@ public class DbUpdateOutput extends DbUpdate {
                     updatedInQueue = true;
                 }
                 cacheData.queueMap.put(pk, txOutput);
+            } else {
+                updatedInQueue = updateSpilled(pk, o -> o.getAddressId() == addressId ? o : o.toBuilder().addressId(addressId).build());
             }
             if (!updatedInQueue) {
                 cacheData.queueUpdateAddress.add(TxOutput.builder().transactionId(transactionId).pos(pos).addressId(addressId).build());
@@ -199,6 +315,8 @@ public class DbUpdateOutput extends DbUpdate {
                     updatedInQueue = true;
                 }
                 cacheData.queueMap.put(pk, txOutput);
+            } else {
+                updatedInQueue = updateSpilled(pk, o -> o.getAmount() == amount ? o : o.toBuilder().amount(amount).build());
             }
             if (!updatedInQueue) {
                 cacheData.queueUpdateAmount.add(TxOutput.builder().transactionId(transactionId).pos(pos).amount(amount).build());
@@ -209,8 +327,12 @@ public class DbUpdateOutput extends DbUpdate {
 
     @Override
     public int executeInserts() {
-        return executeBatch(cacheData, cacheData.addQueue, psAdd, getMaxBatchSize(),
+        synchronized (cacheData) {
+            drainSpillQueue(cacheData.addQueue, spillQueue, this::_add);
+        }
+        return executeBatch(cacheData, cacheData.addQueue, psAdd, getBatchSize(cacheData.addQueue), InOutKey::getTransactionId,
                 (t, p) -> p.setInt(t.getTransactionId()).setInt(t.getPos()).setInt(t.getAddressId()).setLong(t.getAmount()).ignoreExtraParam().setInt(t.getStatus()),
+                this::putKvOutputs,
                 executed -> {
                     synchronized (cacheData) {
                         executed.stream().peek(cacheData.queueMap::remove).map(InOutKey::getTransactionId).forEach(cacheData.queueMapTx::remove);
@@ -218,6 +340,17 @@ public class DbUpdateOutput extends DbUpdate {
                 });
     }
 
+    @Override
+    public int executeDeletes() {
+        return executeDeleteBatch(cacheData, cacheData.deleteQueue, psDeleteMulti, psDelete, InOutKey::getTransactionId,
+                (t, p) -> p.setInt(t.getTransactionId()).setInt(t.getPos()),
+                executed -> {
+                    synchronized (cacheData) {
+                        cacheData.deleteSet.removeAll(executed);
+                    }
+                });
+    }
+
     @Override
     public int executeUpdates() {
         return _executeUpdateSpent()
@@ -226,20 +359,150 @@ public class DbUpdateOutput extends DbUpdate {
     }
 
     private int _executeUpdateSpent() {
-        return executeBatch(cacheData, cacheData.queueUpdateSpent, psUpdateSpent, getMaxBatchSize(),
-                (t, p) -> p.setInt(t.getStatus()).setInt(t.getTransactionId()).setInt(t.getPos()), null);
+        if (stagingUpdates && !conn.isSharded()) {
+            return executeStagedUpdate(cacheData.queueUpdateSpent, psStageMergeSpent, (t, p) -> p.setLong(t.getStatus()), UPDATE_SPENT);
+        }
+        return executeBatch(cacheData, cacheData.queueUpdateSpent, psUpdateSpent, getBatchSize(cacheData.queueUpdateSpent), InOutKey::getTransactionId,
+                (t, p) -> p.setInt(t.getStatus()).setInt(t.getTransactionId()).setInt(t.getPos()),
+                executed -> updateKvOutputs(executed, UPDATE_SPENT), null);
     }
 
     private int _executeUpdateAddress() {
-        return executeBatch(cacheData, cacheData.queueUpdateAddress, psUpdateAddress, getMaxBatchSize(),
-                (t, p) -> p.setInt(t.getAddressId()).setInt(t.getTransactionId()).setInt(t.getPos()), null);
+        if (stagingUpdates && !conn.isSharded()) {
+            return executeStagedUpdate(cacheData.queueUpdateAddress, psStageMergeAddress, (t, p) -> p.setLong(t.getAddressId()), UPDATE_ADDRESS);
+        }
+        return executeBatch(cacheData, cacheData.queueUpdateAddress, psUpdateAddress, getBatchSize(cacheData.queueUpdateAddress), InOutKey::getTransactionId,
+                (t, p) -> p.setInt(t.getAddressId()).setInt(t.getTransactionId()).setInt(t.getPos()),
+                executed -> updateKvOutputs(executed, UPDATE_ADDRESS), null);
     }
 
     private int _executeUpdateAmount() {
-        return executeBatch(cacheData, cacheData.queueUpdateAmount, psUpdateAmount, getMaxBatchSize(),
-                (t, p) -> p.setLong(t.getAmount()).setInt(t.getTransactionId()).setInt(t.getPos()), null);
+        if (stagingUpdates && !conn.isSharded()) {
+            return executeStagedUpdate(cacheData.queueUpdateAmount, psStageMergeAmount, (t, p) -> p.setLong(t.getAmount()), UPDATE_AMOUNT);
+        }
+        return executeBatch(cacheData, cacheData.queueUpdateAmount, psUpdateAmount, getBatchSize(cacheData.queueUpdateAmount), InOutKey::getTransactionId,
+                (t, p) -> p.setLong(t.getAmount()).setInt(t.getTransactionId()).setInt(t.getPos()),
+                executed -> updateKvOutputs(executed, UPDATE_AMOUNT), null);
+    }
+
+    /**
+     * Get output queued for insertion including spilled ones.
+     *
+     * @param key output key
+     * @return queued output or null if not found
+     */
+    public TxOutput getFromCache(InOutKey key) {
+        synchronized (cacheData) {
+            TxOutput txOutput = cacheData.queueMap.get(key);
+            return txOutput != null ? txOutput : spillQueue.get(key).orElse(null);
+        }
     }
 
+    private void _add(TxOutput txOutput) {
+        cacheData.addQueue.add(txOutput);
+        cacheData.queueMap.put(txOutput, txOutput);
+        cacheData.queueMapTx.computeIfAbsent(txOutput.getTransactionId(), id -> new ArrayList<>(2)).add(txOutput);
+    }
+
+    /**
+     * Write outputs inserted into DB to key-value store.
+     */
+    private void putKvOutputs(Collection<TxOutput> inserted) {
+        getKvStore().ifPresent(kv -> {
+            KvWriteBatch kvBatch = new KvWriteBatch();
+            inserted.forEach(t -> kvBatch.put(KvColumnFamily.OUTPUT, KvCodec.encodeOutPoint(t.getTransactionId(), t.getPos()), KvCodec.encodeOutput(t)));
+            kv.write(kvBatch);
+        });
+    }
+
+    /**
+     * Apply updates executed in DB to outputs in key-value store if the store
+     * has them. Outputs missing in the store are looked up in DB, so they are
+     * not added here.
+     *
+     * @param updates executed updates
+     * @param updater function applying update (second argument) to the stored
+     * output (first argument)
+     */
+    private void updateKvOutputs(Collection<TxOutput> updates, BinaryOperator<TxOutput> updater) {
+        getKvStore().ifPresent(kv -> {
+            synchronized (kv) {
+                KvWriteBatch kvBatch = new KvWriteBatch();
+                updates.forEach(u -> {
+                    byte[] kvKey = KvCodec.encodeOutPoint(u.getTransactionId(), u.getPos());
+                    kv.get(KvColumnFamily.OUTPUT, kvKey).ifPresent(v -> kvBatch.put(KvColumnFamily.OUTPUT, kvKey,
+                            KvCodec.encodeOutput(updater.apply(KvCodec.decodeOutput(u, v), u))));
+                });
+                kv.write(kvBatch);
+            }
+        });
+    }
+
+    /**
+     * Apply update to spilled output, so it is inserted with updated values.
+     *
+     * @param key output key
+     * @param updater function returning updated output
+     * @return true if output is in spill queue
+     */
+    private boolean updateSpilled(InOutKey key, UnaryOperator<TxOutput> updater) {
+        return spillQueue.get(key).map(txOutput -> {
+            TxOutput updated = updater.apply(txOutput);
+            if (updated != txOutput) {
+                spillQueue.put(updated);
+            }
+            return true;
+        }).orElse(false);
+    }
+
+    /**
+     * Load batch of updates into temporary table local to current connection
+     * and apply them to the output table with single join update.
+     *
+     * @param queue updates queue
+     * @param psMerge join update statement
+     * @param valueSetter callback setting updated value
+     * @param kvUpdater function applying update to output in key-value store
+     * @return number of records executed
+     */
+    private int executeStagedUpdate(Collection<TxOutput> queue, DBPreparedStatement psMerge, BiConsumer<TxOutput, ParamSetter> valueSetter, BinaryOperator<TxOutput> kvUpdater) {
+        if (queue.isEmpty()) {
+            return 0;
+        }
+        psMerge.checkCanExecute();
+        //temporary table is local to connection, so all statements must run on the same one
+        DBConnectionSupplier.Lease lease = conn.lease();
+        try {
+            psStageCreate.execute();
+            psStageClear.executeUpdate();
+            return executeBatch(cacheData, queue, psStageAdd, getBatchSize(queue), null,
+                    (t, p) -> valueSetter.accept(t, p.setInt(t.getTransactionId()).setInt(t.getPos())),
+                    staged -> {
+                        int updated = psMerge.executeUpdate();
+                        log.trace("executeStagedUpdate: {} records staged, {} updated", staged.size(), updated);
+                        updateKvOutputs(staged, kvUpdater);
+                    }, null);
+        } finally {
+            lease.close();
+        }
+    }
+
+    private static final SpillQueue.Serializer<TxOutput> SPILL_SERIALIZER = new SpillQueue.Serializer<TxOutput>() {
+        @Override
+        public void write(TxOutput t, DataOutput out) throws IOException {
+            out.writeInt(t.getTransactionId());
+            out.writeShort(t.getPos());
+            out.writeInt(t.getAddressId());
+            out.writeLong(t.getAmount());
+            out.writeByte(t.getStatus());
+        }
+
+        @Override
+        public TxOutput read(DataInput in) throws IOException {
+            return TxOutput.builder().transactionId(in.readInt()).pos(in.readShort()).addressId(in.readInt()).amount(in.readLong()).status(in.readByte()).build();
+        }
+    };
+
     @Getter
     public static class CacheData {
 
@@ -278,5 +541,16 @@ public class DbUpdateOutput extends DbUpdate {
          * then execute DB "UPDATE" statements for pulled batch.
          */
         private final Collection<TxOutput> queueUpdateAmount = new LinkedHashSet<>();
+        /**
+         * List of output keys queued for deletion. DB Updater will pull and
+         * immediately remove elements from this collection in batches, then
+         * execute DB "DELETE" statements for pulled batch.
+         */
+        private final Collection<InOutKey> deleteQueue = new LinkedHashSet<>();
+        /**
+         * Keys of outputs queued for deletion including those that are in
+         * processing state.
+         */
+        private final Set<InOutKey> deleteSet = new HashSet<>();
     }
 }
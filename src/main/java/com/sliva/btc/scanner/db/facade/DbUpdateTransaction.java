@@ -20,9 +20,16 @@ import static com.google.common.base.Preconditions.checkState;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
 import com.sliva.btc.scanner.db.DbUpdate;
+import com.sliva.btc.scanner.db.kv.KvCodec;
+import com.sliva.btc.scanner.db.kv.KvColumnFamily;
+import com.sliva.btc.scanner.db.kv.KvWriteBatch;
 import com.sliva.btc.scanner.db.model.BtcTransaction;
 import com.sliva.btc.scanner.db.model.TXID;
+import com.sliva.btc.scanner.db.utils.SpillQueue;
 import static com.sliva.btc.scanner.util.Utils.getPercentage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -42,67 +49,125 @@ public class DbUpdateTransaction extends DbUpdate {
     private static final String TABLE_NAME = "transaction";
     private static final String SQL_ADD = "INSERT INTO `transaction`(transaction_id,txid,block_height,nInputs,nOutputs)VALUES(?,?,?,?,?)";
     private static final String SQL_DELETE = "DELETE FROM `transaction` WHERE transaction_id=?";
+    private static final String SQL_DELETE_MULTI = "DELETE FROM `transaction` WHERE transaction_id IN (" + buildKeysPlaceholder("?", DELETE_KEYS_PER_STATEMENT) + ")";
     private static final String SQL_UPDATE_IN_OUT = "UPDATE `transaction` SET nInputs=?,nOutputs=? WHERE transaction_id=?";
     private final DBPreparedStatement psAdd;
     private final DBPreparedStatement psDelete;
+    private final DBPreparedStatement psDeleteMulti;
     private final DBPreparedStatement psUpdateInOut;
     private final CacheData cacheData;
+    private final SpillQueue<Integer, BtcTransaction> spillQueue;
+    private final Map<TXID, Integer> spillMap = new HashMap<>();
 
-    public DbUpdateTransaction(DBConnectionSupplier conn) {
-        this(conn, new CacheData());
+    public DbUpdateTransaction(DBConnectionSupplier conn, DbStores stores) {
+        this(conn, stores, new CacheData());
     }
 
-    public DbUpdateTransaction(DBConnectionSupplier conn, CacheData cacheData) {
-        super(TABLE_NAME, conn);
+    public DbUpdateTransaction(DBConnectionSupplier conn, DbStores stores, CacheData cacheData) {
+        super(TABLE_NAME, conn, stores.getKvStore());
         checkArgument(cacheData != null, "Argument 'cacheData' is null");
         this.psAdd = conn.prepareStatement(SQL_ADD);
         this.psDelete = conn.prepareStatement(SQL_DELETE);
+        this.psDeleteMulti = conn.prepareStatement(SQL_DELETE_MULTI);
         this.psUpdateInOut = conn.prepareStatement(SQL_UPDATE_IN_OUT);
         this.cacheData = cacheData;
+        this.spillQueue = buildSpillQueue(BtcTransaction::getTransactionId, SPILL_SERIALIZER);
     }
 
     @Override
     public int getCacheFillPercent() {
-        return Math.max(getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize()), getPercentage(cacheData.updateInOutQueue.size(), getMaxUpdatesQueueSize()));
+        return Math.max(getPercentage(cacheData.addQueue.size(), getMaxInsertsQueueSize()),
+                Math.max(getPercentage(cacheData.updateInOutQueue.size(), getMaxUpdatesQueueSize()), getPercentage(cacheData.deleteQueue.size(), getMaxUpdatesQueueSize())));
     }
 
     @Override
     public boolean isExecuteNeeded() {
-        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.updateInOutQueue.size() >= getMinBatchSize();
+        return cacheData.addQueue.size() >= getMinBatchSize() || cacheData.updateInOutQueue.size() >= getMinBatchSize()
+                || cacheData.deleteQueue.size() >= getMinBatchSize() || !spillQueue.isEmpty();
     }
 
     public void add(BtcTransaction tx) {
         log.trace("add(t:{})", tx);
         checkState(isActive(), "Instance has been closed");
+        waitDeleteExecuted(() -> isDeletePending(tx.getTransactionId()));
         synchronized (cacheData) {
-            cacheData.addQueue.add(tx);
-            cacheData.addMap.put(tx.getTxid(), tx);
-            cacheData.addMapId.put(tx.getTransactionId(), tx);
+            if (isSpillNeeded(cacheData.addQueue, spillQueue)) {
+                spillQueue.put(tx);
+                spillMap.put(tx.getTxid(), tx.getTransactionId());
+            } else {
+                _add(tx);
+            }
         }
-        waitFullQueue(cacheData.addQueue, getMaxInsertsQueueSize());
+        waitFullInsertsQueue(cacheData.addQueue);
     }
 
-    public boolean delete(BtcTransaction tx) {
+    /**
+     * Queue transaction for deletion. Pending insert and update of the same
+     * transaction are discarded. Queued deletes are executed in batches before
+     * inserts and updates.
+     *
+     * @param tx transaction to delete
+     */
+    public void delete(BtcTransaction tx) {
         log.trace("delete(tx:{})", tx);
         checkState(isActive(), "Instance has been closed");
         synchronized (cacheData) {
-            boolean result = psDelete.setParameters(p -> p.setInt(tx.getTransactionId())).executeUpdate() == 1;
+            BtcTransaction queued = cacheData.addMapId.remove(tx.getTransactionId());
+            if (queued != null) {
+                cacheData.addMap.remove(queued.getTxid());
+            }
             cacheData.addQueue.remove(tx);
-            cacheData.addMap.remove(tx.getTxid());
-            cacheData.addMapId.remove(tx.getTransactionId());
-            return result;
+            spillQueue.get(tx.getTransactionId()).ifPresent(t -> {
+                spillQueue.remove(t.getTransactionId());
+                spillMap.remove(t.getTxid());
+            });
+            cacheData.updateInOutQueue.remove(tx);
+            cacheData.deleteQueue.add(tx.getTransactionId());
+            cacheData.deleteSet.add(tx.getTransactionId());
         }
+        getKvStore().ifPresent(kv -> {
+            byte[] key = KvCodec.encodeInt(tx.getTransactionId());
+            kv.get(KvColumnFamily.TRANSACTION_TXID, key).ifPresent(txid -> kv.write(new KvWriteBatch()
+                    .delete(KvColumnFamily.TRANSACTION_ID, txid)
+                    .delete(KvColumnFamily.TRANSACTION_TXID, key)));
+        });
+        waitFullQueue(cacheData.deleteQueue, getMaxUpdatesQueueSize());
     }
 
-    public boolean delete(int transactionId) {
-        return delete(BtcTransaction.builder().transactionId(transactionId).txid(BtcTransaction.ZERO_TXID).build());
+    public void delete(int transactionId) {
+        delete(BtcTransaction.builder().transactionId(transactionId).txid(BtcTransaction.ZERO_TXID).build());
+    }
+
+    /**
+     * Check if transaction is queued for deletion or deletion is in progress.
+     *
+     * @param transactionId transaction ID
+     * @return true if transaction delete is pending
+     */
+    boolean isDeletePending(int transactionId) {
+        synchronized (cacheData) {
+            return cacheData.deleteSet.contains(transactionId);
+        }
     }
 
     @SuppressWarnings({"UseSpecificCatch", "CallToPrintStackTrace"})
     @Override
     public int executeInserts() {
-        return executeBatch(cacheData, cacheData.addQueue, psAdd, getMaxBatchSize(),
+        synchronized (cacheData) {
+            drainSpillQueue(cacheData.addQueue, spillQueue, t -> {
+                spillMap.remove(t.getTxid());
+                _add(t);
+            });
+        }
+        return executeBatch(cacheData, cacheData.addQueue, psAdd, getBatchSize(), BtcTransaction::getTransactionId,
                 (t, p) -> p.setInt(t.getTransactionId()).setBytes(t.getTxid().getData()).setInt(t.getBlockHeight()).setInt(t.getNInputs()).setInt(t.getNOutputs()),
+                inserted -> getKvStore().ifPresent(kv -> {
+                    KvWriteBatch kvBatch = new KvWriteBatch();
+                    inserted.forEach(t -> kvBatch
+                            .put(KvColumnFamily.TRANSACTION_ID, t.getTxid().getData(), KvCodec.encodeInt(t.getTransactionId()))
+                            .put(KvColumnFamily.TRANSACTION_TXID, KvCodec.encodeInt(t.getTransactionId()), t.getTxid().getData()));
+                    kv.write(kvBatch);
+                }),
                 executed -> {
                     synchronized (cacheData) {
                         executed.stream().peek(t -> cacheData.addMap.remove(t.getTxid())).map(BtcTransaction::getTransactionId).forEach(cacheData.addMapId::remove);
@@ -110,6 +175,17 @@ public class DbUpdateTransaction extends DbUpdate {
                 });
     }
 
+    @Override
+    public int executeDeletes() {
+        return executeDeleteBatch(cacheData, cacheData.deleteQueue, psDeleteMulti, psDelete, Integer::intValue,
+                (t, p) -> p.setInt(t),
+                executed -> {
+                    synchronized (cacheData) {
+                        cacheData.deleteSet.removeAll(executed);
+                    }
+                });
+    }
+
     @Override
     public int executeUpdates() {
         return _executeUpdateInOuts();
@@ -117,22 +193,57 @@ public class DbUpdateTransaction extends DbUpdate {
 
     BtcTransaction getFromCache(TXID txid) {
         synchronized (cacheData) {
-            return cacheData.addMap.get(txid);
+            BtcTransaction tx = cacheData.addMap.get(txid);
+            if (tx == null) {
+                Integer transactionId = spillMap.get(txid);
+                if (transactionId != null) {
+                    tx = spillQueue.get(transactionId).orElse(null);
+                }
+            }
+            return tx;
         }
     }
 
     BtcTransaction getFromCache(int transactionId) {
         synchronized (cacheData) {
-            return cacheData.addMapId.get(transactionId);
+            BtcTransaction tx = cacheData.addMapId.get(transactionId);
+            return tx != null ? tx : spillQueue.get(transactionId).orElse(null);
         }
     }
 
+    private void _add(BtcTransaction tx) {
+        cacheData.addQueue.add(tx);
+        cacheData.addMap.put(tx.getTxid(), tx);
+        cacheData.addMapId.put(tx.getTransactionId(), tx);
+    }
+
     @SuppressWarnings({"UseSpecificCatch", "CallToPrintStackTrace"})
     private int _executeUpdateInOuts() {
-        return executeBatch(cacheData, cacheData.updateInOutQueue, psUpdateInOut, getMaxBatchSize(),
+        return executeBatch(cacheData, cacheData.updateInOutQueue, psUpdateInOut, getBatchSize(), BtcTransaction::getTransactionId,
                 (t, p) -> p.setInt(t.getNInputs()).setInt(t.getNOutputs()).setInt(t.getTransactionId()), null);
     }
 
+    private static final SpillQueue.Serializer<BtcTransaction> SPILL_SERIALIZER = new SpillQueue.Serializer<BtcTransaction>() {
+        @Override
+        public void write(BtcTransaction t, DataOutput out) throws IOException {
+            byte[] txid = t.getTxid().getData();
+            out.writeInt(t.getTransactionId());
+            out.writeByte(txid.length);
+            out.write(txid);
+            out.writeInt(t.getBlockHeight());
+            out.writeInt(t.getNInputs());
+            out.writeInt(t.getNOutputs());
+        }
+
+        @Override
+        public BtcTransaction read(DataInput in) throws IOException {
+            BtcTransaction.BtcTransactionBuilder builder = BtcTransaction.builder().transactionId(in.readInt());
+            byte[] txid = new byte[in.readUnsignedByte()];
+            in.readFully(txid);
+            return builder.txid(txid).blockHeight(in.readInt()).nInputs(in.readInt()).nOutputs(in.readInt()).build();
+        }
+    };
+
     @Getter
     private static class CacheData {
 
@@ -140,5 +251,7 @@ public class DbUpdateTransaction extends DbUpdate {
         private final Map<TXID, BtcTransaction> addMap = new HashMap<>();
         private final Map<Integer, BtcTransaction> addMapId = new HashMap<>();
         private final Set<BtcTransaction> updateInOutQueue = new HashSet<>();
+        private final Collection<Integer> deleteQueue = new LinkedHashSet<>();
+        private final Set<Integer> deleteSet = new HashSet<>();
     }
 }
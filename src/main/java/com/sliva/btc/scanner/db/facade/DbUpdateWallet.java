@@ -45,16 +45,16 @@ public class DbUpdateWallet extends DbUpdate {
     private final CacheData cacheData;
     private final DbQueryWallet dbQueryWallet;
 
-    public DbUpdateWallet(DBConnectionSupplier conn) {
-        this(conn, new CacheData());
+    public DbUpdateWallet(DBConnectionSupplier conn, DbStores stores) {
+        this(conn, stores, new CacheData());
     }
 
-    public DbUpdateWallet(DBConnectionSupplier conn, CacheData cacheData) {
+    public DbUpdateWallet(DBConnectionSupplier conn, DbStores stores, CacheData cacheData) {
         super(TABLE_NAME, conn);
         checkArgument(cacheData != null, "Argument 'cacheData' is null");
         this.psAdd = conn.prepareStatement(SQL_ADD);
         this.cacheData = cacheData;
-        this.dbQueryWallet = new DbQueryWallet(conn);
+        this.dbQueryWallet = new DbQueryWallet(conn, stores);
     }
 
     @Override
@@ -91,12 +91,12 @@ public class DbUpdateWallet extends DbUpdate {
             cacheData.addQueue.add(wallet2);
         }
         waitFullQueue(cacheData.addQueue, getMaxInsertsQueueSize());
-        return wallet;
+        return wallet2;
     }
 
     @Override
     public int executeInserts() {
-        return executeBatch(cacheData, cacheData.addQueue, psAdd, getMaxBatchSize(),
+        return executeBatch(cacheData, cacheData.addQueue, psAdd, getBatchSize(),
                 (t, ps) -> ps.setInt(t.getWalletId()).setString(t.getName()).setString(t.getDescription()), null);
     }
 
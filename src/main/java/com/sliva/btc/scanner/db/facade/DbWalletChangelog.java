@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.facade;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+
+/**
+ * Log of address wallet assignment changes in table "wallet_changelog".
+ * Changes are appended when wallet_id of addresses is updated, so consumers
+ * such as the Neo4j wallet sync can replay only changed addresses and purge
+ * replayed changes.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+public class DbWalletChangelog {
+
+    private static final String TABLE_NAME = "wallet_changelog";
+    private static final String SQL_ADD = "INSERT INTO wallet_changelog(address_id,wallet_id)VALUES(?,?)";
+    private static final String SQL_QUERY_CHANGES = "SELECT C.change_id,C.address_id,C.wallet_id,W.name FROM wallet_changelog C"
+            + " LEFT JOIN wallet W ON W.wallet_id=C.wallet_id"
+            + " WHERE C.change_id>? ORDER BY C.change_id LIMIT ?";
+    private static final String SQL_PURGE = "DELETE FROM wallet_changelog WHERE change_id<=?";
+
+    private final DBPreparedStatement psAdd;
+    private final DBPreparedStatement psQueryChanges;
+    private final DBPreparedStatement psPurge;
+
+    private DbWalletChangelog(DBConnectionSupplier conn) {
+        this.psAdd = conn.prepareStatement(SQL_ADD);
+        this.psQueryChanges = conn.prepareStatement(SQL_QUERY_CHANGES, "wallet_changelog.change_id", "wallet.wallet_id");
+        this.psPurge = conn.prepareStatement(SQL_PURGE, "wallet_changelog.change_id");
+    }
+
+    /**
+     * Open wallet changelog if table "wallet_changelog" exists in DB.
+     *
+     * @param conn DB connection supplier
+     * @return wallet changelog or empty if DB has no changelog table
+     */
+    @NonNull
+    public static Optional<DbWalletChangelog> open(DBConnectionSupplier conn) {
+        checkArgument(conn != null, "Argument 'conn' is null");
+        return conn.getDBMetaData().hasTable(TABLE_NAME) ? Optional.of(new DbWalletChangelog(conn)) : Optional.empty();
+    }
+
+    /**
+     * Append wallet assignments of the addresses.
+     *
+     * @param addresses addresses with new wallet ids
+     */
+    public synchronized void add(Collection<BtcAddress> addresses) {
+        checkArgument(addresses != null, "Argument 'addresses' is null");
+        if (addresses.isEmpty()) {
+            return;
+        }
+        addresses.forEach(a -> psAdd.setParameters(p -> p.setInt(a.getAddressId()).setInt(a.getWalletId())).addBatch());
+        psAdd.executeBatch();
+    }
+
+    /**
+     * Read changes in the order they were added.
+     *
+     * @param afterChangeId read changes after this change id
+     * @param limit maximum number of changes to read
+     * @return changes
+     */
+    @NonNull
+    public List<Change> read(long afterChangeId, int limit) {
+        checkArgument(limit > 0, "Argument 'limit' (%s) must be a positive number", limit);
+        return psQueryChanges.setParameters(p -> p.setLong(afterChangeId).setInt(limit)).setFetchSize(limit)
+                .executeQueryToList(rs -> new Change(rs.getLong(1), rs.getInt(2), rs.getInt(3), rs.getString(4)));
+    }
+
+    /**
+     * Remove replayed changes.
+     *
+     * @param changeId last replayed change id (inclusive)
+     * @return number of removed changes
+     */
+    public int purge(long changeId) {
+        return psPurge.setParameters(p -> p.setLong(changeId)).executeUpdate();
+    }
+
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Change {
+
+        private final long changeId;
+        private final int addressId;
+        private final int walletId;
+        private final String walletName;
+    }
+}
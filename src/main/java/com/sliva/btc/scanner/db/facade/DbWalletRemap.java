@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.facade;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.base.Suppliers;
+import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.utils.WalletRemap;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Log of wallet merges in table "wallet_remap". Merging a wallet adds a
+ * single row instead of rewriting wallet_id of all addresses of the merged
+ * wallet. Readers resolve wallet ids through the in-memory
+ * {@link WalletRemap} that is re-read from DB every
+ * {@link #REFRESH_SECONDS}. Compaction applies accumulated merges with one
+ * set-based update per address table and removes applied rows.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbWalletRemap {
+
+    public static final int REFRESH_SECONDS = 60;
+    private static final String TABLE_NAME = "wallet_remap";
+    private static final String SQL_QUERY_ALL = "SELECT old_wallet_id,new_wallet_id FROM wallet_remap";
+    private static final String SQL_ADD = "INSERT INTO wallet_remap(old_wallet_id,new_wallet_id)VALUES(?,?)";
+    private static final String SQL_UPDATE = "UPDATE wallet_remap SET new_wallet_id=? WHERE old_wallet_id=?";
+    private static final String SQL_DELETE = "DELETE FROM wallet_remap WHERE old_wallet_id=?";
+    private static final String SQL_COMPACT_ADDRESSES
+            = "UPDATE `address_table_name` A JOIN wallet_remap R ON R.old_wallet_id=A.wallet_id SET A.wallet_id=R.new_wallet_id";
+    private static final String SQL_LOG_COMPACT_ADDRESSES = "INSERT INTO wallet_changelog(address_id,wallet_id)"
+            + " SELECT A.address_id,R.new_wallet_id FROM `address_table_name` A JOIN wallet_remap R ON R.old_wallet_id=A.wallet_id";
+
+    private final DBPreparedStatement psQueryAll;
+    private final DBPreparedStatement psAdd;
+    private final DBPreparedStatement psUpdate;
+    private final DBPreparedStatement psDelete;
+    private final Map<SrcAddressType, DBPreparedStatement> psCompactAddresses = new HashMap<>();
+    private final Map<SrcAddressType, DBPreparedStatement> psLogCompactAddresses = new HashMap<>();
+    private final WalletRemap walletRemap = new WalletRemap();
+    private final Supplier<WalletRemap> refreshedRemap;
+
+    private DbWalletRemap(DBConnectionSupplier conn, boolean logCompactedAddresses) {
+        this.psQueryAll = conn.prepareStatement(SQL_QUERY_ALL);
+        this.psAdd = conn.prepareStatement(SQL_ADD);
+        this.psUpdate = conn.prepareStatement(SQL_UPDATE);
+        this.psDelete = conn.prepareStatement(SQL_DELETE);
+        Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach(type -> psCompactAddresses.put(type,
+                conn.prepareStatement(DbQueryAddressOne.updateQueryTableName(SQL_COMPACT_ADDRESSES, type), DbQueryAddressOne.getAddressTableName(type) + ".wallet_id")));
+        if (logCompactedAddresses) {
+            Stream.of(SrcAddressType.values()).filter(SrcAddressType::isReal).forEach(type -> psLogCompactAddresses.put(type,
+                    conn.prepareStatement(DbQueryAddressOne.updateQueryTableName(SQL_LOG_COMPACT_ADDRESSES, type), DbQueryAddressOne.getAddressTableName(type) + ".wallet_id")));
+        }
+        this.refreshedRemap = Suppliers.memoizeWithExpiration(this::reload, REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Open wallet remap log if table "wallet_remap" exists in DB.
+     *
+     * @param conn DB connection supplier
+     * @param walletChangelog wallet changelog to log address wallet changes
+     * made by compaction to, or empty
+     * @return wallet remap log or empty if DB has no remap table
+     */
+    @NonNull
+    public static Optional<DbWalletRemap> open(DBConnectionSupplier conn, Optional<DbWalletChangelog> walletChangelog) {
+        checkArgument(conn != null, "Argument 'conn' is null");
+        checkArgument(walletChangelog != null, "Argument 'walletChangelog' is null");
+        return conn.getDBMetaData().hasTable(TABLE_NAME) ? Optional.of(new DbWalletRemap(conn, walletChangelog.isPresent())) : Optional.empty();
+    }
+
+    /**
+     * Resolve wallet id to the canonical wallet id.
+     *
+     * @param walletId wallet id
+     * @return canonical wallet id
+     */
+    public int resolve(int walletId) {
+        return walletId == 0 ? 0 : refreshedRemap.get().resolve(walletId);
+    }
+
+    /**
+     * Get wallet ids merged into the canonical wallet and not compacted yet.
+     *
+     * @param walletId canonical wallet id
+     * @return merged wallet ids
+     */
+    @NonNull
+    public Collection<Integer> getMergedWallets(int walletId) {
+        return refreshedRemap.get().getMergedWallets(walletId);
+    }
+
+    public int size() {
+        return refreshedRemap.get().size();
+    }
+
+    /**
+     * Record merge of a wallet into another wallet.
+     *
+     * @param oldWalletId merged wallet id
+     * @param newWalletId wallet id the wallet is merged into
+     */
+    public void merge(int oldWalletId, int newWalletId) {
+        //refresh before taking the lock: reload() takes it within the memoizing supplier lock
+        refreshedRemap.get();
+        synchronized (this) {
+            int canonical = walletRemap.resolve(newWalletId);
+            checkArgument(canonical != oldWalletId, "Wallet %s cannot be merged into itself", oldWalletId);
+            psAdd.setParameters(p -> p.setInt(oldWalletId).setInt(canonical)).executeUpdate();
+            walletRemap.put(oldWalletId, canonical);
+        }
+    }
+
+    /**
+     * Apply all merges to address tables and remove them from the log. Must
+     * not run concurrently with merges from other processes. If DB has wallet
+     * changelog, then updated addresses are appended to it.
+     *
+     * @return merged wallet ids that are no longer referenced by addresses
+     */
+    @NonNull
+    public synchronized Collection<Integer> compact() {
+        Map<Integer, Integer> resolved = reload().getResolved();
+        if (resolved.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long s = System.currentTimeMillis();
+        Map<Integer, Integer> stored = readAll();
+        resolved.entrySet().stream().filter(e -> !e.getValue().equals(stored.get(e.getKey())))
+                .forEach(e -> psUpdate.setParameters(p -> p.setInt(e.getValue()).setInt(e.getKey())).addBatch());
+        psUpdate.executeBatch();
+        psLogCompactAddresses.values().forEach(DBPreparedStatement::executeUpdate);
+        int nUpdated = psCompactAddresses.values().stream().mapToInt(DBPreparedStatement::executeUpdate).sum();
+        resolved.keySet().forEach(oldWalletId -> psDelete.setParameters(p -> p.setInt(oldWalletId)).addBatch());
+        psDelete.executeBatch();
+        walletRemap.removeAll(resolved.keySet());
+        log.info("Wallet remap compacted. Merges: {}, addresses updated: {}. Runtime: {} sec.", resolved.size(), nUpdated, (System.currentTimeMillis() - s) / 1000);
+        return new ArrayList<>(resolved.keySet());
+    }
+
+    /**
+     * Reload merges from DB. Holds the same lock as {@link #merge(int, int)},
+     * so a merge cannot be recorded between reading the log and replacing the
+     * in-memory remap with the read state.
+     */
+    private synchronized WalletRemap reload() {
+        walletRemap.reset(readAll());
+        return walletRemap;
+    }
+
+    private Map<Integer, Integer> readAll() {
+        Map<Integer, Integer> result = new HashMap<>();
+        psQueryAll.executeQuery(rs -> result.put(rs.getInt(1), rs.getInt(2)));
+        return result;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Log-structured merge tree of a column family: mutable in-memory table and
+ * immutable sorted table files named by range of sequence numbers of data
+ * they contain. Runs of similar size tables are merged to keep the number of
+ * files probed by lookups low.
+ * <p>
+ * Mutating methods are called by {@link LsmKvStore} holding its write
+ * monitor, methods marked as such - holding its exclusive lock.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+final class ColumnFamilyStore implements Closeable {
+
+    private static final Pattern TABLE_FILE_NAME = Pattern.compile("(\\d+)-(\\d+)\\.sst");
+    private static final byte[] DELETED = new byte[0];
+    private static final int TIER_GROWTH_FACTOR = 4;
+
+    @Getter
+    private final KvColumnFamily columnFamily;
+    private final File dir;
+    private volatile ConcurrentSkipListMap<byte[], byte[]> memtable = new ConcurrentSkipListMap<>(SortedTable.KEY_ORDER);
+    /**
+     * Immutable list of tables ordered from oldest to newest.
+     */
+    private volatile List<SortedTable> tables;
+
+    ColumnFamilyStore(KvColumnFamily columnFamily, File dir) throws IOException {
+        this.columnFamily = columnFamily;
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        List<SortedTable> list = new ArrayList<>();
+        List<long[]> ranges = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        for (File f : listFiles(dir)) {
+            Matcher m = TABLE_FILE_NAME.matcher(f.getName());
+            if (m.matches()) {
+                ranges.add(new long[]{Long.parseLong(m.group(1)), Long.parseLong(m.group(2))});
+                files.add(f);
+            } else if (f.getName().endsWith(".tmp")) {
+                deleteFile(f);
+            }
+        }
+        for (int i = 0; i < files.size(); i++) {
+            long[] r = ranges.get(i);
+            //remove inputs of interrupted compaction
+            boolean covered = false;
+            for (int j = 0; j < files.size() && !covered; j++) {
+                long[] o = ranges.get(j);
+                covered = j != i && o[0] <= r[0] && r[1] <= o[1] && (o[0] != r[0] || o[1] != r[1]);
+            }
+            if (covered) {
+                deleteFile(files.get(i));
+            } else {
+                list.add(SortedTable.open(files.get(i), r[0], r[1]));
+            }
+        }
+        list.sort(Comparator.comparingLong(SortedTable::getMinSeq));
+        this.tables = Collections.unmodifiableList(list);
+    }
+
+    long getMaxSeq() {
+        return tables.stream().mapToLong(SortedTable::getMaxSeq).max().orElse(0);
+    }
+
+    int getTableCount() {
+        return tables.size();
+    }
+
+    void put(byte[] key, byte[] value) {
+        memtable.put(key, value == null ? DELETED : value);
+    }
+
+    boolean isMemtableEmpty() {
+        return memtable.isEmpty();
+    }
+
+    /**
+     * Find entry of the key. Caller holds shared lock.
+     */
+    KvEntry find(byte[] key) throws IOException {
+        byte[] value = memtable.get(key);
+        if (value != null) {
+            return new KvEntry(key, value == DELETED ? null : value);
+        }
+        List<SortedTable> t = tables;
+        for (int i = t.size() - 1; i >= 0; i--) {
+            KvEntry e = t.get(i).find(key);
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterate live entries starting from the key. Caller holds shared lock.
+     */
+    void scan(byte[] fromKey, BiPredicate<byte[], byte[]> consumer) throws IOException {
+        List<SortedTable> t = tables;
+        List<Iterator<KvEntry>> sources = new ArrayList<>(t.size() + 1);
+        List<SortedTable.TableIterator> tableIterators = new ArrayList<>(t.size());
+        try {
+            sources.add(memtable.tailMap(fromKey, true).entrySet().stream()
+                    .map(e -> new KvEntry(e.getKey(), e.getValue() == DELETED ? null : e.getValue())).iterator());
+            for (int i = t.size() - 1; i >= 0; i--) {
+                SortedTable.TableIterator it = t.get(i).iterator(fromKey);
+                tableIterators.add(it);
+                sources.add(it);
+            }
+            MergingIterator it = new MergingIterator(sources);
+            while (it.hasNext()) {
+                KvEntry e = it.next();
+                if (!e.isDelete() && !consumer.test(e.getKey(), e.getValue())) {
+                    break;
+                }
+            }
+        } finally {
+            for (SortedTable.TableIterator it : tableIterators) {
+                it.close();
+            }
+        }
+    }
+
+    /**
+     * Write memory table to a new table file. The table is not visible until
+     * {@link #install(SortedTable)} is called.
+     *
+     * @param seq sequence number of the table
+     * @return new table or null if memory table is empty
+     */
+    SortedTable writeMemtable(long seq) throws IOException {
+        if (memtable.isEmpty()) {
+            return null;
+        }
+        Iterator<KvEntry> entries = memtable.entrySet().stream()
+                .map(e -> new KvEntry(e.getKey(), e.getValue() == DELETED ? null : e.getValue())).iterator();
+        return SortedTable.write(new File(dir, seq + "-" + seq + ".sst"), seq, seq, entries, memtable.size(), tables.isEmpty());
+    }
+
+    /**
+     * Add table written from the memory table and reset memory table. Caller
+     * holds exclusive lock.
+     */
+    void install(SortedTable table) {
+        List<SortedTable> list = new ArrayList<>(tables);
+        list.add(table);
+        tables = Collections.unmodifiableList(list);
+        memtable = new ConcurrentSkipListMap<>(SortedTable.KEY_ORDER);
+    }
+
+    /**
+     * Find contiguous run of tables of the same size tier to merge.
+     *
+     * @param threshold minimal number of tables in the run
+     * @param baseSize size of the smallest tier
+     * @return tables to merge ordered from oldest to newest or empty list
+     */
+    List<SortedTable> pickCompaction(int threshold, long baseSize) {
+        List<SortedTable> t = tables;
+        int runStart = 0;
+        for (int i = 1; i <= t.size(); i++) {
+            if (i == t.size() || getTier(t.get(i).size(), baseSize) != getTier(t.get(runStart).size(), baseSize)) {
+                if (i - runStart >= threshold) {
+                    return t.subList(runStart, i);
+                }
+                runStart = i;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Merge tables to a new table file. The table is not visible until
+     * {@link #replace(java.util.List, SortedTable)} is called.
+     */
+    SortedTable merge(List<SortedTable> run) throws IOException {
+        List<SortedTable.TableIterator> sources = new ArrayList<>(run.size());
+        try {
+            for (int i = run.size() - 1; i >= 0; i--) {
+                sources.add(run.get(i).iterator(null));
+            }
+            long minSeq = run.get(0).getMinSeq();
+            long maxSeq = run.get(run.size() - 1).getMaxSeq();
+            long expectedEntries = run.stream().mapToLong(SortedTable::getEntryCount).sum();
+            return SortedTable.write(new File(dir, minSeq + "-" + maxSeq + ".sst"), minSeq, maxSeq,
+                    new MergingIterator(sources), expectedEntries, run.get(0) == tables.get(0));
+        } finally {
+            for (SortedTable.TableIterator it : sources) {
+                it.close();
+            }
+        }
+    }
+
+    /**
+     * Replace merged tables with the result of merge and delete their files.
+     * Caller holds exclusive lock.
+     */
+    void replace(List<SortedTable> run, SortedTable merged) throws IOException {
+        List<SortedTable> list = new ArrayList<>(tables);
+        int pos = list.indexOf(run.get(0));
+        list.removeAll(run);
+        list.add(pos, merged);
+        tables = Collections.unmodifiableList(list);
+        for (SortedTable t : run) {
+            t.close();
+            deleteFile(t.getFile());
+        }
+        log.debug("{}: Merged {} tables to {}", columnFamily.getName(), run.size(), merged);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SortedTable t : tables) {
+            t.close();
+        }
+    }
+
+    private static int getTier(long size, long baseSize) {
+        int tier = 0;
+        for (long s = baseSize; s < size; s *= TIER_GROWTH_FACTOR) {
+            tier++;
+        }
+        return tier;
+    }
+
+    private static File[] listFiles(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list directory " + dir);
+        }
+        return files;
+    }
+
+    private static void deleteFile(File f) throws IOException {
+        if (!f.delete()) {
+            throw new IOException("Cannot delete file " + f);
+        }
+    }
+}
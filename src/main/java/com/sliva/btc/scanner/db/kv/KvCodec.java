@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.sliva.btc.scanner.db.model.BtcBlock;
+import com.sliva.btc.scanner.db.model.InOutKey;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import lombok.NonNull;
+
+/**
+ * Binary encoding of keys and values of {@link KvColumnFamily}. Numbers are
+ * encoded big-endian, so keys of non-negative ids are ordered numerically.
+ *
+ * @author Sliva Co
+ */
+public final class KvCodec {
+
+    private static final int OUTPUT_VALUE_SIZE = 4 + 8 + 1;
+
+    private KvCodec() {
+    }
+
+    @NonNull
+    public static byte[] encodeInt(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    public static int decodeInt(byte[] data) {
+        checkArgument(data != null && data.length == 4, "Argument 'data' is not a 4 bytes array");
+        return ByteBuffer.wrap(data).getInt();
+    }
+
+    @NonNull
+    public static byte[] encodeOutPoint(int transactionId, short pos) {
+        return ByteBuffer.allocate(6).putInt(transactionId).putShort(pos).array();
+    }
+
+    @NonNull
+    public static InOutKey decodeOutPoint(byte[] data) {
+        checkArgument(data != null && data.length == 6, "Argument 'data' is not a 6 bytes array");
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        return new InOutKey(bb.getInt(), bb.getShort());
+    }
+
+    @NonNull
+    public static byte[] encodeOutput(TxOutput txOutput) {
+        checkArgument(txOutput != null, "Argument 'txOutput' is null");
+        return ByteBuffer.allocate(OUTPUT_VALUE_SIZE).putInt(txOutput.getAddressId()).putLong(txOutput.getAmount()).put(txOutput.getStatus()).array();
+    }
+
+    @NonNull
+    public static TxOutput decodeOutput(InOutKey key, byte[] data) {
+        checkArgument(key != null, "Argument 'key' is null");
+        checkArgument(data != null && data.length == OUTPUT_VALUE_SIZE, "Argument 'data' is not an encoded output");
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        return TxOutput.builder()
+                .transactionId(key.getTransactionId())
+                .pos(key.getPos())
+                .addressId(bb.getInt())
+                .amount(bb.getLong())
+                .status(bb.get())
+                .build();
+    }
+
+    @NonNull
+    public static byte[] encodeAddress(SrcAddressType addressType, byte[] address) {
+        checkArgument(addressType != null, "Argument 'addressType' is null");
+        checkArgument(address != null, "Argument 'address' is null");
+        byte[] result = new byte[address.length + 1];
+        result[0] = (byte) addressType.ordinal();
+        System.arraycopy(address, 0, result, 1, address.length);
+        return result;
+    }
+
+    @NonNull
+    public static byte[] encodeBlock(BtcBlock btcBlock) {
+        checkArgument(btcBlock != null, "Argument 'btcBlock' is null");
+        checkArgument(btcBlock.getHash() != null, "Argument 'btcBlock.hash' is null");
+        return ByteBuffer.allocate(4 + 32).putInt(btcBlock.getTxnCount()).put(btcBlock.getHash().getData()).array();
+    }
+
+    @NonNull
+    public static BtcBlock decodeBlock(int height, byte[] data) {
+        checkArgument(data != null && data.length == 4 + 32, "Argument 'data' is not an encoded block");
+        return BtcBlock.builder()
+                .height(height)
+                .txnCount(ByteBuffer.wrap(data).getInt())
+                .hash(Arrays.copyOfRange(data, 4, data.length))
+                .build();
+    }
+}
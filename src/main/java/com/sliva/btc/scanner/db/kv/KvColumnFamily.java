@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import lombok.NonNull;
+
+/**
+ * Column families of the key-value store. Each family is an independent
+ * sorted key space. Keys and values are encoded with {@link KvCodec}.
+ *
+ * @author Sliva Co
+ */
+public enum KvColumnFamily {
+    /**
+     * txid -> transaction_id.
+     */
+    TRANSACTION_ID,
+    /**
+     * transaction_id -> txid. Used to remove TRANSACTION_ID entry when
+     * transaction is deleted by id.
+     */
+    TRANSACTION_TXID,
+    /**
+     * outpoint (transaction_id, pos) -> address_id, amount, status.
+     */
+    OUTPUT,
+    /**
+     * address type and hash -> address_id.
+     */
+    ADDRESS_ID,
+    /**
+     * spent outpoint (in_transaction_id, in_pos) -> spending input
+     * (transaction_id, pos).
+     */
+    SPENT_BY,
+    /**
+     * block height -> block hash, txn_count.
+     */
+    BLOCK;
+
+    @NonNull
+    public String getName() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Key and value of the store. Null value marks deleted key.
+ *
+ * @author Sliva Co
+ */
+@Getter
+@AllArgsConstructor
+final class KvEntry {
+
+    private final byte[] key;
+    private final byte[] value;
+
+    boolean isDelete() {
+        return value == null;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import java.util.Optional;
+import java.util.function.BiPredicate;
+
+/**
+ * Embedded key-value storage for point lookups of the DB facades. Keys are
+ * ordered as unsigned byte strings.
+ * <p>
+ * The store is a lookup index in front of the database, not a replacement of
+ * it: facades still write every record to the database tables and fall back
+ * to SQL queries on a miss, so the store directory can be deleted at any
+ * time.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+public interface KvStore extends AutoCloseable {
+
+    /**
+     * Get value of the key.
+     *
+     * @param columnFamily column family
+     * @param key key
+     * @return value or empty if key does not exist
+     */
+    Optional<byte[]> get(KvColumnFamily columnFamily, byte[] key);
+
+    /**
+     * Apply puts and deletes of the batch.
+     *
+     * @param batch write batch
+     */
+    void write(KvWriteBatch batch);
+
+    /**
+     * Iterate keys starting from the key in ascending order. Consumer must not
+     * write to the store, collect changes to a batch and write it after the
+     * scan instead.
+     *
+     * @param columnFamily column family
+     * @param fromKey first key (inclusive)
+     * @param consumer key and value consumer, returns false to stop the scan
+     */
+    void scan(KvColumnFamily columnFamily, byte[] fromKey, BiPredicate<byte[], byte[]> consumer);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Batch of puts and deletes written to the store with a single write ahead
+ * log record.
+ *
+ * @author Sliva Co
+ */
+public class KvWriteBatch {
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    @NonNull
+    public KvWriteBatch put(KvColumnFamily columnFamily, byte[] key, byte[] value) {
+        checkArgument(columnFamily != null, "Argument 'columnFamily' is null");
+        checkArgument(key != null, "Argument 'key' is null");
+        checkArgument(value != null, "Argument 'value' is null");
+        operations.add(new Operation(columnFamily, key, value));
+        return this;
+    }
+
+    @NonNull
+    public KvWriteBatch delete(KvColumnFamily columnFamily, byte[] key) {
+        checkArgument(columnFamily != null, "Argument 'columnFamily' is null");
+        checkArgument(key != null, "Argument 'key' is null");
+        operations.add(new Operation(columnFamily, key, null));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    @NonNull
+    List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static final class Operation {
+
+        private final KvColumnFamily columnFamily;
+        private final byte[] key;
+        /**
+         * Value or null for delete.
+         */
+        private final byte[] value;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import com.sliva.btc.scanner.util.CommandLineUtils;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.zip.CRC32;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embedded log-structured merge key-value store. Write batches are appended
+ * to the write ahead log and applied to in-memory tables of column families.
+ * When in-memory tables exceed "--kv-memtable-size", they are written to
+ * sorted table files and the log is reset. Lookups probe the in-memory table
+ * and then table files from newest to oldest, skipping files by their bloom
+ * filters.
+ * <p>
+ * The write ahead log is flushed to OS on every batch, so committed batches
+ * survive process crash. Store directory is locked by the process that opened
+ * it.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class LsmKvStore implements KvStore {
+
+    private static final String DEFAULT_STORE_DIR = null;
+    private static final int DEFAULT_MEMTABLE_SIZE_MB = 64;
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+    private static final int MEMTABLE_ENTRY_OVERHEAD = 96;
+    private static final String WAL_FILE_NAME = "wal.log";
+    private static final String LOCK_FILE_NAME = "LOCK";
+
+    public static final CommandLineUtils.CmdOptions CMD_OPTS = new CommandLineUtils.CmdOptions();
+    public static final CommandLineUtils.CmdOption kvStoreDirOpt = buildOption(CMD_OPTS, null, "kv-store-dir", true, "Directory of embedded key-value store for in-process lookups of transactions, outputs, addresses, inputs and blocks. Default: none (disabled)");
+    public static final CommandLineUtils.CmdOption kvMemtableSizeOpt = buildOption(CMD_OPTS, null, "kv-memtable-size", true, "Size in MB of in-memory tables of key-value store written to disk when full. Default: " + DEFAULT_MEMTABLE_SIZE_MB);
+    public static final CommandLineUtils.CmdOption kvCompactionThresholdOpt = buildOption(CMD_OPTS, null, "kv-compaction-threshold", true, "Number of similar size table files of key-value store merged together. Default: " + DEFAULT_COMPACTION_THRESHOLD);
+
+    private static final Map<File, LsmKvStore> openStores = new HashMap<>();
+    private static String storeDir = DEFAULT_STORE_DIR;
+    private static long memtableSize = DEFAULT_MEMTABLE_SIZE_MB * 1024L * 1024L;
+    private static int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private final File dir;
+    private final long maxMemtableSize;
+    private final int maxSimilarTables;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<KvColumnFamily, ColumnFamilyStore> families = new EnumMap<>(KvColumnFamily.class);
+    private final ReadWriteLock tablesLock = new ReentrantReadWriteLock();
+    private DataOutputStream wal;
+    private long memtableBytes;
+    private long nextSeq;
+    private volatile boolean closed;
+
+    public static void applyArguments(CommandLineUtils.CmdArguments cmdArguments) {
+        storeDir = cmdArguments.getOption(kvStoreDirOpt).orElse(DEFAULT_STORE_DIR);
+        memtableSize = cmdArguments.getOption(kvMemtableSizeOpt).map(Long::valueOf).orElse((long) DEFAULT_MEMTABLE_SIZE_MB) * 1024L * 1024L;
+        checkArgument(memtableSize > 0, "Argument '%s' must be a positive integer value", kvMemtableSizeOpt.getLongOpt());
+        compactionThreshold = cmdArguments.getOption(kvCompactionThresholdOpt).map(Integer::valueOf).orElse(DEFAULT_COMPACTION_THRESHOLD);
+        checkArgument(compactionThreshold >= 2, "Argument '%s' must be 2 or greater", kvCompactionThresholdOpt.getLongOpt());
+    }
+
+    /**
+     * Open store of the database in "--kv-store-dir". Store is shared by all
+     * callers in the process and closed on JVM shutdown.
+     *
+     * @param name store name, i.e. database name
+     * @return store or empty if key-value store is not configured
+     */
+    @NonNull
+    public static Optional<KvStore> open(String name) {
+        checkArgument(name != null, "Argument 'name' is null");
+        if (storeDir == null) {
+            return Optional.empty();
+        }
+        synchronized (openStores) {
+            if (openStores.isEmpty()) {
+                Runtime.getRuntime().addShutdownHook(new Thread(LsmKvStore::closeAll, "LsmKvStore-shutdown"));
+            }
+            return Optional.of(openStores.computeIfAbsent(new File(storeDir, name), d -> new LsmKvStore(d, memtableSize, compactionThreshold)));
+        }
+    }
+
+    @SneakyThrows(IOException.class)
+    LsmKvStore(File dir, long maxMemtableSize, int maxSimilarTables) {
+        checkArgument(dir != null, "Argument 'dir' is null");
+        this.dir = dir;
+        this.maxMemtableSize = maxMemtableSize;
+        this.maxSimilarTables = maxSimilarTables;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        this.lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw").getChannel();
+        this.lock = lockChannel.tryLock();
+        checkState(lock != null, "Key-value store %s is locked by another process", dir);
+        for (KvColumnFamily cf : KvColumnFamily.values()) {
+            families.put(cf, new ColumnFamilyStore(cf, new File(dir, cf.getName())));
+        }
+        this.nextSeq = families.values().stream().mapToLong(ColumnFamilyStore::getMaxSeq).max().orElse(0) + 1;
+        int replayed = replayWal();
+        if (replayed > 0) {
+            log.info("{}: Replayed {} batches from write ahead log", dir, replayed);
+        }
+        flushMemtables();
+    }
+
+    @Override
+    @NonNull
+    @SneakyThrows(IOException.class)
+    public Optional<byte[]> get(KvColumnFamily columnFamily, byte[] key) {
+        checkArgument(columnFamily != null, "Argument 'columnFamily' is null");
+        checkArgument(key != null, "Argument 'key' is null");
+        tablesLock.readLock().lock();
+        try {
+            checkState(!closed, "Key-value store has been closed");
+            KvEntry e = families.get(columnFamily).find(key);
+            return e == null ? Optional.empty() : Optional.ofNullable(e.getValue());
+        } finally {
+            tablesLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public synchronized void write(KvWriteBatch batch) {
+        checkArgument(batch != null, "Argument 'batch' is null");
+        checkState(!closed, "Key-value store has been closed");
+        if (batch.isEmpty()) {
+            return;
+        }
+        byte[] record = encode(batch);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        wal.writeInt(record.length);
+        wal.write(record);
+        wal.writeInt((int) crc.getValue());
+        wal.flush();
+        apply(batch);
+        if (memtableBytes >= maxMemtableSize) {
+            flushMemtables();
+        }
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public void scan(KvColumnFamily columnFamily, byte[] fromKey, BiPredicate<byte[], byte[]> consumer) {
+        checkArgument(columnFamily != null, "Argument 'columnFamily' is null");
+        checkArgument(fromKey != null, "Argument 'fromKey' is null");
+        checkArgument(consumer != null, "Argument 'consumer' is null");
+        tablesLock.readLock().lock();
+        try {
+            checkState(!closed, "Key-value store has been closed");
+            families.get(columnFamily).scan(fromKey, consumer);
+        } finally {
+            tablesLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        log.debug("{}: Closing key-value store", dir);
+        flushMemtables();
+        tablesLock.writeLock().lock();
+        try {
+            closed = true;
+            wal.close();
+            for (ColumnFamilyStore cf : families.values()) {
+                cf.close();
+            }
+            lock.release();
+            lockChannel.close();
+        } finally {
+            tablesLock.writeLock().unlock();
+        }
+    }
+
+    private static void closeAll() {
+        synchronized (openStores) {
+            openStores.values().forEach(LsmKvStore::close);
+            openStores.clear();
+        }
+    }
+
+    /**
+     * Write in-memory tables to table files, reset write ahead log and merge
+     * table files if needed.
+     */
+    private void flushMemtables() throws IOException {
+        List<ColumnFamilyStore> flushed = new ArrayList<>();
+        List<SortedTable> written = new ArrayList<>();
+        for (ColumnFamilyStore cf : families.values()) {
+            SortedTable table = cf.writeMemtable(nextSeq);
+            if (table != null) {
+                nextSeq++;
+                flushed.add(cf);
+                written.add(table);
+            }
+        }
+        tablesLock.writeLock().lock();
+        try {
+            for (int i = 0; i < flushed.size(); i++) {
+                flushed.get(i).install(written.get(i));
+            }
+        } finally {
+            tablesLock.writeLock().unlock();
+        }
+        resetWal();
+        memtableBytes = 0;
+        for (ColumnFamilyStore cf : flushed) {
+            compact(cf);
+        }
+    }
+
+    private void compact(ColumnFamilyStore cf) throws IOException {
+        for (List<SortedTable> run = cf.pickCompaction(maxSimilarTables, maxMemtableSize); !run.isEmpty(); run = cf.pickCompaction(maxSimilarTables, maxMemtableSize)) {
+            List<SortedTable> inputs = new ArrayList<>(run);
+            SortedTable merged = cf.merge(inputs);
+            tablesLock.writeLock().lock();
+            try {
+                cf.replace(inputs, merged);
+            } finally {
+                tablesLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void resetWal() throws IOException {
+        if (wal != null) {
+            wal.close();
+        }
+        wal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, WAL_FILE_NAME))));
+    }
+
+    private int replayWal() throws IOException {
+        File walFile = new File(dir, WAL_FILE_NAME);
+        if (!walFile.exists()) {
+            return 0;
+        }
+        int count = 0;
+        long remaining = walFile.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile)))) {
+            while (remaining >= 8) {
+                int length = in.readInt();
+                if (length < 0 || length > remaining - 8) {
+                    //incomplete record written before crash
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                int checksum = in.readInt();
+                remaining -= length + 8;
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("{}: Write ahead log record #{} is corrupted. Ignoring the rest of the log", dir, count + 1);
+                    break;
+                }
+                apply(decode(record));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void apply(KvWriteBatch batch) {
+        for (KvWriteBatch.Operation op : batch.getOperations()) {
+            families.get(op.getColumnFamily()).put(op.getKey(), op.getValue());
+            memtableBytes += op.getKey().length + (op.getValue() == null ? 0 : op.getValue().length) + MEMTABLE_ENTRY_OVERHEAD;
+        }
+    }
+
+    private static byte[] encode(KvWriteBatch batch) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(batch.size());
+        for (KvWriteBatch.Operation op : batch.getOperations()) {
+            out.writeByte(op.getColumnFamily().ordinal());
+            out.writeInt(op.getKey().length);
+            out.write(op.getKey());
+            if (op.getValue() == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(op.getValue().length);
+                out.write(op.getValue());
+            }
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static KvWriteBatch decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        KvWriteBatch batch = new KvWriteBatch();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            KvColumnFamily cf = KvColumnFamily.values()[in.readUnsignedByte()];
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            int valueLength = in.readInt();
+            if (valueLength < 0) {
+                batch.delete(cf, key);
+            } else {
+                byte[] value = new byte[valueLength];
+                in.readFully(value);
+                batch.put(cf, key, value);
+            }
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import lombok.AllArgsConstructor;
+
+/**
+ * Iterator merging sorted entry iterators. Entries of the same key from
+ * several sources are merged to the entry of the first (newest) source.
+ *
+ * @author Sliva Co
+ */
+final class MergingIterator implements Iterator<KvEntry> {
+
+    private final List<? extends Iterator<KvEntry>> sources;
+    private final PriorityQueue<Head> heads;
+
+    /**
+     * Create merging iterator.
+     *
+     * @param sources iterators ordered from newest to oldest
+     */
+    MergingIterator(List<? extends Iterator<KvEntry>> sources) {
+        this.sources = sources;
+        this.heads = new PriorityQueue<>(Math.max(1, sources.size()),
+                Comparator.<Head, byte[]>comparing(h -> h.entry.getKey(), SortedTable.KEY_ORDER).thenComparingInt(h -> h.source));
+        for (int i = 0; i < sources.size(); i++) {
+            pull(i);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public KvEntry next() {
+        Head head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        while (!heads.isEmpty() && SortedTable.KEY_ORDER.compare(heads.peek().entry.getKey(), head.entry.getKey()) == 0) {
+            pull(heads.poll().source);
+        }
+        pull(head.source);
+        return head.entry;
+    }
+
+    private void pull(int source) {
+        Iterator<KvEntry> it = sources.get(source);
+        if (it.hasNext()) {
+            heads.add(new Head(it.next(), source));
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class Head {
+
+        private final KvEntry entry;
+        private final int source;
+    }
+}
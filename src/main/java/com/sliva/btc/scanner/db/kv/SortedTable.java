@@ -0,0 +1,329 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.UnsignedBytes;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import lombok.Getter;
+
+/**
+ * Immutable sorted table file. Layout: data entries sorted by key, bloom
+ * filter of keys, sparse index of every {@value #INDEX_INTERVAL}th key and a
+ * fixed size footer. Each data entry is key length, key, value length (-1 for
+ * delete marker) and value.
+ *
+ * @author Sliva Co
+ */
+final class SortedTable implements Closeable {
+
+    static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+    private static final int INDEX_INTERVAL = 64;
+    private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+    private static final int MAGIC = 0x4B565354;
+    private static final double BLOOM_FPP = 0.01;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    @Getter
+    private final File file;
+    @Getter
+    private final long minSeq;
+    @Getter
+    private final long maxSeq;
+    @Getter
+    private final long entryCount;
+    private final FileChannel channel;
+    private final long dataEnd;
+    private final BloomFilter<byte[]> bloomFilter;
+    private final byte[][] indexKeys;
+    private final long[] indexOffsets;
+
+    private SortedTable(File file, long minSeq, long maxSeq) throws IOException {
+        this.file = file;
+        this.minSeq = minSeq;
+        this.maxSeq = maxSeq;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer footer = readFully(channel.size() - FOOTER_SIZE, FOOTER_SIZE);
+            this.dataEnd = footer.getLong();
+            long indexOffset = footer.getLong();
+            this.entryCount = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a sorted table file: " + file);
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(dataEnd)), STREAM_BUFFER_SIZE));
+            this.bloomFilter = BloomFilter.readFrom(in, Funnels.byteArrayFunnel());
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(indexOffset)), STREAM_BUFFER_SIZE));
+            int n = in.readInt();
+            this.indexKeys = new byte[n][];
+            this.indexOffsets = new long[n];
+            for (int i = 0; i < n; i++) {
+                indexKeys[i] = readBytes(in, in.readInt());
+                indexOffsets[i] = in.readLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static SortedTable open(File file, long minSeq, long maxSeq) throws IOException {
+        return new SortedTable(file, minSeq, maxSeq);
+    }
+
+    /**
+     * Write entries to a new table file.
+     *
+     * @param file table file
+     * @param minSeq first sequence number of data in the table
+     * @param maxSeq last sequence number of data in the table
+     * @param entries entries sorted by key
+     * @param expectedEntries upper bound of entries count for bloom filter
+     * @param dropDeletes true to skip delete markers, used when table contains
+     * oldest data of the column family
+     * @return opened table
+     * @throws IOException on write error
+     */
+    static SortedTable write(File file, long minSeq, long maxSeq, Iterator<KvEntry> entries, long expectedEntries, boolean dropDeletes) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        BloomFilter<byte[]> bloomFilter = BloomFilter.create(Funnels.byteArrayFunnel(), Math.max(1, expectedEntries), BLOOM_FPP);
+        List<byte[]> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+            CountingOutputStream cos = new CountingOutputStream(new BufferedOutputStream(fos, STREAM_BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(cos);
+            long count = 0;
+            while (entries.hasNext()) {
+                KvEntry e = entries.next();
+                if (dropDeletes && e.isDelete()) {
+                    continue;
+                }
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(e.getKey());
+                    indexOffsets.add(cos.getCount());
+                }
+                out.writeInt(e.getKey().length);
+                out.write(e.getKey());
+                if (e.isDelete()) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(e.getValue().length);
+                    out.write(e.getValue());
+                }
+                bloomFilter.put(e.getKey());
+                count++;
+            }
+            out.flush();
+            long dataEnd = cos.getCount();
+            bloomFilter.writeTo(out);
+            out.flush();
+            long indexOffset = cos.getCount();
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                out.writeInt(indexKeys.get(i).length);
+                out.write(indexKeys.get(i));
+                out.writeLong(indexOffsets.get(i));
+            }
+            out.writeLong(dataEnd);
+            out.writeLong(indexOffset);
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (file.exists() && !file.delete() || !tmpFile.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+        return open(file, minSeq, maxSeq);
+    }
+
+    long size() {
+        return file.length();
+    }
+
+    /**
+     * Find entry of the key.
+     *
+     * @param key key
+     * @return entry (possibly delete marker) or null if table has no entry of
+     * the key
+     * @throws IOException on read error
+     */
+    KvEntry find(byte[] key) throws IOException {
+        if (!bloomFilter.mightContain(key)) {
+            return null;
+        }
+        int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        long from = indexOffsets[block];
+        long to = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        ByteBuffer bb = readFully(from, (int) (to - from));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bb.array()));
+        while (in.available() > 0) {
+            KvEntry e = readEntry(in);
+            int cmp = KEY_ORDER.compare(e.getKey(), key);
+            if (cmp == 0) {
+                return e;
+            } else if (cmp > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get iterator over entries starting from the key.
+     *
+     * @param fromKey first key (inclusive) or null to iterate all entries
+     * @return entries iterator, must be closed after use
+     * @throws IOException on read error
+     */
+    TableIterator iterator(byte[] fromKey) throws IOException {
+        int block = fromKey == null ? -1 : findBlock(fromKey);
+        return new TableIterator(block < 0 ? 0 : indexOffsets[block], fromKey);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+
+    private int findBlock(byte[] key) {
+        int lo = 0;
+        int hi = indexKeys.length - 1;
+        int result = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (KEY_ORDER.compare(indexKeys[mid], key) <= 0) {
+                result = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0) {
+                throw new EOFException("Unexpected end of file " + file);
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private static KvEntry readEntry(DataInputStream in) throws IOException {
+        byte[] key = readBytes(in, in.readInt());
+        int valueLength = in.readInt();
+        return new KvEntry(key, valueLength < 0 ? null : readBytes(in, valueLength));
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] result = new byte[length];
+        in.readFully(result);
+        return result;
+    }
+
+    /**
+     * Sequential reader of table entries.
+     */
+    final class TableIterator implements Iterator<KvEntry>, Closeable {
+
+        private final InputStream stream;
+        private final DataInputStream in;
+        private long position;
+        private KvEntry nextEntry;
+
+        private TableIterator(long offset, byte[] fromKey) throws IOException {
+            FileInputStream fis = new FileInputStream(file);
+            fis.getChannel().position(offset);
+            this.stream = fis;
+            this.in = new DataInputStream(new BufferedInputStream(fis, STREAM_BUFFER_SIZE));
+            this.position = offset;
+            advance();
+            while (fromKey != null && nextEntry != null && KEY_ORDER.compare(nextEntry.getKey(), fromKey) < 0) {
+                advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        @Override
+        public KvEntry next() {
+            if (nextEntry == null) {
+                throw new NoSuchElementException();
+            }
+            KvEntry result = nextEntry;
+            try {
+                advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+
+        private void advance() throws IOException {
+            if (position >= dataEnd) {
+                nextEntry = null;
+                close();
+                return;
+            }
+            nextEntry = readEntry(in);
+            position += 4 + nextEntry.getKey().length + 4 + (nextEntry.isDelete() ? 0 : nextEntry.getValue().length);
+        }
+    }
+}
@@ -83,6 +83,23 @@ public class BtcAddress {
         return addressId >= ADDR_P2PKH_MIN && addressId <= ADDR_P2WSH_MAX;
     }
 
+    public static int getMinAddressId(SrcAddressType type) {
+        switch (type) {
+            case P2PKH:
+                return ADDR_P2PKH_MIN;
+            case P2SH:
+                return ADDR_P2SH_MIN;
+            case P2WPKH:
+                return ADDR_P2WPKH_MIN;
+            case P2WSH:
+                return ADDR_P2WSH_MIN;
+            case OTHER:
+                return ADDR_OTHER_MIN;
+            default:
+                throw new IllegalArgumentException("Unsupported address type: " + type);
+        }
+    }
+
     @NonNull
     public static SrcAddressType getTypeFromId(int addressId) {
         return addressId == ADDR_NONE ? SrcAddressType.UNKNOWN
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.segment;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encoding of a numeric column chunk. Column is encoded with one of two
+ * schemes, whichever is smaller:
+ * <ul>
+ * <li>delta - zigzag varint of difference with previous value. Sorted and
+ * small value columns take 1-2 bytes per value.</li>
+ * <li>dictionary - sorted distinct values as delta varints followed by varint
+ * indexes in the dictionary. Used for columns with repeated values, i.e.
+ * address_id and amount.</li>
+ * </ul>
+ *
+ * @author Sliva Co
+ */
+final class ColumnCodec {
+
+    private static final byte SCHEME_DELTA = 1;
+    private static final byte SCHEME_DICTIONARY = 2;
+
+    private ColumnCodec() {
+    }
+
+    static byte[] encode(long[] values, int count) {
+        byte[] delta = encodeDelta(values, count);
+        long[] dictionary = distinct(values, count);
+        if (dictionary.length > count / 2) {
+            return delta;
+        }
+        byte[] dict = encodeDictionary(values, count, dictionary);
+        return dict.length < delta.length ? dict : delta;
+    }
+
+    static long[] decode(ByteBuffer in, int count) {
+        long[] result = new long[count];
+        byte scheme = in.get();
+        if (scheme == SCHEME_DELTA) {
+            long prev = 0;
+            for (int i = 0; i < count; i++) {
+                prev += readZigZag(in);
+                result[i] = prev;
+            }
+        } else if (scheme == SCHEME_DICTIONARY) {
+            long[] dictionary = new long[(int) readVarLong(in)];
+            long prev = 0;
+            for (int i = 0; i < dictionary.length; i++) {
+                prev += readZigZag(in);
+                dictionary[i] = prev;
+            }
+            for (int i = 0; i < count; i++) {
+                result[i] = dictionary[(int) readVarLong(in)];
+            }
+        } else {
+            throw new IllegalStateException("Unknown column encoding scheme: " + scheme);
+        }
+        return result;
+    }
+
+    private static byte[] encodeDelta(long[] values, int count) {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput(count * 2 + 1);
+        out.writeByte(SCHEME_DELTA);
+        long prev = 0;
+        for (int i = 0; i < count; i++) {
+            writeZigZag(out, values[i] - prev);
+            prev = values[i];
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeDictionary(long[] values, int count, long[] dictionary) {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput(count + dictionary.length * 2 + 4);
+        out.writeByte(SCHEME_DICTIONARY);
+        writeVarLong(out, dictionary.length);
+        long prev = 0;
+        for (long v : dictionary) {
+            writeZigZag(out, v - prev);
+            prev = v;
+        }
+        for (int i = 0; i < count; i++) {
+            writeVarLong(out, Arrays.binarySearch(dictionary, values[i]));
+        }
+        return out.toByteArray();
+    }
+
+    private static long[] distinct(long[] values, int count) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    private static void writeZigZag(ByteArrayDataOutput out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarLong(ByteArrayDataOutput out, long value) {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readZigZag(ByteBuffer in) {
+        long v = readVarLong(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+}
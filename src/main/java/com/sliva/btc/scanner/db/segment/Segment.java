@@ -0,0 +1,268 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.segment;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.SneakyThrows;
+
+/**
+ * Sealed immutable segment file with transactions, inputs and outputs of a
+ * block range. Layout: table chunks, chunk index, bloom filter of txids and
+ * spent outpoints and a fixed size footer. Chunk index is a sparse index with
+ * first and last key of each chunk and is kept in memory.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+public final class Segment implements Closeable {
+
+    static final int MAGIC = 0x42544353;
+    static final int FOOTER_SIZE = 4 * 4 + 8 + 8 + 4;
+
+    @Getter
+    private final File file;
+    @Getter
+    private final int fromHeight;
+    @Getter
+    private final int toHeight;
+    @Getter
+    private final int fromTransactionId;
+    @Getter
+    private final int toTransactionId;
+    private final FileChannel channel;
+    private final Map<SegmentTable, IndexEntry[]> index = new EnumMap<>(SegmentTable.class);
+    private final BloomFilter<byte[]> bloomFilter;
+    private final LoadingCache<IndexEntry, SegmentChunk> chunkCache;
+
+    private Segment(File file, int chunkCacheSize) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer footer = readFully(channel.size() - FOOTER_SIZE, FOOTER_SIZE);
+            this.fromHeight = footer.getInt();
+            this.toHeight = footer.getInt();
+            this.fromTransactionId = footer.getInt();
+            this.toTransactionId = footer.getInt();
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a segment file: " + file);
+            }
+            ByteBuffer in = readFully(indexOffset, (int) (bloomOffset - indexOffset));
+            Map<SegmentTable, List<IndexEntry>> entries = new EnumMap<>(SegmentTable.class);
+            int n = in.getInt();
+            for (int i = 0; i < n; i++) {
+                SegmentTable table = SegmentTable.values()[in.get()];
+                entries.computeIfAbsent(table, t -> new ArrayList<>()).add(new IndexEntry(table, in.getLong(), in.getLong(), in.getLong(), in.getInt(), in.getInt()));
+            }
+            for (SegmentTable table : SegmentTable.values()) {
+                index.put(table, entries.getOrDefault(table, new ArrayList<>()).toArray(new IndexEntry[0]));
+            }
+            this.bloomFilter = BloomFilter.readFrom(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(bloomOffset)))), Funnels.byteArrayFunnel());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.chunkCache = CacheBuilder.newBuilder()
+                .maximumSize(chunkCacheSize)
+                .build(CacheLoader.from(this::readChunk));
+    }
+
+    /**
+     * Open segment file.
+     *
+     * @param file segment file
+     * @param chunkCacheSize number of decoded chunks to cache for lookups
+     * @return opened segment
+     * @throws IOException on read error or if file is not a segment file
+     */
+    public static Segment open(File file, int chunkCacheSize) throws IOException {
+        checkArgument(file != null, "Argument 'file' is null");
+        return new Segment(file, chunkCacheSize);
+    }
+
+    public boolean containsTransaction(int transactionId) {
+        return transactionId >= fromTransactionId && transactionId <= toTransactionId;
+    }
+
+    public long getRowCount(SegmentTable table) {
+        return Arrays.stream(index.get(table)).mapToLong(IndexEntry::getRows).sum();
+    }
+
+    public long size() {
+        return file.length();
+    }
+
+    /**
+     * Check bloom filter for transaction hash.
+     *
+     * @param txid transaction hash
+     * @return false if segment does not contain the transaction
+     */
+    public boolean mightContainTxid(byte[] txid) {
+        return bloomFilter.mightContain(txidBloomKey(txid));
+    }
+
+    /**
+     * Check bloom filter for input spending the output.
+     *
+     * @param inTransactionId transaction id of the output
+     * @param inPos position of the output
+     * @return false if segment does not contain input spending the output
+     */
+    public boolean mightContainSpent(int inTransactionId, short inPos) {
+        return bloomFilter.mightContain(outPointBloomKey(inTransactionId, inPos));
+    }
+
+    /**
+     * Read rows with keys in the range sequentially. Chunks are read from disk
+     * and are not cached.
+     *
+     * @param table table
+     * @param fromKey first key (inclusive)
+     * @param toKey last key (inclusive)
+     * @param consumer row consumer
+     * @return false if consumer stopped the scan
+     */
+    public boolean scan(SegmentTable table, long fromKey, long toKey, RowConsumer consumer) {
+        return scan(table, fromKey, toKey, consumer, this::readChunk);
+    }
+
+    /**
+     * Find rows of the key using cached chunks.
+     *
+     * @param table table
+     * @param key key
+     * @param consumer row consumer
+     * @return false if consumer stopped the lookup
+     */
+    public boolean find(SegmentTable table, long key, RowConsumer consumer) {
+        return scan(table, key, key, consumer, chunkCache::getUnchecked);
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunkCache.invalidateAll();
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+
+    static byte[] txidBloomKey(byte[] txid) {
+        return Arrays.copyOf(txid, 8);
+    }
+
+    static byte[] outPointBloomKey(int transactionId, short pos) {
+        return ByteBuffer.allocate(6).putInt(transactionId).putShort(pos).array();
+    }
+
+    private boolean scan(SegmentTable table, long fromKey, long toKey, RowConsumer consumer, Function<IndexEntry, SegmentChunk> chunkLoader) {
+        IndexEntry[] entries = index.get(table);
+        for (int i = findFirstEntry(entries, fromKey); i < entries.length && entries[i].getFirstKey() <= toKey; i++) {
+            SegmentChunk chunk = chunkLoader.apply(entries[i]);
+            for (int row = chunk.lowerBound(fromKey); row < chunk.getRows() && chunk.getKey(row) <= toKey; row++) {
+                if (!consumer.accept(chunk, row)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int findFirstEntry(IndexEntry[] entries, long key) {
+        int lo = 0;
+        int hi = entries.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries[mid].getLastKey() < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @SneakyThrows(IOException.class)
+    private SegmentChunk readChunk(IndexEntry entry) {
+        return SegmentChunk.decode(entry.getTable(), entry.getRows(), readFully(entry.getOffset(), entry.getLength()));
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0) {
+                throw new EOFException("Unexpected end of file " + file);
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    /**
+     * Consumer of table rows.
+     */
+    public interface RowConsumer {
+
+        /**
+         * Accept a row.
+         *
+         * @param chunk chunk containing the row
+         * @param row row index in the chunk
+         * @return false to stop reading rows
+         */
+        boolean accept(SegmentChunk chunk, int row);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static final class IndexEntry {
+
+        private final SegmentTable table;
+        private final long firstKey;
+        private final long lastKey;
+        private final long offset;
+        private final int length;
+        private final int rows;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.segment;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import lombok.Getter;
+
+/**
+ * Decoded chunk of rows of a segment table. On-disk layout of the chunk is
+ * encoded length and bytes of each column followed by 32 byte hashes of rows
+ * for tables with hash.
+ *
+ * @author Sliva Co
+ */
+public final class SegmentChunk {
+
+    static final int HASH_SIZE = 32;
+
+    @Getter
+    private final SegmentTable table;
+    @Getter
+    private final int rows;
+    private final long[][] columns;
+    private final byte[] hashes;
+
+    private SegmentChunk(SegmentTable table, int rows, long[][] columns, byte[] hashes) {
+        this.table = table;
+        this.rows = rows;
+        this.columns = columns;
+        this.hashes = hashes;
+    }
+
+    static SegmentChunk decode(SegmentTable table, int rows, ByteBuffer in) {
+        long[][] columns = new long[table.getColumnCount()][];
+        for (int c = 0; c < columns.length; c++) {
+            int length = in.getInt();
+            ByteBuffer column = in.slice();
+            column.limit(length);
+            columns[c] = ColumnCodec.decode(column, rows);
+            in.position(in.position() + length);
+        }
+        byte[] hashes = null;
+        if (table.isHasHash()) {
+            hashes = new byte[rows * HASH_SIZE];
+            in.get(hashes);
+        }
+        return new SegmentChunk(table, rows, columns, hashes);
+    }
+
+    public long getLong(int column, int row) {
+        return columns[column][row];
+    }
+
+    public int getInt(int column, int row) {
+        return (int) columns[column][row];
+    }
+
+    public short getShort(int column, int row) {
+        return (short) columns[column][row];
+    }
+
+    public byte getByte(int column, int row) {
+        return (byte) columns[column][row];
+    }
+
+    public long getKey(int row) {
+        return columns[0][row];
+    }
+
+    public byte[] getHash(int row) {
+        return Arrays.copyOfRange(hashes, row * HASH_SIZE, (row + 1) * HASH_SIZE);
+    }
+
+    /**
+     * Find first row with key greater or equal to the key.
+     *
+     * @param key key
+     * @return row index or number of rows if all keys are smaller
+     */
+    int lowerBound(long key) {
+        int lo = 0;
+        int hi = rows;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (columns[0][mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
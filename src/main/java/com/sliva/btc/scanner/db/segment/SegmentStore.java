@@ -0,0 +1,403 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.segment;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import com.google.common.primitives.Longs;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.InOutKey;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.util.CommandLineUtils;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Archive of sealed segments, each holding transactions, inputs and outputs of
+ * a contiguous block range. Segments are created by
+ * {@link com.sliva.btc.scanner.RunArchiveSegments} for blocks deep enough to
+ * never change and cover the chain from the first block without gaps, so a
+ * transaction is archived if its id is not greater than
+ * {@link #getLastTransactionId()}.
+ * <p>
+ * Segments added by another process are visible after restart.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class SegmentStore implements AutoCloseable {
+
+    private static final String DEFAULT_STORE_DIR = null;
+    private static final int DEFAULT_CHUNK_CACHE_SIZE = 64;
+    private static final String FILE_SUFFIX = ".seg";
+
+    public static final CommandLineUtils.CmdOptions CMD_OPTS = new CommandLineUtils.CmdOptions();
+    public static final CommandLineUtils.CmdOption segmentStoreDirOpt = buildOption(CMD_OPTS, null, "segment-store-dir", true, "Directory of columnar segments archive with transactions, inputs and outputs of old blocks. Default: none (disabled)");
+    public static final CommandLineUtils.CmdOption segmentChunkCacheOpt = buildOption(CMD_OPTS, null, "segment-chunk-cache", true, "Number of decoded chunks cached per segment for lookups. Default: " + DEFAULT_CHUNK_CACHE_SIZE);
+
+    private static final Map<File, SegmentStore> openStores = new HashMap<>();
+    private static String storeDir = DEFAULT_STORE_DIR;
+    private static int chunkCacheSize = DEFAULT_CHUNK_CACHE_SIZE;
+
+    @Getter
+    private final File dir;
+    private final int segmentChunkCacheSize;
+    private final AtomicReference<NavigableMap<Integer, Segment>> segments = new AtomicReference<>(new TreeMap<>());
+
+    public static void applyArguments(CommandLineUtils.CmdArguments cmdArguments) {
+        storeDir = cmdArguments.getOption(segmentStoreDirOpt).orElse(DEFAULT_STORE_DIR);
+        chunkCacheSize = cmdArguments.getOption(segmentChunkCacheOpt).map(Integer::valueOf).orElse(DEFAULT_CHUNK_CACHE_SIZE);
+        checkArgument(chunkCacheSize >= 0, "Argument '%s' must be a non-negative integer value", segmentChunkCacheOpt.getLongOpt());
+    }
+
+    /**
+     * Open segment archive of the database in "--segment-store-dir". Archive
+     * is shared by all callers in the process.
+     *
+     * @param name archive name, i.e. database name
+     * @return archive or empty if segment store is not configured
+     */
+    @NonNull
+    public static Optional<SegmentStore> open(String name) {
+        checkArgument(name != null, "Argument 'name' is null");
+        if (storeDir == null) {
+            return Optional.empty();
+        }
+        synchronized (openStores) {
+            return Optional.of(openStores.computeIfAbsent(new File(storeDir, name), d -> new SegmentStore(d, chunkCacheSize)));
+        }
+    }
+
+    @SneakyThrows(IOException.class)
+    SegmentStore(File dir, int segmentChunkCacheSize) {
+        checkArgument(dir != null, "Argument 'dir' is null");
+        this.dir = dir;
+        this.segmentChunkCacheSize = segmentChunkCacheSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        File[] tmpFiles = dir.listFiles((d, n) -> n.endsWith(FILE_SUFFIX + ".tmp"));
+        for (File f : tmpFiles) {
+            log.info("{}: Deleting unfinished segment {}", dir, f.getName());
+            if (!f.delete()) {
+                throw new IOException("Cannot delete " + f);
+            }
+        }
+        File[] files = dir.listFiles((d, n) -> n.endsWith(FILE_SUFFIX));
+        List<Segment> list = new ArrayList<>();
+        for (File f : files) {
+            list.add(Segment.open(f, segmentChunkCacheSize));
+        }
+        list.sort(Comparator.comparingInt(Segment::getFromHeight));
+        list.forEach(this::addSegment);
+        log.info("{}: Opened {} segments. Last block: {}, last transaction: {}", dir, list.size(), getLastBlockHeight(), getLastTransactionId());
+    }
+
+    /**
+     * Get last archived block height.
+     *
+     * @return last block height or -1 if archive is empty
+     */
+    public int getLastBlockHeight() {
+        NavigableMap<Integer, Segment> map = segments.get();
+        return map.isEmpty() ? -1 : map.lastEntry().getValue().getToHeight();
+    }
+
+    /**
+     * Get last archived transaction id.
+     *
+     * @return last transaction id or 0 if archive is empty
+     */
+    public int getLastTransactionId() {
+        NavigableMap<Integer, Segment> map = segments.get();
+        return map.isEmpty() ? 0 : map.lastEntry().getValue().getToTransactionId();
+    }
+
+    public boolean contains(int transactionId) {
+        return getSegment(transactionId).isPresent();
+    }
+
+    /**
+     * Get last transaction id of the segment containing the transaction.
+     * Range scans are cut at segment boundaries to read a single segment.
+     *
+     * @param transactionId transaction id
+     * @return last transaction id of the segment or Long.MAX_VALUE if
+     * transaction is not archived
+     */
+    public long getSegmentLastTransactionId(int transactionId) {
+        return getSegment(transactionId).map(s -> (long) s.getToTransactionId()).orElse(Long.MAX_VALUE);
+    }
+
+    @NonNull
+    public File newSegmentFile(int fromHeight, int toHeight) {
+        return new File(dir, String.format("%09d-%09d%s", fromHeight, toHeight, FILE_SUFFIX));
+    }
+
+    /**
+     * Add new segment file to the archive. Segment must continue the last
+     * segment.
+     *
+     * @param file segment file written by {@link SegmentWriter}
+     * @return added segment
+     * @throws IOException on read error
+     */
+    @NonNull
+    public Segment add(File file) throws IOException {
+        checkArgument(file != null, "Argument 'file' is null");
+        Segment segment = Segment.open(file, segmentChunkCacheSize);
+        try {
+            addSegment(segment);
+        } catch (RuntimeException e) {
+            closeSegment(segment);
+            throw e;
+        }
+        return segment;
+    }
+
+    private synchronized void addSegment(Segment segment) {
+        NavigableMap<Integer, Segment> map = new TreeMap<>(segments.get());
+        if (!map.isEmpty()) {
+            Segment last = map.lastEntry().getValue();
+            checkState(segment.getFromHeight() == last.getToHeight() + 1 && segment.getFromTransactionId() == last.getToTransactionId() + 1,
+                    "Segment %s does not continue segment %s", segment, last);
+        }
+        map.put(segment.getFromTransactionId(), segment);
+        segments.set(map);
+    }
+
+    @NonNull
+    public Optional<BtcTransaction> findTransaction(int transactionId) {
+        return getSegment(transactionId).flatMap(s -> findTransaction(s, transactionId));
+    }
+
+    /**
+     * Find transaction id by txid. Segments are checked with bloom filters
+     * before reading the txid table.
+     *
+     * @param txid transaction hash
+     * @return transaction id or empty if transaction is not archived
+     */
+    @NonNull
+    public Optional<Integer> findTransactionId(byte[] txid) {
+        checkArgument(txid != null && txid.length == SegmentChunk.HASH_SIZE, "Argument 'txid' is not a %s bytes hash", SegmentChunk.HASH_SIZE);
+        for (Segment s : segments.get().descendingMap().values()) {
+            if (s.mightContainTxid(txid)) {
+                AtomicReference<Integer> result = new AtomicReference<>();
+                s.find(SegmentTable.TXID, Longs.fromByteArray(txid), (chunk, row) -> {
+                    int transactionId = chunk.getInt(1, row);
+                    if (findTransaction(s, transactionId).filter(t -> Arrays.equals(t.getTxid().getData(), txid)).isPresent()) {
+                        result.set(transactionId);
+                        return false;
+                    }
+                    return true;
+                });
+                if (result.get() != null) {
+                    return Optional.of(result.get());
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Read transactions in the range with sequential scan of segments.
+     *
+     * @param fromTransactionId first transaction id (inclusive)
+     * @param toTransactionId last transaction id (inclusive)
+     * @return archived transactions in the range
+     */
+    @NonNull
+    public List<BtcTransaction> getTransactions(int fromTransactionId, int toTransactionId) {
+        List<BtcTransaction> result = new ArrayList<>();
+        getSegments(fromTransactionId, toTransactionId).forEach(s -> s.scan(SegmentTable.TRANSACTION, fromTransactionId, toTransactionId, (chunk, row) -> result.add(toTransaction(chunk, row))));
+        return result;
+    }
+
+    @NonNull
+    public List<TxOutput> findOutputs(int transactionId) {
+        List<TxOutput> result = new ArrayList<>();
+        getSegment(transactionId).ifPresent(s -> s.find(SegmentTable.OUTPUT, transactionId, (chunk, row) -> result.add(toOutput(chunk, row))));
+        return result;
+    }
+
+    @NonNull
+    public Optional<TxOutput> findOutput(int transactionId, short pos) {
+        return findOutputs(transactionId).stream().filter(o -> o.getPos() == pos).findAny();
+    }
+
+    /**
+     * Read outputs of transactions in the range with sequential scan of
+     * segments.
+     *
+     * @param fromTransactionId first transaction id (inclusive)
+     * @param toTransactionId last transaction id (inclusive)
+     * @param consumer outputs consumer
+     */
+    public void scanOutputs(int fromTransactionId, int toTransactionId, Consumer<TxOutput> consumer) {
+        getSegments(fromTransactionId, toTransactionId).forEach(s -> s.scan(SegmentTable.OUTPUT, fromTransactionId, toTransactionId, (chunk, row) -> {
+            consumer.accept(toOutput(chunk, row));
+            return true;
+        }));
+    }
+
+    @NonNull
+    public List<TxInput> findInputs(int transactionId) {
+        List<TxInput> result = new ArrayList<>();
+        getSegment(transactionId).ifPresent(s -> s.find(SegmentTable.INPUT, transactionId, (chunk, row) -> result.add(TxInput.builder()
+                .transactionId(chunk.getInt(0, row))
+                .pos(chunk.getShort(1, row))
+                .inTransactionId(chunk.getInt(2, row))
+                .inPos(chunk.getShort(3, row))
+                .build())));
+        return result;
+    }
+
+    /**
+     * Find archived input spending the output. Only segments starting from the
+     * one containing the output are checked, with bloom filters before reading
+     * the spent-by table.
+     *
+     * @param inTransactionId transaction id of the output
+     * @param inPos position of the output
+     * @return spending input or empty if output is not spent by an archived
+     * transaction
+     */
+    @NonNull
+    public Optional<TxInput> findInputByOutTx(int inTransactionId, short inPos) {
+        AtomicReference<TxInput> result = new AtomicReference<>();
+        for (Segment s : getSegmentsFrom(inTransactionId)) {
+            if (s.mightContainSpent(inTransactionId, inPos)
+                    && !s.find(SegmentTable.SPENT_BY, inTransactionId, (chunk, row) -> {
+                        if (chunk.getShort(1, row) == inPos) {
+                            result.set(toSpentBy(chunk, row));
+                            return false;
+                        }
+                        return true;
+                    })) {
+                return Optional.of(result.get());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Read archived inputs spending outputs of transactions in the range with
+     * sequential scan of spent-by tables of segments.
+     *
+     * @param fromTransactionId first transaction id of spent outputs
+     * (inclusive)
+     * @param toTransactionId last transaction id of spent outputs (inclusive)
+     * @param consumer spending inputs consumer
+     */
+    public void scanSpendingInputs(int fromTransactionId, int toTransactionId, Consumer<TxInput> consumer) {
+        getSegmentsFrom(fromTransactionId).forEach(s -> s.scan(SegmentTable.SPENT_BY, fromTransactionId, toTransactionId, (chunk, row) -> {
+            consumer.accept(toSpentBy(chunk, row));
+            return true;
+        }));
+    }
+
+    @Override
+    public synchronized void close() {
+        segments.getAndSet(new TreeMap<>()).values().forEach(this::closeSegment);
+    }
+
+    @NonNull
+    private Optional<Segment> getSegment(int transactionId) {
+        return Optional.ofNullable(segments.get().floorEntry(transactionId)).map(Map.Entry::getValue).filter(s -> s.containsTransaction(transactionId));
+    }
+
+    @NonNull
+    private Iterable<Segment> getSegments(int fromTransactionId, int toTransactionId) {
+        NavigableMap<Integer, Segment> map = segments.get();
+        Integer fromKey = map.floorKey(fromTransactionId);
+        return map.subMap(fromKey == null ? fromTransactionId : fromKey, true, toTransactionId, true).values();
+    }
+
+    @NonNull
+    private Iterable<Segment> getSegmentsFrom(int fromTransactionId) {
+        return getSegments(fromTransactionId, Integer.MAX_VALUE);
+    }
+
+    @NonNull
+    private static Optional<BtcTransaction> findTransaction(Segment segment, int transactionId) {
+        AtomicReference<BtcTransaction> result = new AtomicReference<>();
+        segment.find(SegmentTable.TRANSACTION, transactionId, (chunk, row) -> {
+            result.set(toTransaction(chunk, row));
+            return false;
+        });
+        return Optional.ofNullable(result.get());
+    }
+
+    @NonNull
+    private static BtcTransaction toTransaction(SegmentChunk chunk, int row) {
+        return BtcTransaction.builder()
+                .transactionId(chunk.getInt(0, row))
+                .blockHeight(chunk.getInt(1, row))
+                .nInputs(chunk.getInt(2, row))
+                .nOutputs(chunk.getInt(3, row))
+                .txid(chunk.getHash(row))
+                .build();
+    }
+
+    @NonNull
+    private static TxOutput toOutput(SegmentChunk chunk, int row) {
+        return TxOutput.builder()
+                .transactionId(chunk.getInt(0, row))
+                .pos(chunk.getShort(1, row))
+                .addressId(chunk.getInt(2, row))
+                .amount(chunk.getLong(3, row))
+                .status(chunk.getByte(4, row))
+                .build();
+    }
+
+    @NonNull
+    private static TxInput toSpentBy(SegmentChunk chunk, int row) {
+        return TxInput.builder()
+                .inTransactionId(chunk.getInt(0, row))
+                .inPos(chunk.getShort(1, row))
+                .transactionId(chunk.getInt(2, row))
+                .pos(chunk.getShort(3, row))
+                .build();
+    }
+
+    private void closeSegment(Segment segment) {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            log.error("Failed to close segment " + segment, e);
+        }
+    }
+}
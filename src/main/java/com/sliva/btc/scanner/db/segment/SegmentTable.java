@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.segment;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Tables of a segment. Each table is a list of numeric columns stored in
+ * chunks, the first column is the sort key of the table.
+ *
+ * @author Sliva Co
+ */
+@Getter
+@AllArgsConstructor
+public enum SegmentTable {
+    /**
+     * transaction_id, block_height, nInputs, nOutputs and txid.
+     */
+    TRANSACTION(4, true),
+    /**
+     * transaction_id, pos, address_id, amount, spent.
+     */
+    OUTPUT(5, false),
+    /**
+     * transaction_id, pos, in_transaction_id, in_pos.
+     */
+    INPUT(4, false),
+    /**
+     * in_transaction_id, in_pos, transaction_id, pos. Inputs of the segment
+     * sorted by the outputs they spend.
+     */
+    SPENT_BY(4, false),
+    /**
+     * First 8 bytes of txid, transaction_id. Transactions of the segment
+     * sorted by txid.
+     */
+    TXID(2, false);
+
+    private final int columnCount;
+    private final boolean hasHash;
+}
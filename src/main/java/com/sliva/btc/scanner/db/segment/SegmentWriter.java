@@ -0,0 +1,302 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.segment;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.Longs;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writer of a segment file. Transactions, outputs and inputs are added in
+ * ascending order of transaction_id and written in chunks as they come.
+ * Tables sorted by other keys (spent outpoint and txid) are collected in
+ * memory and written on {@link #finish()}.
+ *
+ * @author Sliva Co
+ */
+public final class SegmentWriter implements Closeable {
+
+    private static final int CHUNK_ROWS = 4096;
+    private static final double BLOOM_FPP = 0.01;
+    private static final int STREAM_BUFFER_SIZE = 256 * 1024;
+
+    private final File file;
+    private final File tmpFile;
+    private final int fromHeight;
+    private final int toHeight;
+    private final FileOutputStream fos;
+    private final CountingOutputStream cos;
+    private final DataOutputStream out;
+    private final Map<SegmentTable, ChunkBuffer> buffers = new EnumMap<>(SegmentTable.class);
+    private final List<Segment.IndexEntry> index = new ArrayList<>();
+    private long[] spentKeys = new long[CHUNK_ROWS];
+    private long[] spentValues = new long[CHUNK_ROWS];
+    private int spentCount;
+    private long[] txidKeys = new long[CHUNK_ROWS];
+    private long[] txidValues = new long[CHUNK_ROWS];
+    private int txidCount;
+    private int fromTransactionId;
+    private int toTransactionId;
+    private boolean finished;
+
+    /**
+     * Create writer of a new segment file.
+     *
+     * @param file segment file, data is written to a temporary file renamed
+     * to this file on finish
+     * @param fromHeight first block height of the segment
+     * @param toHeight last block height of the segment
+     * @throws IOException on write error
+     */
+    public SegmentWriter(File file, int fromHeight, int toHeight) throws IOException {
+        checkArgument(file != null, "Argument 'file' is null");
+        checkArgument(fromHeight <= toHeight, "Argument 'fromHeight' (%s) is greater than 'toHeight' (%s)", fromHeight, toHeight);
+        this.file = file;
+        this.tmpFile = new File(file.getPath() + ".tmp");
+        this.fromHeight = fromHeight;
+        this.toHeight = toHeight;
+        this.fos = new FileOutputStream(tmpFile);
+        this.cos = new CountingOutputStream(new BufferedOutputStream(fos, STREAM_BUFFER_SIZE));
+        this.out = new DataOutputStream(cos);
+        for (SegmentTable table : SegmentTable.values()) {
+            buffers.put(table, new ChunkBuffer(table));
+        }
+    }
+
+    public void addTransaction(BtcTransaction tx) throws IOException {
+        checkArgument(tx != null, "Argument 'tx' is null");
+        byte[] txid = tx.getTxid().getData();
+        checkArgument(txid.length == SegmentChunk.HASH_SIZE, "Argument 'tx.txid' is not a %s bytes hash", SegmentChunk.HASH_SIZE);
+        if (txidCount == 0) {
+            fromTransactionId = tx.getTransactionId();
+        }
+        toTransactionId = tx.getTransactionId();
+        add(SegmentTable.TRANSACTION, txid, tx.getTransactionId(), tx.getBlockHeight(), tx.getNInputs(), tx.getNOutputs());
+        if (txidCount == txidKeys.length) {
+            txidKeys = Arrays.copyOf(txidKeys, txidCount * 2);
+            txidValues = Arrays.copyOf(txidValues, txidCount * 2);
+        }
+        txidKeys[txidCount] = Longs.fromByteArray(txid);
+        txidValues[txidCount++] = tx.getTransactionId();
+    }
+
+    public void addOutput(TxOutput txOutput) throws IOException {
+        checkArgument(txOutput != null, "Argument 'txOutput' is null");
+        add(SegmentTable.OUTPUT, null, txOutput.getTransactionId(), txOutput.getPos(), txOutput.getAddressId(), txOutput.getAmount(), txOutput.getStatus());
+    }
+
+    public void addInput(TxInput txInput) throws IOException {
+        checkArgument(txInput != null, "Argument 'txInput' is null");
+        add(SegmentTable.INPUT, null, txInput.getTransactionId(), txInput.getPos(), txInput.getInTransactionId(), txInput.getInPos());
+        if (spentCount == spentKeys.length) {
+            spentKeys = Arrays.copyOf(spentKeys, spentCount * 2);
+            spentValues = Arrays.copyOf(spentValues, spentCount * 2);
+        }
+        spentKeys[spentCount] = packOutPoint(txInput.getInTransactionId(), txInput.getInPos());
+        spentValues[spentCount++] = packOutPoint(txInput.getTransactionId(), txInput.getPos());
+    }
+
+    /**
+     * Write remaining tables, index and footer and rename the file.
+     *
+     * @return segment file
+     * @throws IOException on write error
+     */
+    public File finish() throws IOException {
+        checkState(!finished, "Segment has been finished");
+        checkState(txidCount > 0, "Segment has no transactions");
+        sortPairs(spentKeys, spentValues, 0, spentCount);
+        for (int i = 0; i < spentCount; i++) {
+            add(SegmentTable.SPENT_BY, null, spentKeys[i] >>> 16, (short) spentKeys[i], spentValues[i] >>> 16, (short) spentValues[i]);
+        }
+        sortPairs(txidKeys, txidValues, 0, txidCount);
+        for (int i = 0; i < txidCount; i++) {
+            add(SegmentTable.TXID, null, txidKeys[i], txidValues[i]);
+        }
+        for (ChunkBuffer buffer : buffers.values()) {
+            buffer.flush();
+        }
+        long indexOffset = cos.getCount();
+        out.writeInt(index.size());
+        for (Segment.IndexEntry e : index) {
+            out.writeByte(e.getTable().ordinal());
+            out.writeLong(e.getFirstKey());
+            out.writeLong(e.getLastKey());
+            out.writeLong(e.getOffset());
+            out.writeInt(e.getLength());
+            out.writeInt(e.getRows());
+        }
+        out.flush();
+        long bloomOffset = cos.getCount();
+        BloomFilter<byte[]> bloomFilter = BloomFilter.create(Funnels.byteArrayFunnel(), txidCount + spentCount, BLOOM_FPP);
+        for (int i = 0; i < txidCount; i++) {
+            bloomFilter.put(Longs.toByteArray(txidKeys[i]));
+        }
+        for (int i = 0; i < spentCount; i++) {
+            bloomFilter.put(Segment.outPointBloomKey((int) (spentKeys[i] >>> 16), (short) spentKeys[i]));
+        }
+        bloomFilter.writeTo(out);
+        out.writeInt(fromHeight);
+        out.writeInt(toHeight);
+        out.writeInt(fromTransactionId);
+        out.writeInt(toTransactionId);
+        out.writeLong(indexOffset);
+        out.writeLong(bloomOffset);
+        out.writeInt(Segment.MAGIC);
+        out.flush();
+        fos.getFD().sync();
+        out.close();
+        finished = true;
+        if (file.exists() && !file.delete() || !tmpFile.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Close the writer. Temporary file of not finished segment is deleted.
+     *
+     * @throws IOException on close error
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            out.close();
+            finished = true;
+            if (!tmpFile.delete()) {
+                throw new IOException("Cannot delete " + tmpFile);
+            }
+        }
+    }
+
+    private void add(SegmentTable table, byte[] hash, long... values) throws IOException {
+        checkState(!finished, "Segment has been finished");
+        buffers.get(table).add(hash, values);
+    }
+
+    private static long packOutPoint(int transactionId, short pos) {
+        return ((long) transactionId << 16) | (pos & 0xFFFF);
+    }
+
+    /**
+     * Sort keys in ascending order with values moved along with their keys.
+     */
+    static void sortPairs(long[] keys, long[] values, int from, int to) {
+        int lo = from;
+        int hi = to;
+        while (hi - lo > 16) {
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi - 1;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            if (j + 1 - lo < hi - i) {
+                sortPairs(keys, values, lo, j + 1);
+                lo = i;
+            } else {
+                sortPairs(keys, values, i, hi);
+                hi = j + 1;
+            }
+        }
+        for (int i = lo + 1; i < hi; i++) {
+            for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+                swap(keys, values, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(long[] keys, long[] values, int i, int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        long v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+
+    private final class ChunkBuffer {
+
+        private final SegmentTable table;
+        private final long[][] columns;
+        private final byte[] hashes;
+        private int rows;
+        private long lastKey = Long.MIN_VALUE;
+
+        private ChunkBuffer(SegmentTable table) {
+            this.table = table;
+            this.columns = new long[table.getColumnCount()][CHUNK_ROWS];
+            this.hashes = table.isHasHash() ? new byte[CHUNK_ROWS * SegmentChunk.HASH_SIZE] : null;
+        }
+
+        private void add(byte[] hash, long[] values) throws IOException {
+            checkArgument(values[0] >= lastKey, "Rows of %s table are not sorted: %s after %s", table, values[0], lastKey);
+            lastKey = values[0];
+            for (int c = 0; c < values.length; c++) {
+                columns[c][rows] = values[c];
+            }
+            if (hashes != null) {
+                System.arraycopy(hash, 0, hashes, rows * SegmentChunk.HASH_SIZE, SegmentChunk.HASH_SIZE);
+            }
+            if (++rows == CHUNK_ROWS) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            long offset = cos.getCount();
+            for (long[] column : columns) {
+                byte[] data = ColumnCodec.encode(column, rows);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            if (hashes != null) {
+                out.write(hashes, 0, rows * SegmentChunk.HASH_SIZE);
+            }
+            out.flush();
+            index.add(new Segment.IndexEntry(table, columns[0][0], columns[0][rows - 1], offset, (int) (cos.getCount() - offset), rows));
+            rows = 0;
+        }
+    }
+}
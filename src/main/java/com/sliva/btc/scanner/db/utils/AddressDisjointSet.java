@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.util.ConcurrentDisjointSet;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import lombok.AllArgsConstructor;
+
+/**
+ * Disjoint-set of addresses over the dense address id space. Id range of each
+ * real address type, from the type's minimal id up to the last allocated id,
+ * is mapped to a contiguous range of indices of a
+ * {@link ConcurrentDisjointSet}, so edges of different transaction ranges can
+ * be unioned by multiple threads. Addresses passed to union or add are tracked
+ * as members, so clusters of addresses never seen can be told from singletons.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+public class AddressDisjointSet {
+
+    private final Map<SrcAddressType, Range> ranges = new EnumMap<>(SrcAddressType.class);
+    private final ConcurrentDisjointSet disjointSet;
+    private final AtomicLongArray members;
+
+    /**
+     * Create disjoint-set covering addresses up to the last address id of
+     * each type.
+     *
+     * @param lastAddressIds last address id per real address type, types not
+     * in the map are not covered
+     */
+    public AddressDisjointSet(Map<SrcAddressType, Integer> lastAddressIds) {
+        checkArgument(lastAddressIds != null, "Argument 'lastAddressIds' is null");
+        long size = 0;
+        for (Map.Entry<SrcAddressType, Integer> e : lastAddressIds.entrySet()) {
+            checkArgument(e.getKey().isReal(), "Address type is not real: %s", e.getKey());
+            int minId = BtcAddress.getMinAddressId(e.getKey());
+            int lastId = e.getValue();
+            checkArgument(BtcAddress.getTypeFromId(lastId) == e.getKey(), "Last address id %s is out of range of type %s", lastId, e.getKey());
+            ranges.put(e.getKey(), new Range(minId, lastId, (int) size));
+            size += lastId - minId + 1;
+            checkArgument(size < Integer.MAX_VALUE, "Too many addresses: %s", size);
+        }
+        this.disjointSet = new ConcurrentDisjointSet((int) size);
+        this.members = new AtomicLongArray((int) ((size + 63) >>> 6));
+    }
+
+    public int size() {
+        return disjointSet.size();
+    }
+
+    /**
+     * Get dense index of the address.
+     *
+     * @param addressId address id
+     * @return index or -1 if address is not covered by this set
+     */
+    public int getIndex(int addressId) {
+        Range range = ranges.get(BtcAddress.getTypeFromId(addressId));
+        return range == null || addressId > range.lastId ? -1 : range.offset + (addressId - range.minId);
+    }
+
+    public void add(int addressId) {
+        setMember(checkedIndex(addressId));
+    }
+
+    public boolean isMember(int addressId) {
+        int index = getIndex(addressId);
+        return index != -1 && (members.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Merge clusters of the two addresses.
+     *
+     * @param addressId1 first address id
+     * @param addressId2 second address id
+     * @return true if addresses were in different clusters
+     */
+    public boolean union(int addressId1, int addressId2) {
+        int index1 = checkedIndex(addressId1);
+        int index2 = checkedIndex(addressId2);
+        setMember(index1);
+        setMember(index2);
+        return disjointSet.union(index1, index2);
+    }
+
+    /**
+     * Find cluster of the address.
+     *
+     * @param addressId address id
+     * @return index of the cluster root
+     */
+    public int find(int addressId) {
+        return disjointSet.find(checkedIndex(addressId));
+    }
+
+    private void setMember(int index) {
+        long bit = 1L << index;
+        if ((members.get(index >>> 6) & bit) == 0) {
+            members.getAndAccumulate(index >>> 6, bit, (a, b) -> a | b);
+        }
+    }
+
+    private int checkedIndex(int addressId) {
+        int index = getIndex(addressId);
+        checkArgument(index != -1, "Address %s is not covered", addressId);
+        return index;
+    }
+
+    @AllArgsConstructor
+    private static final class Range {
+
+        private final int minId;
+        private final int lastId;
+        private final int offset;
+    }
+}
@@ -19,18 +19,28 @@ import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
 import static com.google.common.base.Preconditions.checkArgument;
 import com.sliva.btc.scanner.db.DBPreparedStatement.ParamSetter;
+import com.sliva.btc.scanner.util.CommandLineUtils;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.sql.BatchUpdateException;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
-import java.util.function.Consumer;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 
 /**
@@ -42,21 +52,76 @@ import org.apache.commons.lang3.time.StopWatch;
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public final class BatchExecutor {
 
-    public static <T> void executeBatch(Collection<T> list, DBPreparedStatement ps, BiConsumer<T, ParamSetter> fillCallback) {
+    private static final int MYSQL_DUPLICATE_KEY_ERROR = 1062;
+    private static final String PG_UNIQUE_VIOLATION_STATE = "23505";
+    public static final CommandLineUtils.CmdOptions CMD_OPTS = new CommandLineUtils.CmdOptions();
+    public static final CommandLineUtils.CmdOption dbDeadLetterFileOpt = buildOption(CMD_OPTS, null, "db-dead-letter-file", true, "File to append records failed in DB batch execution to. Default: none");
+    private static File deadLetterFile;
+    private static PrintStream deadLetterOut;
+
+    public static synchronized void applyArguments(CommandLineUtils.CmdArguments cmdArguments) {
+        deadLetterFile = cmdArguments.getOption(dbDeadLetterFileOpt).map(File::new).orElse(null);
+        if (deadLetterOut != null) {
+            deadLetterOut.close();
+            deadLetterOut = null;
+        }
+    }
+
+    /**
+     * Execute all elements of the list in a single batch. If batch fails, then
+     * it is split in halves and each half is retried as a separate batch until
+     * failing elements are isolated. Failed elements are logged and written to
+     * the dead-letter file if configured.
+     *
+     * Note: on non-transactional tables a failed batch might be partially
+     * applied. Elements reported as applied by the driver update counts are
+     * not retried. If retry of a plain INSERT fails with duplicate key error,
+     * then the retried part is executed again skipping existing rows, as they
+     * were applied by the earlier partially applied batch.
+     *
+     * @param <T> element type
+     * @param list elements to execute
+     * @param ps prepared statement
+     * @param fillCallback statement parameters setter
+     * @return number of failed elements
+     */
+    public static <T> int executeBatch(Collection<T> list, DBPreparedStatement ps, BiConsumer<T, ParamSetter> fillCallback) {
+        return executeBatch(list, ps, fillCallback, new ArrayList<>());
+    }
+
+    /**
+     * Execute all elements of the list in a single batch bisecting it on
+     * failure. Same as {@link #executeBatch(Collection, DBPreparedStatement, BiConsumer)},
+     * but also collects failed elements.
+     *
+     * @param <T> element type
+     * @param list elements to execute
+     * @param ps prepared statement
+     * @param fillCallback statement parameters setter
+     * @param failed collection to add failed elements to
+     * @return number of failed elements
+     */
+    public static <T> int executeBatch(Collection<T> list, DBPreparedStatement ps, BiConsumer<T, ParamSetter> fillCallback, Collection<T> failed) {
         StopWatch sw = StopWatch.createStarted();
         checkArgument(list != null, "Argument 'list' is null");
         checkArgument(ps != null, "Argument 'ps' is null");
         checkArgument(fillCallback != null, "Argument 'fillCallback' is null");
+        checkArgument(failed != null, "Argument 'failed' is null");
         log.trace("BatchExecutor.executeBatch(): list.size={}", list.size());
         try {
-            list.forEach(a -> ps.setParameters(a, fillCallback).addBatch());
-            ps.executeBatch();
-        } catch (Exception e) {
-            //if batch failed, then try to execute statements one by one
-            log.error(e.getMessage(), e);
-            clearBatchIgnoreExceptions(ps);
-            list.forEach(a -> executeHandleExceptions(ps.setParameters(a, fillCallback),
-                    ex -> log.error("Exception while executing query {} with parameters {}. Exception {}: {} ", ps.getQuery(), a, ex.getClass(), ex.getMessage())));
+            Optional<Exception> error = tryExecuteBatch(list, ps, fillCallback);
+            if (!error.isPresent()) {
+                return 0;
+            }
+            log.error(error.get().getMessage(), error.get());
+            //if batch failed, then bisect it to isolate failing statements
+            AtomicInteger batchesCount = new AtomicInteger(1);
+            int failedBefore = failed.size();
+            List<T> elements = new ArrayList<>(list);
+            bisect(elements.subList(getAppliedCount(error.get(), elements.size()), elements.size()), ps, fillCallback, failed, batchesCount);
+            log.error("BatchExecutor.executeBatch({}): {} of {} records failed. Executed {} batches to isolate failures. Query: {}",
+                    list.size(), failed.size() - failedBefore, list.size(), batchesCount.get(), ps.getQuery());
+            return failed.size() - failedBefore;
         } finally {
             clearPsDataIgnoreExceptions(ps);
             log.debug("BatchExecutor.executeBatch({}): runtime={}", list.size(), TimeUnit.NANOSECONDS.toMillis(sw.getNanoTime()) + " ms.");
@@ -80,14 +145,98 @@ public final class BatchExecutor {
         }
     }
 
-    private static void executeHandleExceptions(DBPreparedStatement ps, Consumer<Exception> exceptionHandler) {
+    private static <T> void executeBisecting(List<T> list, DBPreparedStatement ps, BiConsumer<T, ParamSetter> fillCallback, Collection<T> failed, AtomicInteger batchesCount) {
+        if (list.isEmpty()) {
+            return;
+        }
+        batchesCount.incrementAndGet();
+        tryExecuteBatch(list, ps, fillCallback).ifPresent(ex -> {
+            Optional<DBPreparedStatement> psSkippingDuplicates = isDuplicateKey(ex) ? ps.skippingDuplicates() : Optional.empty();
+            if (psSkippingDuplicates.isPresent()) {
+                log.debug("Retrying {} records skipping rows applied by partially executed batch of query {}", list.size(), ps.getQuery());
+                executeBisecting(list, psSkippingDuplicates.get(), fillCallback, failed, batchesCount);
+            } else if (list.size() == 1) {
+                T element = list.get(0);
+                if (isInsert(ps) && isDuplicateKey(ex)) {
+                    log.debug("Record {} was applied by partially executed batch of query {}", element, ps.getQuery());
+                    return;
+                }
+                failed.add(element);
+                log.error("Exception while executing query {} with parameters {}. Exception {}: {} ", ps.getQuery(), element, ex.getClass(), ex.getMessage());
+                writeDeadLetter(ps.getQuery(), element, ex);
+            } else {
+                bisect(list.subList(getAppliedCount(ex, list.size()), list.size()), ps, fillCallback, failed, batchesCount);
+            }
+        });
+    }
+
+    private static <T> void bisect(List<T> list, DBPreparedStatement ps, BiConsumer<T, ParamSetter> fillCallback, Collection<T> failed, AtomicInteger batchesCount) {
+        int half = list.size() / 2;
+        executeBisecting(list.subList(0, half), ps, fillCallback, failed, batchesCount);
+        executeBisecting(list.subList(half, list.size()), ps, fillCallback, failed, batchesCount);
+    }
+
+    /**
+     * Get number of leading batch elements the driver reported as applied
+     * before the failure. Drivers that stop batch execution on the first
+     * failure return update counts of the applied statements only.
+     */
+    static int getAppliedCount(Exception ex, int batchSize) {
+        if (!(ex instanceof BatchUpdateException)) {
+            return 0;
+        }
+        int[] counts = ((BatchUpdateException) ex).getUpdateCounts();
+        if (counts == null || counts.length >= batchSize) {
+            return 0;
+        }
+        int applied = 0;
+        while (applied < counts.length && counts[applied] != Statement.EXECUTE_FAILED) {
+            applied++;
+        }
+        return applied;
+    }
+
+    private static boolean isInsert(DBPreparedStatement ps) {
+        String query = ps.getQuery();
+        return query != null && StringUtils.startsWithIgnoreCase(query.trim(), "INSERT") && !StringUtils.containsIgnoreCase(query, " ON DUPLICATE KEY ")
+                && !StringUtils.containsIgnoreCase(query, " ON CONFLICT");
+    }
+
+    static boolean isDuplicateKey(Throwable ex) {
+        for (Throwable t = ex; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                SQLException e = (SQLException) t;
+                if (e.getErrorCode() == MYSQL_DUPLICATE_KEY_ERROR || PG_UNIQUE_VIOLATION_STATE.equals(e.getSQLState())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static <T> Optional<Exception> tryExecuteBatch(Collection<T> list, DBPreparedStatement ps, BiConsumer<T, ParamSetter> fillCallback) {
         try {
-            ps.execute();
+            list.forEach(a -> ps.setParameters(a, fillCallback).addBatch());
+            ps.executeBatch();
+            return Optional.empty();
         } catch (Exception ex) {
+            clearBatchIgnoreExceptions(ps);
             clearPsDataIgnoreExceptions(ps);
-            if (exceptionHandler != null) {
-                exceptionHandler.accept(ex);
+            return Optional.of(ex);
+        }
+    }
+
+    private static synchronized void writeDeadLetter(String query, Object element, Exception ex) {
+        if (deadLetterFile == null) {
+            return;
+        }
+        try {
+            if (deadLetterOut == null) {
+                deadLetterOut = new PrintStream(new FileOutputStream(deadLetterFile, true), true);
             }
+            deadLetterOut.println(Instant.now() + "\t" + query + "\t" + element + "\t" + ex.getClass().getName() + ": " + ex.getMessage());
+        } catch (IOException e) {
+            log.error("Cannot write to dead-letter file " + deadLetterFile.getAbsolutePath(), e);
         }
     }
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Batch size and write concurrency tuner based on AIMD (additive increase,
+ * multiplicative decrease) algorithm. Values are adjusted after each executed
+ * batch from measured statement latency and throughput.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+@ToString
+public class BatchSizeTuner {
+
+    private static final double RATE_SMOOTHING_FACTOR = 0.3;
+    private static final double RATE_DROP_TOLERANCE = 0.9;
+    private static final int INCREASE_STEPS = 16;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+    private final int increaseStep;
+    @Getter
+    private int batchSize;
+    @Getter
+    private int concurrency;
+    @Getter
+    private double recordsPerSec;
+
+    /**
+     * Create new instance of BatchSizeTuner.
+     *
+     * @param minBatchSize lower bound for batch size
+     * @param maxBatchSize upper bound for batch size, also the initial value
+     * @param maxConcurrency upper bound for number of parallel executions,
+     * also the initial value
+     * @param targetLatencyNanos batch execution time that should not be
+     * exceeded
+     */
+    public BatchSizeTuner(int minBatchSize, int maxBatchSize, int maxConcurrency, long targetLatencyNanos) {
+        checkArgument(minBatchSize > 0, "Argument 'minBatchSize' (%s) must be a positive number", minBatchSize);
+        checkArgument(maxBatchSize >= minBatchSize, "Argument 'maxBatchSize' (%s) must not be less than 'minBatchSize' (%s)", maxBatchSize, minBatchSize);
+        checkArgument(maxConcurrency > 0, "Argument 'maxConcurrency' (%s) must be a positive number", maxConcurrency);
+        checkArgument(targetLatencyNanos > 0, "Argument 'targetLatencyNanos' (%s) must be a positive number", targetLatencyNanos);
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.increaseStep = Math.max(1, (maxBatchSize - minBatchSize) / INCREASE_STEPS);
+        this.batchSize = maxBatchSize;
+        this.concurrency = maxConcurrency;
+    }
+
+    /**
+     * Register batch execution and adjust batch size and concurrency.
+     *
+     * @param records number of records executed in the batch
+     * @param runtimeNanos batch execution time in nanoseconds
+     */
+    public synchronized void onBatchExecuted(int records, long runtimeNanos) {
+        if (records <= 0 || runtimeNanos <= 0) {
+            return;
+        }
+        double rate = records * 1_000_000_000d / runtimeNanos;
+        double prevRate = recordsPerSec;
+        recordsPerSec = prevRate == 0 ? rate : prevRate + RATE_SMOOTHING_FACTOR * (rate - prevRate);
+        if (runtimeNanos > targetLatencyNanos) {
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+            concurrency = Math.max(1, concurrency / 2);
+        } else if (records >= batchSize) {
+            if (rate >= prevRate * RATE_DROP_TOLERANCE) {
+                batchSize = Math.min(maxBatchSize, batchSize + increaseStep);
+            } else {
+                batchSize = Math.max(minBatchSize, batchSize - increaseStep);
+            }
+            if (runtimeNanos < targetLatencyNanos / 2) {
+                concurrency = Math.min(maxConcurrency, concurrency + 1);
+            }
+        }
+    }
+}
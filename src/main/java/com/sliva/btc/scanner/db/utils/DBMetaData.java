@@ -17,11 +17,15 @@ package com.sliva.btc.scanner.db.utils;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
+import com.sliva.btc.scanner.db.SqlDialect;
 import static com.sliva.btc.scanner.db.utils.DbResultSetUtils.executeQueryToList;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,6 +34,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.ToString;
 
@@ -40,6 +45,9 @@ import lombok.ToString;
 @ToString
 public class DBMetaData {
 
+    private static final String SQL_QUERY_PARTITIONS = "SELECT TABLE_NAME,PARTITION_NAME,PARTITION_DESCRIPTION FROM INFORMATION_SCHEMA.PARTITIONS"
+            + " WHERE TABLE_SCHEMA=? AND PARTITION_NAME IS NOT NULL AND PARTITION_METHOD='RANGE' ORDER BY TABLE_NAME,PARTITION_ORDINAL_POSITION";
+
     @Getter
     private final Map<String, Table> tables;
     private final Set<String> allFields;
@@ -78,6 +86,35 @@ public class DBMetaData {
         return allFields.contains(fullFieldName.toLowerCase());
     }
 
+    /**
+     * Get range partitions of the table.
+     *
+     * @param tableName table name
+     * @return partitions ordered by range or empty list if table is not
+     * partitioned by range
+     */
+    @NonNull
+    public List<Partition> getPartitions(String tableName) {
+        checkArgument(tableName != null, "Argument 'tableName' is null");
+        Table table = tables.get(tableName.toLowerCase());
+        return table == null ? Collections.emptyList() : table.partitions;
+    }
+
+    /**
+     * Get last value of the partition containing the value. Used to align
+     * range scans to partition boundaries, so each scan is served by a single
+     * partition.
+     *
+     * @param tableName table name
+     * @param value value of the partitioning field
+     * @return last value of the partition or Integer.MAX_VALUE if table is not
+     * partitioned or value is in the last partition
+     */
+    public int getPartitionLastValue(String tableName, int value) {
+        return getPartitions(tableName).stream().filter(p -> value >= p.fromValue && value < p.toValue).findAny()
+                .map(p -> (int) Math.min(Integer.MAX_VALUE, p.toValue - 1)).orElse(Integer.MAX_VALUE);
+    }
+
     public boolean isIndexed(String tableName, String fieldName) {
         checkArgument(tableName != null, "Argument 'tableName' is null");
         checkArgument(fieldName != null, "Argument 'fieldName' is null");
@@ -102,6 +139,7 @@ public class DBMetaData {
         String dbName = con.getDBName();
         DatabaseMetaData md = con.get().getMetaData();
         List<String> tableNames = executeQueryToList(md.getTables(dbName, null, null, new String[]{"TABLE"}), rs -> rs.getString("TABLE_NAME"));
+        Map<String, List<Partition>> partitions = loadPartitions(dbName, con);
         return tableNames.stream().map(tableName -> {
             List<IndexRec> indexRecords = loadIndexes(dbName, tableName, md);
             List<Index> indexes = indexRecords.stream()
@@ -113,7 +151,7 @@ public class DBMetaData {
                     ).collect(Collectors.toList());
             List<FieldRec> fieldRecords = loadFields(dbName, tableName, md);
             List<String> fields = fieldRecords.stream().sorted(Comparator.comparingInt(FieldRec::getFieldPosition)).map(FieldRec::getFieldName).map(String::toLowerCase).collect(Collectors.toList());
-            return new Table(tableName.toLowerCase(), fields, indexes);
+            return new Table(tableName.toLowerCase(), fields, indexes, partitions.getOrDefault(tableName.toLowerCase(), Collections.emptyList()));
         }).collect(Collectors.toMap(Table::getName, Function.identity()));
     }
 
@@ -123,6 +161,26 @@ public class DBMetaData {
                 rs -> new IndexRec(rs.getString("TABLE_NAME"), rs.getString("INDEX_NAME"), rs.getShort("ORDINAL_POSITION"), rs.getString("COLUMN_NAME"), "A".equalsIgnoreCase(rs.getString("ASC_OR_DESC"))));
     }
 
+    @SneakyThrows(SQLException.class)
+    private Map<String, List<Partition>> loadPartitions(String dbName, DBConnectionSupplier con) {
+        if (con.getDialect() != SqlDialect.MYSQL) {
+            return Collections.emptyMap();
+        }
+        List<PartitionRec> records;
+        try (PreparedStatement ps = con.get().prepareStatement(SQL_QUERY_PARTITIONS)) {
+            ps.setString(1, dbName);
+            records = executeQueryToList(ps.executeQuery(), rs -> new PartitionRec(rs.getString(1).toLowerCase(), rs.getString(2), rs.getString(3)));
+        }
+        Map<String, List<Partition>> result = new HashMap<>();
+        records.forEach(r -> {
+            List<Partition> list = result.computeIfAbsent(r.tableName, t -> new ArrayList<>());
+            long from = list.isEmpty() ? 0 : list.get(list.size() - 1).toValue;
+            long to = "MAXVALUE".equalsIgnoreCase(r.description) ? Long.MAX_VALUE : Long.parseLong(r.description);
+            list.add(new Partition(r.partitionName, from, to));
+        });
+        return result;
+    }
+
     @SneakyThrows(SQLException.class)
     private List<FieldRec> loadFields(String dbName, String tableName, DatabaseMetaData md) {
         return executeQueryToList(md.getColumns(dbName, null, tableName, null), rs -> new FieldRec(tableName, rs.getString("COLUMN_NAME"), rs.getInt("ORDINAL_POSITION")));
@@ -136,6 +194,26 @@ public class DBMetaData {
         private final String name;
         private final List<String> fieldNames;
         private final List<Index> indexes;
+        private final List<Partition> partitions;
+    }
+
+    /**
+     * Table range partition.
+     */
+    @Getter
+    @AllArgsConstructor
+    @ToString
+    public static class Partition {
+
+        private final String name;
+        /**
+         * Lowest value in partition (inclusive).
+         */
+        private final long fromValue;
+        /**
+         * Upper bound of partition values (exclusive).
+         */
+        private final long toValue;
     }
 
     @AllArgsConstructor
@@ -163,6 +241,14 @@ public class DBMetaData {
         private final int fieldPosition;
     }
 
+    @AllArgsConstructor
+    private static class PartitionRec {
+
+        private final String tableName;
+        private final String partitionName;
+        private final String description;
+    }
+
     @Getter
     @AllArgsConstructor
     private static class IndexRec {
@@ -18,8 +18,11 @@ package com.sliva.btc.scanner.db.utils;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
 import com.sliva.btc.scanner.db.DbUpdate;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -74,6 +77,42 @@ public final class DBUtils {
         return result;
     }
 
+    /**
+     * Build list of parameter placeholders for SQL IN clause.
+     *
+     * @param size number of placeholders
+     * @return "?,?,...,?"
+     */
+    @NonNull
+    public static String inListPlaceholders(int size) {
+        return String.join(",", Collections.nCopies(size, "?"));
+    }
+
+    /**
+     * Execute query with IN list of keys for each chunk of keys. The last
+     * chunk is padded by repeating its last key, so the same prepared
+     * statement is used for every chunk.
+     *
+     * @param ps PreparedStatement with exactly inListSize parameters
+     * @param inListSize number of keys in a chunk
+     * @param keys keys
+     * @param consumer result set consumer
+     */
+    public static void executeQueryInChunks(DBPreparedStatement ps, int inListSize, Collection<Integer> keys, DbResultSetUtils.QueryConsumer consumer) {
+        Iterator<Integer> it = keys.iterator();
+        while (it.hasNext()) {
+            ps.setParameters(p -> {
+                int key = 0;
+                for (int i = 0; i < inListSize; i++) {
+                    if (it.hasNext()) {
+                        key = it.next();
+                    }
+                    p.setInt(key);
+                }
+            }).executeQuery(consumer);
+        }
+    }
+
     public static void truncateTables(DBConnectionSupplier con, DbUpdate... updates) {
         Stream.of(updates).map(DbUpdate::getTableName).forEach(name -> truncateTable(con, name));
     }
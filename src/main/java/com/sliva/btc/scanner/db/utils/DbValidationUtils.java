@@ -16,12 +16,14 @@
 package com.sliva.btc.scanner.db.utils;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.facade.DbQueryAddress;
 import com.sliva.btc.scanner.db.facade.DbQueryBlock;
 import com.sliva.btc.scanner.db.facade.DbQueryInput;
 import com.sliva.btc.scanner.db.facade.DbQueryOutput;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.facade.DbUpdateBlock;
 import com.sliva.btc.scanner.db.facade.DbUpdateInput;
 import com.sliva.btc.scanner.db.facade.DbUpdateInputSpecial;
@@ -38,6 +40,7 @@ import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
@@ -72,26 +75,27 @@ public final class DbValidationUtils {
      * Check last few blocks, transactions, inputs and outputs are complete
      *
      * @param dbCon
+     * @param stores stores of the database kept in sync with fixes
      */
     @SneakyThrows({InterruptedException.class, ExecutionException.class})
-    public static void checkAndFixDataTails(DBConnectionSupplier dbCon) {
+    public static void checkAndFixDataTails(DBConnectionSupplier dbCon, DbStores stores) {
         if (validateLastTransactionsNumber == 0) {
             return;
         }
         StopWatch start = StopWatch.createStarted();
         ForkJoinPool execBlocks = new ForkJoinPool(4, new ThreadFactoryWithDBConnection(dbCon, "execBlocks", false), null, false);
         ForkJoinPool execTrans = new ForkJoinPool(10, new ThreadFactoryWithDBConnection(dbCon, "execTrans", false), null, false);
-        DbQueryBlock queryBlock = new DbQueryBlock(dbCon);
-        DbQueryTransaction queryTransaction = new DbQueryTransaction(dbCon);
-        DbQueryInput queryInput = new DbQueryInput(dbCon);
-        DbQueryOutput queryOutput = new DbQueryOutput(dbCon);
+        DbQueryBlock queryBlock = new DbQueryBlock(dbCon, stores);
+        DbQueryTransaction queryTransaction = new DbQueryTransaction(dbCon, stores);
+        DbQueryInput queryInput = new DbQueryInput(dbCon, stores);
+        DbQueryOutput queryOutput = new DbQueryOutput(dbCon, stores);
         DbQueryAddress queryAddress = new DbQueryAddress(dbCon);
-        try (DbUpdateBlock updateBlock = new DbUpdateBlock(dbCon);
-                DbUpdateTransaction updateTxn = new DbUpdateTransaction(dbCon);
-                DbUpdateInput updateInput = new DbUpdateInput(dbCon);
+        try (DbUpdateBlock updateBlock = new DbUpdateBlock(dbCon, stores);
+                DbUpdateTransaction updateTxn = new DbUpdateTransaction(dbCon, stores);
+                DbUpdateInput updateInput = new DbUpdateInput(dbCon, stores);
                 DbUpdateInputSpecial updateInputSpecial = new DbUpdateInputSpecial(dbCon);
-                DbUpdateOutput updateOutput = new DbUpdateOutput(dbCon)) {
-            DbAccess db = new DbAccess(updateBlock, updateTxn, updateInput, updateInputSpecial, updateOutput);
+                DbUpdateOutput updateOutput = new DbUpdateOutput(dbCon, stores)) {
+            DbAccess db = new DbAccess(queryTransaction, updateBlock, updateTxn, updateInput, updateInputSpecial, updateOutput);
             Optional<Integer> oLastBlockHeight = queryBlock.findLastHeight();
             Optional<BtcTransaction> olastTxInTable = queryTransaction.getLastTransaction();
             if (!oLastBlockHeight.isPresent() || !olastTxInTable.isPresent()) {
@@ -139,14 +143,16 @@ public final class DbValidationUtils {
                     }
                 })).get();
                 //remove all starting from the bad block
-                AtomicInteger deletedBlocks = new AtomicInteger();
-                for (int height = earliestBadBlockHeight.get(); height <= lastBlockHeight; height++) {
-                    if (updateBlock.delete(height)) {
-                        deletedBlocks.incrementAndGet();
-                    }
+                int firstDeletedHeight = earliestBadBlockHeight.get();
+                for (int height = firstDeletedHeight; height <= lastBlockHeight; height++) {
+                    updateBlock.delete(height);
                 }
-                if (deletedBlocks.get() != 0) {
-                    log.info("Deleted {} records from table {}", deletedBlocks.get(), updateBlock.getTableName());
+                updateBlock.flushCache();
+                queryBlock.findLastHeight().filter(h -> h >= firstDeletedHeight).ifPresent(h -> {
+                    throw new IllegalStateException("Failed to delete blocks starting from height " + firstDeletedHeight + ". Last block height: " + h);
+                });
+                if (firstDeletedHeight <= lastBlockHeight) {
+                    log.info("Deleted blocks {}..{} from table {}", firstDeletedHeight, lastBlockHeight, updateBlock.getTableName());
                 }
                 oLastBlockHeight = queryBlock.findLastHeight();
                 if (!oLastBlockHeight.isPresent()) {
@@ -175,16 +181,15 @@ public final class DbValidationUtils {
      * @return total number of records deleted
      */
     private static int deleteOrphanTransactions(int lastBlockHeight, List<BtcTransaction> latestTransactions, DbAccess db) {
-        AtomicInteger deletedTx = new AtomicInteger();
-        latestTransactions.stream().filter(tx -> tx.getBlockHeight() > lastBlockHeight).forEach(tx -> {
-            if (db.updateTransaction.delete(tx)) {
-                deletedTx.incrementAndGet();
-            }
-        });
-        if (deletedTx.get() != 0) {
-            log.info("Deleted {} records from table {}", deletedTx.get(), db.updateTransaction.getTableName());
+        List<BtcTransaction> orphans = latestTransactions.stream().filter(tx -> tx.getBlockHeight() > lastBlockHeight).collect(Collectors.toList());
+        orphans.forEach(db.updateTransaction::delete);
+        db.updateTransaction.flushCache();
+        long notDeleted = orphans.stream().filter(tx -> db.queryTransaction.findTransaction(tx.getTransactionId()).isPresent()).count();
+        checkState(notDeleted == 0, "Failed to delete %s of %s orphan records from table %s", notDeleted, orphans.size(), db.updateTransaction.getTableName());
+        if (!orphans.isEmpty()) {
+            log.info("Deleted {} records from table {}", orphans.size(), db.updateTransaction.getTableName());
         }
-        return deletedTx.get();
+        return orphans.size();
     }
 
     /**
@@ -219,6 +224,7 @@ public final class DbValidationUtils {
     @AllArgsConstructor
     private static class DbAccess {
 
+        private final DbQueryTransaction queryTransaction;
         private final DbUpdateBlock updateBlock;
         private final DbUpdateTransaction updateTransaction;
         private final DbUpdateInput updateInput;
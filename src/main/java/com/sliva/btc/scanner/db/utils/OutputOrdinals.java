@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense ordinals of outputs built from prefix sums of transactions' nOutputs.
+ * Output (transaction_id, pos) gets ordinal equal to the number of outputs of
+ * all preceding transactions plus pos, so sets of outputs can be stored as
+ * bitmaps. Counts are stored as one byte per transaction with larger counts
+ * kept in a map, and the prefix sum is stored for every 64th transaction.
+ *
+ * #Not thread-safe
+ *
+ * @author Sliva Co
+ */
+public class OutputOrdinals {
+
+    private static final int GROUP_BITS = 6;
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int LARGE_COUNT = 0xFF;
+
+    private final int fromTransactionId;
+    private final List<byte[]> counts = new ArrayList<>();
+    private final Map<Integer, Integer> largeCounts = new HashMap<>();
+    private long[] groupOrdinals = new long[1024];
+    private int size;
+    private long outputs;
+
+    /**
+     * Create empty ordinals starting from the transaction.
+     *
+     * @param fromTransactionId first transaction id
+     */
+    public OutputOrdinals(int fromTransactionId) {
+        checkArgument(fromTransactionId >= 0, "Argument 'fromTransactionId' is negative: %s", fromTransactionId);
+        this.fromTransactionId = fromTransactionId;
+    }
+
+    /**
+     * Add transaction. Transactions must be added in ascending order of
+     * transaction id, missing transactions are counted as having no outputs.
+     *
+     * @param transactionId transaction id
+     * @param nOutputs number of outputs
+     */
+    public void add(int transactionId, int nOutputs) {
+        checkArgument(transactionId >= fromTransactionId + size, "Transaction %s is added out of order. Next transaction: %s", transactionId, fromTransactionId + size);
+        checkArgument(nOutputs >= 0, "Argument 'nOutputs' is negative: %s", nOutputs);
+        while (fromTransactionId + size < transactionId) {
+            append(0);
+        }
+        append(nOutputs);
+    }
+
+    /**
+     * Get ordinal of the output.
+     *
+     * @param transactionId transaction id
+     * @param pos output position
+     * @return ordinal or -1 if transaction is out of range or has no such
+     * output
+     */
+    public long getOrdinal(int transactionId, short pos) {
+        long index = (long) transactionId - fromTransactionId;
+        int p = pos & 0xFFFF;
+        if (index < 0 || index >= size || p >= getCount((int) index)) {
+            return -1;
+        }
+        int i = (int) index;
+        long result = groupOrdinals[i >>> GROUP_BITS];
+        for (int j = i & ~((1 << GROUP_BITS) - 1); j < i; j++) {
+            result += getCount(j);
+        }
+        return result + p;
+    }
+
+    /**
+     * Get number of transactions, including the missing ones.
+     *
+     * @return number of transactions
+     */
+    public int getTransactionCount() {
+        return size;
+    }
+
+    /**
+     * Get total number of outputs, i.e. the next ordinal.
+     *
+     * @return number of outputs
+     */
+    public long getOutputCount() {
+        return outputs;
+    }
+
+    private void append(int nOutputs) {
+        checkState(size < Integer.MAX_VALUE, "Too many transactions");
+        if ((size & (CHUNK_SIZE - 1)) == 0) {
+            counts.add(new byte[CHUNK_SIZE]);
+        }
+        if ((size & ((1 << GROUP_BITS) - 1)) == 0) {
+            int group = size >>> GROUP_BITS;
+            if (group == groupOrdinals.length) {
+                groupOrdinals = Arrays.copyOf(groupOrdinals, group * 2);
+            }
+            groupOrdinals[group] = outputs;
+        }
+        if (nOutputs >= LARGE_COUNT) {
+            largeCounts.put(size, nOutputs);
+        }
+        counts.get(size >>> CHUNK_BITS)[size & (CHUNK_SIZE - 1)] = (byte) Math.min(nOutputs, LARGE_COUNT);
+        size++;
+        outputs += nOutputs;
+    }
+
+    private int getCount(int index) {
+        int count = counts.get(index >>> CHUNK_BITS)[index & (CHUNK_SIZE - 1)] & 0xFF;
+        return count == LARGE_COUNT ? largeCounts.get(index) : count;
+    }
+}
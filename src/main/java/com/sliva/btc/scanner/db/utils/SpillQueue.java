@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import com.google.common.primitives.Ints;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Overflow queue backed by append-only local file. Records are served by
+ * {@link #poll(int)} in the order they been added. Only the record key and its
+ * file offset are kept in memory, so queued records can still be looked up,
+ * replaced or removed by key. Replaced record is re-appended to the end of the
+ * file and its previous copy is skipped when read. File is truncated once all
+ * records been served.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ * @param <K> Record key type
+ * @param <T> Record type
+ */
+@Slf4j
+public class SpillQueue<K, T> implements AutoCloseable {
+
+    private final File file;
+    private final Function<T, K> keyFunction;
+    private final Serializer<T> serializer;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private final Map<K, Long> index = new HashMap<>();
+    private final ByteArrayOutputStream writeBuffer = new ByteArrayOutputStream(256);
+    private RandomAccessFile raf;
+    private long writePosition;
+    private long readPosition;
+
+    /**
+     * Create new instance of SpillQueue. File is created on first record
+     * added.
+     *
+     * @param file spill file, overwritten if exists
+     * @param keyFunction function to get record key
+     * @param serializer record serializer
+     */
+    public SpillQueue(File file, Function<T, K> keyFunction, Serializer<T> serializer) {
+        checkArgument(file != null, "Argument 'file' is null");
+        checkArgument(keyFunction != null, "Argument 'keyFunction' is null");
+        checkArgument(serializer != null, "Argument 'serializer' is null");
+        this.file = file;
+        this.keyFunction = keyFunction;
+        this.serializer = serializer;
+    }
+
+    /**
+     * Add record to the end of queue. Record with the same key added before is
+     * replaced.
+     *
+     * @param value record
+     */
+    @SneakyThrows(IOException.class)
+    public synchronized void put(T value) {
+        checkArgument(value != null, "Argument 'value' is null");
+        writeBuffer.reset();
+        DataOutputStream out = new DataOutputStream(writeBuffer);
+        out.writeInt(0);
+        serializer.write(value, out);
+        byte[] data = writeBuffer.toByteArray();
+        System.arraycopy(Ints.toByteArray(data.length - Integer.BYTES), 0, data, 0, Integer.BYTES);
+        RandomAccessFile f = getFile();
+        f.seek(writePosition);
+        f.write(data);
+        index.put(keyFunction.apply(value), writePosition);
+        writePosition += data.length;
+    }
+
+    @SneakyThrows(IOException.class)
+    public synchronized Optional<T> get(K key) {
+        Long offset = index.get(key);
+        if (offset == null) {
+            return Optional.empty();
+        }
+        RandomAccessFile f = getFile();
+        f.seek(offset);
+        byte[] data = new byte[f.readInt()];
+        f.readFully(data);
+        return Optional.of(serializer.read(new DataInputStream(new ByteArrayInputStream(data))));
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return index.containsKey(key);
+    }
+
+    public synchronized boolean remove(K key) {
+        boolean removed = index.remove(key) != null;
+        truncateIfEmpty();
+        return removed;
+    }
+
+    public synchronized void removeIf(Predicate<K> filter) {
+        index.keySet().removeIf(filter);
+        truncateIfEmpty();
+    }
+
+    /**
+     * Retrieve and remove records from the head of the queue.
+     *
+     * @param maxRecords maximum number of records to retrieve
+     * @return records in order they been added
+     */
+    @SneakyThrows(IOException.class)
+    public synchronized List<T> poll(int maxRecords) {
+        List<T> result = new ArrayList<>(Math.min(maxRecords, index.size()));
+        if (index.isEmpty()) {
+            return result;
+        }
+        RandomAccessFile f = getFile();
+        f.seek(readPosition);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(f.getChannel()), READ_BUFFER_SIZE));
+        while (result.size() < maxRecords && !index.isEmpty()) {
+            checkState(readPosition < writePosition, "Spill file %s is out of sync: %s records indexed beyond end of file", file, index.size());
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            T value = serializer.read(new DataInputStream(new ByteArrayInputStream(data)));
+            K key = keyFunction.apply(value);
+            Long offset = index.get(key);
+            if (offset != null && offset == readPosition) {
+                //removed and replaced records are skipped
+                index.remove(key);
+                result.add(value);
+            }
+            readPosition += Integer.BYTES + data.length;
+        }
+        truncateIfEmpty();
+        return result;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public synchronized void close() {
+        index.clear();
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+        if (file.exists() && !file.delete()) {
+            log.warn("Cannot delete spill file {}", file.getAbsolutePath());
+        }
+        writePosition = 0;
+        readPosition = 0;
+    }
+
+    @SneakyThrows(IOException.class)
+    private void truncateIfEmpty() {
+        if (index.isEmpty() && raf != null && writePosition > 0) {
+            raf.setLength(0);
+            writePosition = 0;
+            readPosition = 0;
+        }
+    }
+
+    private RandomAccessFile getFile() throws IOException {
+        if (raf == null) {
+            log.debug("Creating spill file {}", file.getAbsolutePath());
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+        }
+        return raf;
+    }
+
+    /**
+     * Binary record serializer.
+     *
+     * @param <T> Record type
+     */
+    public interface Serializer<T> {
+
+        void write(T value, DataOutput out) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+}
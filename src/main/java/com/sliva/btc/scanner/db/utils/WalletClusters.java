@@ -0,0 +1,263 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.function.IntSupplier;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Wallet clusters of addresses maintained incrementally with the
+ * common-input heuristic. Clusters are disjoint sets labeled by wallet id.
+ * Members of each wallet are linked in a ring, so when two wallets are merged
+ * the smaller one is relabeled with the wallet id of the larger one. Every
+ * relabeled address has to be written to DB anyway, and with union by size an
+ * address is relabeled at most log(n) times, while find is a single lookup of
+ * the address' wallet id.
+ * <p>
+ * Arrays are indexed by address id and wallet id directly and allocated in
+ * chunks as ids grow. State can be saved to a checkpoint file along with the
+ * last processed block height.
+ *
+ * #Not thread-safe
+ *
+ * @author Sliva Co
+ */
+public class WalletClusters {
+
+    private static final int MAGIC = 0x57434c53;
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int STREAM_BUFFER_SIZE = 256 * 1024;
+
+    private final IntChunks addressWallet = new IntChunks();
+    private final IntChunks addressNext = new IntChunks();
+    private final IntChunks walletSize = new IntChunks();
+    private final IntChunks walletHead = new IntChunks();
+    @Getter
+    @Setter
+    private int blockHeight = -1;
+    @Getter
+    private long mergeCount;
+
+    /**
+     * Get wallet id of the address.
+     *
+     * @param addressId address id
+     * @return wallet id or 0 if address is not in any wallet
+     */
+    public int getWalletId(int addressId) {
+        return addressWallet.get(addressId);
+    }
+
+    /**
+     * Get number of addresses in the wallet.
+     *
+     * @param walletId wallet id
+     * @return number of addresses
+     */
+    public int getSize(int walletId) {
+        return walletSize.get(walletId);
+    }
+
+    /**
+     * Add address to the wallet.
+     *
+     * @param addressId address id, must not be in any wallet
+     * @param walletId wallet id
+     */
+    public void add(int addressId, int walletId) {
+        checkArgument(addressId > 0, "Argument 'addressId' must be a positive number: %s", addressId);
+        checkArgument(walletId > 0, "Argument 'walletId' must be a positive number: %s", walletId);
+        checkArgument(getWalletId(addressId) == 0, "Address %s is already in wallet %s", addressId, getWalletId(addressId));
+        addressWallet.set(addressId, walletId);
+        int head = walletHead.get(walletId);
+        if (head == 0) {
+            walletHead.set(walletId, addressId);
+            addressNext.set(addressId, addressId);
+        } else {
+            addressNext.set(addressId, addressNext.get(head));
+            addressNext.set(head, addressId);
+        }
+        walletSize.set(walletId, walletSize.get(walletId) + 1);
+    }
+
+    /**
+     * Put addresses in one wallet. Wallet of the largest cluster among the
+     * addresses is kept, addresses of other clusters and addresses not in any
+     * wallet are assigned to it. If none of the addresses is in a wallet a new
+     * wallet id is taken from the supplier.
+     *
+     * @param addressIds addresses spent together
+     * @param newWalletId supplier of new wallet id
+     * @param listener receives every address with changed wallet id
+     * @return wallet id of the addresses
+     */
+    public int union(int[] addressIds, IntSupplier newWalletId, Listener listener) {
+        checkArgument(addressIds != null, "Argument 'addressIds' is null");
+        checkArgument(addressIds.length > 0, "Argument 'addressIds' is empty");
+        int walletId = 0;
+        for (int addressId : addressIds) {
+            int w = getWalletId(addressId);
+            if (w != 0 && (walletId == 0 || getSize(w) > getSize(walletId))) {
+                walletId = w;
+            }
+        }
+        if (walletId == 0) {
+            walletId = newWalletId.getAsInt();
+        }
+        for (int addressId : addressIds) {
+            int w = getWalletId(addressId);
+            if (w == 0) {
+                add(addressId, walletId);
+                listener.walletAssigned(addressId, walletId);
+            } else if (w != walletId) {
+                merge(walletId, w, listener);
+            }
+        }
+        return walletId;
+    }
+
+    /**
+     * Save state to the file. Data is written to a temporary file renamed to
+     * the file when complete.
+     *
+     * @param file checkpoint file
+     * @throws IOException on write error
+     */
+    public void save(File file) throws IOException {
+        checkArgument(file != null, "Argument 'file' is null");
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, STREAM_BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(blockHeight);
+            out.writeLong(mergeCount);
+            for (IntChunks chunks : new IntChunks[]{addressWallet, addressNext, walletSize, walletHead}) {
+                chunks.write(out);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (file.exists() && !file.delete() || !tmpFile.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Load state saved by {@link #save(File)}.
+     *
+     * @param file checkpoint file
+     * @return loaded clusters
+     * @throws IOException on read error or if file is not a checkpoint file
+     */
+    public static WalletClusters load(File file) throws IOException {
+        checkArgument(file != null, "Argument 'file' is null");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a wallet clusters file: " + file);
+            }
+            WalletClusters result = new WalletClusters();
+            result.blockHeight = in.readInt();
+            result.mergeCount = in.readLong();
+            for (IntChunks chunks : new IntChunks[]{result.addressWallet, result.addressNext, result.walletSize, result.walletHead}) {
+                chunks.read(in);
+            }
+            return result;
+        }
+    }
+
+    private void merge(int walletId, int absorbedWalletId, Listener listener) {
+        int head = walletHead.get(walletId);
+        int absorbedHead = walletHead.get(absorbedWalletId);
+        int addressId = absorbedHead;
+        do {
+            addressWallet.set(addressId, walletId);
+            listener.walletAssigned(addressId, walletId);
+            addressId = addressNext.get(addressId);
+        } while (addressId != absorbedHead);
+        int next = addressNext.get(head);
+        addressNext.set(head, addressNext.get(absorbedHead));
+        addressNext.set(absorbedHead, next);
+        walletSize.set(walletId, walletSize.get(walletId) + walletSize.get(absorbedWalletId));
+        walletSize.set(absorbedWalletId, 0);
+        walletHead.set(absorbedWalletId, 0);
+        mergeCount++;
+    }
+
+    /**
+     * Receiver of wallet id changes.
+     */
+    public interface Listener {
+
+        void walletAssigned(int addressId, int walletId);
+    }
+
+    /**
+     * Int array indexed by non-negative int with chunks allocated on first
+     * write.
+     */
+    private static final class IntChunks {
+
+        private final int[][] chunks = new int[(Integer.MAX_VALUE >>> CHUNK_BITS) + 1][];
+
+        private int get(int index) {
+            int[] chunk = chunks[index >>> CHUNK_BITS];
+            return chunk == null ? 0 : chunk[index & (CHUNK_SIZE - 1)];
+        }
+
+        private void set(int index, int value) {
+            int[] chunk = chunks[index >>> CHUNK_BITS];
+            if (chunk == null) {
+                chunk = chunks[index >>> CHUNK_BITS] = new int[CHUNK_SIZE];
+            }
+            chunk[index & (CHUNK_SIZE - 1)] = value;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            for (int i = 0; i < chunks.length; i++) {
+                if (chunks[i] != null) {
+                    out.writeInt(i);
+                    for (int v : chunks[i]) {
+                        out.writeInt(v);
+                    }
+                }
+            }
+            out.writeInt(-1);
+        }
+
+        private void read(DataInputStream in) throws IOException {
+            for (int i = in.readInt(); i != -1; i = in.readInt()) {
+                if (i < 0 || i >= chunks.length) {
+                    throw new IOException("Bad chunk index: " + i);
+                }
+                int[] chunk = chunks[i] = new int[CHUNK_SIZE];
+                for (int j = 0; j < CHUNK_SIZE; j++) {
+                    chunk[j] = in.readInt();
+                }
+            }
+        }
+    }
+}
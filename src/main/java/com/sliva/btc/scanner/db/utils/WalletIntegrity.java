@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.sliva.btc.scanner.util.IntBitmap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Difference between wallet ids existing in "wallet" table and wallet ids
+ * referenced by address tables. Both sides are collected into compressed
+ * bitmaps, so each table is read once with a plain range scan instead of
+ * NOT IN subqueries.
+ *
+ * @author Sliva Co
+ */
+@Getter
+public class WalletIntegrity {
+
+    /**
+     * Wallet ids referenced by addresses but missing in wallet table.
+     */
+    private final List<Integer> missing = new ArrayList<>();
+    /**
+     * Wallet ids in wallet table not referenced by any address.
+     */
+    private final List<Integer> unused = new ArrayList<>();
+
+    /**
+     * Compute missing and unused wallet ids.
+     *
+     * @param existing wallet ids in wallet table
+     * @param referenced wallet ids referenced by each address table
+     */
+    public WalletIntegrity(IntBitmap existing, Collection<IntBitmap> referenced) {
+        checkArgument(existing != null, "Argument 'existing' is null");
+        checkArgument(referenced != null, "Argument 'referenced' is null");
+        IntBitmap missingBitmap = new IntBitmap();
+        referenced.forEach(r -> r.forEach(walletId -> {
+            if (!existing.contains(walletId)) {
+                missingBitmap.add(walletId);
+            }
+        }));
+        missingBitmap.forEach(missing::add);
+        existing.forEach(walletId -> {
+            if (referenced.stream().noneMatch(r -> r.contains(walletId))) {
+                unused.add(walletId);
+            }
+        });
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory resolver of wallet merges. Each entry maps a merged wallet id to
+ * the wallet id it was merged into, so chains of merges are resolved to the
+ * canonical wallet id. Resolved chains are compressed to point directly to
+ * the canonical wallet id.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+public class WalletRemap {
+
+    private final Map<Integer, Integer> remap = new HashMap<>();
+
+    /**
+     * Record merge of a wallet into another wallet. Recording the same merge
+     * again has no effect.
+     *
+     * @param oldWalletId merged wallet id
+     * @param newWalletId wallet id the wallet is merged into
+     * @return canonical wallet id of the merged wallet
+     */
+    public synchronized int put(int oldWalletId, int newWalletId) {
+        checkArgument(oldWalletId > 0, "Argument 'oldWalletId' must be a positive number: %s", oldWalletId);
+        checkArgument(newWalletId > 0, "Argument 'newWalletId' must be a positive number: %s", newWalletId);
+        int canonical = resolve(newWalletId);
+        checkArgument(canonical != oldWalletId, "Wallet %s cannot be merged into itself", oldWalletId);
+        Integer existing = remap.get(oldWalletId);
+        checkArgument(existing == null || resolve(existing) == canonical, "Wallet %s has been merged already into %s", oldWalletId, existing);
+        remap.put(oldWalletId, canonical);
+        return canonical;
+    }
+
+    /**
+     * Resolve wallet id to the canonical wallet id.
+     *
+     * @param walletId wallet id
+     * @return canonical wallet id, or the wallet id if it was not merged
+     */
+    public synchronized int resolve(int walletId) {
+        Integer next = remap.get(walletId);
+        if (next == null) {
+            return walletId;
+        }
+        int canonical = next;
+        for (Integer n = remap.get(canonical); n != null; n = remap.get(canonical)) {
+            canonical = n;
+        }
+        for (int w = walletId; w != canonical;) {
+            int n = remap.put(w, canonical);
+            w = n;
+        }
+        return canonical;
+    }
+
+    /**
+     * Get wallet ids merged into the wallet directly or through other merged
+     * wallets.
+     *
+     * @param walletId canonical wallet id
+     * @return merged wallet ids
+     */
+    public synchronized Collection<Integer> getMergedWallets(int walletId) {
+        List<Integer> result = new ArrayList<>();
+        for (Integer oldWalletId : new ArrayList<>(remap.keySet())) {
+            if (resolve(oldWalletId) == walletId) {
+                result.add(oldWalletId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get all merged wallet ids with their canonical wallet ids.
+     *
+     * @return map of merged wallet id to canonical wallet id
+     */
+    public synchronized Map<Integer, Integer> getResolved() {
+        Map<Integer, Integer> result = new HashMap<>();
+        for (Integer oldWalletId : new ArrayList<>(remap.keySet())) {
+            result.put(oldWalletId, resolve(oldWalletId));
+        }
+        return result;
+    }
+
+    /**
+     * Remove entries, i.e. after they have been applied to address tables.
+     * Entries pointing to removed ones are resolved first.
+     *
+     * @param oldWalletIds merged wallet ids to remove
+     */
+    public synchronized void removeAll(Collection<Integer> oldWalletIds) {
+        checkArgument(oldWalletIds != null, "Argument 'oldWalletIds' is null");
+        getResolved().forEach(remap::put);
+        oldWalletIds.forEach(remap::remove);
+    }
+
+    /**
+     * Replace all entries.
+     *
+     * @param entries map of merged wallet id to wallet id it was merged into
+     */
+    public synchronized void reset(Map<Integer, Integer> entries) {
+        checkArgument(entries != null, "Argument 'entries' is null");
+        remap.clear();
+        remap.putAll(entries);
+    }
+
+    public synchronized int size() {
+        return remap.size();
+    }
+}
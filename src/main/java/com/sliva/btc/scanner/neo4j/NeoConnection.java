@@ -15,6 +15,10 @@
  */
 package com.sliva.btc.scanner.neo4j;
 
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdArguments;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOption;
+import com.sliva.btc.scanner.util.CommandLineUtils.CmdOptions;
+import static com.sliva.btc.scanner.util.CommandLineUtils.buildOption;
 import com.sliva.btc.scanner.util.Utils;
 import java.util.Properties;
 import org.apache.commons.cli.CommandLine;
@@ -34,6 +38,11 @@ public class NeoConnection implements AutoCloseable {
     private static String DEFAULT_URL = "bolt://localhost:7687";
     private static String DEFAULT_USER = "neo4j";
     private static String DEFAULT_PASSWORD = "password";
+    public static final CmdOptions CMD_OPTS = new CmdOptions();
+    public static final CmdOption neoUrlOpt = buildOption(CMD_OPTS, null, "neo-url", true, "Neo4j URL. Default: " + DEFAULT_URL);
+    public static final CmdOption neoUserOpt = buildOption(CMD_OPTS, null, "neo-user", true, "Neo4j user name.");
+    public static final CmdOption neoPasswordOpt = buildOption(CMD_OPTS, null, "neo-password", true, "Neo4j password.");
+    public static final CmdOption neoConfigOpt = buildOption(CMD_OPTS, null, "neo-config", true, "Configuration file name with Neo4j url, user and password values.");
     private final Driver driver;
 
     public NeoConnection() {
@@ -61,6 +70,13 @@ public class NeoConnection implements AutoCloseable {
         return GraphDatabase.driver(url, AuthTokens.basic(user, password), configBuilder.toConfig());
     }
 
+    public static void applyArguments(CmdArguments cmdArguments) {
+        Properties prop = Utils.loadProperties(cmdArguments.getOption(neoConfigOpt).orElse(null));
+        DEFAULT_URL = cmdArguments.getOption(neoUrlOpt).orElseGet(() -> prop.getProperty(neoUrlOpt.getLongOpt(), DEFAULT_URL));
+        DEFAULT_USER = cmdArguments.getOption(neoUserOpt).orElseGet(() -> prop.getProperty(neoUserOpt.getLongOpt(), DEFAULT_USER));
+        DEFAULT_PASSWORD = cmdArguments.getOption(neoPasswordOpt).orElseGet(() -> prop.getProperty(neoPasswordOpt.getLongOpt(), DEFAULT_PASSWORD));
+    }
+
     public static void applyArguments(CommandLine cmd) {
         Properties prop = Utils.loadProperties(cmd.getOptionValue("neo-config"));
         DEFAULT_URL = cmd.getOptionValue("neo-url", prop.getProperty("neo-url", DEFAULT_URL));
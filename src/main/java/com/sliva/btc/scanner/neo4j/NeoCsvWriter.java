@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.neo4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxInput;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Writer of gzip compressed CSV files for offline graph build with
+ * "neo4j-admin import". Graph model is the same as created by
+ * {@link NeoQueries#uploadBatch}. Headers are written to separate files by
+ * {@link #writeHeaders(File)}, so data files of all transaction ranges share
+ * them and can be written in parallel.
+ *
+ * #Not thread-safe
+ *
+ * @author Sliva Co
+ */
+public class NeoCsvWriter implements Closeable {
+
+    public static final String ARGS_FILE_NAME = "import.args";
+    private static final String UNDEFINED_ADDRESS = "Undefined";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final Map<CsvFile, Writer> writers = new EnumMap<>(CsvFile.class);
+    @Getter
+    private long transactions;
+    @Getter
+    private long maxTransactionId;
+    @Getter
+    private long sumInputs;
+    @Getter
+    private long sumOutputs;
+
+    /**
+     * Create writer of data files.
+     *
+     * @param dir export directory
+     * @param suffix file name suffix unique for the writer, i.e. first
+     * transaction id of the range
+     * @param files files to write
+     * @throws IOException on write error
+     */
+    public NeoCsvWriter(File dir, String suffix, CsvFile... files) throws IOException {
+        checkArgument(dir != null, "Argument 'dir' is null");
+        checkArgument(suffix != null, "Argument 'suffix' is null");
+        try {
+            for (CsvFile f : files) {
+                writers.put(f, new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+                        new FileOutputStream(new File(dir, f.getFileName() + "-" + suffix + ".csv.gz")), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public void addTransaction(BtcTransaction t) throws IOException {
+        write(CsvFile.TRANSACTION, t.getTransactionId(), t.getTxid(), t.getBlockHeight(), t.getNInputs(), t.getNOutputs());
+        transactions++;
+        maxTransactionId = Math.max(maxTransactionId, t.getTransactionId());
+        sumInputs += t.getNInputs();
+        sumOutputs += t.getNOutputs();
+    }
+
+    /**
+     * Add output node with relation from its transaction and to its wallet.
+     *
+     * @param transactionId transaction id
+     * @param pos output position
+     * @param address address name or null if undefined
+     * @param amount amount in satoshi
+     * @param walletId wallet id or 0 if not assigned
+     * @throws IOException on write error
+     */
+    public void addOutput(int transactionId, short pos, String address, long amount, int walletId) throws IOException {
+        long outputId = NeoQueries.toOutputId(transactionId, pos);
+        write(CsvFile.OUTPUT, outputId, quote(address == null ? UNDEFINED_ADDRESS : address), BigDecimal.valueOf(amount, 8).toPlainString());
+        write(CsvFile.OUTPUT_REL, transactionId, pos, outputId);
+        if (walletId > 0) {
+            write(CsvFile.WALLET_REL, outputId, walletId);
+        }
+    }
+
+    public void addInput(TxInput input) throws IOException {
+        write(CsvFile.INPUT_REL, NeoQueries.toOutputId(input.getInTransactionId(), input.getInPos()), input.getPos(), input.getTransactionId());
+    }
+
+    public void addWallet(int walletId, String name) throws IOException {
+        write(CsvFile.WALLET, walletId, name == null ? "" : quote(name));
+    }
+
+    /**
+     * Write header files and "neo4j-admin import" arguments file that picks
+     * up data files of all ranges. Import is run as
+     * <code>neo4j-admin import --f import.args</code> from the export
+     * directory.
+     *
+     * @param dir export directory
+     * @throws IOException on write error
+     */
+    public static void writeHeaders(File dir) throws IOException {
+        try (PrintWriter args = new PrintWriter(new File(dir, ARGS_FILE_NAME), StandardCharsets.UTF_8.name())) {
+            args.println("--id-type=INTEGER");
+            for (CsvFile f : CsvFile.values()) {
+                File headerFile = new File(dir, f.getFileName() + "-header.csv");
+                try (PrintWriter out = new PrintWriter(headerFile, StandardCharsets.UTF_8.name())) {
+                    out.println(f.getHeader());
+                }
+                args.println((f.isNode() ? "--nodes:" : "--relationships:") + f.getLabel()
+                        + " \"" + headerFile.getName() + "," + f.getFileName() + "-[0-9]+\\.csv\\.gz\"");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException ex = null;
+        for (Writer w : writers.values()) {
+            try {
+                w.close();
+            } catch (IOException e) {
+                ex = e;
+            }
+        }
+        writers.clear();
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    private void write(CsvFile file, Object... values) throws IOException {
+        Writer w = writers.get(file);
+        checkArgument(w != null, "File %s is not open", file);
+        for (int i = 0; i < values.length; i++) {
+            if (i != 0) {
+                w.write(',');
+            }
+            w.write(values[i].toString());
+        }
+        w.write('\n');
+    }
+
+    static String quote(String value) {
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Node and relationship files of the graph.
+     */
+    @Getter
+    @AllArgsConstructor
+    public enum CsvFile {
+        TRANSACTION("transaction", true, "Transaction", "id:ID(Transaction),hash,block:int,nInputs:short,nOutputs:short"),
+        OUTPUT("output", true, "Output", "id:ID(Output),address,amount:double"),
+        WALLET("wallet", true, "Wallet", "id:ID(Wallet),name"),
+        OUTPUT_REL("output-rel", false, "output", ":START_ID(Transaction),pos:short,:END_ID(Output)"),
+        INPUT_REL("input-rel", false, "input", ":START_ID(Output),pos:short,:END_ID(Transaction)"),
+        WALLET_REL("wallet-rel", false, "wallet", ":START_ID(Output),:END_ID(Wallet)");
+
+        private final String fileName;
+        private final boolean node;
+        private final String label;
+        private final String header;
+    }
+}
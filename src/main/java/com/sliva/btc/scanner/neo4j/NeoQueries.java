@@ -23,10 +23,13 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.concurrent.CompletionStage;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.ToString;
@@ -73,6 +76,34 @@ public class NeoQueries implements AutoCloseable {
             + " UNWIND inputs AS inp"
             + " MATCH (o:Output {id:inp.id})"
             + " MERGE (o)-[oi:input {pos:inp.pos}]->(t)";
+    private static final String QUERY_COMPACT_TRANSACTIONS = "UNWIND range(0,size({txIds})-1) AS i"
+            + " CREATE (:Transaction{id:{txIds}[i],hash:{txHashes}[i],block:{txBlocks}[i],nInputs:{txInputs}[i],nOutputs:{txOutputs}[i]})";
+    private static final String QUERY_COMPACT_TRANSACTIONS_SAFE = "UNWIND range(0,size({txIds})-1) AS i"
+            + " MERGE (t:Transaction{id:{txIds}[i]})"
+            + " ON CREATE SET t.hash={txHashes}[i],t.block={txBlocks}[i],t.nInputs={txInputs}[i],t.nOutputs={txOutputs}[i]";
+    private static final String QUERY_COMPACT_OUTPUTS = "UNWIND range(0,size({outIds})-1) AS i"
+            + " MATCH (t:Transaction{id:{outTxIds}[i]})"
+            + " CREATE (:Output{id:{outIds}[i],address:{outAddresses}[i],amount:{outAmounts}[i]})<-[:output {pos:{outPos}[i]}]-(t)";
+    private static final String QUERY_COMPACT_OUTPUTS_SAFE = "UNWIND range(0,size({outIds})-1) AS i"
+            + " MATCH (t:Transaction{id:{outTxIds}[i]})"
+            + " MERGE (o:Output{id:{outIds}[i]}) ON CREATE SET o.address={outAddresses}[i],o.amount={outAmounts}[i]"
+            + " MERGE (o)<-[:output {pos:{outPos}[i]}]-(t)";
+    private static final String QUERY_COMPACT_WALLETS = "UNWIND range(0,size({walletOutIds})-1) AS i"
+            + " MATCH (o:Output{id:{walletOutIds}[i]})"
+            + " MERGE (w:Wallet{id:{walletIds}[i]}) ON CREATE SET w.name={walletNames}[i]"
+            + " CREATE (o)-[:wallet]->(w)";
+    private static final String QUERY_COMPACT_WALLETS_SAFE = "UNWIND range(0,size({walletOutIds})-1) AS i"
+            + " MATCH (o:Output{id:{walletOutIds}[i]})"
+            + " MERGE (w:Wallet{id:{walletIds}[i]}) ON CREATE SET w.name={walletNames}[i]"
+            + " MERGE (o)-[:wallet]->(w)";
+    private static final String QUERY_COMPACT_INPUTS = "UNWIND range(0,size({inOutIds})-1) AS i"
+            + " MATCH (o:Output{id:{inOutIds}[i]})"
+            + " MATCH (t:Transaction{id:{inTxIds}[i]})"
+            + " CREATE (o)-[:input {pos:{inPos}[i]}]->(t)";
+    private static final String QUERY_COMPACT_INPUTS_SAFE = "UNWIND range(0,size({inOutIds})-1) AS i"
+            + " MATCH (o:Output{id:{inOutIds}[i]})"
+            + " MATCH (t:Transaction{id:{inTxIds}[i]})"
+            + " MERGE (o)-[:input {pos:{inPos}[i]}]->(t)";
     private static final String QUERY_UPDATE_WALLETS = "UNWIND {param} AS outp"
             + " MATCH (o:Output{id:outp.id})"
             + " FOREACH (wal IN outp.wallets |"
@@ -88,6 +119,13 @@ public class NeoQueries implements AutoCloseable {
             = " MATCH (o:Output{id:{outputId}})"
             + " MERGE (w:Wallet{id:{walletId}}) ON CREATE SET w.name={walletName}"
             + " MERGE (o)-[:wallet]->(w)";
+    private static final String QUERY_REPLACE_OUTPUT_WALLET_RELATIONS = "UNWIND range(0,size({outIds})-1) AS i"
+            + " MATCH (o:Output{id:{outIds}[i]})"
+            + " OPTIONAL MATCH (o)-[r:wallet]->(old:Wallet) WHERE old.id<>{walletIds}[i]"
+            + " DELETE r"
+            + " WITH DISTINCT o,i WHERE {walletIds}[i]>0"
+            + " MERGE (w:Wallet{id:{walletIds}[i]}) ON CREATE SET w.name={walletNames}[i]"
+            + " MERGE (o)-[:wallet]->(w)";
     private static final String QUERY_DELETE_OUTPUT_WALLET_RELATION
             = " MATCH (:Output{id:{outputId}})-[r:wallet]-(:Wallet{id:{walletId}})"
             + " DELETE r";
@@ -174,6 +212,19 @@ public class NeoQueries implements AutoCloseable {
         return r.isPresent() ? OptionalInt.of(r.get().get(0).asInt()) : OptionalInt.empty();
     }
 
+    /**
+     * Get number of transactions, max transaction id and sums of inputs and
+     * outputs of transactions in the graph.
+     *
+     * @return transaction counts
+     */
+    @NonNull
+    public TransactionCounts getTransactionCounts() {
+        Record r = readFirstRecord(run(QUERY_TRANSACTIONS_COUNTS)).orElseThrow(() -> new IllegalStateException("No result for " + QUERY_TRANSACTIONS_COUNTS));
+        return new TransactionCounts(r.get(0).asLong(), r.get(1).isNull() ? 0 : r.get(1).asLong(),
+                r.get(2).isNull() ? 0 : r.get(2).asLong(), r.get(3).isNull() ? 0 : r.get(3).asLong());
+    }
+
     public void uploadBatch(PrepData data, boolean safeRun) {
         try (Transaction t = beginTransaction()) {
             StatementResult sr = t.run(safeRun ? QUERY_BATCH_UPLOAD_SAFE : QUERY_BATCH_UPLOAD, Values.parameters("param", data.data));
@@ -183,6 +234,43 @@ public class NeoQueries implements AutoCloseable {
         }
     }
 
+    /**
+     * Upload transactions, outputs, wallet relations and inputs spending
+     * outputs of the same batch in a single transaction. Transaction is
+     * retried by the driver on transient errors, such as deadlocks with other
+     * sessions merging the same wallets.
+     *
+     * @param batch batch to upload
+     * @param safeRun merge existing nodes and relations instead of creating
+     */
+    public void uploadBatch(NeoUploadBatch batch, boolean safeRun) {
+        Value params = Values.value(batch.getParameters());
+        getSession().writeTransaction(t -> {
+            logOutput(t.run(safeRun ? QUERY_COMPACT_TRANSACTIONS_SAFE : QUERY_COMPACT_TRANSACTIONS, params), "Transactions");
+            logOutput(t.run(safeRun ? QUERY_COMPACT_OUTPUTS_SAFE : QUERY_COMPACT_OUTPUTS, params), "Outputs");
+            logOutput(t.run(safeRun ? QUERY_COMPACT_WALLETS_SAFE : QUERY_COMPACT_WALLETS, params), "Wallets");
+            logOutput(t.run(safeRun ? QUERY_COMPACT_INPUTS_SAFE : QUERY_COMPACT_INPUTS, params), "Inputs");
+            return null;
+        });
+        log.trace("uploadBatch [{} - {}]: Transaction committed", batch.getStartTransactionId(), batch.getEndTransactionId());
+    }
+
+    /**
+     * Upload inputs of the batch spending outputs of transactions before the
+     * batch range. Must be called after those transactions are committed.
+     *
+     * @param batch batch to upload
+     * @param safeRun merge existing relations instead of creating
+     */
+    public void uploadCrossRangeInputs(NeoUploadBatch batch, boolean safeRun) {
+        Value params = Values.value(batch.getCrossRangeParameters());
+        getSession().writeTransaction(t -> {
+            logOutput(t.run(safeRun ? QUERY_COMPACT_INPUTS_SAFE : QUERY_COMPACT_INPUTS, params), "Inputs");
+            return null;
+        });
+        log.trace("uploadCrossRangeInputs [{} - {}]: Transaction committed", batch.getStartTransactionId(), batch.getEndTransactionId());
+    }
+
     public void updateWallets(Collection<Map<String, Object>> data, boolean safeRun) {
         try (Transaction t = beginTransaction()) {
             StatementResult sr = t.run(QUERY_UPDATE_WALLETS, Values.parameters("param", data));
@@ -230,6 +318,32 @@ public class NeoQueries implements AutoCloseable {
         }
     }
 
+    /**
+     * Replace wallet relations of outputs in a single transaction. Relations
+     * to other wallets are deleted and relation to the given wallet is merged.
+     * Output with wallet id 0 loses all wallet relations. Outputs not present
+     * in the graph are skipped.
+     *
+     * @param outputs outputs with their current wallets
+     */
+    public void replaceOutputWalletRelations(Collection<OutputWithWallet> outputs) {
+        long[] outIds = new long[outputs.size()];
+        int[] walletIds = new int[outputs.size()];
+        List<String> walletNames = new ArrayList<>(outputs.size());
+        int i = 0;
+        for (OutputWithWallet o : outputs) {
+            outIds[i] = toOutputId(o.getTransactionId(), o.getPos());
+            walletIds[i++] = o.getWalletId();
+            walletNames.add(o.getWalletName());
+        }
+        Value params = Values.parameters("outIds", outIds, "walletIds", walletIds, "walletNames", walletNames);
+        getSession().writeTransaction(t -> {
+            logOutput(t.run(QUERY_REPLACE_OUTPUT_WALLET_RELATIONS, params), "Output");
+            return null;
+        });
+        log.trace("replaceOutputWalletRelations({}): Transaction committed", outputs.size());
+    }
+
     @Getter
     @SuperBuilder(toBuilder = true)
     @ToString(callSuper = true)
@@ -239,7 +353,7 @@ public class NeoQueries implements AutoCloseable {
         private final String walletName;
     }
 
-    private static long toOutputId(int transactionId, int pos) {
+    static long toOutputId(int transactionId, int pos) {
         return transactionId * 100_000L + pos;
     }
 
@@ -307,6 +421,18 @@ public class NeoQueries implements AutoCloseable {
         session.get().close();
     }
 
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    public static class TransactionCounts {
+
+        private final long transactions;
+        private final long maxTransactionId;
+        private final long sumInputs;
+        private final long sumOutputs;
+    }
+
     @Getter
     public static class PrepData {
 
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.neo4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.primitives.ImmutableDoubleArray;
+import com.google.common.primitives.ImmutableIntArray;
+import com.google.common.primitives.ImmutableLongArray;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Batch of transactions uploaded to Neo4j as compact parameters. Every entity
+ * kind is stored as parallel primitive arrays instead of a map per record, so
+ * driver serializes a few lists per batch. Inputs spending outputs of
+ * transactions before the batch range are kept separately, so they can be
+ * uploaded after the range they refer to is committed.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+public class NeoUploadBatch {
+
+    @Getter
+    private final int startTransactionId;
+    @Getter
+    private final int endTransactionId;
+    private final ImmutableLongArray.Builder txIds = ImmutableLongArray.builder();
+    private final List<String> txHashes = new ArrayList<>();
+    private final ImmutableIntArray.Builder txBlocks = ImmutableIntArray.builder();
+    private final ImmutableIntArray.Builder txInputs = ImmutableIntArray.builder();
+    private final ImmutableIntArray.Builder txOutputs = ImmutableIntArray.builder();
+    private final ImmutableLongArray.Builder outIds = ImmutableLongArray.builder();
+    private final ImmutableLongArray.Builder outTxIds = ImmutableLongArray.builder();
+    private final ImmutableIntArray.Builder outPos = ImmutableIntArray.builder();
+    private final List<String> outAddresses = new ArrayList<>();
+    private final ImmutableDoubleArray.Builder outAmounts = ImmutableDoubleArray.builder();
+    private final ImmutableLongArray.Builder walletOutIds = ImmutableLongArray.builder();
+    private final ImmutableIntArray.Builder walletIds = ImmutableIntArray.builder();
+    private final List<String> walletNames = new ArrayList<>();
+    private final Inputs inputs = new Inputs();
+    private final Inputs crossRangeInputs = new Inputs();
+    @Getter
+    private int transactions;
+    @Getter
+    private int maxCrossRangeInTransactionId;
+
+    public NeoUploadBatch(int startTransactionId, int endTransactionId) {
+        checkArgument(startTransactionId <= endTransactionId, "Argument 'startTransactionId' (%s) is greater than 'endTransactionId' (%s)", startTransactionId, endTransactionId);
+        this.startTransactionId = startTransactionId;
+        this.endTransactionId = endTransactionId;
+    }
+
+    public synchronized void addTransaction(int transactionId, String hash, int block, int nInputs, int nOutputs) {
+        checkTransactionId(transactionId);
+        txIds.add(transactionId);
+        txHashes.add(hash);
+        txBlocks.add(block);
+        txInputs.add(nInputs);
+        txOutputs.add(nOutputs);
+        transactions++;
+    }
+
+    /**
+     * Add output and its wallet relation.
+     *
+     * @param transactionId transaction id
+     * @param pos output position
+     * @param address address name
+     * @param amount amount in BTC
+     * @param walletId wallet id or 0 if address has no wallet
+     * @param walletName wallet name or null
+     */
+    public synchronized void addOutput(int transactionId, short pos, String address, double amount, int walletId, String walletName) {
+        checkTransactionId(transactionId);
+        long outputId = NeoQueries.toOutputId(transactionId, pos);
+        outIds.add(outputId);
+        outTxIds.add(transactionId);
+        outPos.add(pos);
+        outAddresses.add(address);
+        outAmounts.add(amount);
+        if (walletId > 0) {
+            walletOutIds.add(outputId);
+            walletIds.add(walletId);
+            walletNames.add(walletName);
+        }
+    }
+
+    public synchronized void addInput(int transactionId, short pos, int inTransactionId, short inPos) {
+        checkTransactionId(transactionId);
+        if (inTransactionId < startTransactionId) {
+            crossRangeInputs.add(transactionId, pos, inTransactionId, inPos);
+            maxCrossRangeInTransactionId = Math.max(maxCrossRangeInTransactionId, inTransactionId);
+        } else {
+            inputs.add(transactionId, pos, inTransactionId, inPos);
+        }
+    }
+
+    public synchronized boolean hasCrossRangeInputs() {
+        return crossRangeInputs.size > 0;
+    }
+
+    /**
+     * Get parameters of transactions, outputs, wallet relations and inputs
+     * spending outputs of this batch.
+     *
+     * @return query parameters
+     */
+    @NonNull
+    public synchronized Map<String, Object> getParameters() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("txIds", txIds.build().toArray());
+        result.put("txHashes", new ArrayList<>(txHashes));
+        result.put("txBlocks", txBlocks.build().toArray());
+        result.put("txInputs", txInputs.build().toArray());
+        result.put("txOutputs", txOutputs.build().toArray());
+        result.put("outIds", outIds.build().toArray());
+        result.put("outTxIds", outTxIds.build().toArray());
+        result.put("outPos", outPos.build().toArray());
+        result.put("outAddresses", new ArrayList<>(outAddresses));
+        result.put("outAmounts", outAmounts.build().toArray());
+        result.put("walletOutIds", walletOutIds.build().toArray());
+        result.put("walletIds", walletIds.build().toArray());
+        result.put("walletNames", new ArrayList<>(walletNames));
+        inputs.putParameters(result);
+        return result;
+    }
+
+    /**
+     * Get parameters of inputs spending outputs of transactions before the
+     * batch range.
+     *
+     * @return query parameters
+     */
+    @NonNull
+    public synchronized Map<String, Object> getCrossRangeParameters() {
+        Map<String, Object> result = new HashMap<>();
+        crossRangeInputs.putParameters(result);
+        return result;
+    }
+
+    private void checkTransactionId(int transactionId) {
+        checkArgument(transactionId >= startTransactionId && transactionId <= endTransactionId,
+                "Transaction %s is out of batch range [%s - %s]", transactionId, startTransactionId, endTransactionId);
+    }
+
+    private static class Inputs {
+
+        private final ImmutableLongArray.Builder outIds = ImmutableLongArray.builder();
+        private final ImmutableLongArray.Builder txIds = ImmutableLongArray.builder();
+        private final ImmutableIntArray.Builder pos = ImmutableIntArray.builder();
+        private int size;
+
+        private void add(int transactionId, short pos, int inTransactionId, short inPos) {
+            this.outIds.add(NeoQueries.toOutputId(inTransactionId, inPos));
+            this.txIds.add(transactionId);
+            this.pos.add(pos);
+            size++;
+        }
+
+        private void putParameters(Map<String, Object> params) {
+            params.put("inOutIds", outIds.build().toArray());
+            params.put("inTxIds", txIds.build().toArray());
+            params.put("inPos", pos.build().toArray());
+        }
+    }
+}
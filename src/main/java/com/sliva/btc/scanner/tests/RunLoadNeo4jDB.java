@@ -22,6 +22,7 @@ import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.facade.DbQueryInput;
 import com.sliva.btc.scanner.db.facade.DbQueryOutput;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.model.BtcTransaction;
 import com.sliva.btc.scanner.neo4j.NeoConnection;
 import com.sliva.btc.scanner.neo4j.NeoQueries;
@@ -104,11 +105,12 @@ public class RunLoadNeo4jDB {
         cleanup = false;
         int nTxnThreads = Integer.parseInt(cmd.getOptionValue("threads", Integer.toString(DEFAULT_TXN_THREADS)));
         dbCon = new DBConnectionSupplier();
+        DbStores stores = DbStores.open(dbCon);
 //        queryAddress = new DbQueryAddressCombo(dbCon);
-        queryTransaction = new DbQueryTransaction(dbCon);
+        queryTransaction = new DbQueryTransaction(dbCon, stores);
         blockProvider = new DbBlockProvider(dbCon);
-        queryInput = new DbQueryInput(dbCon);
-        queryOutput = new DbQueryOutput(dbCon);
+        queryInput = new DbQueryInput(dbCon, stores);
+        queryOutput = new DbQueryOutput(dbCon, stores);
         execPrepareFiles = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("PrepareFiles-%d").build());
         execProcessTransactions = Executors.newFixedThreadPool(nTxnThreads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ProcessTxn-%d").build());
 //        execNeo = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setDaemon(false).setNameFormat("NeoUpload-%d").build());
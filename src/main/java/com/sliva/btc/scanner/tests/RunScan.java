@@ -18,6 +18,7 @@ package com.sliva.btc.scanner.tests;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.facade.DbQueryBlock;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.facade.DbUpdateBlock;
 import com.sliva.btc.scanner.db.facade.DbUpdateTransaction;
 import com.sliva.btc.scanner.db.model.BtcBlock;
@@ -46,6 +47,7 @@ public class RunScan {
     private static final boolean UPDATE_LATEST = true;
     private static BitcoinJSONRPCClient client;
     private static final DBConnectionSupplier conn = new DBConnectionSupplier();
+    private static final DbStores stores = DbStores.open(conn);
     private static DbQueryBlock queryBlock;
     private static DbQueryTransaction queryTransaction;
 
@@ -56,8 +58,8 @@ public class RunScan {
     public static void main(String[] args) throws Exception {
         log.debug("START");
         client = new RpcClient().getClient();
-        queryBlock = new DbQueryBlock(conn);
-        queryTransaction = new DbQueryTransaction(conn);
+        queryBlock = new DbQueryBlock(conn, stores);
+        queryTransaction = new DbQueryTransaction(conn, stores);
         BitcoindRpcClient.BlockChainInfo bci = client.getBlockChainInfo();
         log.info("BlockChainInfo: {}", bci);
         if (UPDATE_LATEST) {
@@ -75,8 +77,8 @@ public class RunScan {
     @SuppressWarnings("CallToPrintStackTrace")
     private static void updateDb(int nThreads, int firstBlock, int numBlocks) throws SQLException {
         ParallelGetBlock parallelGetBlock = new ParallelGetBlock(nThreads, firstBlock, numBlocks);
-        try (DbUpdateBlock addBlock = new DbUpdateBlock(conn);
-                DbUpdateTransaction addTxn = new DbUpdateTransaction(conn)) {
+        try (DbUpdateBlock addBlock = new DbUpdateBlock(conn, stores);
+                DbUpdateTransaction addTxn = new DbUpdateTransaction(conn, stores)) {
             for (int i = 0; i < Math.abs(numBlocks); i++) {
                 long s = System.currentTimeMillis();
                 int blockHeight = numBlocks < 0 ? firstBlock - i : firstBlock + i;
@@ -18,6 +18,7 @@ package com.sliva.btc.scanner.tests;
 import com.sliva.btc.scanner.Main;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.utils.DBUtils;
 import static com.sliva.btc.scanner.db.facade.DbQueryAddressOne.getAddressTableName;
 import static com.sliva.btc.scanner.db.facade.DbQueryAddressOne.updateQueryTableName;
@@ -184,6 +185,7 @@ public class RunUpdateWallets {
             + " INNER JOIN output O ON O.transaction_id=I.in_transaction_id AND O.pos=I.in_pos"
             + " WHERE O.address_id=?";
     private final DBConnectionSupplier dbCon;
+    private final DbStores stores;
     private final DBPreparedStatement psAddressesNoWallet;
     private final DBPreparedStatement psRelatedAddresses;
     private final DBPreparedStatement psRelatedWallets;
@@ -226,6 +228,7 @@ public class RunUpdateWallets {
         DBConnectionSupplier.applyArguments(cmd);
 
         dbCon = new DBConnectionSupplier();
+        stores = DbStores.open(dbCon);
         psAddressesNoWallet = dbCon.prepareStatement(updateQueryTableName(SQL_QUERY_ADDRESSES_NO_WALLET, addressType));
         psRelatedAddresses = dbCon.prepareStatement(updateQueryTableName(SQL_QUERY_RELATED_ADDRESSES, addressType));
         psRelatedWallets = dbCon.prepareStatement(updateQueryTableName(SQL_QUERY_RELATED_WALLETS, addressType));
@@ -250,8 +253,8 @@ public class RunUpdateWallets {
 
         fixWalletsByTransactions(0_000_000, 8_000_000);
 
-        try (DbUpdateWallet addWallet = new DbUpdateWallet(dbCon);
-                DbUpdateAddress updateAddress = new DbUpdateAddress(dbCon)) {
+        try (DbUpdateWallet addWallet = new DbUpdateWallet(dbCon, stores);
+                DbUpdateAddress updateAddress = new DbUpdateAddress(dbCon, stores)) {
 
             psQueryMissingWalletRecords.executeQuery(rs
                     -> {
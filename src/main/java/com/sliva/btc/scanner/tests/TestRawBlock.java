@@ -21,6 +21,7 @@ import com.sliva.btc.scanner.db.facade.DbQueryBlock;
 import com.sliva.btc.scanner.db.facade.DbQueryInput;
 import com.sliva.btc.scanner.db.facade.DbQueryOutput;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.model.BtcAddress;
 import com.sliva.btc.scanner.db.model.BtcBlock;
 import com.sliva.btc.scanner.db.model.BtcTransaction;
@@ -52,11 +53,12 @@ public class TestRawBlock {
     public static void main(String[] args) throws Exception {
         log.debug("START");
         DBConnectionSupplier conn = new DBConnectionSupplier("btc");
-        DbQueryBlock queryBlock = new DbQueryBlock(conn);
-        DbQueryTransaction queryTransaction = new DbQueryTransaction(conn);
-        DbQueryInput queryInput = new DbQueryInput(conn);
-        DbQueryOutput queryOutput = new DbQueryOutput(conn);
-        DbCachedAddress queryAddress = new DbCachedAddress(conn);
+        DbStores stores = DbStores.open(conn);
+        DbQueryBlock queryBlock = new DbQueryBlock(conn, stores);
+        DbQueryTransaction queryTransaction = new DbQueryTransaction(conn, stores);
+        DbQueryInput queryInput = new DbQueryInput(conn, stores);
+        DbQueryOutput queryOutput = new DbQueryOutput(conn, stores);
+        DbCachedAddress queryAddress = new DbCachedAddress(conn, stores);
 
         NetworkParameters np = new MainNetParams();
         List<File> blockChainFiles = new ArrayList<>();
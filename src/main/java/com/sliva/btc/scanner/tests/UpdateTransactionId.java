@@ -18,6 +18,7 @@ package com.sliva.btc.scanner.tests;
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.facade.DbQueryBlock;
 import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.facade.DbUpdateTransaction;
 import com.sliva.btc.scanner.db.model.BtcTransaction;
 import com.sliva.btc.scanner.rpc.ParallelGetBlock;
@@ -39,6 +40,7 @@ public class UpdateTransactionId {
     private static final int RPC_THREADS = 70;
     private static BitcoinJSONRPCClient client;
     private static DBConnectionSupplier conn;
+    private static DbStores stores;
     private static DbQueryBlock queryBlock;
     private static DbQueryTransaction queryTransaction;
 
@@ -50,8 +52,9 @@ public class UpdateTransactionId {
         log.debug("START");
         client = new RpcClient().getClient();
         conn = new DBConnectionSupplier("btc");
-        queryBlock = new DbQueryBlock(conn);
-        queryTransaction = new DbQueryTransaction(conn);
+        stores = DbStores.open(conn);
+        queryBlock = new DbQueryBlock(conn, stores);
+        queryTransaction = new DbQueryTransaction(conn, stores);
         BitcoindRpcClient.BlockChainInfo bci = client.getBlockChainInfo();
         log.info("BlockChainInfo: {}", bci);
         Optional<BtcTransaction> lastTx = queryTransaction.getLastTransaction();
@@ -97,7 +100,7 @@ public class UpdateTransactionId {
         }
         log.info("lastTransactionId={}", lastTransactionId);
         ParallelGetBlock parallelGetBlock = new ParallelGetBlock(nThreads, firstBlock, numBlocks);
-        try (DbUpdateTransaction addTxn = new DbUpdateTransaction(conn)) {
+        try (DbUpdateTransaction addTxn = new DbUpdateTransaction(conn, stores)) {
             for (int i = 0; i < numBlocks; i++) {
                 long s = System.currentTimeMillis();
                 int blockHeight = firstBlock + i;
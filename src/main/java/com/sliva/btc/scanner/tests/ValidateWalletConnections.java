@@ -17,6 +17,7 @@ package com.sliva.btc.scanner.tests;
 
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.facade.DbStores;
 import com.sliva.btc.scanner.db.utils.DBUtils;
 import com.sliva.btc.scanner.db.facade.DbQueryWallet;
 import com.sliva.btc.scanner.db.facade.DbUpdateAddress;
@@ -50,10 +51,11 @@ public class ValidateWalletConnections {
             + " INNER JOIN output O ON O.transaction_id=I.in_transaction_id AND O.pos=I.in_pos"
             + " WHERE I.transaction_id=?";
     private static final DBConnectionSupplier conn = new DBConnectionSupplier();
-    private static final DBPreparedStatement psQuerySpentTransactionsByAddress = conn.prepareStatement(QUERY_SPENT_TRANSACTIONS_BY_ADDRESS);
-    private static final DBPreparedStatement psQueryInputAddressesByTransactionId = conn.prepareStatement(QUERY_INPUT_ADDRESSES_BY_TRANSACTION_ID);
-    private static final DbBlockProvider dbBlockProvider = new DbBlockProvider(conn);
-    private static final DbQueryWallet queryWallet = new DbQueryWallet(conn);
+    private static final DbStores stores = DbStores.open(conn);
+    private static final DBPreparedStatement psQuerySpentTransactionsByAddress = conn.getReadSupplier().prepareStatement(QUERY_SPENT_TRANSACTIONS_BY_ADDRESS);
+    private static final DBPreparedStatement psQueryInputAddressesByTransactionId = conn.getReadSupplier().prepareStatement(QUERY_INPUT_ADDRESSES_BY_TRANSACTION_ID);
+    private static final DbBlockProvider dbBlockProvider = new DbBlockProvider(conn.getReadSupplier());
+    private static final DbQueryWallet queryWallet = new DbQueryWallet(conn, stores);
     private final DbUpdateAddress updateAddress;
 
     public static void main(String[] args) throws Exception {
@@ -62,7 +64,7 @@ public class ValidateWalletConnections {
 
     public ValidateWalletConnections() {
         if (UPDATE_NOT_CONNECTED) {
-            updateAddress = new DbUpdateAddress(conn);
+            updateAddress = new DbUpdateAddress(conn, stores);
         } else {
             updateAddress = null;
         }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free disjoint-set (union-find) of dense int elements [0, size). Parents
+ * are kept in an {@link AtomicIntegerArray}. Roots are linked with a single
+ * CAS on the parent of the root with lower priority, where priority is a
+ * fixed pseudo-random permutation of the element, so no ranks have to be
+ * updated atomically along with the link and trees stay shallow. Find uses
+ * path halving with CAS and never retries on a failed CAS, so it does not
+ * wait for other threads. Union retries only when one of the roots was linked
+ * by another thread in between.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+public class ConcurrentDisjointSet {
+
+    private final AtomicIntegerArray parent;
+
+    /**
+     * Create disjoint-set with each element in its own set.
+     *
+     * @param size number of elements
+     */
+    public ConcurrentDisjointSet(int size) {
+        checkArgument(size >= 0, "Argument 'size' is negative: %s", size);
+        this.parent = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            parent.lazySet(i, i);
+        }
+    }
+
+    public int size() {
+        return parent.length();
+    }
+
+    /**
+     * Find representative element of the set containing the element. Result
+     * is the root at the time of the call and might be linked to another root
+     * by a concurrent union.
+     *
+     * @param element element
+     * @return root element of the set
+     */
+    public int find(int element) {
+        int e = element;
+        for (;;) {
+            int p = parent.get(e);
+            if (p == e) {
+                return e;
+            }
+            int gp = parent.get(p);
+            if (gp != p) {
+                parent.compareAndSet(e, p, gp);
+            }
+            e = gp;
+        }
+    }
+
+    /**
+     * Merge sets containing the two elements.
+     *
+     * @param element1 first element
+     * @param element2 second element
+     * @return true if elements were in different sets and this call merged
+     * them
+     */
+    public boolean union(int element1, int element2) {
+        for (;;) {
+            int root1 = find(element1);
+            int root2 = find(element2);
+            if (root1 == root2) {
+                return false;
+            }
+            boolean link1 = isLower(root1, root2);
+            int child = link1 ? root1 : root2;
+            int root = link1 ? root2 : root1;
+            if (parent.compareAndSet(child, child, root)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean isSameSet(int element1, int element2) {
+        for (;;) {
+            int root1 = find(element1);
+            int root2 = find(element2);
+            if (root1 == root2) {
+                return true;
+            }
+            if (parent.get(root1) == root1) {
+                return false;
+            }
+        }
+    }
+
+    private static boolean isLower(int element1, int element2) {
+        return priority(element1) < priority(element2);
+    }
+
+    /**
+     * Bijective mix of the element bits (finalizer of MurmurHash3), so
+     * priorities of different elements are never equal.
+     */
+    private static int priority(int element) {
+        int h = element;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
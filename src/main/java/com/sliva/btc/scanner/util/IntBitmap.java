@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed bitmap of unsigned int values. Values are split by high 16 bits
+ * into containers, each container is either a sorted array of low 16 bits if
+ * it has up to 4096 values or a plain 64K bits bitmap otherwise, so memory
+ * use is about 2 bytes per value for sparse and 1 bit per value for dense
+ * ranges.
+ *
+ * #Not thread-safe
+ *
+ * @author Sliva Co
+ */
+public class IntBitmap {
+
+    private static final int CONTAINERS = 1 << 16;
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = (1 << 16) / Long.SIZE;
+
+    private final char[][] arrays = new char[CONTAINERS][];
+    private final long[][] bitmaps = new long[CONTAINERS][];
+    private final int[] cardinality = new int[CONTAINERS];
+
+    /**
+     * Add value to the bitmap.
+     *
+     * @param value unsigned int value
+     * @return true if value was not in the bitmap
+     */
+    public boolean add(int value) {
+        int high = value >>> 16;
+        char low = (char) value;
+        long[] bitmap = bitmaps[high];
+        if (bitmap != null) {
+            long mask = 1L << low;
+            if ((bitmap[low >>> 6] & mask) != 0) {
+                return false;
+            }
+            bitmap[low >>> 6] |= mask;
+            cardinality[high]++;
+            return true;
+        }
+        char[] array = arrays[high];
+        int size = cardinality[high];
+        int pos = array == null ? -1 : Arrays.binarySearch(array, 0, size, low);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -pos - 1;
+        if (size == MAX_ARRAY_SIZE) {
+            bitmap = new long[BITMAP_WORDS];
+            for (int i = 0; i < size; i++) {
+                bitmap[array[i] >>> 6] |= 1L << array[i];
+            }
+            bitmap[low >>> 6] |= 1L << low;
+            bitmaps[high] = bitmap;
+            arrays[high] = null;
+        } else {
+            if (array == null) {
+                array = new char[4];
+            } else if (size == array.length) {
+                array = Arrays.copyOf(array, Math.min(size * 2, MAX_ARRAY_SIZE));
+            }
+            System.arraycopy(array, pos, array, pos + 1, size - pos);
+            array[pos] = low;
+            arrays[high] = array;
+        }
+        cardinality[high]++;
+        return true;
+    }
+
+    /**
+     * Check if value is in the bitmap.
+     *
+     * @param value unsigned int value
+     * @return true if value is in the bitmap
+     */
+    public boolean contains(int value) {
+        int high = value >>> 16;
+        char low = (char) value;
+        long[] bitmap = bitmaps[high];
+        if (bitmap != null) {
+            return (bitmap[low >>> 6] & (1L << low)) != 0;
+        }
+        char[] array = arrays[high];
+        return array != null && Arrays.binarySearch(array, 0, cardinality[high], low) >= 0;
+    }
+
+    /**
+     * Call consumer for each value in ascending unsigned order.
+     *
+     * @param consumer value consumer
+     */
+    public void forEach(IntConsumer consumer) {
+        for (int high = 0; high < CONTAINERS; high++) {
+            int base = high << 16;
+            long[] bitmap = bitmaps[high];
+            if (bitmap != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    for (long word = bitmap[w]; word != 0; word &= word - 1) {
+                        consumer.accept(base | (w << 6) | Long.numberOfTrailingZeros(word));
+                    }
+                }
+            } else if (arrays[high] != null) {
+                char[] array = arrays[high];
+                for (int i = 0; i < cardinality[high]; i++) {
+                    consumer.accept(base | array[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get number of values in the bitmap.
+     *
+     * @return number of values
+     */
+    public long getCardinality() {
+        long result = 0;
+        for (int c : cardinality) {
+            result += c;
+        }
+        return result;
+    }
+
+    /**
+     * Estimate memory used by containers.
+     *
+     * @return size in bytes
+     */
+    public long getSizeInBytes() {
+        long result = 0;
+        for (int i = 0; i < CONTAINERS; i++) {
+            if (bitmaps[i] != null) {
+                result += BITMAP_WORDS * Long.BYTES;
+            } else if (arrays[i] != null) {
+                result += arrays[i].length * Character.BYTES;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Watermark of ranges completed out of order. Watermark is the last value
+ * such that all ranges up to it are completed, so consumers that depend on
+ * earlier ranges can wait for it.
+ *
+ * #Thread-safe
+ *
+ * @author Sliva Co
+ */
+public class RangeWatermark {
+
+    private final TreeMap<Integer, Integer> completed = new TreeMap<>();
+    private int watermark;
+    private boolean failed;
+
+    /**
+     * Create watermark.
+     *
+     * @param watermark last value of already completed ranges
+     */
+    public RangeWatermark(int watermark) {
+        this.watermark = watermark;
+    }
+
+    public synchronized int get() {
+        return watermark;
+    }
+
+    /**
+     * Mark range as completed and advance the watermark over contiguous
+     * completed ranges.
+     *
+     * @param start first value of the range
+     * @param end last value of the range
+     */
+    public synchronized void complete(int start, int end) {
+        checkArgument(start <= end, "Argument 'start' (%s) is greater than 'end' (%s)", start, end);
+        checkArgument(start > watermark, "Range [%s - %s] is below watermark %s", start, end, watermark);
+        completed.put(start, end);
+        for (Map.Entry<Integer, Integer> e = completed.firstEntry(); e != null && e.getKey() == watermark + 1; e = completed.firstEntry()) {
+            watermark = e.getValue();
+            completed.pollFirstEntry();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Mark processing as failed, so waiting threads are released.
+     */
+    public synchronized void fail() {
+        failed = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait until the watermark reaches the value.
+     *
+     * @param value value to wait for
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if processing has failed
+     */
+    public synchronized void await(int value) throws InterruptedException {
+        while (watermark < value) {
+            checkState(!failed, "Processing failed before reaching %s", value);
+            wait();
+        }
+    }
+}
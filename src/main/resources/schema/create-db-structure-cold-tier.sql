@@ -0,0 +1,37 @@
+CREATE TABLE IF NOT EXISTS `cold_tier` (
+  `id` tinyint(3) unsigned NOT NULL,
+  `last_transaction_id` int(10) unsigned NOT NULL,
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB;
+
+INSERT IGNORE INTO `cold_tier` (`id`, `last_transaction_id`) VALUES (1, 0);
+
+CREATE TABLE IF NOT EXISTS `input_cold` (
+  `transaction_id` int(10) unsigned NOT NULL,
+  `pos` smallint(5) unsigned NOT NULL,
+  `in_transaction_id` int(10) unsigned NOT NULL,
+  `in_pos` smallint(5) unsigned NOT NULL,
+  PRIMARY KEY (`transaction_id`,`pos`),
+  UNIQUE KEY `ix_input_cold_in_txn_pos` (`in_transaction_id`,`in_pos`)
+) ENGINE=InnoDB ROW_FORMAT=COMPRESSED KEY_BLOCK_SIZE=8;
+
+CREATE TABLE IF NOT EXISTS `output_cold` (
+  `transaction_id` int(10) unsigned NOT NULL,
+  `pos` smallint(5) unsigned NOT NULL,
+  `address_id` int(10) unsigned NOT NULL,
+  `amount` bigint(16) NOT NULL,
+  `spent` tinyint(3) unsigned NOT NULL DEFAULT '0',
+  PRIMARY KEY (`transaction_id`,`pos`),
+  KEY `ix_output_cold_address_id` (`address_id`)
+) ENGINE=InnoDB ROW_FORMAT=COMPRESSED KEY_BLOCK_SIZE=8;
+
+CREATE TABLE IF NOT EXISTS `transaction_cold` (
+  `transaction_id` int(10) unsigned NOT NULL,
+  `txid` binary(32) NOT NULL,
+  `block_height` int(10) unsigned NOT NULL,
+  `nInputs` smallint(5) unsigned NOT NULL DEFAULT '0',
+  `nOutputs` smallint(5) unsigned NOT NULL DEFAULT '0',
+  PRIMARY KEY (`transaction_id`),
+  UNIQUE KEY `ix_transaction_cold_txid` (`txid`),
+  KEY `ix_transaction_cold_block_height` (`block_height`)
+) ENGINE=InnoDB ROW_FORMAT=COMPRESSED KEY_BLOCK_SIZE=8;
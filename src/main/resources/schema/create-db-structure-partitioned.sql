@@ -0,0 +1,174 @@
+-- Tables transaction, input, input_special and output are partitioned by transaction_id
+-- ranges of 100M. MySQL requires every unique key of a partitioned table to include the
+-- partitioning column, so ix_transaction_txid and ix_input_in_txn_pos are not unique here.
+-- Partitioned MyISAM tables require MySQL 5.7 or earlier.
+CREATE TABLE IF NOT EXISTS `address_p2pkh` (
+  `address_id` int(10) unsigned NOT NULL,
+  `address` binary(20) NOT NULL,
+  `wallet_id` int(10) unsigned NOT NULL DEFAULT '0',
+  PRIMARY KEY (`address_id`),
+  UNIQUE KEY `ix_address_p2pkh_address` (`address`)
+) ENGINE=MyISAM;
+
+CREATE TABLE IF NOT EXISTS `address_p2sh` (
+  `address_id` int(10) unsigned NOT NULL,
+  `address` binary(20) NOT NULL,
+  `wallet_id` int(10) unsigned NOT NULL DEFAULT '0',
+  PRIMARY KEY (`address_id`),
+  UNIQUE KEY `ix_address_p2sh_address` (`address`)
+) ENGINE=MyISAM;
+
+CREATE TABLE IF NOT EXISTS `address_p2wpkh` (
+  `address_id` int(10) unsigned NOT NULL,
+  `address` binary(20) NOT NULL,
+  `wallet_id` int(10) unsigned NOT NULL DEFAULT '0',
+  PRIMARY KEY (`address_id`),
+  UNIQUE KEY `ix_address_p2wpkh_address` (`address`)
+) ENGINE=MyISAM;
+
+CREATE TABLE IF NOT EXISTS `address_p2wsh` (
+  `address_id` int(10) unsigned NOT NULL,
+  `address` binary(32) NOT NULL,
+  `wallet_id` int(10) unsigned NOT NULL DEFAULT '0',
+  PRIMARY KEY (`address_id`),
+  UNIQUE KEY `ix_address_p2wsh_address` (`address`)
+) ENGINE=MyISAM;
+
+CREATE TABLE IF NOT EXISTS `block` (
+  `height` int(10) unsigned NOT NULL,
+  `hash` binary(32) NOT NULL,
+  `txn_count` int(10) unsigned NOT NULL,
+  PRIMARY KEY (`height`),
+  UNIQUE KEY `ix_block_hash` (`hash`)
+) ENGINE=MyISAM;
+
+CREATE TABLE IF NOT EXISTS `input` (
+  `transaction_id` int(10) unsigned NOT NULL,
+  `pos` smallint(5) unsigned NOT NULL,
+  `in_transaction_id` int(10) unsigned NOT NULL,
+  `in_pos` smallint(5) unsigned NOT NULL,
+  PRIMARY KEY (`transaction_id`,`pos`),
+  KEY `ix_input_in_txn_pos` (`in_transaction_id`,`in_pos`)
+) ENGINE=MyISAM
+PARTITION BY RANGE (`transaction_id`) (
+  PARTITION p00 VALUES LESS THAN (100000000),
+  PARTITION p01 VALUES LESS THAN (200000000),
+  PARTITION p02 VALUES LESS THAN (300000000),
+  PARTITION p03 VALUES LESS THAN (400000000),
+  PARTITION p04 VALUES LESS THAN (500000000),
+  PARTITION p05 VALUES LESS THAN (600000000),
+  PARTITION p06 VALUES LESS THAN (700000000),
+  PARTITION p07 VALUES LESS THAN (800000000),
+  PARTITION p08 VALUES LESS THAN (900000000),
+  PARTITION p09 VALUES LESS THAN (1000000000),
+  PARTITION p10 VALUES LESS THAN (1100000000),
+  PARTITION p11 VALUES LESS THAN (1200000000),
+  PARTITION p12 VALUES LESS THAN (1300000000),
+  PARTITION p13 VALUES LESS THAN (1400000000),
+  PARTITION p14 VALUES LESS THAN (1500000000),
+  PARTITION p15 VALUES LESS THAN (1600000000),
+  PARTITION p16 VALUES LESS THAN (1700000000),
+  PARTITION p17 VALUES LESS THAN (1800000000),
+  PARTITION p18 VALUES LESS THAN (1900000000),
+  PARTITION p19 VALUES LESS THAN (2000000000),
+  PARTITION pmax VALUES LESS THAN MAXVALUE
+);
+
+CREATE TABLE IF NOT EXISTS `input_special` (
+  `transaction_id` int(10) unsigned NOT NULL,
+  `pos` smallint(5) unsigned NOT NULL,
+  `sighash_type` bit(8) NOT NULL,
+  `segwit` bit(1) NOT NULL,
+  `multisig` bit(1) NOT NULL,
+  PRIMARY KEY (`transaction_id`,`pos`)
+) ENGINE=MyISAM
+PARTITION BY RANGE (`transaction_id`) (
+  PARTITION p00 VALUES LESS THAN (100000000),
+  PARTITION p01 VALUES LESS THAN (200000000),
+  PARTITION p02 VALUES LESS THAN (300000000),
+  PARTITION p03 VALUES LESS THAN (400000000),
+  PARTITION p04 VALUES LESS THAN (500000000),
+  PARTITION p05 VALUES LESS THAN (600000000),
+  PARTITION p06 VALUES LESS THAN (700000000),
+  PARTITION p07 VALUES LESS THAN (800000000),
+  PARTITION p08 VALUES LESS THAN (900000000),
+  PARTITION p09 VALUES LESS THAN (1000000000),
+  PARTITION p10 VALUES LESS THAN (1100000000),
+  PARTITION p11 VALUES LESS THAN (1200000000),
+  PARTITION p12 VALUES LESS THAN (1300000000),
+  PARTITION p13 VALUES LESS THAN (1400000000),
+  PARTITION p14 VALUES LESS THAN (1500000000),
+  PARTITION p15 VALUES LESS THAN (1600000000),
+  PARTITION p16 VALUES LESS THAN (1700000000),
+  PARTITION p17 VALUES LESS THAN (1800000000),
+  PARTITION p18 VALUES LESS THAN (1900000000),
+  PARTITION p19 VALUES LESS THAN (2000000000),
+  PARTITION pmax VALUES LESS THAN MAXVALUE
+);
+
+CREATE TABLE IF NOT EXISTS `output` (
+  `transaction_id` int(10) unsigned NOT NULL,
+  `pos` smallint(5) unsigned NOT NULL,
+  `address_id` int(10) unsigned NOT NULL,
+  `amount` bigint(16) NOT NULL,
+  `spent` tinyint(3) unsigned NOT NULL DEFAULT '0',
+  PRIMARY KEY (`transaction_id`,`pos`),
+  KEY `ix_output_address_id` (`address_id`)
+) ENGINE=MyISAM
+PARTITION BY RANGE (`transaction_id`) (
+  PARTITION p00 VALUES LESS THAN (100000000),
+  PARTITION p01 VALUES LESS THAN (200000000),
+  PARTITION p02 VALUES LESS THAN (300000000),
+  PARTITION p03 VALUES LESS THAN (400000000),
+  PARTITION p04 VALUES LESS THAN (500000000),
+  PARTITION p05 VALUES LESS THAN (600000000),
+  PARTITION p06 VALUES LESS THAN (700000000),
+  PARTITION p07 VALUES LESS THAN (800000000),
+  PARTITION p08 VALUES LESS THAN (900000000),
+  PARTITION p09 VALUES LESS THAN (1000000000),
+  PARTITION p10 VALUES LESS THAN (1100000000),
+  PARTITION p11 VALUES LESS THAN (1200000000),
+  PARTITION p12 VALUES LESS THAN (1300000000),
+  PARTITION p13 VALUES LESS THAN (1400000000),
+  PARTITION p14 VALUES LESS THAN (1500000000),
+  PARTITION p15 VALUES LESS THAN (1600000000),
+  PARTITION p16 VALUES LESS THAN (1700000000),
+  PARTITION p17 VALUES LESS THAN (1800000000),
+  PARTITION p18 VALUES LESS THAN (1900000000),
+  PARTITION p19 VALUES LESS THAN (2000000000),
+  PARTITION pmax VALUES LESS THAN MAXVALUE
+);
+
+CREATE TABLE IF NOT EXISTS `transaction` (
+  `transaction_id` int(10) unsigned NOT NULL,
+  `txid` binary(32) NOT NULL,
+  `block_height` int(10) unsigned NOT NULL,
+  `nInputs` smallint(5) unsigned NOT NULL DEFAULT '0',
+  `nOutputs` smallint(5) unsigned NOT NULL DEFAULT '0',
+  PRIMARY KEY (`transaction_id`),
+  KEY `ix_transaction_txid` (`txid`),
+  KEY `ix_transaction_block_height` (`block_height`)
+) ENGINE=MyISAM
+PARTITION BY RANGE (`transaction_id`) (
+  PARTITION p00 VALUES LESS THAN (100000000),
+  PARTITION p01 VALUES LESS THAN (200000000),
+  PARTITION p02 VALUES LESS THAN (300000000),
+  PARTITION p03 VALUES LESS THAN (400000000),
+  PARTITION p04 VALUES LESS THAN (500000000),
+  PARTITION p05 VALUES LESS THAN (600000000),
+  PARTITION p06 VALUES LESS THAN (700000000),
+  PARTITION p07 VALUES LESS THAN (800000000),
+  PARTITION p08 VALUES LESS THAN (900000000),
+  PARTITION p09 VALUES LESS THAN (1000000000),
+  PARTITION p10 VALUES LESS THAN (1100000000),
+  PARTITION p11 VALUES LESS THAN (1200000000),
+  PARTITION p12 VALUES LESS THAN (1300000000),
+  PARTITION p13 VALUES LESS THAN (1400000000),
+  PARTITION p14 VALUES LESS THAN (1500000000),
+  PARTITION p15 VALUES LESS THAN (1600000000),
+  PARTITION p16 VALUES LESS THAN (1700000000),
+  PARTITION p17 VALUES LESS THAN (1800000000),
+  PARTITION p18 VALUES LESS THAN (1900000000),
+  PARTITION p19 VALUES LESS THAN (2000000000),
+  PARTITION pmax VALUES LESS THAN MAXVALUE
+);
@@ -0,0 +1,80 @@
+CREATE TABLE IF NOT EXISTS address_p2pkh (
+  address_id integer NOT NULL,
+  address bytea NOT NULL,
+  wallet_id integer NOT NULL DEFAULT 0,
+  PRIMARY KEY (address_id),
+  CONSTRAINT ix_address_p2pkh_address UNIQUE (address)
+);
+
+CREATE TABLE IF NOT EXISTS address_p2sh (
+  address_id integer NOT NULL,
+  address bytea NOT NULL,
+  wallet_id integer NOT NULL DEFAULT 0,
+  PRIMARY KEY (address_id),
+  CONSTRAINT ix_address_p2sh_address UNIQUE (address)
+);
+
+CREATE TABLE IF NOT EXISTS address_p2wpkh (
+  address_id integer NOT NULL,
+  address bytea NOT NULL,
+  wallet_id integer NOT NULL DEFAULT 0,
+  PRIMARY KEY (address_id),
+  CONSTRAINT ix_address_p2wpkh_address UNIQUE (address)
+);
+
+CREATE TABLE IF NOT EXISTS address_p2wsh (
+  address_id integer NOT NULL,
+  address bytea NOT NULL,
+  wallet_id integer NOT NULL DEFAULT 0,
+  PRIMARY KEY (address_id),
+  CONSTRAINT ix_address_p2wsh_address UNIQUE (address)
+);
+
+CREATE TABLE IF NOT EXISTS block (
+  height integer NOT NULL,
+  hash bytea NOT NULL,
+  txn_count integer NOT NULL,
+  PRIMARY KEY (height),
+  CONSTRAINT ix_block_hash UNIQUE (hash)
+);
+
+CREATE TABLE IF NOT EXISTS input (
+  transaction_id integer NOT NULL,
+  pos smallint NOT NULL,
+  in_transaction_id integer NOT NULL,
+  in_pos smallint NOT NULL,
+  PRIMARY KEY (transaction_id,pos),
+  CONSTRAINT ix_input_in_txn_pos UNIQUE (in_transaction_id,in_pos)
+);
+
+CREATE TABLE IF NOT EXISTS input_special (
+  transaction_id integer NOT NULL,
+  pos smallint NOT NULL,
+  sighash_type smallint NOT NULL,
+  segwit boolean NOT NULL,
+  multisig boolean NOT NULL,
+  PRIMARY KEY (transaction_id,pos)
+);
+
+CREATE TABLE IF NOT EXISTS output (
+  transaction_id integer NOT NULL,
+  pos smallint NOT NULL,
+  address_id integer NOT NULL,
+  amount bigint NOT NULL,
+  spent smallint NOT NULL DEFAULT 0,
+  PRIMARY KEY (transaction_id,pos)
+);
+
+CREATE INDEX IF NOT EXISTS ix_output_address_id ON output (address_id);
+
+CREATE TABLE IF NOT EXISTS transaction (
+  transaction_id integer NOT NULL,
+  txid bytea NOT NULL,
+  block_height integer NOT NULL,
+  nInputs smallint NOT NULL DEFAULT 0,
+  nOutputs smallint NOT NULL DEFAULT 0,
+  PRIMARY KEY (transaction_id),
+  CONSTRAINT ix_transaction_txid UNIQUE (txid)
+);
+
+CREATE INDEX IF NOT EXISTS ix_transaction_block_height ON transaction (block_height);
@@ -5,6 +5,19 @@ CREATE TABLE IF NOT EXISTS `wallet` (
   PRIMARY KEY (`wallet_id`)
 ) ENGINE=MyISAM DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
 
+CREATE TABLE IF NOT EXISTS `wallet_remap` (
+  `old_wallet_id` int(10) unsigned NOT NULL,
+  `new_wallet_id` int(10) unsigned NOT NULL,
+  PRIMARY KEY (`old_wallet_id`)
+) ENGINE=MyISAM DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
+CREATE TABLE IF NOT EXISTS `wallet_changelog` (
+  `change_id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+  `address_id` int(10) unsigned NOT NULL,
+  `wallet_id` int(10) unsigned NOT NULL,
+  PRIMARY KEY (`change_id`)
+) ENGINE=MyISAM DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
 CREATE INDEX `ix_wallet_id` ON `address_p2pkh` (`wallet_id`);
 
 CREATE INDEX `ix_wallet_id` ON `address_p2sh` (`wallet_id`);
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.facade.DbQueryInput;
+import com.sliva.btc.scanner.db.facade.DbQueryTransaction;
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.util.Utils;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import org.mockito.Mock;
+import static org.mockito.Mockito.times;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ *
+ * @author Sliva Co
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DbQueriesTest {
+
+    @Mock
+    private DbQueryInput queryInput;
+    @Mock
+    private DbQueryTransaction queryTransaction;
+    private DbQueries instance;
+    private final Map<Integer, Set<Integer>> inputAddresses = new HashMap<>();
+    private final Map<Integer, Set<Integer>> spendingTransactions = new HashMap<>();
+    private long spendingQueryDelayMsec;
+
+    @Before
+    public void setUp() {
+        instance = new DbQueries(queryInput, queryTransaction);
+        given(queryInput.getInputAddresses(anyCollection())).willAnswer(i -> i.<Collection<Integer>>getArgument(0).stream()
+                .flatMap(t -> inputAddresses.getOrDefault(t, Collections.emptySet()).stream())
+                .map(a -> BtcAddress.builder().addressId(a).build())
+                .collect(Collectors.toList()));
+        given(queryTransaction.getSpendingTransactionsByAddresses(anyCollection())).willAnswer(i -> {
+            Utils.sleep(spendingQueryDelayMsec);
+            return i.<Collection<Integer>>getArgument(0).stream()
+                    .flatMap(a -> spendingTransactions.getOrDefault(a, Collections.emptySet()).stream())
+                    .collect(Collectors.toSet());
+        });
+    }
+
+    @Test
+    public void testGetRelatedAddresses() {
+        spend(1, 10, 11);
+        spend(2, 11, 12);
+        spend(3, 12, 13);
+        spend(4, 14);
+        assertEquals(ids(10, 11, 12, 13), addressIds(instance.getRelatedAddresses(1, Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testGetRelatedAddresses_maxDepth() {
+        spend(1, 10, 11);
+        spend(2, 11, 12);
+        spend(3, 12, 13);
+        assertEquals(ids(10, 11), addressIds(instance.getRelatedAddresses(1, 1, Integer.MAX_VALUE, Long.MAX_VALUE)));
+        assertEquals(ids(10, 11, 12), addressIds(instance.getRelatedAddresses(1, 2, Integer.MAX_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testGetRelatedAddresses_maxAddressesInWideLevel() {
+        buildWideGraph(3000);
+        assertEquals(1500, instance.getRelatedAddresses(1, Integer.MAX_VALUE, 1500, Long.MAX_VALUE).size());
+        //1 query for the first level and 2 of 3 chunk queries of the wide level
+        then(queryInput).should(times(3)).getInputAddresses(anyCollection());
+    }
+
+    @Test
+    public void testGetRelatedAddresses_maxAddressesBetweenChunks() {
+        buildWideGraph(3000);
+        assertEquals(1001, instance.getRelatedAddresses(1, Integer.MAX_VALUE, 1001, Long.MAX_VALUE).size());
+        then(queryInput).should(times(2)).getInputAddresses(anyCollection());
+    }
+
+    @Test
+    public void testGetRelatedAddresses_maxMillis() {
+        buildWideGraph(3000);
+        spendingQueryDelayMsec = 20;
+        assertEquals(ids(1), addressIds(instance.getRelatedAddresses(1, Integer.MAX_VALUE, Integer.MAX_VALUE, 10)));
+        then(queryInput).should(times(1)).getInputAddresses(anyCollection());
+    }
+
+    /**
+     * Transaction 1 spends address 1, which is also spent by transactions
+     * 2..width+1, each of them spending its own new address.
+     */
+    private void buildWideGraph(int width) {
+        spend(1, 1);
+        IntStream.rangeClosed(2, width + 1).forEach(t -> spend(t, 1, 100_000 + t));
+    }
+
+    private void spend(int transactionId, int... addressIds) {
+        for (int a : addressIds) {
+            inputAddresses.computeIfAbsent(transactionId, t -> new HashSet<>()).add(a);
+            spendingTransactions.computeIfAbsent(a, t -> new HashSet<>()).add(transactionId);
+        }
+    }
+
+    private static Set<Integer> ids(int... addressIds) {
+        return IntStream.of(addressIds).boxed().collect(Collectors.toSet());
+    }
+
+    private static Set<Integer> addressIds(Collection<BtcAddress> addresses) {
+        return addresses.stream().map(BtcAddress::getAddressId).collect(Collectors.toSet());
+    }
+}
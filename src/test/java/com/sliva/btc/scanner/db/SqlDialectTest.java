@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.util.Optional;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class SqlDialectTest {
+
+    @Test
+    public void testFromUrl() {
+        assertEquals(SqlDialect.MYSQL, SqlDialect.fromUrl("jdbc:mysql://localhost:3306/btc"));
+        assertEquals(SqlDialect.POSTGRESQL, SqlDialect.fromUrl("jdbc:postgresql://localhost:5432/btc"));
+    }
+
+    @Test
+    public void testTranslate_mysql() {
+        String query = "SELECT IFNULL(max(`transaction_id`),0) FROM `output`";
+        assertEquals(query, SqlDialect.MYSQL.translate(query));
+    }
+
+    @Test
+    public void testTranslate_postgresql() {
+        assertEquals("SELECT COALESCE(max(\"transaction_id\"),0) FROM \"output\"",
+                SqlDialect.POSTGRESQL.translate("SELECT IFNULL(max(`transaction_id`),0) FROM `output`"));
+        assertEquals("SELECT address_id FROM address_p2pkh WHERE address=?",
+                SqlDialect.POSTGRESQL.translate("SELECT address_id FROM address_p2pkh WHERE CAST(address AS BINARY)=?"));
+        assertEquals("SELECT CAST(count(*) AS INTEGER) FROM input",
+                SqlDialect.POSTGRESQL.translate("SELECT count(*) FROM input"));
+    }
+
+    @Test
+    public void testGetCopyCommand() {
+        String query = SqlDialect.POSTGRESQL.translate("INSERT INTO `output`(transaction_id,pos,address_id,amount,spent)VALUES(?,?,?,?,?)");
+        assertEquals(Optional.of("COPY \"output\"(transaction_id,pos,address_id,amount,spent) FROM STDIN"), SqlDialect.POSTGRESQL.getCopyCommand(query));
+        assertEquals(Optional.empty(), SqlDialect.MYSQL.getCopyCommand(query));
+        assertEquals(Optional.empty(), SqlDialect.POSTGRESQL.getCopyCommand(
+                "INSERT INTO tmp_output_update(transaction_id,pos,value)VALUES(?,?,?) ON CONFLICT(transaction_id,pos) DO UPDATE SET value=EXCLUDED.value"));
+        assertEquals(Optional.empty(), SqlDialect.POSTGRESQL.getCopyCommand("UPDATE input SET pos=? WHERE transaction_id=?"));
+    }
+
+    @Test
+    public void testGetInsertSkippingDuplicates() {
+        String query = "INSERT INTO `output`(transaction_id, pos,address_id)VALUES(?,?,?)";
+        assertEquals(Optional.of("INSERT INTO `output`(transaction_id, pos,address_id)VALUES(?,?,?) ON DUPLICATE KEY UPDATE transaction_id=transaction_id"),
+                SqlDialect.MYSQL.getInsertSkippingDuplicates(query));
+        assertEquals(Optional.of("INSERT INTO \"output\"(transaction_id, pos,address_id)VALUES(?,?,?) ON CONFLICT DO NOTHING"),
+                SqlDialect.POSTGRESQL.getInsertSkippingDuplicates(SqlDialect.POSTGRESQL.translate(query)));
+        assertEquals(Optional.empty(), SqlDialect.MYSQL.getInsertSkippingDuplicates("INSERT INTO t(id,v)VALUES(?,?) ON DUPLICATE KEY UPDATE v=VALUES(v)"));
+        assertEquals(Optional.empty(), SqlDialect.MYSQL.getInsertSkippingDuplicates("UPDATE input SET pos=? WHERE transaction_id=?"));
+    }
+
+    @Test
+    public void testAppendCopyRow() {
+        StringBuilder sb = new StringBuilder();
+        SqlDialect.appendCopyRow(sb, new Object[]{1, 2L, new byte[]{0x0A, (byte) 0xFF}, true, null, "a\tb\\c\n"});
+        assertEquals("1\t2\t\\\\x0aff\tt\t\\N\ta\\tb\\\\c\\n\n", sb.toString());
+    }
+}
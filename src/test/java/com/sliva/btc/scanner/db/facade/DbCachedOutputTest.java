@@ -17,6 +17,7 @@ package com.sliva.btc.scanner.db.facade;
 
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.SqlDialect;
 import com.sliva.btc.scanner.db.model.InOutKey;
 import com.sliva.btc.scanner.db.model.TxOutput;
 import com.sliva.btc.scanner.db.utils.DBMetaData;
@@ -63,7 +64,6 @@ public class DbCachedOutputTest {
     private Statement statement;
     //@Spy
     private DbCachedOutput instance;
-    private DbUpdateOutput.CacheData updateOutputCacheData = new DbUpdateOutput.CacheData();
 
     private final int transactionId = 1;
     private final short pos = 2;
@@ -93,13 +93,13 @@ public class DbCachedOutputTest {
         //when(statement.executeUpdate(any(String.class))).thenReturn(1);
         given(connection.createStatement()).willReturn(statement);
         given(dbConn.get()).willReturn(connection);
+        given(dbConn.getDialect()).willReturn(SqlDialect.MYSQL);
         given(dbMetaData.hasField(any())).willReturn(Boolean.TRUE);
         given(dbConn.getDBMetaData()).willReturn(dbMetaData);
         //when(dbConn.prepareStatement(any(String.class))).thenReturn(preparedStatement);
         given(dbConn.prepareStatement(any(), any())).willReturn(preparedStatement);
-        given(updateOutput.getCacheData()).willReturn(updateOutputCacheData);
         given(updateOutput.isActive()).willReturn(Boolean.TRUE);
-        instance = Mockito.spy(new DbCachedOutput(dbConn));
+        instance = Mockito.spy(new DbCachedOutput(dbConn, DbStores.NONE));
         FieldSetter.setField(instance, DbCachedOutput.class.getDeclaredField("queryOutput"), queryOutput);
         FieldSetter.setField(instance, DbCachedOutput.class.getDeclaredField("updateOutput"), updateOutput);
     }
@@ -118,7 +118,6 @@ public class DbCachedOutputTest {
 
     @Test
     public void testDelete() {
-        given(updateOutput.delete(any())).willReturn(Boolean.TRUE);
         instance.delete(txOutput);
         then(updateOutput).should().delete(txOutput);
         assertNotInCache(txOutput);
@@ -131,7 +130,6 @@ public class DbCachedOutputTest {
 
     @Test
     public void testDelete_removed_from_cache() {
-        given(updateOutput.delete(any())).willReturn(Boolean.TRUE);
         instance.add(txOutput);
         instance.delete(txOutput);
         assertNotInCache(key);
@@ -215,6 +213,15 @@ public class DbCachedOutputTest {
         then(queryOutput).shouldHaveNoMoreInteractions();
     }
 
+    @Test
+    public void testGetOutput_InOutKey_delete_pending() {
+        given(updateOutput.isDeletePending(key)).willReturn(Boolean.TRUE);
+        Optional<TxOutput> result = instance.getOutput(key);
+        assertEquals(Optional.empty(), result);
+        assertInCache(key, null);
+        then(queryOutput).shouldHaveNoInteractions();
+    }
+
     @Test
     public void testGetOutput_InOutKey_not_found() {
         given(queryOutput.getOutput(key)).willReturn(Optional.empty());
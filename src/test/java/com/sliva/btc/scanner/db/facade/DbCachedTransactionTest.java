@@ -17,6 +17,7 @@ package com.sliva.btc.scanner.db.facade;
 
 import com.sliva.btc.scanner.db.DBConnectionSupplier;
 import com.sliva.btc.scanner.db.DBPreparedStatement;
+import com.sliva.btc.scanner.db.SqlDialect;
 import com.sliva.btc.scanner.db.model.BtcTransaction;
 import com.sliva.btc.scanner.db.model.TXID;
 import com.sliva.btc.scanner.db.utils.DBMetaData;
@@ -92,12 +93,13 @@ public class DbCachedTransactionTest {
 //        given(statement.execute(any(String.class))).willReturn(Boolean.TRUE);
         given(connection.createStatement()).willReturn(statement);
         given(dbConn.get()).willReturn(connection);
+        given(dbConn.getDialect()).willReturn(SqlDialect.MYSQL);
 //        given(dbMetaData.hasField(any())).willReturn(Boolean.TRUE);
-//        given(dbConn.getDBMetaData()).willReturn(dbMetaData);
+        given(dbConn.getDBMetaData()).willReturn(dbMetaData);
         given(dbConn.prepareStatement(any(), any())).willReturn(preparedStatement);
 //        given(updateTransaction.getFromCache(any())).willReturn(null);
         given(updateTransaction.isActive()).willReturn(Boolean.TRUE);
-        instance = Mockito.spy(new DbCachedTransaction(dbConn));
+        instance = Mockito.spy(new DbCachedTransaction(dbConn, DbStores.NONE));
         FieldSetter.setField(instance, DbCachedTransaction.class.getDeclaredField("queryTransaction"), queryTransaction);
         FieldSetter.setField(instance, DbCachedTransaction.class.getDeclaredField("updateTransaction"), updateTransaction);
     }
@@ -170,6 +172,7 @@ public class DbCachedTransactionTest {
         then(queryTransaction).should().findTransaction(transactionId);
         then(queryTransaction).shouldHaveNoMoreInteractions();
         then(updateTransaction).should().getFromCache(transactionId);
+        then(updateTransaction).should().isDeletePending(transactionId);
         then(updateTransaction).shouldHaveNoMoreInteractions();
         assertEquals(Optional.of(btcTransactionWithId), instance.getIfPresentInCache(txid));
     }
@@ -183,6 +186,7 @@ public class DbCachedTransactionTest {
         then(queryTransaction).should().findTransaction(transactionId);
         then(queryTransaction).shouldHaveNoMoreInteractions();
         then(updateTransaction).should().getFromCache(transactionId);
+        then(updateTransaction).should().isDeletePending(transactionId);
         then(updateTransaction).shouldHaveNoMoreInteractions();
     }
 
@@ -195,6 +199,7 @@ public class DbCachedTransactionTest {
         then(queryTransaction).should().findTransaction(txid);
         then(queryTransaction).shouldHaveNoMoreInteractions();
         then(updateTransaction).should().getFromCache(txid);
+        then(updateTransaction).should().isDeletePending(transactionId);
         then(updateTransaction).shouldHaveNoMoreInteractions();
         assertEquals(Optional.of(btcTransactionWithId), instance.getIfPresentInCache(txid));
     }
@@ -220,6 +225,7 @@ public class DbCachedTransactionTest {
         then(queryTransaction).should().findTransactionId(txid);
         then(queryTransaction).shouldHaveNoMoreInteractions();
         then(updateTransaction).should().getFromCache(txid);
+        then(updateTransaction).should().isDeletePending(transactionId);
         then(updateTransaction).shouldHaveNoMoreInteractions();
         assertEquals(expResult, instance.getIfPresentInCache(txid));
     }
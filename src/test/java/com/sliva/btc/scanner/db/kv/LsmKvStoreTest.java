@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.kv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class LsmKvStoreTest {
+
+    private static final int N = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutGetDelete() throws Exception {
+        try (LsmKvStore instance = new LsmKvStore(folder.newFolder(), 1024 * 1024, 4)) {
+            instance.write(new KvWriteBatch()
+                    .put(KvColumnFamily.OUTPUT, KvCodec.encodeInt(1), KvCodec.encodeInt(10))
+                    .put(KvColumnFamily.BLOCK, KvCodec.encodeInt(1), KvCodec.encodeInt(20)));
+            assertEquals(10, KvCodec.decodeInt(instance.get(KvColumnFamily.OUTPUT, KvCodec.encodeInt(1)).get()));
+            assertEquals(20, KvCodec.decodeInt(instance.get(KvColumnFamily.BLOCK, KvCodec.encodeInt(1)).get()));
+            assertFalse(instance.get(KvColumnFamily.SPENT_BY, KvCodec.encodeInt(1)).isPresent());
+            instance.write(new KvWriteBatch().delete(KvColumnFamily.OUTPUT, KvCodec.encodeInt(1)));
+            assertFalse(instance.get(KvColumnFamily.OUTPUT, KvCodec.encodeInt(1)).isPresent());
+        }
+    }
+
+    @Test
+    public void testFlushCompactAndReopen() throws Exception {
+        File dir = folder.newFolder();
+        try (LsmKvStore instance = new LsmKvStore(dir, 4096, 2)) {
+            for (int i = 0; i < N; i++) {
+                instance.write(new KvWriteBatch().put(KvColumnFamily.TRANSACTION_ID, KvCodec.encodeInt(i), KvCodec.encodeInt(i * 2)));
+            }
+            for (int i = 0; i < N; i += 3) {
+                instance.write(new KvWriteBatch().delete(KvColumnFamily.TRANSACTION_ID, KvCodec.encodeInt(i)));
+            }
+            for (int i = 0; i < N; i++) {
+                assertEquals(expected(i), instance.get(KvColumnFamily.TRANSACTION_ID, KvCodec.encodeInt(i)).map(KvCodec::decodeInt));
+            }
+            File[] tables = new File(dir, KvColumnFamily.TRANSACTION_ID.getName()).listFiles();
+            assertTrue(tables.length > 0 && tables.length < N * 8 / 4096);
+        }
+        try (LsmKvStore instance = new LsmKvStore(dir, 4096, 2)) {
+            for (int i = 0; i < N; i++) {
+                assertEquals(expected(i), instance.get(KvColumnFamily.TRANSACTION_ID, KvCodec.encodeInt(i)).map(KvCodec::decodeInt));
+            }
+        }
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        try (LsmKvStore instance = new LsmKvStore(folder.newFolder(), 4096, 4)) {
+            for (int i = N - 1; i >= 0; i--) {
+                instance.write(new KvWriteBatch().put(KvColumnFamily.OUTPUT, KvCodec.encodeOutPoint(i, (short) 1), KvCodec.encodeInt(i)));
+            }
+            instance.write(new KvWriteBatch().delete(KvColumnFamily.OUTPUT, KvCodec.encodeOutPoint(N - 2, (short) 1)));
+            List<Integer> result = new ArrayList<>();
+            instance.scan(KvColumnFamily.OUTPUT, KvCodec.encodeOutPoint(N - 10, (short) 0), (k, v) -> {
+                assertArrayEquals(KvCodec.encodeOutPoint(KvCodec.decodeInt(v), (short) 1), k);
+                return result.add(KvCodec.decodeInt(v)) && result.size() < 8;
+            });
+            List<Integer> expected = new ArrayList<>();
+            for (int i = N - 10; i < N; i++) {
+                if (i != N - 2) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected.subList(0, 8), result);
+        }
+    }
+
+    private static Optional<Integer> expected(int i) {
+        return i % 3 == 0 ? Optional.empty() : Optional.of(i * 2);
+    }
+}
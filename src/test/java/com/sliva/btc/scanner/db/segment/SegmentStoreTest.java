@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.segment;
+
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class SegmentStoreTest {
+
+    private static final int N = 10_000;
+    private static final int M = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File dir = folder.newFolder();
+        try (SegmentStore instance = new SegmentStore(dir, 4)) {
+            writeSegment(instance, 0, 1, 1, N);
+            writeSegment(instance, 2, 3, N + 1, N + M);
+            assertEquals(3, instance.getLastBlockHeight());
+            assertEquals(N + M, instance.getLastTransactionId());
+            assertRead(instance);
+        }
+        try (SegmentStore instance = new SegmentStore(dir, 4)) {
+            assertRead(instance);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotContinuousSegment() throws Exception {
+        try (SegmentStore instance = new SegmentStore(folder.newFolder(), 4)) {
+            writeSegment(instance, 0, 1, 1, M);
+            writeSegment(instance, 3, 4, M + 1, M + M);
+        }
+    }
+
+    @Test
+    public void testSortPairs() {
+        Random random = new Random(1);
+        long[] keys = new long[N];
+        long[] values = new long[N];
+        for (int i = 0; i < N; i++) {
+            keys[i] = random.nextInt(N / 10) - N / 20;
+            values[i] = keys[i] * 3;
+        }
+        SegmentWriter.sortPairs(keys, values, 0, N);
+        for (int i = 0; i < N; i++) {
+            assertTrue(i == 0 || keys[i - 1] <= keys[i]);
+            assertEquals(keys[i] * 3, values[i]);
+        }
+    }
+
+    @Test
+    public void testColumnCodec() {
+        Random random = new Random(1);
+        long[][] columns = {
+            new long[]{5},
+            new long[]{Long.MIN_VALUE, Long.MAX_VALUE, 0, -1, Long.MAX_VALUE},
+            random.longs(1000, 0, 3).toArray(),
+            random.longs(1000).toArray(),
+            random.longs(1000).sorted().toArray()};
+        for (long[] column : columns) {
+            ByteBuffer bb = ByteBuffer.wrap(ColumnCodec.encode(column, column.length));
+            assertArrayEquals(column, ColumnCodec.decode(bb, column.length));
+            assertFalse(bb.hasRemaining());
+        }
+    }
+
+    private static void assertRead(SegmentStore instance) {
+        assertFalse(instance.contains(0));
+        assertTrue(instance.contains(N));
+        assertTrue(instance.contains(N + M));
+        assertFalse(instance.contains(N + M + 1));
+        assertEquals(N, instance.getSegmentLastTransactionId(1));
+        assertEquals(Long.MAX_VALUE, instance.getSegmentLastTransactionId(N + M + 1));
+        for (int i = 1; i <= N + M; i += 97) {
+            BtcTransaction t = instance.findTransaction(i).get();
+            assertEquals(i, t.getTransactionId());
+            assertEquals(i > N ? 2 : 0, t.getBlockHeight());
+            assertArrayEquals(txid(i), t.getTxid().getData());
+            assertEquals(Optional.of(i), instance.findTransactionId(txid(i)));
+            List<TxOutput> outputs = instance.findOutputs(i);
+            assertEquals(2, outputs.size());
+            assertEquals(i * 10L + 1, outputs.get(1).getAmount());
+            assertEquals(i, instance.findOutput(i, (short) 1).get().getAddressId());
+            assertEquals(i == 1 ? 0 : 1, instance.findInputs(i).size());
+        }
+        assertFalse(instance.findTransactionId(txid(0)).isPresent());
+        assertEquals(N + 1, instance.findInputByOutTx(1, (short) 1).get().getTransactionId());
+        assertEquals(N, instance.findInputByOutTx(N - 1, (short) 0).get().getTransactionId());
+        assertFalse(instance.findInputByOutTx(N + M, (short) 0).isPresent());
+        assertEquals(M + 6, instance.getTransactions(N - 5, N + M + 5).size());
+        List<TxOutput> outputs = new ArrayList<>();
+        instance.scanOutputs(N - 1, N + 1, outputs::add);
+        assertEquals(6, outputs.size());
+        List<TxInput> inputs = new ArrayList<>();
+        instance.scanSpendingInputs(1, N, inputs::add);
+        assertEquals(N + M - 1, inputs.size());
+    }
+
+    private static void writeSegment(SegmentStore store, int fromHeight, int toHeight, int fromTransactionId, int toTransactionId) throws Exception {
+        try (SegmentWriter writer = new SegmentWriter(store.newSegmentFile(fromHeight, toHeight), fromHeight, toHeight)) {
+            for (int i = fromTransactionId; i <= toTransactionId; i++) {
+                writer.addTransaction(BtcTransaction.builder().transactionId(i).txid(txid(i)).blockHeight(fromHeight).nInputs(1).nOutputs(2).build());
+                for (short pos = 0; pos < 2; pos++) {
+                    writer.addOutput(TxOutput.builder().transactionId(i).pos(pos).addressId(i * pos).amount(i * 10L + pos).build());
+                }
+                if (i > N) {
+                    writer.addInput(TxInput.builder().transactionId(i).pos((short) 0).inTransactionId(i - N).inPos((short) 1).build());
+                } else if (i > 1) {
+                    writer.addInput(TxInput.builder().transactionId(i).pos((short) 0).inTransactionId(i - 1).inPos((short) 0).build());
+                }
+            }
+            store.add(writer.finish());
+        }
+    }
+
+    private static byte[] txid(int transactionId) {
+        byte[] txid = new byte[SegmentChunk.HASH_SIZE];
+        new Random(transactionId).nextBytes(txid);
+        return txid;
+    }
+}
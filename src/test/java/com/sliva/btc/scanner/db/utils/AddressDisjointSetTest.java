@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import java.util.EnumMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class AddressDisjointSetTest {
+
+    @Test
+    public void testIndexAndUnion() {
+        Map<SrcAddressType, Integer> lastAddressIds = new EnumMap<>(SrcAddressType.class);
+        lastAddressIds.put(SrcAddressType.P2PKH, BtcAddress.ADDR_P2PKH_MIN + 9);
+        lastAddressIds.put(SrcAddressType.P2WSH, BtcAddress.ADDR_P2WSH_MIN + 4);
+        AddressDisjointSet instance = new AddressDisjointSet(lastAddressIds);
+        assertEquals(15, instance.size());
+        assertEquals(0, instance.getIndex(BtcAddress.ADDR_P2PKH_MIN));
+        assertEquals(10, instance.getIndex(BtcAddress.ADDR_P2WSH_MIN));
+        assertEquals(-1, instance.getIndex(BtcAddress.ADDR_P2PKH_MIN + 10));
+        assertEquals(-1, instance.getIndex(BtcAddress.ADDR_P2SH_MIN));
+        assertEquals(-1, instance.getIndex(0));
+
+        int a1 = BtcAddress.ADDR_P2PKH_MIN + 1;
+        int a2 = BtcAddress.ADDR_P2WSH_MIN + 2;
+        int a3 = BtcAddress.ADDR_P2PKH_MIN + 3;
+        assertFalse(instance.isMember(a1));
+        assertTrue(instance.union(a1, a2));
+        assertTrue(instance.isMember(a1));
+        assertTrue(instance.isMember(a2));
+        assertEquals(instance.find(a1), instance.find(a2));
+        instance.add(a3);
+        assertTrue(instance.isMember(a3));
+        assertNotEquals(instance.find(a1), instance.find(a3));
+        assertTrue(instance.union(a3, a2));
+        assertFalse(instance.union(a1, a3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotCovered() {
+        Map<SrcAddressType, Integer> lastAddressIds = new EnumMap<>(SrcAddressType.class);
+        lastAddressIds.put(SrcAddressType.P2PKH, BtcAddress.ADDR_P2PKH_MIN);
+        new AddressDisjointSet(lastAddressIds).add(BtcAddress.ADDR_P2SH_MIN);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import com.sliva.btc.scanner.db.DBPreparedStatement;
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+/**
+ *
+ * @author Sliva Co
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BatchExecutorTest {
+
+    private static final BiConsumer<Integer, DBPreparedStatement.ParamSetter> FILL_CALLBACK = (t, p) -> p.setInt(t);
+
+    @Mock
+    private DBPreparedStatement ps;
+    @Mock
+    private DBPreparedStatement psSkippingDuplicates;
+    private final List<Integer> batch = new ArrayList<>();
+    private final Collection<Integer> executed = new ArrayList<>();
+    private int executeBatchCalls;
+
+    @Before
+    public void setUp() {
+        given(ps.setParameters(any(Integer.class), any())).willAnswer(i -> {
+            batch.add(i.getArgument(0));
+            return ps;
+        });
+    }
+
+    @Test
+    public void testExecuteBatch() {
+        stubExecuteBatch(Arrays.asList());
+        List<Integer> list = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        assertEquals(0, BatchExecutor.executeBatch(list, ps, FILL_CALLBACK));
+        assertEquals(1, executeBatchCalls);
+        assertEquals(list, executed);
+    }
+
+    @Test
+    public void testExecuteBatch_bisect() {
+        List<Integer> badRows = Arrays.asList(13, 14, 77);
+        stubExecuteBatch(badRows);
+        willAnswer(i -> {
+            batch.clear();
+            return null;
+        }).given(ps).clearBatch();
+        List<Integer> list = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        Collection<Integer> failed = new ArrayList<>();
+        assertEquals(badRows.size(), BatchExecutor.executeBatch(list, ps, FILL_CALLBACK, failed));
+        assertEquals(badRows, failed);
+        assertEquals(list.size() - badRows.size(), executed.size());
+        assertTrue(executed.stream().noneMatch(badRows::contains));
+        assertTrue("Too many batches executed: " + executeBatchCalls, executeBatchCalls < 2 * badRows.size() * 10 + 1);
+    }
+
+    @Test
+    public void testExecuteBatch_partiallyApplied() {
+        //non-transactional table: rows before the bad row are applied, applied rows fail with duplicate key on retry
+        Integer badRow = 500;
+        given(ps.getQuery()).willReturn("INSERT INTO t(id)VALUES(?)");
+        given(ps.skippingDuplicates()).willReturn(Optional.of(psSkippingDuplicates));
+        given(psSkippingDuplicates.setParameters(any(Integer.class), any())).willAnswer(i -> {
+            batch.add(i.getArgument(0));
+            return psSkippingDuplicates;
+        });
+        stubNonTransactionalExecuteBatch(ps, badRow, false);
+        stubNonTransactionalExecuteBatch(psSkippingDuplicates, badRow, true);
+        List<Integer> list = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        Collection<Integer> failed = new ArrayList<>();
+        assertEquals(1, BatchExecutor.executeBatch(list, ps, FILL_CALLBACK, failed));
+        assertEquals(Arrays.asList(badRow), failed);
+        assertEquals(list.size() - 1, executed.size());
+        int maxBatches = 2 * (32 - Integer.numberOfLeadingZeros(list.size())) + 4;
+        assertTrue("Too many batches executed: " + executeBatchCalls, executeBatchCalls <= maxBatches);
+    }
+
+    @Test
+    public void testGetAppliedCount() {
+        assertEquals(0, BatchExecutor.getAppliedCount(new IllegalStateException(), 10));
+        assertEquals(0, BatchExecutor.getAppliedCount(new BatchUpdateException(new int[]{1, 1, Statement.EXECUTE_FAILED, 1}, null), 4));
+        assertEquals(3, BatchExecutor.getAppliedCount(new BatchUpdateException(new int[]{1, Statement.SUCCESS_NO_INFO, 1}, null), 10));
+        assertEquals(1, BatchExecutor.getAppliedCount(new BatchUpdateException(new int[]{1, Statement.EXECUTE_FAILED}, null), 10));
+    }
+
+    private void stubNonTransactionalExecuteBatch(DBPreparedStatement statement, Integer badRow, boolean skipDuplicates) {
+        willAnswer(i -> {
+            executeBatchCalls++;
+            try {
+                for (Integer row : batch) {
+                    if (row.equals(badRow)) {
+                        throw new BatchUpdateException(new int[0], new SQLException("Data truncated", "01000", 1265));
+                    }
+                    if (!executed.contains(row)) {
+                        executed.add(row);
+                    } else if (!skipDuplicates) {
+                        throw new BatchUpdateException(new int[0], new SQLException("Duplicate entry", "23000", 1062));
+                    }
+                }
+                return null;
+            } finally {
+                batch.clear();
+            }
+        }).given(statement).executeBatch();
+        willAnswer(i -> {
+            batch.clear();
+            return null;
+        }).given(statement).clearBatch();
+    }
+
+    private void stubExecuteBatch(Collection<Integer> badRows) {
+        willAnswer(i -> {
+            executeBatchCalls++;
+            try {
+                if (batch.stream().anyMatch(badRows::contains)) {
+                    throw new IllegalStateException("Duplicate entry");
+                }
+                executed.addAll(batch);
+                return null;
+            } finally {
+                batch.clear();
+            }
+        }).given(ps).executeBatch();
+    }
+}
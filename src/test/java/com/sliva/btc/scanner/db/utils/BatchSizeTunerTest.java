@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class BatchSizeTunerTest {
+
+    private static final int MIN_BATCH_SIZE = 1000;
+    private static final int MAX_BATCH_SIZE = 17000;
+    private static final int MAX_CONCURRENCY = 4;
+    private static final long TARGET_LATENCY = TimeUnit.SECONDS.toNanos(2);
+
+    @Test
+    public void testInitialValues() {
+        BatchSizeTuner instance = new BatchSizeTuner(MIN_BATCH_SIZE, MAX_BATCH_SIZE, MAX_CONCURRENCY, TARGET_LATENCY);
+        assertEquals(MAX_BATCH_SIZE, instance.getBatchSize());
+        assertEquals(MAX_CONCURRENCY, instance.getConcurrency());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstance_fail_bounds() {
+        new BatchSizeTuner(MAX_BATCH_SIZE, MIN_BATCH_SIZE, MAX_CONCURRENCY, TARGET_LATENCY);
+    }
+
+    @Test
+    public void testOnBatchExecuted_decrease() {
+        BatchSizeTuner instance = new BatchSizeTuner(MIN_BATCH_SIZE, MAX_BATCH_SIZE, MAX_CONCURRENCY, TARGET_LATENCY);
+        instance.onBatchExecuted(MAX_BATCH_SIZE, TARGET_LATENCY * 2);
+        assertEquals(MAX_BATCH_SIZE / 2, instance.getBatchSize());
+        assertEquals(MAX_CONCURRENCY / 2, instance.getConcurrency());
+        for (int i = 0; i < 10; i++) {
+            instance.onBatchExecuted(MAX_BATCH_SIZE, TARGET_LATENCY * 2);
+        }
+        assertEquals(MIN_BATCH_SIZE, instance.getBatchSize());
+        assertEquals(1, instance.getConcurrency());
+    }
+
+    @Test
+    public void testOnBatchExecuted_increase() {
+        BatchSizeTuner instance = new BatchSizeTuner(MIN_BATCH_SIZE, MAX_BATCH_SIZE, MAX_CONCURRENCY, TARGET_LATENCY);
+        instance.onBatchExecuted(MAX_BATCH_SIZE, TARGET_LATENCY * 2);
+        instance.onBatchExecuted(instance.getBatchSize(), TARGET_LATENCY / 4);
+        assertEquals(MAX_BATCH_SIZE / 2 + 1000, instance.getBatchSize());
+        assertEquals(MAX_CONCURRENCY / 2 + 1, instance.getConcurrency());
+        for (int i = 0; i < 100; i++) {
+            instance.onBatchExecuted(instance.getBatchSize(), TARGET_LATENCY / 4);
+        }
+        assertEquals(MAX_BATCH_SIZE, instance.getBatchSize());
+        assertEquals(MAX_CONCURRENCY, instance.getConcurrency());
+        assertTrue(instance.getRecordsPerSec() > 0);
+    }
+
+    @Test
+    public void testOnBatchExecuted_partial_batch_no_change() {
+        BatchSizeTuner instance = new BatchSizeTuner(MIN_BATCH_SIZE, MAX_BATCH_SIZE, MAX_CONCURRENCY, TARGET_LATENCY);
+        instance.onBatchExecuted(MAX_BATCH_SIZE, TARGET_LATENCY * 2);
+        instance.onBatchExecuted(10, TARGET_LATENCY / 4);
+        assertEquals(MAX_BATCH_SIZE / 2, instance.getBatchSize());
+        assertEquals(MAX_CONCURRENCY / 2, instance.getConcurrency());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class OutputOrdinalsTest {
+
+    @Test
+    public void testGetOrdinal() {
+        OutputOrdinals instance = new OutputOrdinals(10);
+        instance.add(10, 2);
+        instance.add(11, 0);
+        instance.add(13, 300);
+        instance.add(14, 1);
+        assertEquals(5, instance.getTransactionCount());
+        assertEquals(303, instance.getOutputCount());
+        assertEquals(0, instance.getOrdinal(10, (short) 0));
+        assertEquals(1, instance.getOrdinal(10, (short) 1));
+        assertEquals(-1, instance.getOrdinal(10, (short) 2));
+        assertEquals(-1, instance.getOrdinal(11, (short) 0));
+        assertEquals(-1, instance.getOrdinal(12, (short) 0));
+        assertEquals(2 + 299, instance.getOrdinal(13, (short) 299));
+        assertEquals(302, instance.getOrdinal(14, (short) 0));
+        assertEquals(-1, instance.getOrdinal(9, (short) 0));
+        assertEquals(-1, instance.getOrdinal(15, (short) 0));
+    }
+
+    @Test
+    public void testDenseOrdinals() {
+        Random random = new Random(1);
+        int n = 10_000;
+        int[] counts = new int[n];
+        OutputOrdinals instance = new OutputOrdinals(0);
+        for (int i = 0; i < n; i++) {
+            counts[i] = random.nextInt(10) == 0 ? random.nextInt(1000) : random.nextInt(5);
+            instance.add(i, counts[i]);
+        }
+        long expected = 0;
+        for (int i = 0; i < n; i++) {
+            for (int pos = 0; pos < counts[i]; pos++) {
+                assertEquals(expected++, instance.getOrdinal(i, (short) pos));
+            }
+        }
+        assertEquals(expected, instance.getOutputCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddOutOfOrder() {
+        OutputOrdinals instance = new OutputOrdinals(0);
+        instance.add(5, 1);
+        instance.add(5, 1);
+    }
+}
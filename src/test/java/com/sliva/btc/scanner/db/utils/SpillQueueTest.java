@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import com.sliva.btc.scanner.db.model.InOutKey;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class SpillQueueTest {
+
+    private static final SpillQueue.Serializer<TxOutput> SERIALIZER = new SpillQueue.Serializer<TxOutput>() {
+        @Override
+        public void write(TxOutput t, DataOutput out) throws IOException {
+            out.writeInt(t.getTransactionId());
+            out.writeShort(t.getPos());
+            out.writeLong(t.getAmount());
+        }
+
+        @Override
+        public TxOutput read(DataInput in) throws IOException {
+            return TxOutput.builder().transactionId(in.readInt()).pos(in.readShort()).amount(in.readLong()).build();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+    private SpillQueue<InOutKey, TxOutput> instance;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "spill.data");
+        instance = new SpillQueue<>(file, t -> new InOutKey(t.getTransactionId(), t.getPos()), SERIALIZER);
+    }
+
+    @After
+    public void tearDown() {
+        instance.close();
+    }
+
+    @Test
+    public void testPoll_order() {
+        List<TxOutput> list = IntStream.range(0, 1000).mapToObj(i -> output(i, i * 10L)).collect(Collectors.toList());
+        list.forEach(instance::put);
+        assertEquals(list.size(), instance.size());
+        List<TxOutput> result = instance.poll(600);
+        assertEquals(list.subList(0, 600), result);
+        assertEquals(list.subList(0, 600).stream().map(TxOutput::getAmount).collect(Collectors.toList()),
+                result.stream().map(TxOutput::getAmount).collect(Collectors.toList()));
+        assertEquals(list.subList(600, 1000), instance.poll(600));
+        assertTrue(instance.isEmpty());
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void testGet() {
+        instance.put(output(1, 100));
+        instance.put(output(2, 200));
+        assertEquals(200, instance.get(new InOutKey(2, (short) 0)).get().getAmount());
+        assertFalse(instance.get(new InOutKey(3, (short) 0)).isPresent());
+    }
+
+    @Test
+    public void testPut_replace() {
+        instance.put(output(1, 100));
+        instance.put(output(2, 200));
+        instance.put(output(1, 101));
+        assertEquals(2, instance.size());
+        assertEquals(101, instance.get(new InOutKey(1, (short) 0)).get().getAmount());
+        List<TxOutput> result = instance.poll(10);
+        assertEquals(Arrays.asList(output(2, 200), output(1, 101)), result);
+        assertEquals(101, result.get(1).getAmount());
+    }
+
+    @Test
+    public void testRemove() {
+        IntStream.range(0, 10).mapToObj(i -> output(i, i)).forEach(instance::put);
+        assertTrue(instance.remove(new InOutKey(3, (short) 0)));
+        assertFalse(instance.remove(new InOutKey(3, (short) 0)));
+        instance.removeIf(k -> k.getTransactionId() > 6);
+        assertEquals(Arrays.asList(0, 1, 2, 4, 5, 6), instance.poll(10).stream().map(TxOutput::getTransactionId).collect(Collectors.toList()));
+        assertEquals(Collections.emptyList(), instance.poll(10));
+    }
+
+    private static TxOutput output(int transactionId, long amount) {
+        return TxOutput.builder().transactionId(transactionId).pos((short) 0).amount(amount).build();
+    }
+}
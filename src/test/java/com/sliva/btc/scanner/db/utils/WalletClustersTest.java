@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class WalletClustersTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUnion() {
+        WalletClusters instance = new WalletClusters();
+        AtomicInteger lastWalletId = new AtomicInteger(100);
+        Map<Integer, Integer> assigned = new HashMap<>();
+        WalletClusters.Listener listener = assigned::put;
+        assertEquals(101, instance.union(new int[]{1000, 1001}, lastWalletId::incrementAndGet, listener));
+        assertEquals(102, instance.union(new int[]{2000}, lastWalletId::incrementAndGet, listener));
+        assertEquals(102, instance.union(new int[]{2001, 2000, 2002}, lastWalletId::incrementAndGet, listener));
+        assertEquals(3, instance.getSize(102));
+        assertEquals(5, assigned.size());
+        assigned.clear();
+        //smaller wallet 101 is relabeled
+        assertEquals(102, instance.union(new int[]{1000, 2001, 0x30000001}, lastWalletId::incrementAndGet, listener));
+        assertEquals(3, assigned.size());
+        assertTrue(assigned.values().stream().allMatch(w -> w == 102));
+        assertEquals(6, instance.getSize(102));
+        assertEquals(0, instance.getSize(101));
+        for (int addressId : new int[]{1000, 1001, 2000, 2001, 2002, 0x30000001}) {
+            assertEquals(102, instance.getWalletId(addressId));
+        }
+        assertEquals(0, instance.getWalletId(3000));
+        assertEquals(1, instance.getMergeCount());
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        WalletClusters instance = new WalletClusters();
+        instance.add(1000, 5);
+        instance.add(0x50000001, 5);
+        instance.add(2000, 7);
+        instance.setBlockHeight(123);
+        File file = new File(folder.getRoot(), "clusters");
+        instance.save(file);
+        WalletClusters loaded = WalletClusters.load(file);
+        assertEquals(123, loaded.getBlockHeight());
+        assertEquals(5, loaded.getWalletId(0x50000001));
+        assertEquals(2, loaded.getSize(5));
+        AtomicInteger relabeled = new AtomicInteger();
+        loaded.union(new int[]{2000, 1000}, () -> 0, (a, w) -> relabeled.incrementAndGet());
+        assertEquals(1, relabeled.get());
+        assertEquals(3, loaded.getSize(5));
+        assertEquals(5, loaded.getWalletId(2000));
+    }
+}
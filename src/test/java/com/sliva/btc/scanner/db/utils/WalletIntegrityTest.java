@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import com.sliva.btc.scanner.util.IntBitmap;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class WalletIntegrityTest {
+
+    @Test
+    public void testDiff() {
+        IntBitmap existing = bitmap(1, 2, 3, 5, 100_000);
+        IntBitmap p2pkh = bitmap(1, 4, 200_000);
+        IntBitmap p2sh = bitmap(3, 4, 7);
+        WalletIntegrity instance = new WalletIntegrity(existing, Arrays.asList(p2pkh, p2sh));
+        assertEquals(Arrays.asList(4, 7, 200_000), instance.getMissing());
+        assertEquals(Arrays.asList(2, 5, 100_000), instance.getUnused());
+    }
+
+    private static IntBitmap bitmap(int... values) {
+        IntBitmap result = new IntBitmap();
+        for (int v : values) {
+            result.add(v);
+        }
+        return result;
+    }
+}
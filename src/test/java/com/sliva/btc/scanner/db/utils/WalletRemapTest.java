@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class WalletRemapTest {
+
+    @Test
+    public void testResolve() {
+        WalletRemap instance = new WalletRemap();
+        assertEquals(5, instance.resolve(5));
+        assertEquals(2, instance.put(3, 2));
+        assertEquals(1, instance.put(2, 1));
+        assertEquals(1, instance.put(4, 3));
+        assertEquals(1, instance.resolve(3));
+        assertEquals(1, instance.resolve(4));
+        assertEquals(1, instance.put(4, 2));
+        assertEquals(3, instance.size());
+        assertEquals(new HashSet<>(Arrays.asList(2, 3, 4)), new HashSet<>(instance.getMergedWallets(1)));
+        assertEquals(Collections.emptyList(), instance.getMergedWallets(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutCycle() {
+        WalletRemap instance = new WalletRemap();
+        instance.put(2, 1);
+        instance.put(1, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutConflict() {
+        WalletRemap instance = new WalletRemap();
+        instance.put(3, 1);
+        instance.put(3, 2);
+    }
+
+    @Test
+    public void testRemoveAll() {
+        WalletRemap instance = new WalletRemap();
+        instance.put(2, 1);
+        instance.put(3, 2);
+        Map<Integer, Integer> resolved = instance.getResolved();
+        Map<Integer, Integer> expected = new HashMap<>();
+        expected.put(2, 1);
+        expected.put(3, 1);
+        assertEquals(expected, resolved);
+        instance.put(4, 1);
+        instance.removeAll(resolved.keySet());
+        assertEquals(1, instance.size());
+        assertEquals(1, instance.resolve(4));
+        assertEquals(3, instance.resolve(3));
+    }
+}
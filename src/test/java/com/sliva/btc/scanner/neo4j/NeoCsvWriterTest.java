@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.neo4j;
+
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxInput;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.IOUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class NeoCsvWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWrite() throws IOException {
+        File dir = folder.getRoot();
+        byte[] txid = new byte[32];
+        txid[0] = 0x0a;
+        try (NeoCsvWriter instance = new NeoCsvWriter(dir, "0000000001", NeoCsvWriter.CsvFile.TRANSACTION, NeoCsvWriter.CsvFile.OUTPUT,
+                NeoCsvWriter.CsvFile.OUTPUT_REL, NeoCsvWriter.CsvFile.INPUT_REL, NeoCsvWriter.CsvFile.WALLET_REL)) {
+            instance.addTransaction(BtcTransaction.builder().transactionId(7).txid(txid).blockHeight(3).nInputs(1).nOutputs(2).build());
+            instance.addOutput(7, (short) 0, "1abc", 150_000_000L, 5);
+            instance.addOutput(7, (short) 1, null, 1L, 0);
+            instance.addInput(TxInput.builder().transactionId(7).pos((short) 0).inTransactionId(2).inPos((short) 1).build());
+            assertEquals(1, instance.getTransactions());
+            assertEquals(7, instance.getMaxTransactionId());
+            assertEquals(1, instance.getSumInputs());
+            assertEquals(2, instance.getSumOutputs());
+        }
+        try (NeoCsvWriter instance = new NeoCsvWriter(dir, "0000000000", NeoCsvWriter.CsvFile.WALLET)) {
+            instance.addWallet(5, "My \"wallet\"");
+        }
+        assertEquals(Arrays.asList("7,0a" + String.join("", Collections.nCopies(31, "00")) + ",3,1,2"), read(new File(dir, "transaction-0000000001.csv.gz")));
+        assertEquals(Arrays.asList("700000,\"1abc\",1.50000000", "700001,\"Undefined\",0.00000001"), read(new File(dir, "output-0000000001.csv.gz")));
+        assertEquals(Arrays.asList("7,0,700000", "7,1,700001"), read(new File(dir, "output-rel-0000000001.csv.gz")));
+        assertEquals(Arrays.asList("200001,0,7"), read(new File(dir, "input-rel-0000000001.csv.gz")));
+        assertEquals(Arrays.asList("700000,5"), read(new File(dir, "wallet-rel-0000000001.csv.gz")));
+        assertEquals(Arrays.asList("5,\"My \"\"wallet\"\"\""), read(new File(dir, "wallet-0000000000.csv.gz")));
+    }
+
+    @Test
+    public void testWriteHeaders() throws IOException {
+        File dir = folder.getRoot();
+        NeoCsvWriter.writeHeaders(dir);
+        for (NeoCsvWriter.CsvFile f : NeoCsvWriter.CsvFile.values()) {
+            assertEquals(Arrays.asList(f.getHeader()), Files.readAllLines(new File(dir, f.getFileName() + "-header.csv").toPath()));
+        }
+        List<String> args = Files.readAllLines(new File(dir, NeoCsvWriter.ARGS_FILE_NAME).toPath());
+        assertTrue(args.contains("--nodes:Transaction \"transaction-header.csv,transaction-[0-9]+\\.csv\\.gz\""));
+        assertTrue(args.contains("--relationships:input \"input-rel-header.csv,input-rel-[0-9]+\\.csv\\.gz\""));
+    }
+
+    private static List<String> read(File file) throws IOException {
+        try (InputStreamReader in = new InputStreamReader(new GZIPInputStream(Files.newInputStream(file.toPath())), StandardCharsets.UTF_8)) {
+            return IOUtils.readLines(in);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.neo4j;
+
+import java.util.Arrays;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class NeoUploadBatchTest {
+
+    @Test
+    public void testParameters() {
+        NeoUploadBatch instance = new NeoUploadBatch(10, 20);
+        instance.addTransaction(10, "aa", 1, 1, 2);
+        instance.addTransaction(11, "bb", 1, 2, 1);
+        instance.addOutput(10, (short) 0, "1abc", 1.5, 7, "name");
+        instance.addOutput(10, (short) 1, "Undefined", 0.1, 0, null);
+        instance.addInput(11, (short) 0, 10, (short) 1);
+        assertFalse(instance.hasCrossRangeInputs());
+        instance.addInput(11, (short) 1, 5, (short) 3);
+        instance.addInput(10, (short) 0, 8, (short) 0);
+        assertTrue(instance.hasCrossRangeInputs());
+        assertEquals(8, instance.getMaxCrossRangeInTransactionId());
+        assertEquals(2, instance.getTransactions());
+
+        Map<String, Object> params = instance.getParameters();
+        assertArrayEquals(new long[]{10, 11}, (long[]) params.get("txIds"));
+        assertEquals(Arrays.asList("aa", "bb"), params.get("txHashes"));
+        assertArrayEquals(new long[]{1_000_000, 1_000_001}, (long[]) params.get("outIds"));
+        assertArrayEquals(new double[]{1.5, 0.1}, (double[]) params.get("outAmounts"), 0);
+        assertArrayEquals(new long[]{1_000_000}, (long[]) params.get("walletOutIds"));
+        assertArrayEquals(new int[]{7}, (int[]) params.get("walletIds"));
+        assertArrayEquals(new long[]{1_000_001}, (long[]) params.get("inOutIds"));
+        assertArrayEquals(new long[]{11}, (long[]) params.get("inTxIds"));
+
+        Map<String, Object> crossRange = instance.getCrossRangeParameters();
+        assertArrayEquals(new long[]{500_003, 800_000}, (long[]) crossRange.get("inOutIds"));
+        assertArrayEquals(new long[]{11, 10}, (long[]) crossRange.get("inTxIds"));
+        assertArrayEquals(new int[]{1, 0}, (int[]) crossRange.get("inPos"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfRange() {
+        new NeoUploadBatch(10, 20).addTransaction(21, "aa", 1, 1, 1);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class ConcurrentDisjointSetTest {
+
+    @Test
+    public void testUnionFind() {
+        ConcurrentDisjointSet instance = new ConcurrentDisjointSet(10);
+        assertEquals(10, instance.size());
+        assertTrue(instance.union(1, 2));
+        assertTrue(instance.union(3, 4));
+        assertTrue(instance.union(2, 4));
+        assertFalse(instance.union(1, 3));
+        assertTrue(instance.isSameSet(1, 4));
+        assertFalse(instance.isSameSet(1, 5));
+        assertEquals(5, instance.find(5));
+    }
+
+    @Test
+    public void testConcurrentAgainstSequential() throws Exception {
+        int size = 200_000;
+        int nEdges = 300_000;
+        int nThreads = 8;
+        for (long seed = 1; seed <= 3; seed++) {
+            Random random = new Random(seed);
+            int[][] edges = new int[nEdges][];
+            for (int i = 0; i < nEdges; i++) {
+                //skewed edges to build some large sets
+                int a = random.nextInt(size);
+                int b = random.nextBoolean() ? random.nextInt(size) : random.nextInt(1000);
+                edges[i] = new int[]{a, b};
+            }
+            DisjointSet reference = new DisjointSet(size);
+            int expectedUnions = 0;
+            for (int[] e : edges) {
+                if (reference.union(e[0], e[1])) {
+                    expectedUnions++;
+                }
+            }
+            ConcurrentDisjointSet instance = new ConcurrentDisjointSet(size);
+            AtomicInteger nUnions = new AtomicInteger();
+            ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < nThreads; t++) {
+                    int thread = t;
+                    futures.add(exec.submit(() -> {
+                        for (int i = thread; i < nEdges; i += nThreads) {
+                            if (instance.union(edges[i][0], edges[i][1])) {
+                                nUnions.incrementAndGet();
+                            }
+                            instance.find(edges[(i * 7) % nEdges][0]);
+                        }
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+            } finally {
+                exec.shutdown();
+            }
+            assertEquals(expectedUnions, nUnions.get());
+            Map<Integer, Integer> rootMap = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                int expectedRoot = reference.find(i);
+                int root = instance.find(i);
+                assertEquals("element " + i, (Integer) root, rootMap.computeIfAbsent(expectedRoot, r -> root));
+            }
+            assertEquals(size - expectedUnions, rootMap.size());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Disjoint-set (union-find) of dense int elements [0, size) backed by int
+ * array of parents and byte array of ranks. Find uses path compression and
+ * union is by rank, so a sequence of operations runs in nearly linear time.
+ * Single-threaded reference implementation that {@link ConcurrentDisjointSet}
+ * is checked against.
+ *
+ * #Not thread-safe
+ *
+ * @author Sliva Co
+ */
+public class DisjointSet {
+
+    private final int[] parent;
+    private final byte[] rank;
+
+    /**
+     * Create disjoint-set with each element in its own set.
+     *
+     * @param size number of elements
+     */
+    public DisjointSet(int size) {
+        checkArgument(size >= 0, "Argument 'size' is negative: %s", size);
+        this.parent = new int[size];
+        this.rank = new byte[size];
+        for (int i = 0; i < size; i++) {
+            parent[i] = i;
+        }
+    }
+
+    public int size() {
+        return parent.length;
+    }
+
+    /**
+     * Find representative element of the set containing the element.
+     *
+     * @param element element
+     * @return root element of the set
+     */
+    public int find(int element) {
+        int root = element;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        for (int e = element; parent[e] != root;) {
+            int next = parent[e];
+            parent[e] = root;
+            e = next;
+        }
+        return root;
+    }
+
+    /**
+     * Merge sets containing the two elements.
+     *
+     * @param element1 first element
+     * @param element2 second element
+     * @return true if elements were in different sets
+     */
+    public boolean union(int element1, int element2) {
+        int root1 = find(element1);
+        int root2 = find(element2);
+        if (root1 == root2) {
+            return false;
+        }
+        if (rank[root1] < rank[root2]) {
+            parent[root1] = root2;
+        } else if (rank[root1] > rank[root2]) {
+            parent[root2] = root1;
+        } else {
+            parent[root2] = root1;
+            rank[root1]++;
+        }
+        return true;
+    }
+
+    public boolean isSameSet(int element1, int element2) {
+        return find(element1) == find(element2);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class DisjointSetTest {
+
+    @Test
+    public void testUnionFind() {
+        DisjointSet instance = new DisjointSet(10);
+        assertEquals(10, instance.size());
+        assertFalse(instance.isSameSet(1, 2));
+        assertTrue(instance.union(1, 2));
+        assertTrue(instance.union(3, 4));
+        assertTrue(instance.union(2, 4));
+        assertFalse(instance.union(1, 3));
+        assertTrue(instance.isSameSet(1, 4));
+        assertEquals(instance.find(1), instance.find(3));
+        assertFalse(instance.isSameSet(1, 5));
+        assertEquals(5, instance.find(5));
+    }
+
+    @Test
+    public void testAgainstLabels() {
+        Random random = new Random(1);
+        int size = 2000;
+        DisjointSet instance = new DisjointSet(size);
+        int[] labels = new int[size];
+        for (int i = 0; i < size; i++) {
+            labels[i] = i;
+        }
+        for (int n = 0; n < 1500; n++) {
+            int a = random.nextInt(size);
+            int b = random.nextInt(size);
+            int la = labels[a];
+            int lb = labels[b];
+            assertEquals(la != lb, instance.union(a, b));
+            for (int i = 0; i < size; i++) {
+                if (labels[i] == lb) {
+                    labels[i] = la;
+                }
+            }
+        }
+        for (int n = 0; n < 5000; n++) {
+            int a = random.nextInt(size);
+            int b = random.nextInt(size);
+            assertEquals(labels[a] == labels[b], instance.isSameSet(a, b));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class IntBitmapTest {
+
+    @Test
+    public void testAddContains() {
+        IntBitmap instance = new IntBitmap();
+        assertTrue(instance.add(0));
+        assertTrue(instance.add(-1));
+        assertTrue(instance.add(0x10000));
+        assertFalse(instance.add(0));
+        assertTrue(instance.contains(0));
+        assertTrue(instance.contains(-1));
+        assertTrue(instance.contains(0x10000));
+        assertFalse(instance.contains(1));
+        assertFalse(instance.contains(0xFFFF));
+        assertEquals(3, instance.getCardinality());
+    }
+
+    @Test
+    public void testForEach() {
+        Random random = new Random(2);
+        IntBitmap instance = new IntBitmap();
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 20_000; i++) {
+            int v = random.nextBoolean() ? random.nextInt(0x7FFFFFFF) : 0x30000 + random.nextInt(0x10000);
+            expected.add(v);
+            instance.add(v);
+        }
+        List<Integer> values = new ArrayList<>();
+        instance.forEach(values::add);
+        assertEquals(expected.size(), values.size());
+        assertEquals(expected, new HashSet<>(values));
+        for (int i = 1; i < values.size(); i++) {
+            assertTrue(values.get(i - 1) < values.get(i));
+        }
+    }
+
+    @Test
+    public void testSparseAndDense() {
+        Random random = new Random(1);
+        IntBitmap instance = new IntBitmap();
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 20_000; i++) {
+            int sparse = random.nextInt();
+            int dense = 0x50000 + random.nextInt(0x10000);
+            assertEquals(expected.add(sparse), instance.add(sparse));
+            assertEquals(expected.add(dense), instance.add(dense));
+        }
+        assertEquals(expected.size(), instance.getCardinality());
+        for (int v : expected) {
+            assertTrue(instance.contains(v));
+        }
+        for (int i = 0; i < 20_000; i++) {
+            int v = random.nextInt();
+            assertEquals(expected.contains(v), instance.contains(v));
+        }
+        for (int v = 0x50000; v < 0x60000; v++) {
+            assertEquals(expected.contains(v), instance.contains(v));
+        }
+        assertTrue(instance.getSizeInBytes() < expected.size() * 8L + 8192);
+    }
+}
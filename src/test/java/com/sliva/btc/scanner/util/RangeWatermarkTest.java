@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class RangeWatermarkTest {
+
+    @Test
+    public void testComplete() {
+        RangeWatermark instance = new RangeWatermark(10);
+        instance.complete(21, 30);
+        assertEquals(10, instance.get());
+        instance.complete(31, 35);
+        assertEquals(10, instance.get());
+        instance.complete(11, 20);
+        assertEquals(35, instance.get());
+        instance.complete(36, 36);
+        assertEquals(36, instance.get());
+    }
+
+    @Test
+    public void testAwait() throws InterruptedException {
+        RangeWatermark instance = new RangeWatermark(0);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                instance.await(20);
+                done.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        t.start();
+        instance.complete(11, 20);
+        assertEquals(1, done.getCount());
+        instance.complete(1, 10);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFail() throws InterruptedException {
+        RangeWatermark instance = new RangeWatermark(0);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                instance.await(5);
+            } catch (InterruptedException | RuntimeException e) {
+                error.set(e);
+            }
+        });
+        t.start();
+        instance.fail();
+        t.join(10_000);
+        assertTrue(error.get() instanceof IllegalStateException);
+    }
+}